@@ -20,13 +20,16 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
-import android.os.AsyncTask;
 import android.view.View;
 import android.widget.ImageView;
 
@@ -34,6 +37,8 @@ import androidx.annotation.Nullable;
 
 import com.bumptech.glide.load.resource.bitmap.BitmapTransformation;
 
+import java.util.Objects;
+
 /**
  * Interface representing an image asset.
  */
@@ -71,8 +76,10 @@ public abstract class Asset {
      * @param targetHeight Height of target view in physical pixels.
      * @param receiver     Called with the decoded bitmap or null if there was an error decoding the
      *                     bitmap.
+     * @return Handle which can cancel the request or change its priority.
      */
-    public abstract void decodeBitmap(int targetWidth, int targetHeight, BitmapReceiver receiver);
+    public abstract DecodeRequest decodeBitmap(int targetWidth, int targetHeight,
+                                               BitmapReceiver receiver);
 
     /**
      * Decodes and downscales a bitmap region off the main UI thread.
@@ -82,9 +89,10 @@ public abstract class Asset {
      * @param targetHeight Height of target view in physical pixels.
      * @param receiver     Called with the decoded bitmap region or null if there was an error decoding
      *                     the bitmap region.
+     * @return Handle which can cancel the request or change its priority.
      */
-    public abstract void decodeBitmapRegion(Rect rect, int targetWidth, int targetHeight,
-                                            BitmapReceiver receiver);
+    public abstract DecodeRequest decodeBitmapRegion(Rect rect, int targetWidth, int targetHeight,
+                                                     BitmapReceiver receiver);
 
     /**
      * Calculates the raw dimensions of the asset at its original resolution off the main UI thread.
@@ -95,9 +103,10 @@ public abstract class Asset {
      *                 is made in the application context instead.
      * @param receiver Called with the decoded raw dimensions of the whole image or null if there was
      *                 an error decoding the dimensions.
+     * @return Handle which can cancel the request or change its priority.
      */
-    public abstract void decodeRawDimensions(@Nullable Activity activity,
-                                             DimensionsReceiver receiver);
+    public abstract DecodeRequest decodeRawDimensions(@Nullable Activity activity,
+                                                      DimensionsReceiver receiver);
 
     /**
      * Returns whether this asset has access to a separate, lower fidelity source of image data (that
@@ -171,7 +180,22 @@ public abstract class Asset {
                 transitionDrawable.startTransition(resources.getInteger(
                         android.R.integer.config_shortAnimTime));
             }
-        });
+        }).bindTo(imageView);
+    }
+
+    /**
+     * Decodes this asset ahead of it being displayed by {@link #loadDrawable} in a view of the given
+     * size, into whichever cache that method reads from, at a priority below that of visible
+     * images. Assets whose drawables aren't cached don't prefetch anything. Must be called on the
+     * main UI thread.
+     *
+     * @param context Activity hosting the view the asset will be displayed in.
+     * @param width   Width of the target view in physical pixels.
+     * @param height  Height of the target view in physical pixels.
+     * @return Handle which can cancel the prefetch.
+     */
+    public DecodeRequest prefetchDrawable(Context context, int width, int height) {
+        return DecodeRequest.completed();
     }
 
     /**
@@ -198,43 +222,126 @@ public abstract class Asset {
             imageView.setImageDrawable(getPlaceholderDrawable(context, imageView, placeholderColor));
         }
 
+        final Resources resources = context.getResources();
+        BitmapReceiver croppedBitmapReceiver = new BitmapReceiver() {
+            @Override
+            public void onBitmapDecoded(@Nullable Bitmap newBitmap) {
+                Drawable[] layers = new Drawable[2];
+                Drawable existingDrawable = imageView.getDrawable();
+
+                if (existingDrawable instanceof TransitionDrawable) {
+                    // Take only the second layer in the existing TransitionDrawable so we don't keep
+                    // around a reference to older layers which are no longer shown (this way we avoid a
+                    // memory leak).
+                    TransitionDrawable existingTransitionDrawable =
+                            (TransitionDrawable) existingDrawable;
+                    int id = existingTransitionDrawable.getId(1);
+                    layers[0] = existingTransitionDrawable.findDrawableByLayerId(id);
+                } else {
+                    layers[0] = existingDrawable;
+                }
+                layers[1] = new BitmapDrawable(resources, newBitmap);
+
+                TransitionDrawable transitionDrawable = new TransitionDrawable(layers);
+                transitionDrawable.setCrossFadeEnabled(true);
+
+                imageView.setImageDrawable(transitionDrawable);
+                transitionDrawable.startTransition(transitionDurationMillis);
+
+                if (drawableLoadedListener != null) {
+                    drawableLoadedListener.onDrawableLoaded();
+                }
+            }
+        };
+
+        DecodeScheduler.DecodeJob<Bitmap> centerCropDecodeJob =
+                createCenterCropDecodeJob(imageViewDimensions.x, imageViewDimensions.y);
+        if (centerCropDecodeJob != null) {
+            DecodeScheduler.getInstance().scheduleShared(
+                    DecodeKey.forCenterCroppedBitmap(
+                            this, imageViewDimensions.x, imageViewDimensions.y),
+                    DecodeScheduler.PRIORITY_VISIBLE_THUMBNAIL,
+                    centerCropDecodeJob, croppedBitmapReceiver::onBitmapDecoded)
+                    .bindTo(imageView);
+            return;
+        }
+
         decodeBitmap(imageViewDimensions.x, imageViewDimensions.y, new BitmapReceiver() {
             @Override
             public void onBitmapDecoded(Bitmap bitmap) {
-                final Resources resources = context.getResources();
-
-                new CenterCropBitmapTask(bitmap, imageView, new BitmapReceiver() {
-                    @Override
-                    public void onBitmapDecoded(@Nullable Bitmap newBitmap) {
-                        Drawable[] layers = new Drawable[2];
-                        Drawable existingDrawable = imageView.getDrawable();
-
-                        if (existingDrawable instanceof TransitionDrawable) {
-                            // Take only the second layer in the existing TransitionDrawable so we don't keep
-                            // around a reference to older layers which are no longer shown (this way we avoid a
-                            // memory leak).
-                            TransitionDrawable existingTransitionDrawable =
-                                    (TransitionDrawable) existingDrawable;
-                            int id = existingTransitionDrawable.getId(1);
-                            layers[0] = existingTransitionDrawable.findDrawableByLayerId(id);
-                        } else {
-                            layers[0] = existingDrawable;
-                        }
-                        layers[1] = new BitmapDrawable(resources, newBitmap);
-
-                        TransitionDrawable transitionDrawable = new TransitionDrawable(layers);
-                        transitionDrawable.setCrossFadeEnabled(true);
-
-                        imageView.setImageDrawable(transitionDrawable);
-                        transitionDrawable.startTransition(transitionDurationMillis);
-
-                        if (drawableLoadedListener != null) {
-                            drawableLoadedListener.onDrawableLoaded();
-                        }
-                    }
-                }).execute();
+                new CenterCropBitmapTask(bitmap, imageView, croppedBitmapReceiver)
+                        .execute().bindTo(imageView);
             }
-        });
+        }).bindTo(imageView);
+    }
+
+    /**
+     * Returns a job which decodes the asset straight into a bitmap of exactly the given dimensions,
+     * center cropped, or null if the asset can only decode a bitmap to be center cropped afterwards
+     * by a {@link CenterCropBitmapTask}.
+     */
+    @Nullable
+    protected DecodeScheduler.DecodeJob<Bitmap> createCenterCropDecodeJob(int width, int height) {
+        return null;
+    }
+
+    /**
+     * Identifies the result of decoding an asset in a particular way, so that concurrent identical
+     * requests can share a single decode via
+     * {@link DecodeScheduler#scheduleShared(Object, int, DecodeScheduler.DecodeJob,
+     * DecodeScheduler.DecodeCallback)}. Bitmaps which are subsampled from the encoded image are
+     * shared between requests which subsample it by the same factor, even if they asked for
+     * slightly different target sizes; bitmaps which are scaled to their target size are only
+     * shared between requests for the same size.
+     */
+    static final class DecodeKey {
+        static final int KIND_BITMAP = 0;
+        static final int KIND_RAW_DIMENSIONS = 1;
+        static final int KIND_CENTER_CROPPED_BITMAP = 2;
+        static final int KIND_SAMPLED_BITMAP = 3;
+
+        private final Asset mAsset;
+        private final int mKind;
+        private final int mWidth;
+        private final int mHeight;
+
+        private DecodeKey(Asset asset, int kind, int width, int height) {
+            mAsset = asset;
+            mKind = kind;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        static DecodeKey forBitmap(Asset asset, int targetWidth, int targetHeight) {
+            return new DecodeKey(asset, KIND_BITMAP, targetWidth, targetHeight);
+        }
+
+        static DecodeKey forSampledBitmap(Asset asset, int sampleSize) {
+            return new DecodeKey(asset, KIND_SAMPLED_BITMAP, sampleSize, sampleSize);
+        }
+
+        static DecodeKey forCenterCroppedBitmap(Asset asset, int width, int height) {
+            return new DecodeKey(asset, KIND_CENTER_CROPPED_BITMAP, width, height);
+        }
+
+        static DecodeKey forRawDimensions(Asset asset) {
+            return new DecodeKey(asset, KIND_RAW_DIMENSIONS, 0, 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mAsset, mKind, mWidth, mHeight);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof DecodeKey)) {
+                return false;
+            }
+            DecodeKey other = (DecodeKey) obj;
+            return other.mAsset.equals(mAsset) && other.mKind == mKind
+                    && other.mWidth == mWidth && other.mHeight == mHeight;
+        }
     }
 
     /**
@@ -270,10 +377,10 @@ public abstract class Asset {
     }
 
     /**
-     * Custom AsyncTask which returns a copy of the given bitmap which is center cropped and scaled to
+     * Decoding job which returns a copy of the given bitmap which is center cropped and scaled to
      * fit in the given ImageView.
      */
-    public static class CenterCropBitmapTask extends AsyncTask<Void, Void, Bitmap> {
+    public static class CenterCropBitmapTask implements DecodeScheduler.DecodeJob<Bitmap> {
 
         private Bitmap mBitmap;
         private BitmapReceiver mBitmapReceiver;
@@ -292,41 +399,65 @@ public abstract class Asset {
             mImageViewHeight = imageViewDimensions.y;
         }
 
+        /**
+         * Schedules the crop on the {@link DecodeScheduler} in the visible thumbnail lane.
+         */
+        public DecodeRequest execute() {
+            return DecodeScheduler.getInstance().schedule(
+                    DecodeScheduler.PRIORITY_VISIBLE_THUMBNAIL, this,
+                    mBitmapReceiver::onBitmapDecoded);
+        }
+
         @Override
-        protected Bitmap doInBackground(Void... unused) {
+        public Bitmap decode() {
             int measuredWidth = mImageViewWidth;
             int measuredHeight = mImageViewHeight;
 
-            int bitmapWidth = 1;
-            int bitmapHeight = 1;
-
-            if (mBitmap != null) {
-                 bitmapWidth = mBitmap.getWidth();
-                 bitmapHeight = mBitmap.getHeight();
+            if (mBitmap == null) {
+                return null;
             }
+            int bitmapWidth = mBitmap.getWidth();
+            int bitmapHeight = mBitmap.getHeight();
 
             float scale = Math.min(
                     (float) bitmapWidth / measuredWidth,
                     (float) bitmapHeight / measuredHeight);
 
-            Bitmap scaledBitmap = Bitmap.createScaledBitmap(
-                    mBitmap, Math.round(bitmapWidth / scale), Math.round(bitmapHeight / scale),
-                    true);
+            int scaledWidth = Math.round(bitmapWidth / scale);
+            int scaledHeight = Math.round(bitmapHeight / scale);
+            int horizontalGutterPx = Math.max(0, (scaledWidth - measuredWidth) / 2);
+            int verticalGutterPx = Math.max(0, (scaledHeight - measuredHeight) / 2);
+            int croppedWidth = scaledWidth - (2 * horizontalGutterPx);
+            int croppedHeight = scaledHeight - (2 * verticalGutterPx);
+
+            if (mBitmap.getConfig() != Config.HARDWARE) {
+                // Scale and crop in a single draw into a pooled bitmap rather than allocating an
+                // intermediate scaled copy.
+                Bitmap croppedBitmap = BitmapReusePool.obtain(croppedWidth, croppedHeight,
+                        mBitmap.getConfig() != null ? mBitmap.getConfig() : Config.ARGB_8888);
+                croppedBitmap.setHasAlpha(mBitmap.hasAlpha());
+                if (mBitmap.hasAlpha()) {
+                    croppedBitmap.eraseColor(Color.TRANSPARENT);
+                }
+                Matrix matrix = new Matrix();
+                matrix.setScale((float) scaledWidth / bitmapWidth,
+                        (float) scaledHeight / bitmapHeight);
+                matrix.postTranslate(-horizontalGutterPx, -verticalGutterPx);
+                new Canvas(croppedBitmap).drawBitmap(mBitmap, matrix,
+                        new Paint(Paint.FILTER_BITMAP_FLAG));
+                return croppedBitmap;
+            }
 
-            int horizontalGutterPx = Math.max(0, (scaledBitmap.getWidth() - measuredWidth) / 2);
-            int verticalGutterPx = Math.max(0, (scaledBitmap.getHeight() - measuredHeight) / 2);
+            // Hardware bitmaps can't be drawn into a software canvas, so scale then crop.
+            Bitmap scaledBitmap = Bitmap.createScaledBitmap(
+                    mBitmap, scaledWidth, scaledHeight, true);
 
             return Bitmap.createBitmap(
                     scaledBitmap,
                     horizontalGutterPx,
                     verticalGutterPx,
-                    scaledBitmap.getWidth() - (2 * horizontalGutterPx),
-                    scaledBitmap.getHeight() - (2 * verticalGutterPx));
-        }
-
-        @Override
-        protected void onPostExecute(Bitmap newBitmap) {
-            mBitmapReceiver.onBitmapDecoded(newBitmap);
+                    croppedWidth,
+                    croppedHeight);
         }
     }
 }
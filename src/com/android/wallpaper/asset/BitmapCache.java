@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+import androidx.core.app.ActivityManagerCompat;
+
+import com.android.wallpaper.asset.Asset.BitmapReceiver;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-tier cache of bitmaps decoded from {@link Asset}s at a given target size.
+ * <p>
+ * The memory tier is an LRU cache sized as a fraction of the app's memory class (see
+ * {@link ActivityManager#getMemoryClass()}), leaving most of the heap to Glide's own pools. A
+ * request which misses can be served by downscaling a larger bitmap cached for the same asset.
+ * Bitmaps evicted from memory are compressed into a bounded disk tier in the background so that
+ * they can be brought back without decoding the asset again. The disk tier only lives as long as
+ * the process, since assets have no identity which is stable across processes.
+ */
+public class BitmapCache {
+    private static final String TAG = "BitmapCache";
+
+    private static final String DISK_CACHE_DIR = "bitmap_cache";
+    private static final long DISK_CACHE_SIZE_BYTES = 32 * 1024 * 1024;
+    private static final int JPEG_QUALITY = 95;
+
+    /**
+     * Evicted bitmaps stay in memory until they are written to disk, so bitmaps are only spilled
+     * while the ones waiting to be written add up to less than this.
+     */
+    private static final long MAX_PENDING_SPILL_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Fraction of the memory class used by the memory tier.
+     */
+    private static final int MEMORY_CLASS_DIVISOR = 8;
+    private static final int LOW_RAM_MEMORY_CLASS_DIVISOR = 16;
+
+    /**
+     * A cached bitmap at most this many times larger than the requested size is returned as is,
+     * which matches what decoding the asset with a power of two sample size would produce.
+     */
+    private static final float MAX_UNSCALED_RATIO = 2f;
+
+    private static BitmapCache sInstance;
+
+    private final File mDiskCacheDir;
+    private final LruCache<CacheKey, Bitmap> mMemoryCache;
+
+    // Keys in the memory tier for each asset, so that a larger bitmap of the same asset can be
+    // found without scanning the whole memory tier. Guarded by itself.
+    private final Map<Asset, Set<CacheKey>> mMemoryKeysByAsset = new HashMap<>();
+
+    // Runs all disk tier writes and deletions one at a time, so they can't race each other.
+    private final ThreadPoolExecutor mDiskExecutor = new ThreadPoolExecutor(1, 1,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    private final AtomicLong mPendingSpillBytes = new AtomicLong();
+
+    // Guarded by mDiskEntries; access-ordered so that iteration starts with the least recently
+    // used entry.
+    private final LinkedHashMap<CacheKey, File> mDiskEntries =
+            new LinkedHashMap<>(16, 0.75f, true /* accessOrder */);
+    private long mDiskCacheSizeBytes;
+    private int mNextDiskFileId;
+
+    // Whether bitmaps evicted from memory should be written to the disk tier; turned off while
+    // trimming under memory pressure, when the process may be about to be killed.
+    private volatile boolean mSpillOnEviction = true;
+
+    public static synchronized BitmapCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BitmapCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BitmapCache(Context appContext) {
+        ActivityManager activityManager =
+                (ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE);
+        int divisor = ActivityManagerCompat.isLowRamDevice(activityManager)
+                ? LOW_RAM_MEMORY_CLASS_DIVISOR
+                : MEMORY_CLASS_DIVISOR;
+        int maxSizeBytes = activityManager.getMemoryClass() * 1024 * 1024 / divisor;
+
+        mMemoryCache = new LruCache<CacheKey, Bitmap>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(CacheKey key, Bitmap value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, CacheKey key, Bitmap oldValue,
+                    Bitmap newValue) {
+                if (newValue == null) {
+                    removeFromIndex(key);
+                }
+                if (evicted && mSpillOnEviction) {
+                    spillToDisk(key, oldValue);
+                }
+            }
+        };
+
+        mDiskCacheDir = new File(appContext.getCacheDir(), DISK_CACHE_DIR);
+        mDiskExecutor.allowCoreThreadTimeOut(true);
+        // Files spilled by a previous process can't be matched to assets anymore.
+        mDiskExecutor.execute(this::clearDiskCacheDir);
+    }
+
+    /**
+     * Decodes a bitmap for the asset at the target size, serving it from the cache if possible.
+     *
+     * @param asset        Asset to decode.
+     * @param targetWidth  Width of target view in physical pixels.
+     * @param targetHeight Height of target view in physical pixels.
+     * @param receiver     Called with the bitmap, or null if there was an error decoding it. Called
+     *                     synchronously if the bitmap is cached in memory.
+     * @return Handle which can cancel the request or change its priority.
+     */
+    DecodeRequest decodeBitmap(Asset asset, int targetWidth, int targetHeight,
+            BitmapReceiver receiver) {
+        CacheKey key = new CacheKey(asset, targetWidth, targetHeight);
+        Bitmap cached = mMemoryCache.get(key);
+        if (cached != null) {
+            receiver.onBitmapDecoded(cached);
+            return DecodeRequest.completed();
+        }
+
+        Bitmap larger = findSmallestLargerBitmap(key);
+        if (larger != null) {
+            float scale = Math.max((float) targetWidth / larger.getWidth(),
+                    (float) targetHeight / larger.getHeight());
+            if (scale * MAX_UNSCALED_RATIO >= 1f) {
+                receiver.onBitmapDecoded(larger);
+                return DecodeRequest.completed();
+            }
+            if (canScale(larger)) {
+                return DecodeScheduler.getInstance().schedule(
+                        DecodeScheduler.PRIORITY_VISIBLE_THUMBNAIL,
+                        () -> cache(key, downscale(larger, scale)),
+                        receiver::onBitmapDecoded);
+            }
+        }
+
+        File diskFile;
+        synchronized (mDiskEntries) {
+            diskFile = mDiskEntries.get(key);
+        }
+        if (diskFile != null) {
+            return DecodeScheduler.getInstance().schedule(
+                    DecodeScheduler.PRIORITY_VISIBLE_THUMBNAIL,
+                    () -> readFromDisk(key, diskFile),
+                    bitmap -> {
+                        if (bitmap != null) {
+                            receiver.onBitmapDecoded(bitmap);
+                        } else {
+                            // The spilled file was lost, so decode the asset again.
+                            decodeAndCache(key, receiver);
+                        }
+                    });
+        }
+
+        return decodeAndCache(key, receiver);
+    }
+
+    /**
+     * Releases cached bitmaps in response to a {@link ComponentCallbacks2} trim memory level.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            // The process is likely to be killed soon, so don't spend any effort spilling to disk.
+            mSpillOnEviction = false;
+            mMemoryCache.evictAll();
+            mSpillOnEviction = true;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            // Keep half of the cache so that coming back to the picker is still fast; the rest
+            // can be restored from disk.
+            mMemoryCache.trimToSize(mMemoryCache.maxSize() / 2);
+        }
+    }
+
+    private DecodeRequest decodeAndCache(CacheKey key, BitmapReceiver receiver) {
+        return key.asset.decodeBitmap(key.width, key.height, bitmap -> {
+            receiver.onBitmapDecoded(cache(key, bitmap));
+        });
+    }
+
+    @Nullable
+    private Bitmap cache(CacheKey key, @Nullable Bitmap bitmap) {
+        if (bitmap != null) {
+            // Indexed first, so that an eviction during the put also removes it from the index.
+            synchronized (mMemoryKeysByAsset) {
+                Set<CacheKey> keys = mMemoryKeysByAsset.get(key.asset);
+                if (keys == null) {
+                    keys = new HashSet<>();
+                    mMemoryKeysByAsset.put(key.asset, keys);
+                }
+                keys.add(key);
+            }
+            mMemoryCache.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    private void removeFromIndex(CacheKey key) {
+        synchronized (mMemoryKeysByAsset) {
+            Set<CacheKey> keys = mMemoryKeysByAsset.get(key.asset);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                mMemoryKeysByAsset.remove(key.asset);
+            }
+        }
+    }
+
+    /**
+     * Returns the smallest bitmap cached in memory for the same asset which covers the requested
+     * size, or null if there is none.
+     */
+    @Nullable
+    private Bitmap findSmallestLargerBitmap(CacheKey key) {
+        CacheKey bestKey = null;
+        synchronized (mMemoryKeysByAsset) {
+            Set<CacheKey> keys = mMemoryKeysByAsset.get(key.asset);
+            if (keys == null) {
+                return null;
+            }
+            for (CacheKey candidate : keys) {
+                if (candidate.width < key.width || candidate.height < key.height) {
+                    continue;
+                }
+                if (bestKey == null || (long) candidate.width * candidate.height
+                        < (long) bestKey.width * bestKey.height) {
+                    bestKey = candidate;
+                }
+            }
+        }
+        // Also touches the entry so that it is treated as recently used. The entry may have been
+        // evicted since it was found, in which case the request is simply a miss.
+        return bestKey != null ? mMemoryCache.get(bestKey) : null;
+    }
+
+    private static boolean canScale(Bitmap bitmap) {
+        // Hardware bitmaps can only be drawn into a new bitmap from P onwards.
+        return bitmap.getConfig() != Config.HARDWARE
+                || Build.VERSION.SDK_INT >= Build.VERSION_CODES.P;
+    }
+
+    private static Bitmap downscale(Bitmap source, float scale) {
+        int width = Math.max(1, Math.round(source.getWidth() * scale));
+        int height = Math.max(1, Math.round(source.getHeight() * scale));
+        return Bitmap.createScaledBitmap(source, width, height, true /* filter */);
+    }
+
+    private void spillToDisk(CacheKey key, Bitmap bitmap) {
+        // Rather than holding on to more evicted bitmaps than the writer keeps up with, drop them;
+        // they can still be decoded again from the asset.
+        long size = bitmap.getAllocationByteCount();
+        if (mPendingSpillBytes.addAndGet(size) > MAX_PENDING_SPILL_BYTES) {
+            mPendingSpillBytes.addAndGet(-size);
+            return;
+        }
+        mDiskExecutor.execute(() -> {
+            try {
+                writeToDisk(key, bitmap);
+            } finally {
+                mPendingSpillBytes.addAndGet(-size);
+            }
+        });
+    }
+
+    private void writeToDisk(CacheKey key, Bitmap bitmap) {
+        // The bitmap may have been brought back into memory, or spilled already, in the meantime.
+        synchronized (mDiskEntries) {
+            if (mDiskEntries.containsKey(key) || mMemoryCache.get(key) != null) {
+                return;
+            }
+        }
+
+        if (!mDiskCacheDir.isDirectory() && !mDiskCacheDir.mkdirs()) {
+            Log.w(TAG, "Unable to create bitmap disk cache directory");
+            return;
+        }
+
+        File file;
+        synchronized (mDiskEntries) {
+            file = new File(mDiskCacheDir, Integer.toString(mNextDiskFileId++));
+        }
+
+        // Hardware bitmaps can't be compressed directly.
+        Bitmap softwareBitmap = bitmap.getConfig() == Config.HARDWARE
+                ? bitmap.copy(Config.ARGB_8888, false /* isMutable */)
+                : bitmap;
+        if (softwareBitmap == null) {
+            return;
+        }
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            if (softwareBitmap.hasAlpha()) {
+                softwareBitmap.compress(CompressFormat.PNG, 100 /* ignored */, out);
+            } else {
+                softwareBitmap.compress(CompressFormat.JPEG, JPEG_QUALITY, out);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to spill bitmap to disk", e);
+            file.delete();
+            return;
+        } finally {
+            if (softwareBitmap != bitmap) {
+                softwareBitmap.recycle();
+            }
+        }
+
+        synchronized (mDiskEntries) {
+            mDiskEntries.put(key, file);
+            mDiskCacheSizeBytes += file.length();
+            Iterator<File> iterator = mDiskEntries.values().iterator();
+            while (mDiskCacheSizeBytes > DISK_CACHE_SIZE_BYTES && iterator.hasNext()) {
+                File eldest = iterator.next();
+                iterator.remove();
+                mDiskCacheSizeBytes -= eldest.length();
+                eldest.delete();
+            }
+        }
+    }
+
+    @Nullable
+    private Bitmap readFromDisk(CacheKey key, File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Config.HARDWARE;
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        if (bitmap == null) {
+            synchronized (mDiskEntries) {
+                if (mDiskEntries.remove(key) != null) {
+                    mDiskCacheSizeBytes -= file.length();
+                }
+            }
+            file.delete();
+            return null;
+        }
+        // Left on disk so that it doesn't need to be compressed again if evicted again.
+        return cache(key, bitmap);
+    }
+
+    private void clearDiskCacheDir() {
+        File[] files = mDiskCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        synchronized (mDiskEntries) {
+            for (File file : files) {
+                if (!mDiskEntries.containsValue(file)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Identifies a bitmap decoded from an asset at a target size.
+     */
+    private static class CacheKey {
+        final Asset asset;
+        final int width;
+        final int height;
+
+        CacheKey(Asset asset, int width, int height) {
+            this.asset = asset;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(asset, width, height);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof CacheKey
+                    && ((CacheKey) obj).asset.equals(this.asset)
+                    && ((CacheKey) obj).width == this.width
+                    && ((CacheKey) obj).height == this.height;
+        }
+    }
+}
@@ -16,98 +16,51 @@
 package com.android.wallpaper.asset;
 
 import android.app.Activity;
-import android.app.ActivityManager;
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.Rect;
-import android.util.LruCache;
 
 import androidx.annotation.Nullable;
-import androidx.core.app.ActivityManagerCompat;
-
-import java.util.Objects;
 
 /**
- * Implementation of {@link Asset} that wraps another {@link Asset} but keeps an LRU cache of
- * bitmaps generated by {@link #decodeBitmap(int, int, BitmapReceiver)} to avoid having to decode
- * the same bitmap multiple times.
- * The cache key is the wrapped Asset and the target Width and Height requested, so that we only
- * reuse bitmaps of the same size.
+ * Implementation of {@link Asset} that wraps another {@link Asset} but caches the bitmaps generated
+ * by {@link #decodeBitmap(int, int, BitmapReceiver)} in the shared {@link BitmapCache} to avoid
+ * having to decode the same bitmap multiple times.
+ * Bitmaps are cached per wrapped Asset and target width and height, and a request may also be
+ * served by downscaling a larger bitmap cached for the same Asset.
  */
 public class BitmapCachingAsset extends Asset {
 
-    private static class CacheKey {
-        final Asset asset;
-        final int width;
-        final int height;
-
-        CacheKey(Asset asset, int width, int height) {
-            this.asset = asset;
-            this.width = width;
-            this.height = height;
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(asset, width, height);
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            return obj instanceof CacheKey
-                    && ((CacheKey)obj).asset == this.asset
-                    && ((CacheKey)obj).width == this.width
-                    && ((CacheKey)obj).height == this.height;
-        }
-    }
-
-    private static int cacheSize = 100 * 1024 * 1024; // 100MiB
-    private static LruCache<CacheKey, Bitmap> sCache = new LruCache<CacheKey, Bitmap>(cacheSize) {
-        @Override protected int sizeOf(CacheKey key, Bitmap value) {
-            return value.getByteCount();
-        }
-    };
-
-    private final boolean mIsLowRam;
+    private final BitmapCache mCache;
     private final Asset mOriginalAsset;
 
     public BitmapCachingAsset(Context context, Asset originalAsset) {
         mOriginalAsset = originalAsset;
-        mIsLowRam = ActivityManagerCompat.isLowRamDevice(
-                (ActivityManager) context.getApplicationContext().getSystemService(
-                        Context.ACTIVITY_SERVICE));
+        mCache = BitmapCache.getInstance(context);
+    }
+
+    @Override
+    public DecodeRequest decodeBitmap(int targetWidth, int targetHeight,
+            BitmapReceiver receiver) {
+        return mCache.decodeBitmap(mOriginalAsset, targetWidth, targetHeight, receiver);
     }
 
     @Override
-    public void decodeBitmap(int targetWidth, int targetHeight, BitmapReceiver receiver) {
-        // Skip the cache in low ram devices
-        if (mIsLowRam) {
-            mOriginalAsset.decodeBitmap(targetWidth, targetHeight, receiver::onBitmapDecoded);
-            return;
-        }
-        CacheKey key = new CacheKey(mOriginalAsset, targetWidth, targetHeight);
-        Bitmap cached = sCache.get(key);
-        if (cached != null) {
-            receiver.onBitmapDecoded(cached);
-        } else {
-            mOriginalAsset.decodeBitmap(targetWidth, targetHeight, bitmap -> {
-                if (bitmap != null) {
-                    sCache.put(key, bitmap);
-                }
-                receiver.onBitmapDecoded(bitmap);
-            });
-        }
+    public DecodeRequest prefetchDrawable(Context context, int width, int height) {
+        DecodeRequest request = mCache.decodeBitmap(mOriginalAsset, width, height, unused -> { });
+        request.setPriority(DecodeScheduler.PRIORITY_PREFETCH);
+        return request;
     }
 
     @Override
-    public void decodeBitmapRegion(Rect rect, int targetWidth, int targetHeight,
+    public DecodeRequest decodeBitmapRegion(Rect rect, int targetWidth, int targetHeight,
             BitmapReceiver receiver) {
-        mOriginalAsset.decodeBitmapRegion(rect, targetWidth, targetHeight, receiver);
+        return mOriginalAsset.decodeBitmapRegion(rect, targetWidth, targetHeight, receiver);
     }
 
     @Override
-    public void decodeRawDimensions(@Nullable Activity activity, DimensionsReceiver receiver) {
-        mOriginalAsset.decodeRawDimensions(activity, receiver);
+    public DecodeRequest decodeRawDimensions(@Nullable Activity activity,
+            DimensionsReceiver receiver) {
+        return mOriginalAsset.decodeRawDimensions(activity, receiver);
     }
 
     @Override
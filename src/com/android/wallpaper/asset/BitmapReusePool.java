@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+
+import androidx.annotation.Nullable;
+
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+
+/**
+ * Pool of reusable bitmaps for the asset decoders, backed by Glide's {@link BitmapPool} so that
+ * bitmaps freed by either side can be reused by the other and both stay within Glide's single
+ * memory budget (which Glide also trims in response to memory pressure).
+ * <p>
+ * Glide's pool is bucketed by allocation size and hands out any pooled bitmap which is large enough,
+ * reconfigured to the requested dimensions, so tiles and thumbnails of slightly different sizes
+ * reuse each other's allocations.
+ */
+public class BitmapReusePool {
+
+    private static volatile BitmapPool sBitmapPool;
+
+    /**
+     * Backs the pool with Glide's bitmap pool. Until this is called, bitmaps are simply allocated
+     * and dropped.
+     */
+    static void setBitmapPool(BitmapPool bitmapPool) {
+        sBitmapPool = bitmapPool;
+    }
+
+    /**
+     * Returns a mutable bitmap with the given dimensions and config, reusing a pooled one if
+     * possible. The returned bitmap's contents are undefined, so callers must draw over all of it.
+     */
+    public static Bitmap obtain(int width, int height, Config config) {
+        BitmapPool pool = sBitmapPool;
+        if (pool == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        return pool.getDirty(width, height, config);
+    }
+
+    /**
+     * Sets {@link BitmapFactory.Options#inBitmap} to a pooled bitmap for decoding the given region
+     * with a {@link android.graphics.BitmapRegionDecoder}. Unlike BitmapFactory, the region decoder
+     * never resizes the bitmap it decodes into, so it has to match the sampled region exactly.
+     */
+    static void prepareForRegionDecode(BitmapFactory.Options options, Rect region) {
+        BitmapPool pool = sBitmapPool;
+        if (pool == null || options.inPreferredConfig == Config.HARDWARE) {
+            return;
+        }
+        int sampleSize = Math.max(1, options.inSampleSize);
+        Config config = options.inPreferredConfig == null
+                ? Config.ARGB_8888
+                : options.inPreferredConfig;
+        // The region decoder rounds sampled dimensions down. Pooled bitmaps are cleared, since
+        // parts of a region that fall outside of the image aren't written.
+        options.inBitmap = pool.get(Math.max(1, region.width() / sampleSize),
+                Math.max(1, region.height() / sampleSize), config);
+        options.inMutable = true;
+    }
+
+    /**
+     * Returns a bitmap which is no longer referenced by the caller to the pool. Immutable and
+     * hardware bitmaps are ignored.
+     */
+    public static void release(@Nullable Bitmap bitmap) {
+        BitmapPool pool = sBitmapPool;
+        if (pool == null || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() == Config.HARDWARE) {
+            return;
+        }
+        pool.put(bitmap);
+    }
+}
@@ -16,15 +16,44 @@
 package com.android.wallpaper.asset;
 
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
 import android.graphics.Point;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.Nullable;
+
+import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Collection of static utility methods for decoding and processing Bitmaps.
  */
 public class BitmapUtils {
+    private static final String TAG = "BitmapUtils";
     private static final float DEFAULT_CENTER_ALIGNMENT = 0.5f;
 
+    // How long to wait for the sampled rows of a hardware bitmap to be drawn for reading back.
+    private static final long HARDWARE_READBACK_TIMEOUT_MILLIS = 1000;
+
+    // Maximum size of the bands of rows decoded when hashing legacy hash codes through a region
+    // decoder.
+    private static final int HASH_BAND_BYTES = 4 * 1024 * 1024;
+
     // Suppress default constructor for noninstantiability.
     private BitmapUtils() {
         throw new AssertionError();
@@ -57,31 +86,77 @@ public class BitmapUtils {
     }
 
     /**
-     * Generates a hash code for the given bitmap. Computation starts with a nonzero prime number,
-     * then for the integer values of height, width, and a selection of pixel colors, multiplies the
-     * result by 31 and adds said integer value. Multiply by 31 because it is prime and conveniently 1
-     * less than 32 which is 2 ^ 5, allowing the VM to replace multiplication by a bit shift and
-     * subtraction for performance.
+     * Generates a hash code for the given bitmap's dimensions and pixels, sampled on a stratified
+     * grid as described in {@link PixelHasher#hash}. Each sampled row is read with a single
+     * {@link Bitmap#getPixels} call, so the hash is computed from the same ARGB values regardless of
+     * the bitmap's config.
+     * <p>
+     * The pixels of hardware bitmaps can't be read directly, so only the sampled rows are drawn
+     * into a small buffer and read back from there. Their pixels must be opaque for the hash code
+     * to match that of a software copy, since translucent pixels are read back premultiplied.
+     * <p>
+     * The result is never 0, which callers use to mean that no hash code is known.
      * <p>
      * This method should be called off the UI thread.
      */
     public static long generateHashCode(Bitmap bitmap) {
-        long result = 17;
+        if (bitmap.getConfig() == Config.HARDWARE) {
+            return PixelHasher.hash(readHardwareRows(bitmap,
+                    PixelHasher.getSampledRows(bitmap.getHeight())));
+        }
+        return PixelHasher.hash(new BitmapRowReader(bitmap));
+    }
 
-        int width = bitmap.getWidth();
-        int height = bitmap.getHeight();
+    /**
+     * Generates a hash code for the image in the given file, hashed like
+     * {@link #generateHashCode(Bitmap)} but from a single decode subsampled to just above the
+     * hash grid, so that the full resolution image is never decoded. Hash codes generated this way
+     * differ from those of the full resolution bitmap, so they must only be compared with other
+     * hash codes generated from files.
+     * <p>
+     * Returns 0 if the file can't be decoded. This method should be called off the UI thread.
+     */
+    public static long generateHashCode(FileDescriptor fd) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFileDescriptor(fd, null /* outPadding */, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return 0;
+        }
 
-        result = 31 * result + width;
-        result = 31 * result + height;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                PixelHasher.HASH_GRID_SIZE, PixelHasher.HASH_GRID_SIZE);
+        options.inPreferredConfig = Config.ARGB_8888;
+        Bitmap bitmap = BitmapFactory.decodeFileDescriptor(fd, null /* outPadding */, options);
+        if (bitmap == null) {
+            return 0;
+        }
+        return generateHashCode(bitmap);
+    }
 
-        // Traverse pixels exponentially so that hash code generation scales well with large images.
-        for (int x = 0; x < width; x = x * 2 + 1) {
-            for (int y = 0; y < height; y = y * 2 + 1) {
-                result = 31 * result + bitmap.getPixel(x, y);
-            }
+    /**
+     * Generates a hash code with the algorithm used by earlier versions of the app, which sampled
+     * pixels at exponentially increasing offsets from the top-left corner. This is only meant for
+     * recognizing hash codes which were persisted by those versions; new hash codes should be
+     * generated with {@link #generateHashCode(Bitmap)}.
+     */
+    public static long generateLegacyHashCode(Bitmap bitmap) {
+        if (bitmap.getConfig() == Config.HARDWARE) {
+            return PixelHasher.legacyHash(readHardwareRows(bitmap,
+                    PixelHasher.getLegacySampledRows(bitmap.getHeight())));
         }
+        return PixelHasher.legacyHash(new BitmapRowReader(bitmap));
+    }
 
-        return result;
+    /**
+     * Generates the same hash code as {@link #generateLegacyHashCode(Bitmap)} would for the full
+     * image behind the given region decoder, decoding it in bands.
+     */
+    public static long generateLegacyHashCode(BitmapRegionDecoder decoder) {
+        try (RegionRowReader rowReader = new RegionRowReader(decoder)) {
+            return PixelHasher.legacyHash(rowReader);
+        }
     }
 
     /**
@@ -117,4 +192,214 @@ public class BitmapUtils {
                 ? DEFAULT_CENTER_ALIGNMENT
                 : paddingTop / ((float) paddingTop + paddingBottom);
     }
+
+    /**
+     * Returns a reader for the given rows of a hardware bitmap, which are drawn with a hardware
+     * canvas into an {@link ImageReader} of just those rows. Falls back to reading from a full
+     * software copy of the bitmap if that fails.
+     */
+    private static PixelHasher.RowReader readHardwareRows(Bitmap bitmap, int[] rows) {
+        int[] pixels = drawHardwareRows(bitmap, rows);
+        if (pixels != null) {
+            return new SampledRowReader(bitmap.getWidth(), bitmap.getHeight(), rows, pixels);
+        }
+        Log.w(TAG, "Unable to read back sampled rows of a hardware bitmap, copying all of it");
+        return new BitmapRowReader(bitmap.copy(Config.ARGB_8888, false /* isMutable */));
+    }
+
+    /**
+     * Draws the given rows of a bitmap one above the other and returns their unpremultiplied ARGB
+     * pixels, or null if they couldn't be read back.
+     */
+    @Nullable
+    private static int[] drawHardwareRows(Bitmap bitmap, int[] rows) {
+        int width = bitmap.getWidth();
+        ImageReader reader = ImageReader.newInstance(width, rows.length, PixelFormat.RGBA_8888,
+                1 /* maxImages */);
+        // The calling thread may have no looper, so listen for the drawn image on a thread of
+        // its own.
+        HandlerThread listenerThread = new HandlerThread("HardwareReadbackThread");
+        listenerThread.start();
+        CountDownLatch imageAvailable = new CountDownLatch(1);
+        reader.setOnImageAvailableListener(unused -> imageAvailable.countDown(),
+                new Handler(listenerThread.getLooper()));
+        try {
+            Surface surface = reader.getSurface();
+            Canvas canvas = surface.lockHardwareCanvas();
+            // Copy the pixels as they are rather than blending them over the empty buffer.
+            Paint paint = new Paint();
+            paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+            Rect src = new Rect();
+            Rect dst = new Rect();
+            for (int i = 0; i < rows.length; i++) {
+                src.set(0, rows[i], width, rows[i] + 1);
+                dst.set(0, i, width, i + 1);
+                canvas.drawBitmap(bitmap, src, dst, paint);
+            }
+            surface.unlockCanvasAndPost(canvas);
+
+            if (!imageAvailable.await(HARDWARE_READBACK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out waiting for hardware bitmap rows to be drawn");
+                return null;
+            }
+            Image image = reader.acquireLatestImage();
+            if (image == null) {
+                return null;
+            }
+            try {
+                return toUnpremultipliedArgb(image.getPlanes()[0], width, rows.length);
+            } finally {
+                image.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to draw hardware bitmap rows", e);
+            return null;
+        } finally {
+            reader.close();
+            listenerThread.quitSafely();
+        }
+    }
+
+    private static int[] toUnpremultipliedArgb(Image.Plane plane, int width, int height) {
+        ByteBuffer buffer = plane.getBuffer();
+        int pixelStride = plane.getPixelStride();
+        int rowStride = plane.getRowStride();
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int offset = y * rowStride + x * pixelStride;
+                int r = buffer.get(offset) & 0xff;
+                int g = buffer.get(offset + 1) & 0xff;
+                int b = buffer.get(offset + 2) & 0xff;
+                int a = buffer.get(offset + 3) & 0xff;
+                if (a == 0) {
+                    r = g = b = 0;
+                } else if (a != 0xff) {
+                    r = Math.min(0xff, Math.round(r * 255f / a));
+                    g = Math.min(0xff, Math.round(g * 255f / a));
+                    b = Math.min(0xff, Math.round(b * 255f / a));
+                }
+                pixels[y * width + x] = a << 24 | r << 16 | g << 8 | b;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Reads rows from pixels sampled beforehand, which must include every row that is read.
+     */
+    private static class SampledRowReader implements PixelHasher.RowReader {
+        private final int mWidth;
+        private final int mHeight;
+        private final int[] mRows;
+        private final int[] mPixels;
+
+        SampledRowReader(int width, int height, int[] rows, int[] pixels) {
+            mWidth = width;
+            mHeight = height;
+            mRows = rows;
+            mPixels = pixels;
+        }
+
+        @Override
+        public int getWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public void readRow(int y, int[] pixels) {
+            for (int i = 0; i < mRows.length; i++) {
+                if (mRows[i] == y) {
+                    System.arraycopy(mPixels, i * mWidth, pixels, 0, mWidth);
+                    return;
+                }
+            }
+            throw new IllegalArgumentException("Row " + y + " wasn't sampled");
+        }
+    }
+
+    private static class BitmapRowReader implements PixelHasher.RowReader {
+        private final Bitmap mBitmap;
+
+        BitmapRowReader(Bitmap bitmap) {
+            mBitmap = bitmap;
+        }
+
+        @Override
+        public int getWidth() {
+            return mBitmap.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return mBitmap.getHeight();
+        }
+
+        @Override
+        public void readRow(int y, int[] pixels) {
+            mBitmap.getPixels(pixels, 0 /* offset */, mBitmap.getWidth(), 0 /* x */, y,
+                    mBitmap.getWidth(), 1 /* height */);
+        }
+    }
+
+    /**
+     * Reads rows from a region decoder, decoding a band of rows starting at the requested one
+     * whenever a row falls outside of the current band.
+     */
+    private static class RegionRowReader implements PixelHasher.RowReader, AutoCloseable {
+        private final BitmapRegionDecoder mDecoder;
+        private final int mBandHeight;
+        private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+        private Bitmap mBand;
+        private int mBandTop;
+
+        RegionRowReader(BitmapRegionDecoder decoder) {
+            mDecoder = decoder;
+            mBandHeight = Math.max(1, HASH_BAND_BYTES / (decoder.getWidth() * 4));
+            mOptions.inPreferredConfig = Config.ARGB_8888;
+        }
+
+        @Override
+        public int getWidth() {
+            return mDecoder.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return mDecoder.getHeight();
+        }
+
+        @Override
+        public void readRow(int y, int[] pixels) {
+            if (mBand == null || y < mBandTop || y >= mBandTop + mBand.getHeight()) {
+                BitmapReusePool.release(mBand);
+                mBand = null;
+                mOptions.inBitmap = null;
+                Rect band = new Rect(0, y, getWidth(), Math.min(y + mBandHeight, getHeight()));
+                BitmapReusePool.prepareForRegionDecode(mOptions, band);
+                mBand = mDecoder.decodeRegion(band, mOptions);
+                mBandTop = y;
+                if (mBand == null) {
+                    throw new IllegalStateException("Unable to decode rows " + band.top + " to "
+                            + band.bottom);
+                }
+            }
+            mBand.getPixels(pixels, 0 /* offset */, getWidth(), 0 /* x */, y - mBandTop,
+                    getWidth(), 1 /* height */);
+        }
+
+        @Override
+        public void close() {
+            BitmapReusePool.release(mBand);
+            mBand = null;
+        }
+    }
 }
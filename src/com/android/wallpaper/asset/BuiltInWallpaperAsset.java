@@ -17,21 +17,21 @@ package com.android.wallpaper.asset;
 
 import android.annotation.TargetApi;
 import android.app.Activity;
-import android.app.WallpaperManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.graphics.Rect;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
-import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
+import android.os.CancellationSignal;
 import android.widget.ImageView;
 
+import androidx.annotation.Nullable;
+
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.RequestManager;
 import com.bumptech.glide.load.resource.drawable.DrawableTransitionOptions;
 import com.bumptech.glide.request.RequestOptions;
 
@@ -43,14 +43,8 @@ import com.bumptech.glide.request.RequestOptions;
  */
 @TargetApi(Build.VERSION_CODES.KITKAT)
 public final class BuiltInWallpaperAsset extends Asset {
-    private static final boolean SCALE_TO_FIT = true;
-    private static final boolean CROP_TO_FIT = false;
-    private static final float HORIZONTAL_CENTER_ALIGNED = 0.5f;
-    private static final float VERTICAL_CENTER_ALIGNED = 0.5f;
-
     private final Context mContext;
 
-    private Point mDimensions;
     private WallpaperModel mBuiltInWallpaperModel;
 
     /**
@@ -66,23 +60,27 @@ public final class BuiltInWallpaperAsset extends Asset {
     }
 
     @Override
-    public void decodeBitmapRegion(Rect rect, int targetWidth, int targetHeight,
-                                   BitmapReceiver receiver) {
-        DecodeBitmapRegionAsyncTask task = new DecodeBitmapRegionAsyncTask(rect, receiver);
-        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    public DecodeRequest decodeBitmapRegion(Rect rect, int targetWidth, int targetHeight,
+                                            BitmapReceiver receiver) {
+        return DecodeScheduler.getInstance().schedule(DecodeScheduler.PRIORITY_VISIBLE_PREVIEW,
+                new DecodeBitmapRegionJob(rect),
+                receiver::onBitmapDecoded);
     }
 
     @Override
-    public void decodeRawDimensions(Activity unused, DimensionsReceiver receiver) {
-        DecodeDimensionsAsyncTask task = new DecodeDimensionsAsyncTask(receiver);
-        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    public DecodeRequest decodeRawDimensions(Activity unused, DimensionsReceiver receiver) {
+        return DecodeScheduler.getInstance().scheduleShared(DecodeKey.forRawDimensions(this),
+                DecodeScheduler.PRIORITY_VISIBLE_PREVIEW, this::calculateRawDimensions,
+                receiver::onDimensionsDecoded);
     }
 
     @Override
-    public void decodeBitmap(int targetWidth, int targetHeight,
-                             BitmapReceiver receiver) {
-        DecodeBitmapAsyncTask task = new DecodeBitmapAsyncTask(targetWidth, targetHeight, receiver);
-        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    public DecodeRequest decodeBitmap(int targetWidth, int targetHeight,
+                                      BitmapReceiver receiver) {
+        return DecodeScheduler.getInstance().scheduleShared(
+                DecodeKey.forBitmap(this, targetWidth, targetHeight),
+                DecodeScheduler.PRIORITY_VISIBLE_THUMBNAIL,
+                new DecodeBitmapJob(targetWidth, targetHeight), receiver::onBitmapDecoded);
     }
 
     @Override
@@ -91,132 +89,90 @@ public final class BuiltInWallpaperAsset extends Asset {
     }
 
     /**
-     * Calculates the raw dimensions of the built-in drawable. This method should not be called from
-     * the main UI thread.
+     * Calculates the raw dimensions of the built-in drawable from its bounds, without decoding it.
+     * This method should not be called from the main UI thread.
      *
      * @return Raw dimensions of the built-in wallpaper drawable.
      */
     private Point calculateRawDimensions() {
-        if (mDimensions != null) {
-            return mDimensions;
-        }
-
-        Drawable builtInDrawable = WallpaperManager.getInstance(mContext).getBuiltInDrawable();
-        Bitmap builtInBitmap = ((BitmapDrawable) builtInDrawable).getBitmap();
-        mDimensions = new Point(builtInBitmap.getWidth(), builtInBitmap.getHeight());
-        return mDimensions;
+        return BuiltInWallpaperSource.getInstance(mContext).getDimensions();
     }
 
     @Override
     public void loadDrawable(Context context, ImageView imageView, int placeholderColor) {
-        if (mBuiltInWallpaperModel == null) {
-            mBuiltInWallpaperModel =
-                    new WallpaperModel(context.getApplicationContext(), WallpaperModel.SOURCE_BUILT_IN);
-        }
-
         Glide.with(context)
                 .asDrawable()
-                .load(mBuiltInWallpaperModel)
+                .load(getBuiltInWallpaperModel(context))
                 .apply(RequestOptions.centerCropTransform()
                         .placeholder(new ColorDrawable(placeholderColor)))
                 .transition(DrawableTransitionOptions.withCrossFade())
                 .into(imageView);
     }
 
+    @Override
+    public DecodeRequest prefetchDrawable(Context context, int width, int height) {
+        RequestManager requestManager = Glide.with(context);
+        return GlidePrefetchRequest.preload(requestManager,
+                requestManager.asDrawable()
+                        .load(getBuiltInWallpaperModel(context))
+                        .apply(RequestOptions.centerCropTransform()),
+                width, height);
+    }
+
+    private WallpaperModel getBuiltInWallpaperModel(Context context) {
+        if (mBuiltInWallpaperModel == null) {
+            mBuiltInWallpaperModel =
+                    new WallpaperModel(context.getApplicationContext(), WallpaperModel.SOURCE_BUILT_IN);
+        }
+        return mBuiltInWallpaperModel;
+    }
+
     /**
-     * AsyncTask subclass which decodes the full built-in wallpaper bitmap off the UI thread.
+     * Decoding job which decodes the built-in wallpaper bitmap at the target size off the UI
+     * thread.
      */
-    private class DecodeBitmapAsyncTask extends AsyncTask<Void, Void, Bitmap> {
+    private class DecodeBitmapJob implements DecodeScheduler.DecodeJob<Bitmap> {
 
         private int mWidth;
         private int mHeight;
-        private BitmapReceiver mReceiver;
 
-        public DecodeBitmapAsyncTask(int width, int height, BitmapReceiver receiver) {
+        DecodeBitmapJob(int width, int height) {
             mWidth = width;
             mHeight = height;
-            mReceiver = receiver;
         }
 
         @Override
-        protected Bitmap doInBackground(Void... unused) {
-            final WallpaperManager wallpaperManager = WallpaperManager.getInstance(mContext);
-
-            Drawable drawable = wallpaperManager.getBuiltInDrawable(
-                    mWidth,
-                    mHeight,
-                    SCALE_TO_FIT,
-                    HORIZONTAL_CENTER_ALIGNED,
-                    VERTICAL_CENTER_ALIGNED);
-
-            // Manually request that WallpaperManager loses its reference to the built-in wallpaper
-            // bitmap, which can occupy a large memory allocation for the lifetime of the app.
-            wallpaperManager.forgetLoadedWallpaper();
-
-            return ((BitmapDrawable) drawable).getBitmap();
+        public Bitmap decode() {
+            return decode(null /* cancellationSignal */);
         }
 
         @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            mReceiver.onBitmapDecoded(bitmap);
+        public Bitmap decode(@Nullable CancellationSignal cancellationSignal) {
+            return BuiltInWallpaperSource.getInstance(mContext).decode(mWidth, mHeight,
+                    cancellationSignal);
         }
     }
 
     /**
-     * AsyncTask subclass which decodes a bitmap region off the UI thread.
+     * Decoding job which decodes a bitmap region at full size off the UI thread.
      */
-    private class DecodeBitmapRegionAsyncTask extends AsyncTask<Void, Void, Bitmap> {
+    private class DecodeBitmapRegionJob implements DecodeScheduler.DecodeJob<Bitmap> {
 
         private Rect mRect;
-        private BitmapReceiver mReceiver;
 
-        public DecodeBitmapRegionAsyncTask(Rect rect, BitmapReceiver receiver) {
+        DecodeBitmapRegionJob(Rect rect) {
             mRect = rect;
-            mReceiver = receiver;
-        }
-
-        @Override
-        protected Bitmap doInBackground(Void... unused) {
-            Point dimensions = calculateRawDimensions();
-
-            float horizontalCenter = BitmapUtils.calculateHorizontalAlignment(dimensions, mRect);
-            float verticalCenter = BitmapUtils.calculateVerticalAlignment(dimensions, mRect);
-
-            Drawable drawable = WallpaperManager.getInstance(mContext).getBuiltInDrawable(
-                    mRect.width(),
-                    mRect.height(),
-                    CROP_TO_FIT,
-                    horizontalCenter,
-                    verticalCenter);
-
-            return ((BitmapDrawable) drawable).getBitmap();
-        }
-
-        @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            mReceiver.onBitmapDecoded(bitmap);
-        }
-    }
-
-    /**
-     * AsyncTask subclass which decodes the raw dimensions of the built-in wallpaper drawable off the
-     * main UI thread.
-     */
-    private class DecodeDimensionsAsyncTask extends AsyncTask<Void, Void, Point> {
-        private DimensionsReceiver mReceiver;
-
-        public DecodeDimensionsAsyncTask(DimensionsReceiver receiver) {
-            mReceiver = receiver;
         }
 
         @Override
-        protected Point doInBackground(Void... unused) {
-            return calculateRawDimensions();
+        public Bitmap decode() {
+            return decode(null /* cancellationSignal */);
         }
 
         @Override
-        protected void onPostExecute(Point dimensions) {
-            mReceiver.onDimensionsDecoded(dimensions);
+        public Bitmap decode(@Nullable CancellationSignal cancellationSignal) {
+            return BuiltInWallpaperSource.getInstance(mContext).decodeRegion(mRect,
+                    cancellationSignal);
         }
     }
 }
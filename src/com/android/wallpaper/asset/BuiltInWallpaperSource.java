@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import android.app.WallpaperManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.CancellationSignal;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Decodes the system's built-in wallpaper at the size it's needed at, through
+ * {@link WallpaperManager#getBuiltInDrawable(int, int, boolean, float, float)}, which region
+ * decodes and subsamples the encoded image rather than loading the whole bitmap. Going through
+ * WallpaperManager picks up the same image it uses, including a device's override of the
+ * framework's default wallpaper.
+ * <p>
+ * Dimensions are measured without allocating the whole bitmap, and remembered for the lifetime of
+ * the process, since the built-in wallpaper can only change with a system update.
+ * <p>
+ * Decodes take an optional {@link CancellationSignal}, which is checked between the steps of a
+ * decode so that a cancelled request stops before allocating its bitmap. Methods should not be
+ * called on the main UI thread.
+ */
+final class BuiltInWallpaperSource {
+    private static final boolean SCALE_TO_FIT = true;
+    private static final float HORIZONTAL_CENTER_ALIGNED = 0.5f;
+    private static final float VERTICAL_CENTER_ALIGNED = 0.5f;
+
+    private static BuiltInWallpaperSource sInstance;
+
+    private final Context mAppContext;
+    private volatile Point mDimensions;
+
+    private BuiltInWallpaperSource(Context appContext) {
+        mAppContext = appContext;
+    }
+
+    static synchronized BuiltInWallpaperSource getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BuiltInWallpaperSource(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the raw dimensions of the built-in wallpaper, or null if there is none.
+     */
+    @Nullable
+    Point getDimensions() {
+        Point dimensions = mDimensions;
+        if (dimensions != null) {
+            return new Point(dimensions);
+        }
+
+        // WallpaperManager clamps the size of an unscaled built-in drawable to the size of the
+        // wallpaper, so a strip one pixel thick and longer than the wallpaper is as long as the
+        // side it runs along, while only a single row or column of pixels is allocated.
+        Bitmap row = decodeFromWallpaperManager(Integer.MAX_VALUE, 1 /* height */, !SCALE_TO_FIT,
+                HORIZONTAL_CENTER_ALIGNED, VERTICAL_CENTER_ALIGNED);
+        Bitmap column = decodeFromWallpaperManager(1 /* width */, Integer.MAX_VALUE, !SCALE_TO_FIT,
+                HORIZONTAL_CENTER_ALIGNED, VERTICAL_CENTER_ALIGNED);
+        if (row == null || column == null) {
+            return null;
+        }
+
+        dimensions = new Point(row.getWidth(), column.getHeight());
+        mDimensions = dimensions;
+        return new Point(dimensions);
+    }
+
+    /**
+     * Decodes the built-in wallpaper scaled to fit the given size, cropping whatever doesn't fit
+     * around the center, without scaling it up. Non-positive dimensions decode the whole wallpaper
+     * at full size. Returns null if there was an error or the decode was cancelled.
+     */
+    @Nullable
+    Bitmap decode(int width, int height, @Nullable CancellationSignal cancellationSignal) {
+        Point dimensions = getDimensions();
+        if (dimensions == null || isCanceled(cancellationSignal)) {
+            return null;
+        }
+
+        if (width <= 0 || height <= 0) {
+            width = dimensions.x;
+            height = dimensions.y;
+        }
+        // Don't scale up, and keep the requested aspect ratio while scaling down.
+        float fitScale = Math.min(1f,
+                Math.min((float) dimensions.x / width, (float) dimensions.y / height));
+        width = Math.max(1, Math.round(width * fitScale));
+        height = Math.max(1, Math.round(height * fitScale));
+
+        return decodeFromWallpaperManager(width, height, SCALE_TO_FIT, HORIZONTAL_CENTER_ALIGNED,
+                VERTICAL_CENTER_ALIGNED);
+    }
+
+    /**
+     * Decodes the given region of the built-in wallpaper at full size. Returns null if there was
+     * an error or the decode was cancelled.
+     */
+    @Nullable
+    Bitmap decodeRegion(Rect rect, @Nullable CancellationSignal cancellationSignal) {
+        Point dimensions = getDimensions();
+        if (dimensions == null || isCanceled(cancellationSignal)) {
+            return null;
+        }
+
+        // An unscaled built-in drawable is cropped out of the wallpaper at the given alignment,
+        // which places it exactly at the region.
+        return decodeFromWallpaperManager(rect.width(), rect.height(), !SCALE_TO_FIT,
+                BitmapUtils.calculateHorizontalAlignment(dimensions, rect),
+                BitmapUtils.calculateVerticalAlignment(dimensions, rect));
+    }
+
+    @Nullable
+    private Bitmap decodeFromWallpaperManager(int width, int height, boolean scaleToFit,
+            float horizontalAlignment, float verticalAlignment) {
+        WallpaperManager wallpaperManager = WallpaperManager.getInstance(mAppContext);
+        Drawable drawable = wallpaperManager.getBuiltInDrawable(width, height, scaleToFit,
+                horizontalAlignment, verticalAlignment);
+        // Manually request that WallpaperManager loses its reference to the built-in wallpaper
+        // bitmap, which can occupy a large memory allocation for the lifetime of the app.
+        wallpaperManager.forgetLoadedWallpaper();
+        return drawable instanceof BitmapDrawable ? ((BitmapDrawable) drawable).getBitmap() : null;
+    }
+
+    private static boolean isCanceled(@Nullable CancellationSignal cancellationSignal) {
+        return cancellationSignal != null && cancellationSignal.isCanceled();
+    }
+}
@@ -15,20 +15,25 @@
  */
 package com.android.wallpaper.asset;
 
+import android.content.ContentResolver;
 import android.content.Context;
+import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
 import android.util.Log;
 import android.widget.ImageView;
 
 import androidx.annotation.Nullable;
 
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.RequestManager;
 import com.bumptech.glide.load.DataSource;
 import com.bumptech.glide.load.engine.DiskCacheStrategy;
 import com.bumptech.glide.load.engine.GlideException;
@@ -37,6 +42,7 @@ import com.bumptech.glide.request.RequestListener;
 import com.bumptech.glide.request.RequestOptions;
 import com.bumptech.glide.request.target.Target;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -52,6 +58,7 @@ public final class ContentUriAsset extends StreamableAsset {
     private final Context mContext;
     private final Uri mUri;
     private final RequestOptions mRequestOptions;
+    private final boolean mUncached;
 
     private ExifInterfaceCompat mExifCompat;
     private int mExifOrientation;
@@ -69,6 +76,7 @@ public final class ContentUriAsset extends StreamableAsset {
         mExifOrientation = ExifInterfaceCompat.EXIF_ORIENTATION_UNKNOWN;
         mContext = context.getApplicationContext();
         mUri = uri;
+        mUncached = uncached;
 
         if (uncached) {
             mRequestOptions = requestOptions.apply(RequestOptions
@@ -110,49 +118,42 @@ public final class ContentUriAsset extends StreamableAsset {
 
 
     @Override
-    public void decodeBitmapRegion(final Rect rect, int targetWidth, int targetHeight,
-                                   final BitmapReceiver receiver) {
+    public DecodeRequest decodeBitmapRegion(final Rect rect, int targetWidth, int targetHeight,
+                                            final BitmapReceiver receiver) {
         // BitmapRegionDecoder only supports images encoded in either JPEG or PNG, so if the content
         // URI asset is encoded with another format (for example, GIF), then fall back to cropping a
         // bitmap region from the full-sized bitmap.
         if (isJpeg() || isPng()) {
-            super.decodeBitmapRegion(rect, targetWidth, targetHeight, receiver);
-            return;
+            return super.decodeBitmapRegion(rect, targetWidth, targetHeight, receiver);
         }
 
-        decodeRawDimensions(null /* activity */, new DimensionsReceiver() {
-            @Override
-            public void onDimensionsDecoded(@Nullable Point dimensions) {
-                if (dimensions == null) {
-                    Log.e(TAG, "There was an error decoding the asset's raw dimensions with " +
-                            "content URI: " + mUri);
-                    receiver.onBitmapDecoded(null);
-                    return;
-                }
-
-                decodeBitmap(dimensions.x, dimensions.y, new BitmapReceiver() {
-                    @Override
-                    public void onBitmapDecoded(@Nullable Bitmap fullBitmap) {
-                        if (fullBitmap == null) {
-                            Log.e(TAG, "There was an error decoding the asset's full bitmap with " +
-                                    "content URI: " + mUri);
-                            receiver.onBitmapDecoded(null);
-                            return;
-                        }
+        return DecodeScheduler.getInstance().schedule(DecodeScheduler.PRIORITY_VISIBLE_PREVIEW,
+                () -> {
+                    Point dimensions = calculateRawDimensions();
+                    if (dimensions == null) {
+                        Log.e(TAG, "There was an error decoding the asset's raw dimensions with "
+                                + "content URI: " + mUri);
+                        return null;
+                    }
 
-                        BitmapCropTask task = new BitmapCropTask(fullBitmap, rect, receiver);
-                        task.execute();
+                    Bitmap fullBitmap = new DecodeBitmapJob(1 /* sampleSize */).decode();
+                    if (fullBitmap == null) {
+                        Log.e(TAG, "There was an error decoding the asset's full bitmap with "
+                                + "content URI: " + mUri);
+                        return null;
                     }
-                });
-            }
-        });
+
+                    return Bitmap.createBitmap(
+                            fullBitmap, rect.left, rect.top, rect.width(), rect.height());
+                },
+                receiver::onBitmapDecoded);
     }
 
     /**
      * Returns whether this image is encoded in the JPEG file format.
      */
     public boolean isJpeg() {
-        String mimeType = mContext.getContentResolver().getType(mUri);
+        String mimeType = getMimeType();
         return mimeType != null && mimeType.equals(JPEG_MIME_TYPE);
     }
 
@@ -160,10 +161,23 @@ public final class ContentUriAsset extends StreamableAsset {
      * Returns whether this image is encoded in the PNG file format.
      */
     public boolean isPng() {
-        String mimeType = mContext.getContentResolver().getType(mUri);
+        String mimeType = getMimeType();
         return mimeType != null && mimeType.equals(PNG_MIME_TYPE);
     }
 
+    /**
+     * Returns the MIME type sniffed from the image header if it was already probed, otherwise the
+     * MIME type reported by the content provider.
+     */
+    @Nullable
+    private String getMimeType() {
+        ImageMetadata metadata = peekImageMetadata();
+        if (metadata != null && metadata.mimeType != null) {
+            return metadata.mimeType;
+        }
+        return mContext.getContentResolver().getType(mUri);
+    }
+
     /**
      * Reads the EXIF tag on the asset. Automatically trims leading and trailing whitespace.
      *
@@ -210,13 +224,70 @@ public final class ContentUriAsset extends StreamableAsset {
         }
     }
 
+    @Override
+    protected String getMetadataCacheKey(Context unused) {
+        if (mUncached) {
+            return null;
+        }
+
+        if (ContentResolver.SCHEME_FILE.equals(mUri.getScheme())) {
+            File file = new File(mUri.getPath());
+            long lastModified = file.lastModified();
+            return lastModified == 0 ? null : mUri + "@" + file.length() + '/' + lastModified;
+        }
+
+        // Providers describe their content with different columns, so only persist metadata for
+        // content whose size and modification time are both known.
+        try (Cursor cursor = mContext.getContentResolver().query(
+                mUri, null /* projection */, null, null, null)) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                return null;
+            }
+            long size = getLongColumn(cursor, OpenableColumns.SIZE);
+            long lastModified = getLongColumn(cursor,
+                    DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+            if (lastModified < 0) {
+                lastModified = getLongColumn(cursor, MediaStore.MediaColumns.DATE_MODIFIED);
+            }
+            if (size < 0 || lastModified < 0) {
+                return null;
+            }
+            return mUri + "@" + size + '/' + lastModified;
+        } catch (RuntimeException e) {
+            // Providers may reject queries they don't support or the app isn't allowed to make.
+            Log.w(TAG, "Unable to query size and modification time of content URI: " + mUri, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value of the named column in the cursor's current row, or -1 if the column is
+     * missing or null.
+     */
+    private static long getLongColumn(Cursor cursor, String columnName) {
+        int index = cursor.getColumnIndex(columnName);
+        if (index < 0 || cursor.isNull(index)) {
+            return -1;
+        }
+        return cursor.getLong(index);
+    }
+
     @Override
     protected int getExifOrientation() {
         if (mExifOrientation != ExifInterfaceCompat.EXIF_ORIENTATION_UNKNOWN) {
             return mExifOrientation;
         }
 
-        mExifOrientation = readExifOrientation();
+        // Prefer the orientation read along with the rest of the image header, and only fall back
+        // to a full ExifInterface read (which opens the stream again) for formats whose EXIF
+        // metadata the header probe doesn't parse.
+        ImageMetadata metadata = getImageMetadata();
+        if (metadata != null
+                && metadata.exifOrientation != ExifInterfaceCompat.EXIF_ORIENTATION_UNKNOWN) {
+            mExifOrientation = metadata.exifOrientation;
+        } else {
+            mExifOrientation = readExifOrientation();
+        }
         return mExifOrientation;
     }
 
@@ -248,6 +319,13 @@ public final class ContentUriAsset extends StreamableAsset {
                 .into(imageView);
     }
 
+    @Override
+    public DecodeRequest prefetchDrawable(Context context, int width, int height) {
+        RequestManager requestManager = Glide.with(context);
+        return GlidePrefetchRequest.preload(requestManager,
+                requestManager.asDrawable().load(mUri).apply(mRequestOptions), width, height);
+    }
+
     @Override
     public void loadDrawableWithTransition(Context context, ImageView imageView,
             int transitionDurationMillis, @Nullable DrawableLoadedListener drawableLoadedListener,
@@ -281,37 +359,4 @@ public final class ContentUriAsset extends StreamableAsset {
     public Uri getUri() {
         return mUri;
     }
-
-    /**
-     * Custom AsyncTask which crops a bitmap region from a larger bitmap.
-     */
-    private static class BitmapCropTask extends AsyncTask<Void, Void, Bitmap> {
-
-        private Bitmap mFromBitmap;
-        private Rect mCropRect;
-        private BitmapReceiver mReceiver;
-
-        public BitmapCropTask(Bitmap fromBitmap, Rect cropRect, BitmapReceiver receiver) {
-            mFromBitmap = fromBitmap;
-            mCropRect = cropRect;
-            mReceiver = receiver;
-        }
-
-        @Override
-        protected Bitmap doInBackground(Void... unused) {
-            if (mFromBitmap == null) {
-                return null;
-            }
-
-            return Bitmap.createBitmap(
-                    mFromBitmap, mCropRect.left, mCropRect.top, mCropRect.width(),
-                    mCropRect.height());
-        }
-
-        @Override
-        protected void onPostExecute(Bitmap bitmapRegion) {
-            mReceiver.onBitmapDecoded(bitmapRegion);
-        }
-    }
-
 }
@@ -23,7 +23,6 @@ import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 
 /**
  * Asset implementation which represents the currently-set wallpaper on API 16 through 23 devices.
@@ -39,16 +38,19 @@ public class CurrentWallpaperAssetV16 extends Asset {
     }
 
     @Override
-    public void decodeBitmapRegion(Rect rect, int targetWidth, int targetHeight,
-                                   BitmapReceiver receiver) {
+    public DecodeRequest decodeBitmapRegion(Rect rect, int targetWidth, int targetHeight,
+                                            BitmapReceiver receiver) {
         receiver.onBitmapDecoded(null);
+        return DecodeRequest.completed();
     }
 
     @Override
-    public void decodeBitmap(int targetWidth, int targetHeight,
-                             BitmapReceiver receiver) {
-        DecodeBitmapAsyncTask task = new DecodeBitmapAsyncTask(receiver, targetWidth, targetHeight);
-        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    public DecodeRequest decodeBitmap(int targetWidth, int targetHeight,
+                                      BitmapReceiver receiver) {
+        return DecodeScheduler.getInstance().scheduleShared(
+                DecodeKey.forBitmap(this, targetWidth, targetHeight),
+                DecodeScheduler.PRIORITY_VISIBLE_THUMBNAIL,
+                new DecodeBitmapJob(targetWidth, targetHeight), receiver::onBitmapDecoded);
     }
 
     @Override
@@ -57,9 +59,14 @@ public class CurrentWallpaperAssetV16 extends Asset {
     }
 
     @Override
-    public void decodeRawDimensions(Activity unused, DimensionsReceiver receiver) {
-        DecodeDimensionsAsyncTask task = new DecodeDimensionsAsyncTask(receiver);
-        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    public DecodeRequest decodeRawDimensions(Activity unused, DimensionsReceiver receiver) {
+        return DecodeScheduler.getInstance().schedule(DecodeScheduler.PRIORITY_VISIBLE_PREVIEW,
+                () -> {
+                    Drawable wallpaperDrawable = getCurrentWallpaperDrawable();
+                    return new Point(wallpaperDrawable.getIntrinsicWidth(),
+                            wallpaperDrawable.getIntrinsicHeight());
+                },
+                receiver::onDimensionsDecoded);
     }
 
     private Drawable getCurrentWallpaperDrawable() {
@@ -78,20 +85,18 @@ public class CurrentWallpaperAssetV16 extends Asset {
     /**
      * Decodes and then post-decode scales down the currently-set wallpaper bitmap.
      */
-    private class DecodeBitmapAsyncTask extends AsyncTask<Void, Void, Bitmap> {
+    private class DecodeBitmapJob implements DecodeScheduler.DecodeJob<Bitmap> {
 
-        private BitmapReceiver mReceiver;
         private int mTargetWidth;
         private int mTargetHeight;
 
-        public DecodeBitmapAsyncTask(BitmapReceiver receiver, int width, int height) {
-            mReceiver = receiver;
+        DecodeBitmapJob(int width, int height) {
             mTargetWidth = width;
             mTargetHeight = height;
         }
 
         @Override
-        protected Bitmap doInBackground(Void... unused) {
+        public Bitmap decode() {
             Drawable wallpaperDrawable = getCurrentWallpaperDrawable();
             Bitmap bitmap = ((BitmapDrawable) wallpaperDrawable).getBitmap();
 
@@ -107,34 +112,5 @@ public class CurrentWallpaperAssetV16 extends Asset {
             int resultHeight = Math.round(bitmap.getHeight() / maxDownscaleFactor);
             return Bitmap.createScaledBitmap(bitmap, resultWidth, resultHeight, FILTER_SCALED_BITMAP);
         }
-
-        @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            mReceiver.onBitmapDecoded(bitmap);
-        }
-    }
-
-    /**
-     * Decodes the raw dimensions of the currently-set wallpaper.
-     */
-    private class DecodeDimensionsAsyncTask extends AsyncTask<Void, Void, Point> {
-
-        private DimensionsReceiver mReceiver;
-
-        public DecodeDimensionsAsyncTask(DimensionsReceiver receiver) {
-            mReceiver = receiver;
-        }
-
-        @Override
-        protected Point doInBackground(Void... unused) {
-            Drawable wallpaperDrawable = getCurrentWallpaperDrawable();
-            return new Point(
-                    wallpaperDrawable.getIntrinsicWidth(), wallpaperDrawable.getIntrinsicHeight());
-        }
-
-        @Override
-        protected void onPostExecute(Point dimensions) {
-            mReceiver.onDimensionsDecoded(dimensions);
-        }
     }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import android.view.View;
+
+import com.android.wallpaper.asset.DecodeScheduler.Priority;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handle to a decoding request made on an {@link Asset}, which can be used to cancel the request
+ * or to change its priority while it is still waiting to run.
+ */
+public class DecodeRequest {
+
+    static final int STATE_QUEUED = 0;
+    static final int STATE_SUSPENDED = 1;
+    static final int STATE_RUNNING = 2;
+    static final int STATE_FINISHED = 3;
+    static final int STATE_CANCELLED = 4;
+
+    final AtomicInteger mState;
+    final long mSequence;
+    @Priority
+    volatile int mPriority;
+    // View the request is bound to, if any. Only accessed on the main UI thread.
+    WeakReference<View> mBoundView;
+
+    DecodeRequest(@Priority int priority, long sequence, int initialState) {
+        mPriority = priority;
+        mSequence = sequence;
+        mState = new AtomicInteger(initialState);
+    }
+
+    /**
+     * Returns a handle for a request that was already completed synchronously, for which
+     * cancellation and priority changes are no-ops.
+     */
+    public static DecodeRequest completed() {
+        return new DecodeRequest(DecodeScheduler.PRIORITY_BACKGROUND, 0, STATE_FINISHED);
+    }
+
+    /**
+     * Cancels the request. If the request hasn't started yet it is dropped from the queue;
+     * otherwise its result is discarded and the receiver is never called.
+     */
+    public void cancel() {
+        while (true) {
+            int state = mState.get();
+            if (state == STATE_FINISHED || state == STATE_CANCELLED) {
+                return;
+            }
+            if (mState.compareAndSet(state, STATE_CANCELLED)) {
+                onCancelled(state);
+                DecodeScheduler.getInstance().unbind(this);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Called once when the request is cancelled, with the state it was in before.
+     */
+    void onCancelled(int previousState) {
+        if (previousState == STATE_QUEUED) {
+            DecodeScheduler.getInstance().dequeue(this);
+        }
+    }
+
+    /**
+     * Returns whether the request was cancelled.
+     */
+    public boolean isCancelled() {
+        return mState.get() == STATE_CANCELLED;
+    }
+
+    /**
+     * Returns whether the request finished or was cancelled.
+     */
+    boolean isDone() {
+        int state = mState.get();
+        return state == STATE_FINISHED || state == STATE_CANCELLED;
+    }
+
+    /**
+     * Moves the request into another priority lane if it is still waiting to run.
+     */
+    public void setPriority(@Priority int priority) {
+        if (mPriority != priority) {
+            DecodeScheduler.getInstance().reprioritize(this, priority);
+        }
+    }
+
+    /**
+     * Binds the request to the view its result is destined for. The request is cancelled when
+     * another request is bound to the same view, and it is held back from running while the view is
+     * detached from its window. Must be called on the main UI thread.
+     *
+     * @return This request, for chaining.
+     */
+    public DecodeRequest bindTo(View view) {
+        DecodeScheduler.getInstance().bind(this, view);
+        return this;
+    }
+}
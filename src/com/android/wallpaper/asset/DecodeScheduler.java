@@ -0,0 +1,487 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.view.View;
+import android.view.View.OnAttachStateChangeListener;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.Nullable;
+
+import com.android.wallpaper.R;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared scheduler for the decoding work of {@link Asset} implementations.
+ * <p>
+ * Work is queued in priority lanes so that decodes for what is visible on screen run ahead of
+ * prefetching and background persistence, and within a lane in the order requested. Every request
+ * returns a {@link DecodeRequest} handle which can cancel it; requests bound to a view are dropped
+ * when the view is rebound to another request and held back while the view is detached. Concurrent
+ * requests for the same result can share a single job with
+ * {@link #scheduleShared(Object, int, DecodeJob, DecodeCallback)}.
+ */
+public class DecodeScheduler {
+    private static final String TAG = "DecodeScheduler";
+
+    /**
+     * Decodes for the wallpaper currently shown full screen in preview.
+     */
+    public static final int PRIORITY_VISIBLE_PREVIEW = 0;
+    /**
+     * Decodes for thumbnails currently shown on screen.
+     */
+    public static final int PRIORITY_VISIBLE_THUMBNAIL = 1;
+    /**
+     * Decodes for content that is expected to be shown on screen soon.
+     */
+    public static final int PRIORITY_PREFETCH = 2;
+    /**
+     * Decodes that are not shown to the user, such as for persisting wallpapers in the background.
+     */
+    public static final int PRIORITY_BACKGROUND = 3;
+
+    /**
+     * Number of decoding threads.
+     */
+    static final int THREAD_COUNT =
+            Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private static DecodeScheduler sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicLong mSequence = new AtomicLong();
+
+    // Shared jobs which are queued or running, by key. Guarded by this.
+    private final Map<Object, SharedTask<?>> mSharedTasks = new HashMap<>();
+
+    // Bound requests are kept in a tag on their view rather than in a map here, since their
+    // callbacks usually reference the view and would keep it reachable from the scheduler.
+    private final OnAttachStateChangeListener mAttachStateListener =
+            new OnAttachStateChangeListener() {
+                @Override
+                public void onViewAttachedToWindow(View view) {
+                    DecodeRequest request = (DecodeRequest) view.getTag(R.id.decode_request);
+                    if (request != null) {
+                        resume(request);
+                    }
+                }
+
+                @Override
+                public void onViewDetachedFromWindow(View view) {
+                    DecodeRequest request = (DecodeRequest) view.getTag(R.id.decode_request);
+                    if (request != null) {
+                        suspend(request);
+                    }
+                }
+            };
+
+    public static synchronized DecodeScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new DecodeScheduler();
+        }
+        return sInstance;
+    }
+
+    private DecodeScheduler() {
+        AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
+                THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(() -> {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }, "AssetDecoder #" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Schedules a decoding job to run off the main UI thread in the given priority lane.
+     *
+     * @param priority Lane in which to queue the job.
+     * @param job      Work to run on a decoding thread.
+     * @param callback Called on the main UI thread with the job's result unless the request is
+     *                 cancelled first.
+     * @return Handle for cancelling or re-prioritizing the request.
+     */
+    public <T> DecodeRequest schedule(@Priority int priority, DecodeJob<T> job,
+            DecodeCallback<T> callback) {
+        Task<T> task = new Task<>(priority, mSequence.getAndIncrement(), job, callback);
+        mExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Schedules a decoding job like {@link #schedule(int, DecodeJob, DecodeCallback)}, unless a job
+     * with an equal key is already queued or running, in which case the request attaches to that
+     * job and receives its result instead. The shared job runs in the most urgent lane of its
+     * queued requests, is held back while all of them are suspended and is only cancelled once
+     * all of them are cancelled.
+     *
+     * @param key Identifies the result of the job, e.g., the asset and the size it is decoded at.
+     */
+    public <T> DecodeRequest scheduleShared(Object key, @Priority int priority, DecodeJob<T> job,
+            DecodeCallback<T> callback) {
+        SharedTask<T> task;
+        Subscriber<T> subscriber;
+        synchronized (this) {
+            @SuppressWarnings("unchecked")
+            SharedTask<T> pendingTask = (SharedTask<T>) mSharedTasks.get(key);
+            task = pendingTask;
+            boolean isNewTask = task == null;
+            if (isNewTask) {
+                task = new SharedTask<>(key, priority, mSequence.getAndIncrement(), job);
+                mSharedTasks.put(key, task);
+            }
+            subscriber = new Subscriber<>(priority, task, callback);
+            task.mSubscribers.add(subscriber);
+
+            if (isNewTask) {
+                mExecutor.execute(task);
+            } else {
+                // The job may be held back for suspended requests or queued in a less urgent lane.
+                task.updatePriority();
+            }
+        }
+        return subscriber;
+    }
+
+    /**
+     * Removes a request from the queue if it hasn't started running yet.
+     */
+    void dequeue(DecodeRequest request) {
+        if (request instanceof Task) {
+            mExecutor.remove((Task<?>) request);
+        }
+    }
+
+    /**
+     * Moves a queued request into another lane. A request which is already running or finished
+     * just records the new priority.
+     */
+    synchronized void reprioritize(DecodeRequest request, @Priority int priority) {
+        if (request instanceof Subscriber) {
+            request.mPriority = priority;
+            ((Subscriber<?>) request).mTask.updatePriority();
+            return;
+        }
+        if (!(request instanceof Task)) {
+            request.mPriority = priority;
+            return;
+        }
+
+        // The queue orders tasks as they are inserted, so the task has to be taken out of the queue
+        // before its priority can change.
+        boolean wasQueued = mExecutor.remove((Task<?>) request);
+        request.mPriority = priority;
+        if (wasQueued) {
+            mExecutor.execute((Task<?>) request);
+        }
+    }
+
+    /**
+     * Binds a request to a view, cancelling the request previously bound to it. Must be called on
+     * the main UI thread.
+     */
+    void bind(DecodeRequest request, View view) {
+        DecodeRequest previous = (DecodeRequest) view.getTag(R.id.decode_request);
+        if (previous != null && previous != request) {
+            previous.cancel();
+        }
+
+        // A request which already completed has nothing left to hold back.
+        if (request.isDone()) {
+            return;
+        }
+        view.setTag(R.id.decode_request, request);
+        request.mBoundView = new WeakReference<>(view);
+
+        if (view.getTag(R.id.decode_request_observed) == null) {
+            view.setTag(R.id.decode_request_observed, Boolean.TRUE);
+            view.addOnAttachStateChangeListener(mAttachStateListener);
+        }
+    }
+
+    /**
+     * Clears a request which finished or was cancelled from the view it is bound to, so that the
+     * view doesn't keep the request and its callback alive. May be called on any thread.
+     */
+    void unbind(DecodeRequest request) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mMainHandler.post(() -> unbind(request));
+            return;
+        }
+
+        WeakReference<View> boundView = request.mBoundView;
+        if (boundView == null) {
+            return;
+        }
+        request.mBoundView = null;
+        View view = boundView.get();
+        if (view != null && view.getTag(R.id.decode_request) == request) {
+            view.setTag(R.id.decode_request, null);
+        }
+    }
+
+    /**
+     * Takes a queued request out of the queue until it is resumed. A shared job is only held back
+     * once all of its remaining requests are suspended.
+     */
+    private synchronized void suspend(DecodeRequest request) {
+        if (request instanceof Subscriber) {
+            if (request.mState.compareAndSet(DecodeRequest.STATE_QUEUED,
+                    DecodeRequest.STATE_SUSPENDED)) {
+                ((Subscriber<?>) request).mTask.updatePriority();
+            }
+        } else if (request instanceof Task && request.mState.compareAndSet(
+                DecodeRequest.STATE_QUEUED, DecodeRequest.STATE_SUSPENDED)) {
+            dequeue(request);
+        }
+    }
+
+    /**
+     * Puts a suspended request back into the queue.
+     */
+    private synchronized void resume(DecodeRequest request) {
+        if (request instanceof Subscriber) {
+            if (request.mState.compareAndSet(DecodeRequest.STATE_SUSPENDED,
+                    DecodeRequest.STATE_QUEUED)) {
+                ((Subscriber<?>) request).mTask.updatePriority();
+            }
+        } else if (request instanceof Task && request.mState.compareAndSet(
+                DecodeRequest.STATE_SUSPENDED, DecodeRequest.STATE_QUEUED)) {
+            mExecutor.execute((Task<?>) request);
+        }
+    }
+
+    /**
+     * Priority lanes, from the most to the least urgent.
+     */
+    @IntDef({
+            PRIORITY_VISIBLE_PREVIEW,
+            PRIORITY_VISIBLE_THUMBNAIL,
+            PRIORITY_PREFETCH,
+            PRIORITY_BACKGROUND})
+    public @interface Priority {
+    }
+
+    /**
+     * Decoding work run off the main UI thread.
+     */
+    public interface DecodeJob<T> {
+        /**
+         * Runs the job and returns its result, or null if there was an error.
+         */
+        @Nullable
+        T decode();
+
+        /**
+         * Runs the job like {@link #decode()}, but may stop early and return null once the given
+         * signal is cancelled, which happens when every request for the job's result is cancelled.
+         * Jobs which can stop early should override this method.
+         */
+        @Nullable
+        default T decode(CancellationSignal cancellationSignal) {
+            return decode();
+        }
+    }
+
+    /**
+     * Receives the result of a {@link DecodeJob} on the main UI thread.
+     */
+    public interface DecodeCallback<T> {
+        void onDecoded(@Nullable T result);
+    }
+
+    /**
+     * Queue entry for a scheduled job.
+     */
+    private class Task<T> extends DecodeRequest implements Runnable, Comparable<Task<?>> {
+        private final DecodeJob<T> mJob;
+        private final DecodeCallback<T> mCallback;
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+
+        Task(@Priority int priority, long sequence, DecodeJob<T> job,
+                DecodeCallback<T> callback) {
+            super(priority, sequence, STATE_QUEUED);
+            mJob = job;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            // The task may have been cancelled or suspended after it was handed to a thread.
+            if (!mState.compareAndSet(STATE_QUEUED, STATE_RUNNING)) {
+                return;
+            }
+
+            T result = null;
+            try {
+                result = mJob.decode(mCancellationSignal);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Decode job failed", e);
+            } finally {
+                // Always complete, so that the callback fires and a shared job stops accepting
+                // new requests even if the job threw.
+                T finalResult = result;
+                mMainHandler.post(() -> {
+                    if (mState.compareAndSet(STATE_RUNNING, STATE_FINISHED)) {
+                        unbind(this);
+                        deliver(finalResult);
+                    }
+                });
+            }
+        }
+
+        @Override
+        void onCancelled(int previousState) {
+            super.onCancelled(previousState);
+            // Let a running job stop early.
+            mCancellationSignal.cancel();
+        }
+
+        /**
+         * Hands the result to the callback on the main UI thread.
+         */
+        void deliver(@Nullable T result) {
+            mCallback.onDecoded(result);
+        }
+
+        @Override
+        public int compareTo(Task<?> other) {
+            if (mPriority != other.mPriority) {
+                return Integer.compare(mPriority, other.mPriority);
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    /**
+     * Job shared by concurrent requests for the same result, which fans the result out to all of
+     * its requests that weren't cancelled.
+     */
+    private class SharedTask<T> extends Task<T> {
+        private final Object mKey;
+        // Guarded by DecodeScheduler.this.
+        final List<Subscriber<T>> mSubscribers = new ArrayList<>(2);
+
+        SharedTask(Object key, @Priority int priority, long sequence, DecodeJob<T> job) {
+            super(priority, sequence, job, null /* callback */);
+            mKey = key;
+        }
+
+        @Override
+        void deliver(@Nullable T result) {
+            List<Subscriber<T>> subscribers;
+            synchronized (DecodeScheduler.this) {
+                detach();
+                subscribers = new ArrayList<>(mSubscribers);
+            }
+            for (Subscriber<T> subscriber : subscribers) {
+                // Suspended requests get the result too, since the job already ran for them.
+                if (subscriber.mState.compareAndSet(STATE_QUEUED, STATE_FINISHED)
+                        || subscriber.mState.compareAndSet(STATE_SUSPENDED, STATE_FINISHED)) {
+                    unbind(subscriber);
+                    subscriber.mCallback.onDecoded(result);
+                }
+            }
+        }
+
+        /**
+         * Moves the job into the most urgent lane of its queued requests, holds it back if all of
+         * its remaining requests are suspended, or cancels it if all of them were cancelled.
+         */
+        void updatePriority() {
+            synchronized (DecodeScheduler.this) {
+                int priority = PRIORITY_BACKGROUND;
+                boolean hasQueuedSubscriber = false;
+                boolean hasSuspendedSubscriber = false;
+                for (Subscriber<T> subscriber : mSubscribers) {
+                    int state = subscriber.mState.get();
+                    if (state == STATE_QUEUED) {
+                        hasQueuedSubscriber = true;
+                        priority = Math.min(priority, subscriber.mPriority);
+                    } else if (state == STATE_SUSPENDED) {
+                        hasSuspendedSubscriber = true;
+                    }
+                }
+
+                if (hasQueuedSubscriber) {
+                    if (priority != mPriority) {
+                        reprioritize(this, priority);
+                    }
+                    resume(this);
+                } else if (hasSuspendedSubscriber) {
+                    // A job which already started keeps running and delivers to the suspended
+                    // requests.
+                    suspend(this);
+                } else {
+                    detach();
+                    cancel();
+                }
+            }
+        }
+
+        /**
+         * Stops new requests from attaching to this job.
+         */
+        private void detach() {
+            if (mSharedTasks.get(mKey) == this) {
+                mSharedTasks.remove(mKey);
+            }
+        }
+    }
+
+    /**
+     * Handle given to each request attached to a {@link SharedTask}.
+     */
+    private static class Subscriber<T> extends DecodeRequest {
+        final SharedTask<T> mTask;
+        final DecodeCallback<T> mCallback;
+
+        Subscriber(@Priority int priority, SharedTask<T> task, DecodeCallback<T> callback) {
+            super(priority, task.mSequence, STATE_QUEUED);
+            mTask = task;
+            mCallback = callback;
+        }
+
+        @Override
+        void onCancelled(int previousState) {
+            mTask.updatePriority();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+import com.bumptech.glide.load.Options;
+import com.bumptech.glide.load.ResourceDecoder;
+import com.bumptech.glide.load.engine.Resource;
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+import com.bumptech.glide.load.resource.bitmap.BitmapResource;
+
+import androidx.annotation.Nullable;
+
+/**
+ * {@link ResourceDecoder} which rasterizes a {@link Drawable} into a {@link Bitmap} no larger than
+ * needed to cover the requested size, so that drawables with large intrinsic dimensions (such as
+ * some live wallpaper thumbnails) are held in Glide's caches at the size they're displayed at.
+ * <p>
+ * Unlike {@link DrawableResourceDecoder}, the result is a real bitmap resource, so Glide accounts
+ * for its actual size, can write it to the disk cache and returns it to the bitmap pool when it's
+ * no longer used.
+ */
+public class DrawableBitmapResourceDecoder implements ResourceDecoder<Drawable, Bitmap> {
+
+    private final BitmapPool mBitmapPool;
+
+    public DrawableBitmapResourceDecoder(BitmapPool bitmapPool) {
+        mBitmapPool = bitmapPool;
+    }
+
+    @Override
+    public boolean handles(Drawable source, Options options) {
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public Resource<Bitmap> decode(Drawable source, int width, int height, Options options) {
+        return BitmapResource.obtain(rasterize(source, width, height), mBitmapPool);
+    }
+
+    /**
+     * Draws the given drawable into a bitmap obtained from {@link BitmapReusePool}, scaled down
+     * while preserving its aspect ratio so that it still covers the target size, but never scaled
+     * up beyond its intrinsic size. Non-positive target dimensions (such as Glide's
+     * {@link com.bumptech.glide.request.target.Target#SIZE_ORIGINAL}) mean the intrinsic size.
+     * Returns null if neither the drawable nor the target has a size.
+     */
+    @Nullable
+    static Bitmap rasterize(@Nullable Drawable drawable, int targetWidth, int targetHeight) {
+        if (drawable == null) {
+            return null;
+        }
+
+        int intrinsicWidth = drawable.getIntrinsicWidth();
+        int intrinsicHeight = drawable.getIntrinsicHeight();
+        int width;
+        int height;
+        if (intrinsicWidth <= 0 || intrinsicHeight <= 0) {
+            // Drawables without an intrinsic size (e.g. colors) fill whatever they're drawn into.
+            width = targetWidth;
+            height = targetHeight;
+        } else if (targetWidth <= 0 || targetHeight <= 0) {
+            width = intrinsicWidth;
+            height = intrinsicHeight;
+        } else {
+            float scale = Math.min(1f, Math.max((float) targetWidth / intrinsicWidth,
+                    (float) targetHeight / intrinsicHeight));
+            width = Math.max(1, Math.round(intrinsicWidth * scale));
+            height = Math.max(1, Math.round(intrinsicHeight * scale));
+        }
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+
+        Bitmap bitmap = BitmapReusePool.obtain(width, height, Config.ARGB_8888);
+        // Pooled bitmaps are dirty and thumbnails may be translucent.
+        bitmap.eraseColor(Color.TRANSPARENT);
+        Rect oldBounds = drawable.copyBounds();
+        drawable.setBounds(0, 0, width, height);
+        drawable.draw(new Canvas(bitmap));
+        drawable.setBounds(oldBounds);
+        return bitmap;
+    }
+}
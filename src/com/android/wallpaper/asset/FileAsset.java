@@ -15,6 +15,7 @@
  */
 package com.android.wallpaper.asset;
 
+import android.content.Context;
 import android.util.Log;
 
 import java.io.File;
@@ -37,6 +38,16 @@ public final class FileAsset extends StreamableAsset {
         mFile = file;
     }
 
+    @Override
+    protected String getMetadataCacheKey(Context unused) {
+        long lastModified = mFile.lastModified();
+        // A last modified time of 0 means the file doesn't exist or couldn't be read.
+        if (lastModified == 0) {
+            return null;
+        }
+        return "file:" + mFile.getAbsolutePath() + '@' + mFile.length() + '/' + lastModified;
+    }
+
     @Override
     protected InputStream openInputStream() {
         try {
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.RequestBuilder;
+import com.bumptech.glide.RequestManager;
+import com.bumptech.glide.request.RequestOptions;
+import com.bumptech.glide.request.target.Target;
+
+/**
+ * {@link DecodeRequest} for a Glide preload, used by assets which display their thumbnails with
+ * Glide to prefetch them into Glide's memory cache. Cancelling the request clears the preload,
+ * which stops the load unless the same resource has since been requested for a view.
+ * <p>
+ * Must be created and cancelled on the main UI thread.
+ */
+final class GlidePrefetchRequest extends DecodeRequest {
+
+    private final RequestManager mRequestManager;
+    private final Target<?> mTarget;
+
+    private GlidePrefetchRequest(RequestManager requestManager, Target<?> target) {
+        super(DecodeScheduler.PRIORITY_PREFETCH, 0, STATE_RUNNING);
+        mRequestManager = requestManager;
+        mTarget = target;
+    }
+
+    /**
+     * Preloads the given request at the given size, which has to be the size of the view the
+     * request will later be loaded into for the result to be found in the memory cache.
+     *
+     * @param requestManager Request manager the request was built from.
+     */
+    static DecodeRequest preload(RequestManager requestManager, RequestBuilder<?> request,
+            int width, int height) {
+        Target<?> target = request
+                .apply(RequestOptions.priorityOf(Priority.LOW))
+                .preload(width, height);
+        return new GlidePrefetchRequest(requestManager, target);
+    }
+
+    @Override
+    void onCancelled(int previousState) {
+        mRequestManager.clear(mTarget);
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import android.graphics.BitmapFactory;
+
+import androidx.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Header metadata of an encoded image: its dimensions as encoded (before any EXIF rotation is
+ * applied), its EXIF orientation and its MIME type.
+ * <p>
+ * {@link #probe(InputStream)} reads JPEG, PNG and WebP headers, including the EXIF segment of a
+ * JPEG, from a single pass over the first bytes of the stream so that callers can mark a buffered
+ * stream, probe it, then reset it and hand the same stream to the pixel decoder.
+ */
+final class ImageMetadata {
+
+    /**
+     * Maximum number of bytes read by {@link #probe(InputStream)}. Callers should mark the stream
+     * with at least this read limit before probing so that it can be reset afterwards.
+     */
+    static final int PROBE_READ_LIMIT = 128 * 1024;
+
+    static final String MIME_TYPE_JPEG = "image/jpeg";
+    static final String MIME_TYPE_PNG = "image/png";
+    static final String MIME_TYPE_WEBP = "image/webp";
+
+    private static final int EXIF_TAG_ORIENTATION = 0x0112;
+
+    /**
+     * Width of the image as encoded, i.e., not adjusted for the EXIF orientation.
+     */
+    final int width;
+    /**
+     * Height of the image as encoded, i.e., not adjusted for the EXIF orientation.
+     */
+    final int height;
+    /**
+     * EXIF orientation, or {@link ExifInterfaceCompat#EXIF_ORIENTATION_UNKNOWN} if the probe
+     * doesn't read the format's EXIF metadata (anything but JPEG) and the orientation has to be
+     * read some other way.
+     */
+    final int exifOrientation;
+    @Nullable
+    final String mimeType;
+
+    ImageMetadata(int width, int height, int exifOrientation, @Nullable String mimeType) {
+        this.width = width;
+        this.height = height;
+        this.exifOrientation = exifOrientation;
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * Reads the image metadata from the header of the given stream without decoding any pixels,
+     * reading at most {@link #PROBE_READ_LIMIT} bytes. Formats the probe doesn't parse itself are
+     * handed to {@link BitmapFactory} for a bounds-only decode, in which case the EXIF orientation
+     * is reported as unknown.
+     *
+     * @return The image's metadata or null if the stream couldn't be read as an image.
+     */
+    @Nullable
+    static ImageMetadata probe(InputStream inputStream) throws IOException {
+        HeaderReader reader = new HeaderReader(inputStream);
+        ImageMetadata metadata = null;
+        try {
+            metadata = reader.readHeader();
+        } catch (EOFException e) {
+            // Either a truncated image or a header larger than the probe's read limit.
+            return null;
+        }
+        if (metadata != null || reader.mSignatureRecognized) {
+            return metadata;
+        }
+
+        // Unrecognized signature, so let BitmapFactory sniff the format. The signature bytes have
+        // already been consumed, so replay them ahead of the rest of the stream.
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(reader.replaySignature(), null, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        return new ImageMetadata(options.outWidth, options.outHeight,
+                ExifInterfaceCompat.EXIF_ORIENTATION_UNKNOWN, options.outMimeType);
+    }
+
+    /**
+     * Sequential reader over the start of an image stream which never reads past
+     * {@link #PROBE_READ_LIMIT}.
+     */
+    private static class HeaderReader {
+        static final int SIGNATURE_LENGTH = 12;
+
+        private final InputStream mInputStream;
+        private final byte[] mSignature = new byte[SIGNATURE_LENGTH];
+        private int mPosition;
+        private boolean mSignatureRecognized;
+
+        HeaderReader(InputStream inputStream) {
+            mInputStream = inputStream;
+        }
+
+        /**
+         * Returns the metadata parsed from the header, or null if the header couldn't be parsed, in
+         * which case {@link #mSignatureRecognized} tells whether the format was recognized at all.
+         */
+        @Nullable
+        ImageMetadata readHeader() throws IOException {
+            readFully(mSignature, 0, SIGNATURE_LENGTH);
+            mSignatureRecognized = true;
+
+            if ((mSignature[0] & 0xFF) == 0xFF && (mSignature[1] & 0xFF) == 0xD8) {
+                return readJpeg();
+            }
+            if ((mSignature[0] & 0xFF) == 0x89 && mSignature[1] == 'P' && mSignature[2] == 'N'
+                    && mSignature[3] == 'G') {
+                return readPng();
+            }
+            if (mSignature[0] == 'R' && mSignature[1] == 'I' && mSignature[2] == 'F'
+                    && mSignature[3] == 'F' && mSignature[8] == 'W' && mSignature[9] == 'E'
+                    && mSignature[10] == 'B' && mSignature[11] == 'P') {
+                return readWebp();
+            }
+
+            mSignatureRecognized = false;
+            return null;
+        }
+
+        /**
+         * Returns a stream which yields the already consumed signature bytes followed by the rest
+         * of the underlying stream.
+         */
+        InputStream replaySignature() {
+            return new InputStream() {
+                private int mReplayPosition;
+
+                @Override
+                public int read() throws IOException {
+                    if (mReplayPosition < SIGNATURE_LENGTH) {
+                        return mSignature[mReplayPosition++] & 0xFF;
+                    }
+                    return mInputStream.read();
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    if (mReplayPosition < SIGNATURE_LENGTH) {
+                        int count = Math.min(length, SIGNATURE_LENGTH - mReplayPosition);
+                        System.arraycopy(mSignature, mReplayPosition, buffer, offset, count);
+                        mReplayPosition += count;
+                        return count;
+                    }
+                    return mInputStream.read(buffer, offset, length);
+                }
+            };
+        }
+
+        @Nullable
+        private ImageMetadata readJpeg() throws IOException {
+            // The signature buffer already holds the SOI marker and the start of the first segment,
+            // so segments are read starting with the signature bytes that follow SOI.
+            JpegSegmentReader segments = new JpegSegmentReader(this, mSignature, 2);
+            int orientation = ExifInterfaceCompat.EXIF_ORIENTATION_NORMAL;
+
+            while (true) {
+                int marker = segments.nextMarker();
+                // Start of scan or end of image without having seen a frame header.
+                if (marker == 0xDA || marker == 0xD9) {
+                    return null;
+                }
+                // Standalone markers have no length field.
+                if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                    continue;
+                }
+
+                int length = segments.readUnsignedShort() - 2;
+                if (length < 0) {
+                    return null;
+                }
+
+                if (marker == 0xE1) {
+                    byte[] app1 = new byte[length];
+                    segments.readFully(app1);
+                    int exifOrientation = parseExifOrientation(app1);
+                    if (exifOrientation > 0) {
+                        orientation = exifOrientation;
+                    }
+                } else if (isStartOfFrame(marker)) {
+                    segments.skip(1); // Sample precision.
+                    int height = segments.readUnsignedShort();
+                    int width = segments.readUnsignedShort();
+                    return new ImageMetadata(width, height, orientation, MIME_TYPE_JPEG);
+                } else {
+                    segments.skip(length);
+                }
+            }
+        }
+
+        /**
+         * Reads the dimensions from the IHDR chunk. A PNG may carry EXIF metadata in a later eXIf
+         * chunk, which isn't read here, so the orientation is reported as unknown.
+         */
+        private ImageMetadata readPng() throws IOException {
+            // The signature buffer holds the 8-byte PNG signature and the IHDR chunk's 4-byte
+            // length, so what follows is the chunk type and then the width and height.
+            byte[] header = new byte[12];
+            readFully(header, 0, header.length);
+            int width = readInt(header, 4, false);
+            int height = readInt(header, 8, false);
+            return new ImageMetadata(width, height, ExifInterfaceCompat.EXIF_ORIENTATION_UNKNOWN,
+                    MIME_TYPE_PNG);
+        }
+
+        /**
+         * Reads the dimensions from the first chunk. An extended WebP may carry EXIF metadata in a
+         * later EXIF chunk, which isn't read here, so the orientation is reported as unknown.
+         */
+        @Nullable
+        private ImageMetadata readWebp() throws IOException {
+            // Chunk FourCC and size, followed by enough of the chunk payload to cover each of the
+            // VP8, VP8L and VP8X headers.
+            byte[] chunk = new byte[18];
+            readFully(chunk, 0, chunk.length);
+            String fourCc = new String(chunk, 0, 4, StandardCharsets.US_ASCII);
+            int width;
+            int height;
+            switch (fourCc) {
+                case "VP8 ":
+                    // 3-byte frame tag and 3-byte start code precede the 14-bit dimensions.
+                    width = readShort(chunk, 14, true) & 0x3FFF;
+                    height = readShort(chunk, 16, true) & 0x3FFF;
+                    break;
+                case "VP8L":
+                    // 1-byte signature, then 14 bits each of width - 1 and height - 1.
+                    int bits = readInt(chunk, 9, true);
+                    width = (bits & 0x3FFF) + 1;
+                    height = ((bits >> 14) & 0x3FFF) + 1;
+                    break;
+                case "VP8X":
+                    // 1-byte flags and 3 reserved bytes, then 24 bits each of width - 1 and
+                    // height - 1.
+                    width = readUnsignedInt24(chunk, 12) + 1;
+                    height = readUnsignedInt24(chunk, 15) + 1;
+                    break;
+                default:
+                    return null;
+            }
+            return new ImageMetadata(width, height, ExifInterfaceCompat.EXIF_ORIENTATION_UNKNOWN,
+                    MIME_TYPE_WEBP);
+        }
+
+        private static boolean isStartOfFrame(int marker) {
+            // SOF0 through SOF15, except DHT (C4), JPG (C8) and DAC (CC).
+            return marker >= 0xC0 && marker <= 0xCF
+                    && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+        }
+
+        /**
+         * Returns the orientation stored in the first IFD of an APP1 EXIF payload, or 0 if there
+         * is none.
+         */
+        private static int parseExifOrientation(byte[] app1) {
+            // "Exif\0\0" header followed by the TIFF header.
+            if (app1.length < 14 || app1[0] != 'E' || app1[1] != 'x' || app1[2] != 'i'
+                    || app1[3] != 'f' || app1[4] != 0 || app1[5] != 0) {
+                return 0;
+            }
+            int tiffStart = 6;
+            boolean littleEndian;
+            if (app1[tiffStart] == 'I' && app1[tiffStart + 1] == 'I') {
+                littleEndian = true;
+            } else if (app1[tiffStart] == 'M' && app1[tiffStart + 1] == 'M') {
+                littleEndian = false;
+            } else {
+                return 0;
+            }
+
+            int ifdOffset = tiffStart + readInt(app1, tiffStart + 4, littleEndian);
+            if (ifdOffset < tiffStart || ifdOffset + 2 > app1.length) {
+                return 0;
+            }
+            int entryCount = readShort(app1, ifdOffset, littleEndian) & 0xFFFF;
+            for (int i = 0; i < entryCount; i++) {
+                int entry = ifdOffset + 2 + i * 12;
+                if (entry + 12 > app1.length) {
+                    return 0;
+                }
+                int tag = readShort(app1, entry, littleEndian) & 0xFFFF;
+                if (tag == EXIF_TAG_ORIENTATION) {
+                    // SHORT value stored left-aligned in the 4-byte value field.
+                    int orientation = readShort(app1, entry + 8, littleEndian) & 0xFFFF;
+                    // Valid orientations are 1 through 8.
+                    return orientation >= 1 && orientation <= 8 ? orientation : 0;
+                }
+            }
+            return 0;
+        }
+
+        void readFully(byte[] buffer, int offset, int length) throws IOException {
+            if (mPosition + length > PROBE_READ_LIMIT) {
+                throw new EOFException("Image header exceeds probe read limit");
+            }
+            int read = 0;
+            while (read < length) {
+                int count = mInputStream.read(buffer, offset + read, length - read);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                read += count;
+            }
+            mPosition += length;
+        }
+
+        private static int readShort(byte[] buffer, int offset, boolean littleEndian) {
+            int b0 = buffer[offset] & 0xFF;
+            int b1 = buffer[offset + 1] & 0xFF;
+            return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+        }
+
+        private static int readInt(byte[] buffer, int offset, boolean littleEndian) {
+            int b0 = buffer[offset] & 0xFF;
+            int b1 = buffer[offset + 1] & 0xFF;
+            int b2 = buffer[offset + 2] & 0xFF;
+            int b3 = buffer[offset + 3] & 0xFF;
+            return littleEndian
+                    ? (b3 << 24) | (b2 << 16) | (b1 << 8) | b0
+                    : (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+        }
+
+        private static int readUnsignedInt24(byte[] buffer, int offset) {
+            return (buffer[offset] & 0xFF)
+                    | ((buffer[offset + 1] & 0xFF) << 8)
+                    | ((buffer[offset + 2] & 0xFF) << 16);
+        }
+    }
+
+    /**
+     * Reads JPEG segments, starting with bytes already consumed into the signature buffer.
+     */
+    private static class JpegSegmentReader {
+        private final HeaderReader mReader;
+        private final byte[] mPending;
+        private int mPendingPosition;
+        private final byte[] mSingleByte = new byte[1];
+
+        JpegSegmentReader(HeaderReader reader, byte[] pending, int pendingPosition) {
+            mReader = reader;
+            mPending = pending;
+            mPendingPosition = pendingPosition;
+        }
+
+        /**
+         * Returns the next marker code, skipping any fill bytes.
+         */
+        int nextMarker() throws IOException {
+            int b = readUnsignedByte();
+            while (b != 0xFF) {
+                b = readUnsignedByte();
+            }
+            while (b == 0xFF) {
+                b = readUnsignedByte();
+            }
+            return b;
+        }
+
+        int readUnsignedShort() throws IOException {
+            return (readUnsignedByte() << 8) | readUnsignedByte();
+        }
+
+        void readFully(byte[] buffer) throws IOException {
+            int offset = 0;
+            while (offset < buffer.length && mPendingPosition < mPending.length) {
+                buffer[offset++] = mPending[mPendingPosition++];
+            }
+            mReader.readFully(buffer, offset, buffer.length - offset);
+        }
+
+        void skip(int count) throws IOException {
+            readFully(new byte[count]);
+        }
+
+        private int readUnsignedByte() throws IOException {
+            if (mPendingPosition < mPending.length) {
+                return mPending[mPendingPosition++] & 0xFF;
+            }
+            mReader.readFully(mSingleByte, 0, 1);
+            return mSingleByte[0] & 0xFF;
+        }
+    }
+}
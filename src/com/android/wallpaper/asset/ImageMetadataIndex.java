@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small persistent index of {@link ImageMetadata} for {@link StreamableAsset}s, so that the
+ * dimensions and orientation of images the user has already seen are known without opening the
+ * image again, even by asset instances created after a process restart.
+ * <p>
+ * Entries are keyed by a string each asset derives from its identity and version (see
+ * {@link StreamableAsset#getMetadataCacheKey(Context)}), so a modified image or an updated package
+ * simply maps to a new entry. The least recently used entries are dropped once the index is full.
+ */
+public class ImageMetadataIndex {
+    private static final String TAG = "ImageMetadataIndex";
+
+    private static final String INDEX_FILE_NAME = "image_metadata_index";
+    // Version 1 recorded a normal EXIF orientation for PNG and WebP images rather than an unknown
+    // one, so its entries are dropped.
+    private static final int FILE_FORMAT_VERSION = 2;
+    private static final int MAX_ENTRIES = 512;
+
+    private static final long LOOKUP_KEEP_ALIVE_SECONDS = 30;
+
+    // Loading the index and looking entries up are short, so they run on their own thread rather
+    // than waiting for a decoding thread behind full decodes.
+    private static final ThreadPoolExecutor sLookupExecutor = new ThreadPoolExecutor(1, 1,
+            LOOKUP_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+
+    static {
+        sLookupExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static ImageMetadataIndex sInstance;
+
+    private final Context mAppContext;
+    private final AtomicFile mFile;
+
+    // Access-ordered so that iteration starts with the least recently used entry.
+    private final LinkedHashMap<String, ImageMetadata> mEntries =
+            new LinkedHashMap<String, ImageMetadata>(16, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ImageMetadata> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private boolean mLoaded;
+    private boolean mWriteScheduled;
+
+    private ImageMetadataIndex(Context appContext) {
+        mAppContext = appContext;
+        mFile = new AtomicFile(new File(appContext.getCacheDir(), INDEX_FILE_NAME));
+    }
+
+    /**
+     * Initializes the index for the process and starts loading it from disk in the background, so
+     * that it is warm by the time the first preview asks for an image's dimensions.
+     */
+    public static synchronized void initialize(Context context) {
+        if (sInstance == null) {
+            sInstance = new ImageMetadataIndex(context.getApplicationContext());
+            sLookupExecutor.execute(sInstance::load);
+        }
+    }
+
+    /**
+     * Returns the index for the process, or null if it hasn't been initialized.
+     */
+    @Nullable
+    static synchronized ImageMetadataIndex getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns the application context used by the index.
+     */
+    Context getContext() {
+        return mAppContext;
+    }
+
+    /**
+     * Runs a lookup in the index on the thread the index is loaded on.
+     */
+    void executeLookup(Runnable lookup) {
+        sLookupExecutor.execute(lookup);
+    }
+
+    /**
+     * Returns the metadata recorded for the given key, or null if there is none. May read the index
+     * from disk, so should only be called off the main UI thread.
+     */
+    @Nullable
+    synchronized ImageMetadata get(String key) {
+        ensureLoaded();
+        return mEntries.get(key);
+    }
+
+    /**
+     * Records the metadata for the given key and schedules the index to be written back to disk.
+     */
+    synchronized void put(String key, ImageMetadata metadata) {
+        ensureLoaded();
+        mEntries.put(key, metadata);
+
+        // Coalesce the writes of a burst of newly probed images into a single one.
+        if (!mWriteScheduled) {
+            mWriteScheduled = true;
+            DecodeScheduler.getInstance().schedule(DecodeScheduler.PRIORITY_BACKGROUND,
+                    this::write, unused -> { });
+        }
+    }
+
+    private Void load() {
+        synchronized (this) {
+            ensureLoaded();
+        }
+        return null;
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(mFile.openRead()))) {
+            if (in.readInt() != FILE_FORMAT_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                int width = in.readInt();
+                int height = in.readInt();
+                int exifOrientation = in.readInt();
+                String mimeType = in.readUTF();
+                mEntries.put(key, new ImageMetadata(width, height, exifOrientation,
+                        mimeType.isEmpty() ? null : mimeType));
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing has been recorded yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read image metadata index, starting from an empty one", e);
+            mEntries.clear();
+        }
+    }
+
+    private Void write() {
+        // Snapshot the entries so that lookups aren't blocked on disk I/O.
+        Map<String, ImageMetadata> entries;
+        synchronized (this) {
+            mWriteScheduled = false;
+            entries = new LinkedHashMap<>(mEntries);
+        }
+
+        synchronized (mFile) {
+            FileOutputStream fileOut = null;
+            try {
+                fileOut = mFile.startWrite();
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                out.writeInt(FILE_FORMAT_VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, ImageMetadata> entry : entries.entrySet()) {
+                    ImageMetadata metadata = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(metadata.width);
+                    out.writeInt(metadata.height);
+                    out.writeInt(metadata.exifOrientation);
+                    out.writeUTF(metadata.mimeType == null ? "" : metadata.mimeType);
+                }
+                out.flush();
+                mFile.finishWrite(fileOut);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to write image metadata index", e);
+                if (fileOut != null) {
+                    mFile.failWrite(fileOut);
+                }
+            }
+        }
+        return null;
+    }
+}
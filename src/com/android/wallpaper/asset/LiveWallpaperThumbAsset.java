@@ -18,17 +18,19 @@ package com.android.wallpaper.asset;
 import android.app.Activity;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.Bitmap;
 import android.graphics.Rect;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.widget.ImageView;
 
+import com.android.wallpaper.compat.PackageInfoCompat;
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.RequestManager;
 import com.bumptech.glide.load.Key;
-import com.bumptech.glide.load.resource.drawable.DrawableTransitionOptions;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.bumptech.glide.load.resource.bitmap.BitmapTransitionOptions;
 import com.bumptech.glide.request.RequestOptions;
 
 import java.security.MessageDigest;
@@ -46,22 +48,26 @@ public class LiveWallpaperThumbAsset extends Asset {
     }
 
     @Override
-    public void decodeBitmap(int targetWidth, int targetHeight,
-                             BitmapReceiver receiver) {
-        // No scaling is needed, as the thumbnail is already a thumbnail.
-        LoadThumbnailTask task = new LoadThumbnailTask(mContext, mInfo, receiver);
-        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    public DecodeRequest decodeBitmap(int targetWidth, int targetHeight,
+                                      BitmapReceiver receiver) {
+        // Some live wallpapers ship thumbnails far larger than they're ever displayed at, so
+        // rasterize them at the target size rather than handing out the full size bitmap.
+        return DecodeScheduler.getInstance().schedule(DecodeScheduler.PRIORITY_VISIBLE_THUMBNAIL,
+                new LoadThumbnailJob(mContext, mInfo, targetWidth, targetHeight),
+                receiver::onBitmapDecoded);
     }
 
     @Override
-    public void decodeBitmapRegion(Rect rect, int targetWidth, int targetHeight,
-                                   BitmapReceiver receiver) {
+    public DecodeRequest decodeBitmapRegion(Rect rect, int targetWidth, int targetHeight,
+                                            BitmapReceiver receiver) {
         receiver.onBitmapDecoded(null);
+        return DecodeRequest.completed();
     }
 
     @Override
-    public void decodeRawDimensions(Activity unused, DimensionsReceiver receiver) {
+    public DecodeRequest decodeRawDimensions(Activity unused, DimensionsReceiver receiver) {
         receiver.onDimensionsDecoded(null);
+        return DecodeRequest.completed();
     }
 
     @Override
@@ -72,20 +78,47 @@ public class LiveWallpaperThumbAsset extends Asset {
     @Override
     public void loadDrawable(Context context, ImageView imageView,
                              int placeholderColor) {
+        // Loaded as a bitmap so that the thumbnail is rasterized at the size of the view by
+        // DrawableBitmapResourceDecoder, and cached at that size in memory and on disk.
         Glide.with(context)
-                .asDrawable()
+                .asBitmap()
                 .load(LiveWallpaperThumbAsset.this)
                 .apply(RequestOptions.centerCropTransform()
+                        .diskCacheStrategy(DiskCacheStrategy.RESOURCE)
                         .placeholder(new ColorDrawable(placeholderColor)))
-                .transition(DrawableTransitionOptions.withCrossFade())
+                .transition(BitmapTransitionOptions.withCrossFade())
                 .into(imageView);
     }
 
+    @Override
+    public DecodeRequest prefetchDrawable(Context context, int width, int height) {
+        RequestManager requestManager = Glide.with(context);
+        return GlidePrefetchRequest.preload(requestManager,
+                requestManager.asBitmap()
+                        .load(LiveWallpaperThumbAsset.this)
+                        .apply(RequestOptions.centerCropTransform()
+                                .diskCacheStrategy(DiskCacheStrategy.RESOURCE)),
+                width, height);
+    }
+
     /**
-     * Returns a Glide cache key.
+     * Returns a Glide cache key. Looks up the live wallpaper's package, so should not be called on
+     * the main UI thread.
      */
     Key getKey() {
-        return new LiveWallpaperThumbKey(mInfo);
+        return new LiveWallpaperThumbKey(mInfo, getVersionCode());
+    }
+
+    /**
+     * Returns the version code of the live wallpaper's package, or -1 if it can't be found.
+     */
+    private long getVersionCode() {
+        try {
+            return PackageInfoCompat.getLongVersionCode(
+                    mContext.getPackageManager().getPackageInfo(mInfo.getPackageName(), 0));
+        } catch (NameNotFoundException e) {
+            return -1;
+        }
     }
 
     /**
@@ -101,9 +134,11 @@ public class LiveWallpaperThumbAsset extends Asset {
      */
     private static final class LiveWallpaperThumbKey implements Key {
         private android.app.WallpaperInfo mInfo;
+        private long mVersionCode;
 
-        public LiveWallpaperThumbKey(android.app.WallpaperInfo info) {
+        public LiveWallpaperThumbKey(android.app.WallpaperInfo info, long versionCode) {
             mInfo = info;
+            mVersionCode = versionCode;
         }
 
         @Override
@@ -134,48 +169,42 @@ public class LiveWallpaperThumbAsset extends Asset {
         /**
          * Returns an inexpensively calculated {@link String} suitable for use as a disk cache key,
          * based on the live wallpaper's package name and service name, which is enough to uniquely
-         * identify a live wallpaper.
+         * identify a live wallpaper, and its package's version code, so that thumbnails cached on
+         * disk are refreshed when the live wallpaper is updated.
          */
         private String getCacheKey() {
             return "LiveWallpaperThumbKey{"
                     + "packageName=" + mInfo.getPackageName() + ","
-                    + "serviceName=" + mInfo.getServiceName()
+                    + "serviceName=" + mInfo.getServiceName() + ","
+                    + "versionCode=" + mVersionCode
                     + '}';
         }
     }
 
     /**
-     * AsyncTask subclass which loads the live wallpaper's thumbnail bitmap off the main UI thread.
-     * Resolves with null if live wallpaper thumbnail is not a bitmap.
+     * Decoding job which loads the live wallpaper's thumbnail off the main UI thread and
+     * rasterizes it at the target size. Resolves with null if the live wallpaper doesn't specify
+     * a thumbnail.
      */
-    private static class LoadThumbnailTask extends AsyncTask<Void, Void, Bitmap> {
+    private static class LoadThumbnailJob implements DecodeScheduler.DecodeJob<Bitmap> {
         private final PackageManager mPackageManager;
         private android.app.WallpaperInfo mInfo;
-        private BitmapReceiver mReceiver;
+        private final int mTargetWidth;
+        private final int mTargetHeight;
 
-        public LoadThumbnailTask(Context context, android.app.WallpaperInfo info,
-                BitmapReceiver receiver) {
+        LoadThumbnailJob(Context context, android.app.WallpaperInfo info, int targetWidth,
+                int targetHeight) {
             mInfo = info;
-            mReceiver = receiver;
             mPackageManager = context.getPackageManager();
+            mTargetWidth = targetWidth;
+            mTargetHeight = targetHeight;
         }
 
         @Override
-        protected Bitmap doInBackground(Void... unused) {
-            Drawable thumb = mInfo.loadThumbnail(mPackageManager);
-
+        public Bitmap decode() {
             // Live wallpaper components may or may not specify a thumbnail drawable.
-            if (thumb != null && thumb instanceof BitmapDrawable) {
-                return ((BitmapDrawable) thumb).getBitmap();
-            }
-
-            // If no thumbnail was specified, return a null bitmap.
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            mReceiver.onBitmapDecoded(bitmap);
+            return DrawableBitmapResourceDecoder.rasterize(
+                    mInfo.loadThumbnail(mPackageManager), mTargetWidth, mTargetHeight);
         }
     }
 }
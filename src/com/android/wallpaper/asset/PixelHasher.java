@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+/**
+ * Hashes images from rows of ARGB pixels, independently of where the rows come from. Only
+ * depends on the JDK, so the hashing itself can be tested off-device.
+ */
+final class PixelHasher {
+
+    // Maximum number of sampled rows and columns when generating a hash code.
+    static final int HASH_GRID_SIZE = 64;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private PixelHasher() {
+    }
+
+    /**
+     * Generates a hash code for an image's dimensions and pixels. Pixels are sampled on a
+     * stratified grid: the image is divided into at most {@value #HASH_GRID_SIZE} bands in each
+     * dimension and one pixel is picked at a fixed pseudo-random offset within each cell, so that
+     * the whole image contributes to the hash while regular patterns don't alias with the sampling
+     * grid. Only the sampled rows are read.
+     * <p>
+     * The result is never 0, which callers use to mean that no hash code is known.
+     */
+    static long hash(RowReader rowReader) {
+        int width = rowReader.getWidth();
+        int height = rowReader.getHeight();
+
+        long result = FNV_OFFSET_BASIS;
+        result = (result ^ width) * FNV_PRIME;
+        result = (result ^ height) * FNV_PRIME;
+
+        int[] sampledRows = getSampledRows(height);
+        int rows = sampledRows.length;
+        int columns = Math.min(HASH_GRID_SIZE, width);
+        int[] rowPixels = new int[width];
+
+        for (int row = 0; row < rows; row++) {
+            rowReader.readRow(sampledRows[row], rowPixels);
+            for (int column = 0; column < columns; column++) {
+                int x = pickInBand(column, columns, width, row * HASH_GRID_SIZE + column);
+                result = (result ^ rowPixels[x]) * FNV_PRIME;
+            }
+        }
+
+        result = mix(result);
+        return result == 0 ? 1 : result;
+    }
+
+    /**
+     * Generates a hash code with the algorithm used by earlier versions of the app, which sampled
+     * pixels at exponentially increasing offsets from the top-left corner.
+     */
+    static long legacyHash(RowReader rowReader) {
+        long result = 17;
+
+        int width = rowReader.getWidth();
+        int height = rowReader.getHeight();
+
+        result = 31 * result + width;
+        result = 31 * result + height;
+
+        // Pixels were folded in column-major order, so read the sampled rows up front.
+        int[] sampledRows = getLegacySampledRows(height);
+        int[][] rowPixels = new int[sampledRows.length][width];
+        for (int row = 0; row < sampledRows.length; row++) {
+            rowReader.readRow(sampledRows[row], rowPixels[row]);
+        }
+
+        for (int x = 0; x < width; x = x * 2 + 1) {
+            for (int row = 0; row < sampledRows.length; row++) {
+                result = 31 * result + rowPixels[row][x];
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the y coordinates of the rows {@link #hash} reads from an image of the given height,
+     * in the order it reads them.
+     */
+    static int[] getSampledRows(int height) {
+        int[] rows = new int[Math.min(HASH_GRID_SIZE, height)];
+        for (int row = 0; row < rows.length; row++) {
+            rows[row] = pickInBand(row, rows.length, height, row);
+        }
+        return rows;
+    }
+
+    /**
+     * Returns the y coordinates of the rows {@link #legacyHash} reads from an image of the given
+     * height, in the order it reads them.
+     */
+    static int[] getLegacySampledRows(int height) {
+        int count = 0;
+        for (int y = 0; y < height; y = y * 2 + 1) {
+            count++;
+        }
+        int[] rows = new int[count];
+        for (int y = 0, row = 0; y < height; y = y * 2 + 1, row++) {
+            rows[row] = y;
+        }
+        return rows;
+    }
+
+    /**
+     * Returns a coordinate within the given band when dividing {@code length} into
+     * {@code bandCount} bands, at an offset determined by {@code seed}.
+     */
+    private static int pickInBand(int band, int bandCount, int length, int seed) {
+        int start = (int) ((long) band * length / bandCount);
+        int end = (int) ((long) (band + 1) * length / bandCount);
+        return start + (int) ((mix(seed) >>> 1) % (end - start));
+    }
+
+    /**
+     * Finalization step of MurmurHash3, which spreads every input bit over the whole result.
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * Reads rows of ARGB pixels in increasing order of their y coordinates.
+     */
+    interface RowReader {
+        int getWidth();
+
+        int getHeight();
+
+        void readRow(int y, int[] pixels);
+    }
+}
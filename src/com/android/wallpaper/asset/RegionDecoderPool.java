@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.BitmapRegionDecoder;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded, reference-counted pool of {@link BitmapRegionDecoder} instances keyed by the
+ * {@link StreamableAsset} they were opened from.
+ * <p>
+ * A single BitmapRegionDecoder serializes all calls to {@code decodeRegion}, so the pool opens up to
+ * one decoder per {@link DecodeScheduler} thread for the same asset, which lets tiles of one image
+ * be decoded in parallel. Decoders for the least recently used assets are recycled once they are
+ * idle, and all idle decoders are released under memory pressure.
+ */
+public class RegionDecoderPool {
+    private static final String TAG = "RegionDecoderPool";
+
+    /**
+     * Maximum number of decoders opened for a single asset; any more than the number of decoding
+     * threads could never be used at the same time.
+     */
+    private static final int MAX_DECODERS_PER_ASSET = DecodeScheduler.THREAD_COUNT;
+
+    /**
+     * Maximum number of assets for which idle decoders are kept around.
+     */
+    private static final int MAX_POOLED_ASSETS = 3;
+
+    private static RegionDecoderPool sInstance;
+
+    // Access-ordered so that iteration starts with the least recently used asset.
+    private final LinkedHashMap<StreamableAsset, Entry> mEntries =
+            new LinkedHashMap<>(MAX_POOLED_ASSETS + 1, 0.75f, true /* accessOrder */);
+
+    public static synchronized RegionDecoderPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new RegionDecoderPool();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Leases a BitmapRegionDecoder for the given asset, opening a new one if all decoders already
+     * opened for the asset are in use and the per-asset limit hasn't been reached, or otherwise
+     * blocking until one is released. Callers must hand the decoder back with
+     * {@link #release(StreamableAsset, BitmapRegionDecoder)}. Should not be called on the main UI
+     * thread.
+     *
+     * @return A decoder for the asset, or null if the decoder could not be opened.
+     */
+    @Nullable
+    BitmapRegionDecoder acquire(StreamableAsset asset) {
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(asset);
+            if (entry == null) {
+                entry = new Entry();
+                mEntries.put(asset, entry);
+            }
+            entry.mRefCount++;
+            evictIdleEntries();
+
+            while (entry.mIdleDecoders.isEmpty() && entry.mOpenCount >= MAX_DECODERS_PER_ASSET) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Interrupted while waiting for a region decoder", e);
+                    releaseReference(asset, entry);
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+
+            if (!entry.mIdleDecoders.isEmpty()) {
+                return entry.mIdleDecoders.remove(entry.mIdleDecoders.size() - 1);
+            }
+
+            // Reserve a slot before opening the decoder outside the lock, since opening the
+            // underlying stream may be slow.
+            entry.mOpenCount++;
+        }
+
+        BitmapRegionDecoder decoder = asset.openBitmapRegionDecoder();
+        if (decoder == null) {
+            synchronized (this) {
+                entry.mOpenCount--;
+                releaseReference(asset, entry);
+            }
+        }
+        return decoder;
+    }
+
+    /**
+     * Returns a decoder previously leased with {@link #acquire(StreamableAsset)} to the pool.
+     */
+    synchronized void release(StreamableAsset asset, BitmapRegionDecoder decoder) {
+        Entry entry = mEntries.get(asset);
+        if (entry == null) {
+            // The entry was dropped while the decoder was in use, so there is nothing to return it
+            // to.
+            decoder.recycle();
+            return;
+        }
+        entry.mIdleDecoders.add(decoder);
+        releaseReference(asset, entry);
+    }
+
+    /**
+     * Releases idle decoders in response to a {@link ComponentCallbacks2} trim memory level.
+     * Decoders currently leased out are left untouched and are recycled when they are released.
+     */
+    public synchronized void trimMemory(int level) {
+        boolean releaseAll = level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW;
+        // Under moderate pressure keep a single decoder per asset so that visible tiles can still
+        // be served without reopening the stream.
+        int idleToKeep = releaseAll ? 0 : 1;
+
+        Iterator<Map.Entry<StreamableAsset, Entry>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            entry.recycleIdleDecoders(idleToKeep);
+            if (releaseAll && entry.mRefCount == 0) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops one lease on the entry, waking up any threads waiting on a decoder for it.
+     */
+    private void releaseReference(StreamableAsset asset, Entry entry) {
+        entry.mRefCount--;
+        notifyAll();
+        if (entry.mRefCount == 0 && mEntries.get(asset) == entry) {
+            evictIdleEntries();
+        }
+    }
+
+    /**
+     * Recycles the decoders of least recently used assets that have no outstanding leases until at
+     * most {@link #MAX_POOLED_ASSETS} assets remain in the pool.
+     */
+    private void evictIdleEntries() {
+        Iterator<Map.Entry<StreamableAsset, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mEntries.size() > MAX_POOLED_ASSETS && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry.mRefCount == 0) {
+                entry.recycleIdleDecoders(0);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Decoders opened for a single asset.
+     */
+    private static class Entry {
+        final List<BitmapRegionDecoder> mIdleDecoders = new ArrayList<>(MAX_DECODERS_PER_ASSET);
+        // Number of decoders opened (or being opened) for the asset, whether idle or leased.
+        int mOpenCount;
+        // Number of outstanding leases, including callers waiting for a decoder.
+        int mRefCount;
+
+        void recycleIdleDecoders(int idleToKeep) {
+            while (mIdleDecoders.size() > idleToKeep) {
+                mIdleDecoders.remove(mIdleDecoders.size() - 1).recycle();
+                mOpenCount--;
+            }
+        }
+    }
+}
@@ -16,11 +16,15 @@
 package com.android.wallpaper.asset;
 
 import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.graphics.drawable.ColorDrawable;
+import android.util.Log;
 import android.widget.ImageView;
 
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.RequestManager;
 import com.bumptech.glide.load.Key;
 import com.bumptech.glide.load.resource.drawable.DrawableTransitionOptions;
 import com.bumptech.glide.request.RequestOptions;
@@ -32,6 +36,8 @@ import java.security.MessageDigest;
  * Image asset representing an APK resource.
  */
 public class ResourceAsset extends StreamableAsset {
+    private static final String TAG = "ResourceAsset";
+
     protected final Resources mRes;
     protected final int mResId;
     private final RequestOptions mRequestOptions;
@@ -69,6 +75,14 @@ public class ResourceAsset extends StreamableAsset {
                 .into(imageView);
     }
 
+    @Override
+    public DecodeRequest prefetchDrawable(Context context, int width, int height) {
+        RequestManager requestManager = Glide.with(context);
+        return GlidePrefetchRequest.preload(requestManager,
+                requestManager.asDrawable().load(ResourceAsset.this).apply(mRequestOptions),
+                width, height);
+    }
+
     @Override
     public int hashCode() {
         return getKey().hashCode();
@@ -107,6 +121,19 @@ public class ResourceAsset extends StreamableAsset {
         return mResId;
     }
 
+    @Override
+    protected String getMetadataCacheKey(Context context) {
+        String packageName = mRes.getResourcePackageName(mResId);
+        try {
+            // The resource may change whenever the package containing it is updated.
+            PackageInfo packageInfo = context.getPackageManager().getPackageInfo(packageName, 0);
+            return getKey().toString() + '@' + packageInfo.lastUpdateTime;
+        } catch (NameNotFoundException e) {
+            Log.w(TAG, "Unable to find package " + packageName + " for resource " + mResId, e);
+            return null;
+        }
+    }
+
     @Override
     protected InputStream openInputStream() {
         return mRes.openRawResource(mResId);
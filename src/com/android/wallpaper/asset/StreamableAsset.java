@@ -16,19 +16,25 @@
 package com.android.wallpaper.asset;
 
 import android.app.Activity;
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.media.ExifInterface;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -38,9 +44,15 @@ import java.io.InputStream;
  */
 public abstract class StreamableAsset extends Asset {
     private static final String TAG = "StreamableAsset";
+    private static final int PROBE_BUFFER_SIZE = 16 * 1024;
 
-    private BitmapRegionDecoder mBitmapRegionDecoder;
-    private Point mDimensions;
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private volatile Point mDimensions;
+    private volatile ImageMetadata mMetadata;
+    // Whether the header was already probed, so that unreadable headers are only probed once.
+    private volatile boolean mMetadataProbed;
+    private volatile String mMetadataCacheKey;
 
     /**
      * Scales and returns a new Rect from the given Rect by the given scaling factor.
@@ -72,23 +84,139 @@ public abstract class StreamableAsset extends Asset {
         }
     }
 
+    /**
+     * Returns whether an image rotated by the given number of degrees has its width and height
+     * switched.
+     */
+    private static boolean isSideways(int rotationDegrees) {
+        return rotationDegrees == 90 || rotationDegrees == 270;
+    }
+
+    /**
+     * Draws part of a bitmap decoded in the asset's encoded orientation into the given destination
+     * bitmap with a single matrix transform, which rotates the source by the given number of
+     * degrees and scales it to cover the destination, center cropping anything left over. The
+     * source bitmap is handed back to the {@link BitmapReusePool}.
+     * <p>
+     * Results which are shared between requests or cached must be drawn into a bitmap from
+     * {@link #createSharedBitmap} rather than a pooled one, since the pool could otherwise reuse
+     * them while they are still displayed.
+     *
+     * @return The destination bitmap.
+     */
+    private static Bitmap drawOriented(Bitmap source, Rect sourceRect, int rotationDegrees,
+            Bitmap dest) {
+        int destWidth = dest.getWidth();
+        int destHeight = dest.getHeight();
+        boolean isSideways = isSideways(rotationDegrees);
+        float orientedWidth = isSideways ? sourceRect.height() : sourceRect.width();
+        float orientedHeight = isSideways ? sourceRect.width() : sourceRect.height();
+        float scale = Math.max(destWidth / orientedWidth, destHeight / orientedHeight);
+
+        Matrix matrix = new Matrix();
+        matrix.setTranslate(-sourceRect.exactCenterX(), -sourceRect.exactCenterY());
+        matrix.postRotate(rotationDegrees);
+        matrix.postScale(scale, scale);
+        matrix.postTranslate(destWidth / 2f, destHeight / 2f);
+
+        dest.setHasAlpha(source.hasAlpha());
+        if (source.hasAlpha()) {
+            dest.eraseColor(Color.TRANSPARENT);
+        }
+        new Canvas(dest).drawBitmap(source, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        BitmapReusePool.release(source);
+        return dest;
+    }
+
+    /**
+     * Allocates a bitmap for {@link #drawOriented} which is owned by the caller and never enters
+     * the {@link BitmapReusePool}, so it can be shared between requests and cached as is.
+     */
+    private static Bitmap createSharedBitmap(int width, int height) {
+        return Bitmap.createBitmap(width, height, Config.ARGB_8888);
+    }
+
     @Override
-    public void decodeBitmap(int targetWidth, int targetHeight,
-                             BitmapReceiver receiver) {
-        DecodeBitmapAsyncTask task = new DecodeBitmapAsyncTask(targetWidth, targetHeight, receiver);
-        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    protected DecodeScheduler.DecodeJob<Bitmap> createCenterCropDecodeJob(int width,
+            int height) {
+        return new DecodeCenterCroppedBitmapJob(width, height);
     }
 
     @Override
-    public void decodeRawDimensions(Activity unused, DimensionsReceiver receiver) {
-        DecodeDimensionsAsyncTask task = new DecodeDimensionsAsyncTask(receiver);
-        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    public DecodeRequest decodeBitmap(int targetWidth, int targetHeight,
+                                      BitmapReceiver receiver) {
+        // Requests are shared by the sample size they decode at, which depends on the raw
+        // dimensions, so those have to be known before the decode can be scheduled.
+        Point dimensions = mDimensions;
+        if (dimensions != null) {
+            return scheduleSampledDecode(dimensions, targetWidth, targetHeight,
+                    DecodeScheduler.PRIORITY_VISIBLE_THUMBNAIL, receiver::onBitmapDecoded);
+        }
+        SampledBitmapRequest request =
+                new SampledBitmapRequest(targetWidth, targetHeight, receiver);
+        request.start();
+        return request;
+    }
+
+    /**
+     * Schedules a decode of the asset subsampled to at least the given target size, sharing it
+     * with concurrent requests for other target sizes which subsample the asset by the same
+     * factor.
+     */
+    private DecodeRequest scheduleSampledDecode(Point rawDimensions, int targetWidth,
+            int targetHeight, @DecodeScheduler.Priority int priority,
+            DecodeScheduler.DecodeCallback<Bitmap> callback) {
+        int sampleSize = BitmapUtils.calculateInSampleSize(
+                rawDimensions.x, rawDimensions.y, targetWidth, targetHeight);
+        return DecodeScheduler.getInstance().scheduleShared(
+                DecodeKey.forSampledBitmap(this, sampleSize), priority,
+                new DecodeBitmapJob(sampleSize), callback);
+    }
+
+    @Override
+    public DecodeRequest decodeRawDimensions(Activity unused, DimensionsReceiver receiver) {
+        // Answer right away if this instance already knows its dimensions.
+        if (mDimensions != null) {
+            receiver.onDimensionsDecoded(mDimensions);
+            return DecodeRequest.completed();
+        }
+
+        ImageMetadataIndex index = ImageMetadataIndex.getInstance();
+        if (index == null) {
+            return scheduleRawDimensions(DecodeScheduler.PRIORITY_VISIBLE_PREVIEW,
+                    receiver::onDimensionsDecoded);
+        }
+        RawDimensionsRequest request = new RawDimensionsRequest(receiver);
+        index.executeLookup(request::lookUp);
+        return request;
+    }
+
+    private DecodeRequest scheduleRawDimensions(@DecodeScheduler.Priority int priority,
+            DecodeScheduler.DecodeCallback<Point> callback) {
+        return DecodeScheduler.getInstance().scheduleShared(DecodeKey.forRawDimensions(this),
+                priority, this::calculateRawDimensions, callback);
+    }
+
+    /**
+     * Returns the raw dimensions if they're known from a previous probe or from the
+     * {@link ImageMetadataIndex}, without reading the image header. Returns null otherwise. Should
+     * only be called off the main UI thread.
+     */
+    @Nullable
+    private Point lookUpRawDimensions() {
+        if (mDimensions != null) {
+            return mDimensions;
+        }
+        if (!mMetadataProbed) {
+            readIndexedMetadata();
+        }
+        return mMetadata != null ? calculateRawDimensions() : null;
     }
 
     @Override
-    public void decodeBitmapRegion(Rect rect, int targetWidth, int targetHeight,
-                                   BitmapReceiver receiver) {
-        runDecodeBitmapRegionTask(rect, targetWidth, targetHeight, receiver);
+    public DecodeRequest decodeBitmapRegion(Rect rect, int targetWidth, int targetHeight,
+                                            BitmapReceiver receiver) {
+        return runDecodeBitmapRegionTask(rect, targetWidth, targetHeight, receiver);
     }
 
     @Override
@@ -100,18 +228,9 @@ public abstract class StreamableAsset extends Asset {
      * Fetches an input stream of bytes for the wallpaper image asset and provides the stream
      * asynchronously back to a {@link StreamReceiver}.
      */
-    public void fetchInputStream(final StreamReceiver streamReceiver) {
-        new AsyncTask<Void, Void, InputStream>() {
-            @Override
-            protected InputStream doInBackground(Void... params) {
-                return openInputStream();
-            }
-
-            @Override
-            protected void onPostExecute(InputStream inputStream) {
-                streamReceiver.onInputStreamOpened(inputStream);
-            }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    public DecodeRequest fetchInputStream(final StreamReceiver streamReceiver) {
+        return DecodeScheduler.getInstance().schedule(DecodeScheduler.PRIORITY_VISIBLE_PREVIEW,
+                this::openInputStream, streamReceiver::onInputStreamOpened);
     }
 
     /**
@@ -138,14 +257,32 @@ public abstract class StreamableAsset extends Asset {
      * @param targetHeight Height of target view in physical pixels.
      * @param receiver     Called with the decoded bitmap region or null if there was an error decoding
      *                     the bitmap region.
-     * @return AsyncTask reference so that the decoding task can be canceled before it starts.
+     * @return Handle so that the decoding task can be canceled before it starts.
      */
-    public AsyncTask runDecodeBitmapRegionTask(Rect rect, int targetWidth, int targetHeight,
-                                               BitmapReceiver receiver) {
-        DecodeBitmapRegionAsyncTask task =
-                new DecodeBitmapRegionAsyncTask(rect, targetWidth, targetHeight, receiver);
-        task.execute();
-        return task;
+    public DecodeRequest runDecodeBitmapRegionTask(Rect rect, int targetWidth, int targetHeight,
+                                                   BitmapReceiver receiver) {
+        // Regions are decoded in parallel on the scheduler's threads, each leasing its own decoder
+        // from the RegionDecoderPool.
+        return DecodeScheduler.getInstance().schedule(DecodeScheduler.PRIORITY_VISIBLE_PREVIEW,
+                new DecodeBitmapRegionJob(rect, targetWidth, targetHeight),
+                receiver::onBitmapDecoded);
+    }
+
+    /**
+     * Decodes a bitmap region on the calling thread, for callers which do their own threading and
+     * need the result synchronously, such as the tile loader of an image view. Decoders are leased
+     * from the same {@link RegionDecoderPool} as {@link #decodeBitmapRegion}, so both share the
+     * per-asset limit on parallel decodes. Should not be called on the main UI thread.
+     *
+     * @param rect         Rect representing the crop region in terms of the original image's
+     *                     resolution.
+     * @param targetWidth  Width of target view in physical pixels.
+     * @param targetHeight Height of target view in physical pixels.
+     * @return The decoded bitmap region, or null if there was an error decoding it.
+     */
+    @Nullable
+    public Bitmap decodeBitmapRegionBlocking(Rect rect, int targetWidth, int targetHeight) {
+        return new DecodeBitmapRegionJob(rect, targetWidth, targetHeight).decode();
     }
 
     /**
@@ -160,39 +297,160 @@ public abstract class StreamableAsset extends Asset {
             return mDimensions;
         }
 
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        InputStream inputStream = openInputStream();
-        // Input stream may be null if there was an error opening it.
-        if (inputStream == null) {
-            return null;
+        int width;
+        int height;
+        ImageMetadata metadata = getImageMetadata();
+        if (metadata != null) {
+            width = metadata.width;
+            height = metadata.height;
+        } else {
+            // The header couldn't be probed, so fall back to letting BitmapFactory decode bounds.
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            InputStream inputStream = openInputStream();
+            // Input stream may be null if there was an error opening it.
+            if (inputStream == null) {
+                return null;
+            }
+            BitmapFactory.decodeStream(inputStream, null, options);
+            closeInputStream(inputStream, "There was an error closing the input stream used to "
+                    + "calculate the image's raw dimensions");
+            width = options.outWidth;
+            height = options.outHeight;
         }
-        BitmapFactory.decodeStream(inputStream, null, options);
-        closeInputStream(inputStream, "There was an error closing the input stream used to calculate "
-                + "the image's raw dimensions");
 
         int exifOrientation = getExifOrientation();
         // Swap height and width if image is rotated 90 or 270 degrees.
         if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_90
                 || exifOrientation == ExifInterface.ORIENTATION_ROTATE_270) {
-            mDimensions = new Point(options.outHeight, options.outWidth);
+            mDimensions = new Point(height, width);
         } else {
-            mDimensions = new Point(options.outWidth, options.outHeight);
+            mDimensions = new Point(width, height);
         }
 
         return mDimensions;
     }
 
     /**
-     * Returns a BitmapRegionDecoder for the asset.
+     * Returns the header metadata (encoded dimensions, EXIF orientation and MIME type) of the asset,
+     * probing the underlying stream on first use. This method should only be called off the main UI
+     * thread.
+     *
+     * @return The metadata, or null if the header couldn't be probed.
+     */
+    @Nullable
+    ImageMetadata getImageMetadata() {
+        if (!mMetadataProbed) {
+            readIndexedMetadata();
+        }
+        if (!mMetadataProbed) {
+            InputStream inputStream = openProbedInputStream();
+            if (inputStream != null) {
+                closeInputStream(inputStream, "Unable to close input stream used to probe image "
+                        + "metadata");
+            }
+        }
+        return mMetadata;
+    }
+
+    /**
+     * Returns the header metadata if it was already probed, without doing any I/O.
+     */
+    @Nullable
+    ImageMetadata peekImageMetadata() {
+        return mMetadata;
+    }
+
+    /**
+     * Opens an InputStream for the asset, probing the image header for metadata in the same pass if
+     * it hasn't been read yet, so that the metadata and the pixels come from a single open of the
+     * underlying stream. The returned stream is positioned at the start of the image.
+     */
+    @Nullable
+    private InputStream openProbedInputStream() {
+        if (!mMetadataProbed) {
+            readIndexedMetadata();
+        }
+        InputStream inputStream = openInputStream();
+        if (inputStream == null || mMetadataProbed) {
+            return inputStream;
+        }
+
+        BufferedInputStream bufferedStream =
+                new BufferedInputStream(inputStream, PROBE_BUFFER_SIZE);
+        bufferedStream.mark(ImageMetadata.PROBE_READ_LIMIT);
+        try {
+            mMetadata = ImageMetadata.probe(bufferedStream);
+            mMetadataProbed = true;
+            writeIndexedMetadata();
+            bufferedStream.reset();
+            return bufferedStream;
+        } catch (IOException e) {
+            // The header couldn't be read within the mark limit, so start over with a fresh stream.
+            Log.w(TAG, "Unable to reuse the stream used to probe image metadata", e);
+            closeInputStream(bufferedStream, "Unable to close input stream used to probe image "
+                    + "metadata");
+            return openInputStream();
+        }
+    }
+
+    /**
+     * Returns a key which identifies this version of the asset's content in the
+     * {@link ImageMetadataIndex}, so that its metadata can be reused by other instances of the asset
+     * across process restarts. The key must change whenever the underlying image may have changed.
+     * This method should only be called off the main UI thread.
+     *
+     * @param context The application's context.
+     * @return The key, or null if the asset's metadata shouldn't be persisted.
+     */
+    @Nullable
+    protected String getMetadataCacheKey(Context context) {
+        return null;
+    }
+
+    /**
+     * Adopts the metadata recorded for the asset in the {@link ImageMetadataIndex}, if any.
+     */
+    private void readIndexedMetadata() {
+        ImageMetadataIndex index = ImageMetadataIndex.getInstance();
+        if (index == null) {
+            return;
+        }
+        if (mMetadataCacheKey == null) {
+            mMetadataCacheKey = getMetadataCacheKey(index.getContext());
+            if (mMetadataCacheKey == null) {
+                return;
+            }
+        }
+
+        ImageMetadata metadata = index.get(mMetadataCacheKey);
+        if (metadata != null) {
+            mMetadata = metadata;
+            mMetadataProbed = true;
+        }
+    }
+
+    /**
+     * Records freshly probed metadata in the {@link ImageMetadataIndex}.
+     */
+    private void writeIndexedMetadata() {
+        ImageMetadataIndex index = ImageMetadataIndex.getInstance();
+        if (index != null && mMetadataCacheKey != null && mMetadata != null) {
+            index.put(mMetadataCacheKey, mMetadata);
+        }
+    }
+
+    /**
+     * Opens a new BitmapRegionDecoder for the asset. Callers decoding regions should lease decoders
+     * from {@link RegionDecoderPool} instead of calling this directly.
      */
     @Nullable
-    private BitmapRegionDecoder openBitmapRegionDecoder() {
+    BitmapRegionDecoder openBitmapRegionDecoder() {
         InputStream inputStream = null;
         BitmapRegionDecoder brd = null;
 
         try {
-            inputStream = openInputStream();
+            inputStream = openProbedInputStream();
             // Input stream may be null if there was an error opening it.
             if (inputStream == null) {
                 return null;
@@ -234,120 +492,351 @@ public abstract class StreamableAsset extends Asset {
     }
 
     /**
-     * AsyncTask which decodes a Bitmap off the UI thread. Scales the Bitmap for the target width and
-     * height if possible.
+     * Request for the raw dimensions of the asset, which answers from the
+     * {@link ImageMetadataIndex} when it has them and only schedules a probe of the image header
+     * with the {@link DecodeScheduler} when it doesn't.
      */
-    private class DecodeBitmapAsyncTask extends AsyncTask<Void, Void, Bitmap> {
+    private class RawDimensionsRequest extends DecodeRequest {
+        private final DimensionsReceiver mReceiver;
+        // Probe scheduled after the index missed, if any. Guarded by this.
+        private DecodeRequest mProbeRequest;
 
-        private BitmapReceiver mReceiver;
-        private int mTargetWidth;
-        private int mTargetHeight;
-
-        public DecodeBitmapAsyncTask(int targetWidth, int targetHeight, BitmapReceiver receiver) {
+        RawDimensionsRequest(DimensionsReceiver receiver) {
+            super(DecodeScheduler.PRIORITY_VISIBLE_PREVIEW, 0 /* sequence */, STATE_QUEUED);
             mReceiver = receiver;
+        }
+
+        /**
+         * Looks the dimensions up on the index's thread.
+         */
+        void lookUp() {
+            if (isDone()) {
+                return;
+            }
+            Point dimensions = lookUpRawDimensions();
+            if (dimensions != null) {
+                sMainHandler.post(() -> finish(dimensions));
+                return;
+            }
+
+            synchronized (this) {
+                if (!isCancelled()) {
+                    mProbeRequest = scheduleRawDimensions(mPriority, this::finish);
+                }
+            }
+        }
+
+        private void finish(@Nullable Point dimensions) {
+            if (mState.compareAndSet(STATE_QUEUED, STATE_FINISHED)) {
+                mReceiver.onDimensionsDecoded(dimensions);
+            }
+        }
+
+        @Override
+        void onCancelled(int previousState) {
+            synchronized (this) {
+                if (mProbeRequest != null) {
+                    mProbeRequest.cancel();
+                }
+            }
+        }
+
+        @Override
+        public void setPriority(@DecodeScheduler.Priority int priority) {
+            synchronized (this) {
+                mPriority = priority;
+                if (mProbeRequest != null) {
+                    mProbeRequest.setPriority(priority);
+                }
+            }
+        }
+    }
+
+    /**
+     * Request for a bitmap of the asset at a target size made before its raw dimensions are known,
+     * which looks the dimensions up first and then schedules the decode shared by sample size.
+     */
+    private class SampledBitmapRequest extends DecodeRequest {
+        private final int mTargetWidth;
+        private final int mTargetHeight;
+        private final BitmapReceiver mReceiver;
+        // Dimensions lookup or decode in flight, if any. Guarded by this.
+        private DecodeRequest mPendingRequest;
+
+        SampledBitmapRequest(int targetWidth, int targetHeight, BitmapReceiver receiver) {
+            super(DecodeScheduler.PRIORITY_VISIBLE_THUMBNAIL, 0 /* sequence */, STATE_QUEUED);
             mTargetWidth = targetWidth;
             mTargetHeight = targetHeight;
+            mReceiver = receiver;
+        }
+
+        void start() {
+            DecodeRequest dimensionsRequest =
+                    decodeRawDimensions(null /* activity */, this::onDimensionsDecoded);
+            synchronized (this) {
+                // The dimensions may have been answered right away, in which case the decode is
+                // already pending.
+                if (mPendingRequest == null) {
+                    mPendingRequest = dimensionsRequest;
+                    dimensionsRequest.setPriority(mPriority);
+                }
+            }
+        }
+
+        private void onDimensionsDecoded(@Nullable Point dimensions) {
+            if (isDone()) {
+                return;
+            }
+            if (dimensions == null) {
+                finish(null);
+                return;
+            }
+            synchronized (this) {
+                mPendingRequest = scheduleSampledDecode(dimensions, mTargetWidth, mTargetHeight,
+                        mPriority, this::finish);
+            }
+        }
+
+        private void finish(@Nullable Bitmap bitmap) {
+            if (mState.compareAndSet(STATE_QUEUED, STATE_FINISHED)) {
+                DecodeScheduler.getInstance().unbind(this);
+                mReceiver.onBitmapDecoded(bitmap);
+            }
         }
 
         @Override
-        protected Bitmap doInBackground(Void... unused) {
-            int exifOrientation = getExifOrientation();
-            // Switch target height and width if image is rotated 90 or 270 degrees.
-            if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_90
-                    || exifOrientation == ExifInterface.ORIENTATION_ROTATE_270) {
-                int tempHeight = mTargetHeight;
-                mTargetHeight = mTargetWidth;
-                mTargetWidth = tempHeight;
+        void onCancelled(int previousState) {
+            synchronized (this) {
+                if (mPendingRequest != null) {
+                    mPendingRequest.cancel();
+                }
             }
+        }
 
-            BitmapFactory.Options options = new BitmapFactory.Options();
+        @Override
+        public void setPriority(@DecodeScheduler.Priority int priority) {
+            synchronized (this) {
+                mPriority = priority;
+                if (mPendingRequest != null) {
+                    mPendingRequest.setPriority(priority);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decoding job which decodes a Bitmap off the UI thread, subsampled by the given factor.
+     */
+    class DecodeBitmapJob implements DecodeScheduler.DecodeJob<Bitmap> {
 
+        private final int mSampleSize;
+
+        DecodeBitmapJob(int sampleSize) {
+            mSampleSize = sampleSize;
+        }
+
+        @Override
+        public Bitmap decode() {
+            // Open the stream first so that the header metadata needed below is probed from the
+            // same stream that the pixels are decoded from.
+            InputStream inputStream = openProbedInputStream();
+            // Input stream may be null if there was an error opening it.
+            if (inputStream == null) {
+                return null;
+            }
+
+            int rotation = getDegreesRotationForExifOrientation(getExifOrientation());
             Point rawDimensions = calculateRawDimensions();
-            // Raw dimensions may be null if there was an error opening the underlying input stream.
+            // Raw dimensions may be null if there was an error decoding the image header.
             if (rawDimensions == null) {
+                closeInputStream(inputStream, "Error closing the input stream used to decode the "
+                        + "full bitmap");
                 return null;
             }
-            options.inSampleSize = BitmapUtils.calculateInSampleSize(
-                    rawDimensions.x, rawDimensions.y, mTargetWidth, mTargetHeight);
-            options.inPreferredConfig = Config.HARDWARE;
 
-            InputStream inputStream = openInputStream();
+            boolean isSideways = isSideways(rotation);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = mSampleSize;
+            // A rotated image is drawn into a new bitmap below, which a hardware bitmap can't be
+            // drawn from, so only unrotated images are decoded straight into hardware bitmaps.
+            options.inPreferredConfig = rotation == 0 ? Config.HARDWARE : Config.ARGB_8888;
+
             Bitmap bitmap = BitmapFactory.decodeStream(inputStream, null, options);
             closeInputStream(
                     inputStream, "Error closing the input stream used to decode the full bitmap");
 
             // Rotate output bitmap if necessary because of EXIF orientation tag.
-            int matrixRotation = getDegreesRotationForExifOrientation(exifOrientation);
-            if (matrixRotation > 0) {
-                Matrix rotateMatrix = new Matrix();
-                rotateMatrix.setRotate(matrixRotation);
-                bitmap = Bitmap.createBitmap(
-                        bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), rotateMatrix, false);
+            if (bitmap != null && rotation > 0) {
+                bitmap = drawOriented(bitmap,
+                        new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight()), rotation,
+                        createSharedBitmap(isSideways ? bitmap.getHeight() : bitmap.getWidth(),
+                                isSideways ? bitmap.getWidth() : bitmap.getHeight()));
             }
 
             return bitmap;
         }
+    }
+
+    /**
+     * Decoding job which decodes a bitmap of exactly the target size, center cropped from the
+     * asset, in a single pass: only the cropped region of the image is decoded, sampled down to at
+     * least the target size, and then rotated and scaled into the destination bitmap with a single
+     * matrix draw.
+     */
+    private class DecodeCenterCroppedBitmapJob implements DecodeScheduler.DecodeJob<Bitmap> {
+
+        private final int mWidth;
+        private final int mHeight;
+
+        DecodeCenterCroppedBitmapJob(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+        }
 
         @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            mReceiver.onBitmapDecoded(bitmap);
+        public Bitmap decode() {
+            Point rawDimensions = calculateRawDimensions();
+            if (rawDimensions == null || mWidth <= 0 || mHeight <= 0) {
+                return null;
+            }
+            int exifOrientation = getExifOrientation();
+            int rotation = getDegreesRotationForExifOrientation(exifOrientation);
+            boolean isSideways = isSideways(rotation);
+
+            // Largest centered rect with the aspect ratio of the destination, in the orientation
+            // the image is displayed in, then mapped back to the orientation it is encoded in.
+            float cropScale = Math.min(
+                    (float) rawDimensions.x / mWidth, (float) rawDimensions.y / mHeight);
+            int cropWidth = Math.min(rawDimensions.x, Math.round(mWidth * cropScale));
+            int cropHeight = Math.min(rawDimensions.y, Math.round(mHeight * cropScale));
+            int cropLeft = (rawDimensions.x - cropWidth) / 2;
+            int cropTop = (rawDimensions.y - cropHeight) / 2;
+            Rect cropRect = CropRectRotator.rotateCropRectForExifOrientation(rawDimensions,
+                    new Rect(cropLeft, cropTop, cropLeft + cropWidth, cropTop + cropHeight),
+                    exifOrientation);
+
+            int encodedTargetWidth = isSideways ? mHeight : mWidth;
+            int encodedTargetHeight = isSideways ? mWidth : mHeight;
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = BitmapUtils.calculateInSampleSize(cropRect.width(),
+                    cropRect.height(), encodedTargetWidth, encodedTargetHeight);
+
+            try {
+                Bitmap region = decodeRegion(cropRect, options);
+                if (region != null) {
+                    return drawOriented(region, new Rect(0, 0, region.getWidth(),
+                            region.getHeight()), rotation, createSharedBitmap(mWidth, mHeight));
+                }
+
+                // The format doesn't support region decoding, so decode the whole image instead,
+                // letting the decoder scale it so that the cropped part comes out at the target size.
+                InputStream inputStream = openProbedInputStream();
+                if (inputStream == null) {
+                    return null;
+                }
+                int sampledCropWidth = Math.max(1, cropRect.width() / options.inSampleSize);
+                if (sampledCropWidth > encodedTargetWidth) {
+                    options.inDensity = sampledCropWidth;
+                    options.inTargetDensity = encodedTargetWidth;
+                }
+                Bitmap full = BitmapFactory.decodeStream(inputStream, null, options);
+                closeInputStream(inputStream, "Error closing the input stream used to decode the "
+                        + "center cropped bitmap");
+                if (full == null) {
+                    return null;
+                }
+
+                float decodedScale = (float) full.getWidth()
+                        / (isSideways ? rawDimensions.y : rawDimensions.x);
+                Rect scaledCropRect = new Rect(
+                        Math.round(cropRect.left * decodedScale),
+                        Math.round(cropRect.top * decodedScale),
+                        Math.round(cropRect.right * decodedScale),
+                        Math.round(cropRect.bottom * decodedScale));
+                return drawOriented(full, scaledCropRect, rotation,
+                        createSharedBitmap(mWidth, mHeight));
+            } catch (OutOfMemoryError e) {
+                Log.e(TAG, "Out of memory and unable to decode center cropped bitmap", e);
+                return null;
+            }
+        }
+
+        @Nullable
+        private Bitmap decodeRegion(Rect cropRect, BitmapFactory.Options options) {
+            RegionDecoderPool decoderPool = RegionDecoderPool.getInstance();
+            BitmapRegionDecoder decoder = decoderPool.acquire(StreamableAsset.this);
+            if (decoder == null) {
+                return null;
+            }
+            try {
+                BitmapReusePool.prepareForRegionDecode(options, cropRect);
+                return decoder.decodeRegion(cropRect, options);
+            } finally {
+                options.inBitmap = null;
+                options.inMutable = false;
+                decoderPool.release(StreamableAsset.this, decoder);
+            }
         }
     }
 
     /**
-     * AsyncTask subclass which decodes a bitmap region from the asset off the main UI thread.
+     * Decoding job which decodes a bitmap region from the asset off the main UI thread.
      */
-    private class DecodeBitmapRegionAsyncTask extends AsyncTask<Void, Void, Bitmap> {
+    private class DecodeBitmapRegionJob implements DecodeScheduler.DecodeJob<Bitmap> {
 
         private Rect mCropRect;
-        private BitmapReceiver mReceiver;
         private int mTargetWidth;
         private int mTargetHeight;
 
-        public DecodeBitmapRegionAsyncTask(Rect rect, int targetWidth, int targetHeight,
-                                           BitmapReceiver receiver) {
+        DecodeBitmapRegionJob(Rect rect, int targetWidth, int targetHeight) {
             mCropRect = rect;
-            mReceiver = receiver;
             mTargetWidth = targetWidth;
             mTargetHeight = targetHeight;
         }
 
         @Override
-        protected Bitmap doInBackground(Void... voids) {
-            int exifOrientation = getExifOrientation();
-            // Switch target height and width if image is rotated 90 or 270 degrees.
-            if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_90
-                    || exifOrientation == ExifInterface.ORIENTATION_ROTATE_270) {
-                int tempHeight = mTargetHeight;
-                mTargetHeight = mTargetWidth;
-                mTargetWidth = tempHeight;
-            }
-
-            // Rotate crop rect if image is rotated more than 0 degrees.
-            mCropRect = CropRectRotator.rotateCropRectForExifOrientation(
-                    calculateRawDimensions(), mCropRect, exifOrientation);
-
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inSampleSize = BitmapUtils.calculateInSampleSize(
-                    mCropRect.width(), mCropRect.height(), mTargetWidth, mTargetHeight);
-
-            if (mBitmapRegionDecoder == null) {
-                mBitmapRegionDecoder = openBitmapRegionDecoder();
-            }
+        public Bitmap decode() {
+            // Lease the decoder first, since opening one also probes the header metadata needed
+            // below from the same stream.
+            RegionDecoderPool decoderPool = RegionDecoderPool.getInstance();
+            BitmapRegionDecoder decoder = decoderPool.acquire(StreamableAsset.this);
 
             // Bitmap region decoder may have failed to open if there was a problem with the underlying
             // InputStream.
-            if (mBitmapRegionDecoder != null) {
+            if (decoder != null) {
                 try {
-                    Bitmap bitmap = mBitmapRegionDecoder.decodeRegion(mCropRect, options);
+                    int exifOrientation = getExifOrientation();
+                    // Switch target height and width if image is rotated 90 or 270 degrees.
+                    if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_90
+                            || exifOrientation == ExifInterface.ORIENTATION_ROTATE_270) {
+                        int tempHeight = mTargetHeight;
+                        mTargetHeight = mTargetWidth;
+                        mTargetWidth = tempHeight;
+                    }
+
+                    // Rotate crop rect if image is rotated more than 0 degrees.
+                    mCropRect = CropRectRotator.rotateCropRectForExifOrientation(
+                            calculateRawDimensions(), mCropRect, exifOrientation);
+
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inSampleSize = BitmapUtils.calculateInSampleSize(
+                            mCropRect.width(), mCropRect.height(), mTargetWidth, mTargetHeight);
+
+                    BitmapReusePool.prepareForRegionDecode(options, mCropRect);
+
+                    Bitmap bitmap = decoder.decodeRegion(mCropRect, options);
 
                     // Rotate output bitmap if necessary because of EXIF orientation.
                     int matrixRotation = getDegreesRotationForExifOrientation(exifOrientation);
-                    if (matrixRotation > 0) {
-                        Matrix rotateMatrix = new Matrix();
-                        rotateMatrix.setRotate(matrixRotation);
-                        bitmap = Bitmap.createBitmap(
-                                bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), rotateMatrix, false);
+                    if (bitmap != null && matrixRotation > 0) {
+                        boolean isSideways = isSideways(matrixRotation);
+                        bitmap = drawOriented(bitmap,
+                                new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight()),
+                                matrixRotation,
+                                BitmapReusePool.obtain(
+                                        isSideways ? bitmap.getHeight() : bitmap.getWidth(),
+                                        isSideways ? bitmap.getWidth() : bitmap.getHeight(),
+                                        Config.ARGB_8888));
                     }
 
                     return bitmap;
@@ -355,40 +844,12 @@ public abstract class StreamableAsset extends Asset {
                 } catch (OutOfMemoryError e) {
                     Log.e(TAG, "Out of memory and unable to decode bitmap region", e);
                     return null;
+                } finally {
+                    decoderPool.release(StreamableAsset.this, decoder);
                 }
             }
 
             return null;
         }
-
-        @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            mReceiver.onBitmapDecoded(bitmap);
-        }
-    }
-
-    /**
-     * AsyncTask subclass which decodes the raw dimensions of the asset off the main UI thread. Avoids
-     * allocating memory for the fully decoded image.
-     */
-    private class DecodeDimensionsAsyncTask extends AsyncTask<Void, Void, Point> {
-        private DimensionsReceiver mReceiver;
-
-        public DecodeDimensionsAsyncTask(DimensionsReceiver receiver) {
-            mReceiver = receiver;
-        }
-
-        @Override
-        protected Point doInBackground(Void... unused) {
-            return calculateRawDimensions();
-        }
-
-        @Override
-        protected void onPostExecute(Point dimensions) {
-            mReceiver.onDimensionsDecoded(dimensions);
-        }
     }
 }
-
-
-
@@ -1,6 +1,7 @@
 package com.android.wallpaper.asset;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 
 import com.android.wallpaper.asset.CurrentWallpaperAssetVNLoader.CurrentWallpaperAssetVNLoaderFactory;
@@ -49,6 +50,9 @@ public class WallpaperGlideModule implements GlideModule {
 
     @Override
     public void registerComponents(Context context, Glide glide, Registry registry) {
+        // Let the asset decoders share Glide's bitmap pool rather than keeping one of their own.
+        BitmapReusePool.setBitmapPool(glide.getBitmapPool());
+
         registry.append(WallpaperModel.class, Drawable.class, new WallpaperModelLoaderFactory());
         registry.append(ResourceAsset.class, InputStream.class, new ResourceAssetLoaderFactory());
         registry.append(NexusStaticAsset.class, InputStream.class, new NexusStaticAssetLoaderFactory());
@@ -57,5 +61,8 @@ public class WallpaperGlideModule implements GlideModule {
         registry.append(CurrentWallpaperAssetVN.class, InputStream.class,
                 new CurrentWallpaperAssetVNLoaderFactory());
         registry.append(Drawable.class, Drawable.class, new DrawableResourceDecoder());
+        // Used by bitmap loads of drawable models, i.e. live wallpaper thumbnails.
+        registry.append(Drawable.class, Bitmap.class,
+                new DrawableBitmapResourceDecoder(glide.getBitmapPool()));
     }
 }
@@ -15,17 +15,20 @@
  */
 package com.android.wallpaper.asset;
 
-import android.annotation.TargetApi;
 import android.app.WallpaperManager;
 import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.Build;
+import android.os.CancellationSignal;
 import android.util.Log;
 
 import com.bumptech.glide.load.Key;
 import com.bumptech.glide.signature.ObjectKey;
 
 import androidx.annotation.IntDef;
+import androidx.annotation.Nullable;
 
 /**
  * Glide model representing wallpaper image data retrieved from {@link WallpaperManager}.
@@ -38,34 +41,39 @@ import androidx.annotation.IntDef;
 public class WallpaperModel {
     public static final int SOURCE_BUILT_IN = 0;
     private static final String TAG = "WallpaperModel";
-    private static final boolean SCALE_TO_FIT = true;
-    private static final float HORIZONTAL_CENTER_ALIGNED = 0.5f;
-    private static final float VERTICAL_CENTER_ALIGNED = 0.5f;
     @Source
     private int mWallpaperSource;
-    private WallpaperManager mWallpaperManager;
+    private Resources mResources;
+    private BuiltInWallpaperSource mBuiltInWallpaperSource;
 
     public WallpaperModel(Context context, @Source int wallpaperSource) {
         mWallpaperSource = wallpaperSource;
-        mWallpaperManager = WallpaperManager.getInstance(context);
+        mResources = context.getResources();
+        mBuiltInWallpaperSource = BuiltInWallpaperSource.getInstance(context);
     }
 
     /**
      * Returns the {@link Drawable} for the wallpaper image represented by this object.
      */
-    @TargetApi(Build.VERSION_CODES.KITKAT)
     public Drawable getDrawable(int width, int height) {
+        return getDrawable(width, height, null /* cancellationSignal */);
+    }
+
+    /**
+     * Returns the {@link Drawable} for the wallpaper image represented by this object, scaled to
+     * fit the given size, or null if there was an error or the given signal was cancelled before
+     * the image was decoded. Should not be called on the main UI thread.
+     */
+    @Nullable
+    public Drawable getDrawable(int width, int height,
+            @Nullable CancellationSignal cancellationSignal) {
         if (mWallpaperSource != SOURCE_BUILT_IN) {
             Log.e(TAG, "Invalid wallpaper data source: " + mWallpaperSource);
             return null;
         }
 
-        return mWallpaperManager.getBuiltInDrawable(
-                width,
-                height,
-                SCALE_TO_FIT,
-                HORIZONTAL_CENTER_ALIGNED,
-                VERTICAL_CENTER_ALIGNED);
+        Bitmap bitmap = mBuiltInWallpaperSource.decode(width, height, cancellationSignal);
+        return bitmap == null ? null : new BitmapDrawable(mResources, bitmap);
     }
 
     /**
@@ -16,6 +16,7 @@
 package com.android.wallpaper.asset;
 
 import android.graphics.drawable.Drawable;
+import android.os.CancellationSignal;
 
 import com.bumptech.glide.Priority;
 import com.bumptech.glide.load.DataSource;
@@ -66,13 +67,15 @@ public class WallpaperModelLoader implements ModelLoader<WallpaperModel, Drawabl
     }
 
     /**
-     * Fetcher class for fetching wallpaper image data from a {@link WallpaperModel}.
+     * Fetcher class for fetching wallpaper image data from a {@link WallpaperModel}. Cancelling the
+     * fetch stops the decode before it allocates the wallpaper bitmap, if it hasn't already.
      */
     private static class WallpaperFetcher implements DataFetcher<Drawable> {
 
         private WallpaperModel mWallpaperModel;
         private int mWidth;
         private int mHeight;
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
 
         public WallpaperFetcher(WallpaperModel wallpaperModel, int width, int height) {
             mWallpaperModel = wallpaperModel;
@@ -82,7 +85,8 @@ public class WallpaperModelLoader implements ModelLoader<WallpaperModel, Drawabl
 
         @Override
         public void loadData(Priority priority, DataCallback<? super Drawable> callback) {
-            callback.onDataReady(mWallpaperModel.getDrawable(mWidth, mHeight));
+            callback.onDataReady(
+                    mWallpaperModel.getDrawable(mWidth, mHeight, mCancellationSignal));
         }
 
         @Override
@@ -92,7 +96,7 @@ public class WallpaperModelLoader implements ModelLoader<WallpaperModel, Drawabl
 
         @Override
         public void cancel() {
-            // no-op
+            mCancellationSignal.cancel();
         }
 
         @Override
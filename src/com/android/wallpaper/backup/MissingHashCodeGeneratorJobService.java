@@ -23,25 +23,16 @@ import android.app.job.JobScheduler;
 import android.app.job.JobService;
 import android.content.ComponentName;
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
-import android.os.ParcelFileDescriptor;
-import android.util.Log;
-
-import com.android.wallpaper.asset.BitmapUtils;
+
 import com.android.wallpaper.compat.WallpaperManagerCompat;
 import com.android.wallpaper.module.Injector;
 import com.android.wallpaper.module.InjectorProvider;
 import com.android.wallpaper.module.JobSchedulerJobIds;
+import com.android.wallpaper.module.LockWallpaperStatusChecker;
+import com.android.wallpaper.module.WallpaperHasher;
 import com.android.wallpaper.module.WallpaperPreferences;
 import com.android.wallpaper.util.DiskBasedLogger;
 
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
@@ -90,66 +81,44 @@ public class MissingHashCodeGeneratorJobService extends JobService {
                 // Generate and set a home wallpaper hash code if there's no live wallpaper set and no hash
                 // code stored already for the home wallpaper.
                 if (!isLiveWallpaperSet && wallpaperPreferences.getHomeWallpaperHashCode() == 0) {
-                    wallpaperManager.forgetLoadedWallpaper();
-
-                    Drawable wallpaperDrawable = wallpaperManagerCompat.getDrawable();
-                    // No work to do if the drawable returned is null due to an underlying platform issue --
-                    // being extra defensive with this check due to instability and variability of underlying
-                    // platform.
-                    if (wallpaperDrawable == null) {
-                        DiskBasedLogger.e(TAG, "WallpaperManager#getDrawable returned null and there's no live "
-                                + "wallpaper set", context);
+                    // Hash the wallpaper the same way the wallpaper persister and refresher do, so
+                    // that the hash codes can be compared.
+                    long homeBitmapHash = WallpaperHasher.hashHomeWallpaper(wallpaperManager,
+                            wallpaperManagerCompat, false /* legacy */);
+
+                    // No work to do if the wallpaper can't be loaded due to an underlying platform
+                    // issue -- being extra defensive with this check due to instability and
+                    // variability of underlying platform.
+                    if (homeBitmapHash == 0) {
+                        DiskBasedLogger.e(TAG, "Unable to hash the home wallpaper and there's no "
+                                + "live wallpaper set", context);
+                        mWorkerThread = null;
                         jobFinished(jobParameters, false /* needsReschedule */);
                         return;
                     }
 
-                    Bitmap bitmap = ((BitmapDrawable) wallpaperDrawable).getBitmap();
-                    long homeBitmapHash = BitmapUtils.generateHashCode(bitmap);
-
                     wallpaperPreferences.setHomeWallpaperHashCode(homeBitmapHash);
                 }
 
                 // Generate and set a lock wallpaper hash code if there's none saved.
                 if (wallpaperPreferences.getLockWallpaperHashCode() == 0) {
-                    ParcelFileDescriptor parcelFd =
-                            wallpaperManagerCompat.getWallpaperFile(WallpaperManagerCompat.FLAG_LOCK);
-                    boolean isLockWallpaperSet = parcelFd != null;
-
-                    // Copy the home wallpaper's hash code to lock if there's no distinct lock wallpaper set.
-                    if (!isLockWallpaperSet) {
+                    // Copy the home wallpaper's hash code to lock if there's no distinct lock
+                    // wallpaper set.
+                    if (!LockWallpaperStatusChecker.isLockWallpaperSet(context)) {
                         wallpaperPreferences.setLockWallpaperHashCode(
                                 wallpaperPreferences.getHomeWallpaperHashCode());
-                        mWorkerThread = null;
-                        jobFinished(jobParameters, false /* needsReschedule */);
-                        return;
-                    }
-
-                    // Otherwise, generate and set the distinct lock wallpaper image's hash code.
-                    Bitmap lockBitmap = null;
-                    InputStream fileStream = null;
-                    try {
-                        fileStream = new FileInputStream(parcelFd.getFileDescriptor());
-                        lockBitmap = BitmapFactory.decodeStream(fileStream);
-                        parcelFd.close();
-                    } catch (IOException e) {
-                        Log.e(TAG, "IO exception when closing the file descriptor.", e);
-                    } finally {
-                        if (fileStream != null) {
-                            try {
-                                fileStream.close();
-                            } catch (IOException e) {
-                                Log.e(TAG, "IO exception when closing input stream for lock screen wallpaper.", e);
-                            }
+                    } else {
+                        // Otherwise, generate and set the distinct lock wallpaper image's hash code.
+                        long lockHash = WallpaperHasher.hashLockWallpaper(wallpaperManagerCompat,
+                                false /* legacy */);
+                        if (lockHash != 0) {
+                            wallpaperPreferences.setLockWallpaperHashCode(lockHash);
                         }
                     }
-
-                    if (lockBitmap != null) {
-                        wallpaperPreferences.setLockWallpaperHashCode(BitmapUtils.generateHashCode(lockBitmap));
-                    }
-                    mWorkerThread = null;
-
-                    jobFinished(jobParameters, false /* needsReschedule */);
                 }
+
+                mWorkerThread = null;
+                jobFinished(jobParameters, false /* needsReschedule */);
             }
         });
 
@@ -87,6 +87,13 @@ public class BuildCompat {
         return sSdk >= VERSION_CODES.O_MR1;
     }
 
+    /**
+     * Returns whether the framework on the current Android device is P or higher.
+     */
+    public static boolean isAtLeastP() {
+        return sSdk >= VERSION_CODES.P;
+    }
+
     /**
      * Sets the SDK version that BuildCompat will consider the current device to be on. Used for
      * testing only.
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.compat;
+
+import android.content.pm.PackageInfo;
+
+/**
+ * Reads {@link PackageInfo} fields which changed between API versions.
+ */
+public class PackageInfoCompat {
+
+    private PackageInfoCompat() {
+    }
+
+    /**
+     * Returns the package's version code including the major version on P and above, where
+     * {@link PackageInfo#getLongVersionCode} is available, or just its version code below P.
+     */
+    @SuppressWarnings("deprecation")
+    public static long getLongVersionCode(PackageInfo info) {
+        if (BuildCompat.isAtLeastP()) {
+            return info.getLongVersionCode();
+        }
+        return info.versionCode;
+    }
+}
@@ -17,6 +17,8 @@ package com.android.wallpaper.model;
 
 import androidx.annotation.Nullable;
 
+import com.android.wallpaper.module.PackageStatusNotifier.PackageStatus;
+
 /**
  * Fetches and provides wallpaper categories to any registered {@link CategoryReceiver}s.
  */
@@ -32,6 +34,26 @@ public interface CategoryProvider {
      */
     void fetchCategories(CategoryReceiver receiver, boolean forceRefresh);
 
+    /**
+     * Updates the live wallpapers category for a change to the given package, without fetching
+     * any other category again, and reports the resulting changes to the given receiver.
+     *
+     * @param packageName The package which was added, changed or removed.
+     * @param status      The {@link PackageStatus} of the package.
+     */
+    void updateLiveWallpaperCategory(String packageName, @PackageStatus int status,
+            CategoryUpdateReceiver receiver);
+
+    /**
+     * Updates the third party app categories for a change to the given package, without fetching
+     * any other category again, and reports the resulting changes to the given receiver.
+     *
+     * @param packageName The package which was added, changed or removed.
+     * @param status      The {@link PackageStatus} of the package.
+     */
+    void updateThirdPartyCategories(String packageName, @PackageStatus int status,
+            CategoryUpdateReceiver receiver);
+
     int getSize();
 
     /**
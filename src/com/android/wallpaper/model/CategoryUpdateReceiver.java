@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.model;
+
+/**
+ * Receives the changes a {@link CategoryProvider} makes to its categories in response to a package
+ * being added, changed or removed.
+ */
+public interface CategoryUpdateReceiver {
+    /**
+     * Called when a category which wasn't provided before is now available.
+     */
+    void onCategoryAdded(Category category);
+
+    /**
+     * Called when the contents of a category changed. The given category replaces the one with the
+     * same collection ID, which may or may not be the same instance.
+     */
+    void onCategoryUpdated(Category category);
+
+    /**
+     * Called when a category is no longer available.
+     */
+    void onCategoryRemoved(Category category);
+}
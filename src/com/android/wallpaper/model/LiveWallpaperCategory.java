@@ -16,8 +16,10 @@
 package com.android.wallpaper.model;
 
 import android.content.Context;
+import android.content.pm.PackageManager;
 import android.os.AsyncTask;
 
+import java.text.Collator;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -46,6 +48,72 @@ public class LiveWallpaperCategory extends WallpaperCategory {
         }
     }
 
+    /**
+     * Replaces the wallpapers residing in the APK with the given package name with the given ones,
+     * as returned by {@link LiveWallpaperInfo#getAllInPackage}, keeping the order
+     * {@link LiveWallpaperInfo#getAll} would list them in. Should be called off the main UI thread.
+     *
+     * @return Whether the wallpapers of this category changed.
+     */
+    public boolean replacePackageWallpapers(Context context, String packageName,
+            List<WallpaperInfo> packageWallpapers) {
+        PackageManager pm = context.getPackageManager();
+        synchronized (mWallpapersLock) {
+            List<WallpaperInfo> wallpapers = getMutableWallpapers();
+
+            int index = -1;
+            for (int i = wallpapers.size() - 1; i >= 0; i--) {
+                if (isFromPackage(wallpapers.get(i), packageName)) {
+                    wallpapers.remove(i);
+                    index = i;
+                }
+            }
+            if (packageWallpapers.isEmpty()) {
+                return index != -1;
+            }
+
+            if (index == -1) {
+                // A new package: system wallpapers are listed first, followed by the others in
+                // alphabetical order.
+                android.app.WallpaperInfo newComponent =
+                        packageWallpapers.get(0).getWallpaperComponent();
+                boolean isSystem = LiveWallpaperInfo.isSystemApp(
+                        newComponent.getServiceInfo().applicationInfo);
+                Collator collator = Collator.getInstance();
+                CharSequence newLabel = newComponent.loadLabel(pm);
+
+                index = 0;
+                while (index < wallpapers.size()) {
+                    android.app.WallpaperInfo component =
+                            wallpapers.get(index).getWallpaperComponent();
+                    boolean isOtherSystem = component != null && LiveWallpaperInfo.isSystemApp(
+                            component.getServiceInfo().applicationInfo);
+                    if (isSystem ? !isOtherSystem : !isOtherSystem && component != null
+                            && collator.compare(newLabel, component.loadLabel(pm)) < 0) {
+                        break;
+                    }
+                    index++;
+                }
+            }
+            wallpapers.addAll(index, packageWallpapers);
+            return true;
+        }
+    }
+
+    /**
+     * Returns whether this category has no wallpapers.
+     */
+    public boolean isEmpty() {
+        synchronized (mWallpapersLock) {
+            return getMutableWallpapers().isEmpty();
+        }
+    }
+
+    private static boolean isFromPackage(WallpaperInfo wallpaper, String packageName) {
+        android.app.WallpaperInfo component = wallpaper.getWallpaperComponent();
+        return component != null && component.getPackageName().equals(packageName);
+    }
+
     @Override
     public boolean supportsThirdParty() {
         return true;
@@ -95,7 +163,11 @@ public class LiveWallpaperCategory extends WallpaperCategory {
         @Override
         protected void onPostExecute(Void aVoid) {
             // Perform a shallow clone so as not to pass the reference to the list along to clients.
-            mReceiver.onWallpapersReceived(new ArrayList<>(mCategoryWallpapers));
+            List<WallpaperInfo> wallpapers;
+            synchronized (mWallpapersLock) {
+                wallpapers = new ArrayList<>(mCategoryWallpapers);
+            }
+            mReceiver.onWallpapersReceived(wallpapers);
         }
     }
 }
@@ -128,6 +128,48 @@ public class LiveWallpaperInfo extends WallpaperInfo {
         return wallpaperInfos;
     }
 
+    /**
+     * Returns the live wallpapers found within the APK with the given package name, in the order
+     * {@link #getAll} lists them, or an empty list if the package is excluded or has none. Unlike
+     * {@link #getFromSpecifiedPackage}, only that package's services are queried and parsed.
+     */
+    public static List<WallpaperInfo> getAllInPackage(Context context, String packageName,
+            @Nullable List<String> excludedPackageNames) {
+        List<WallpaperInfo> wallpaperInfos = new ArrayList<>();
+        if (packageName.equals(context.getPackageName())
+                || (excludedPackageNames != null && excludedPackageNames.contains(packageName))) {
+            return wallpaperInfos;
+        }
+
+        final PackageManager pm = context.getPackageManager();
+        Intent intent = new Intent(WallpaperService.SERVICE_INTERFACE);
+        intent.setPackage(packageName);
+        List<ResolveInfo> resolveInfos = pm.queryIntentServices(intent,
+                PackageManager.GET_META_DATA);
+        if (resolveInfos.isEmpty()) {
+            return wallpaperInfos;
+        }
+
+        // Only non-system wallpapers are sorted, see getAllOnDevice.
+        if (!isSystemApp(resolveInfos.get(0).serviceInfo.applicationInfo)) {
+            final Collator collator = Collator.getInstance();
+            Collections.sort(resolveInfos,
+                    (info1, info2) -> collator.compare(info1.loadLabel(pm), info2.loadLabel(pm)));
+        }
+
+        LiveWallpaperInfoFactory factory =
+                InjectorProvider.getInjector().getLiveWallpaperInfoFactory(context);
+        for (ResolveInfo resolveInfo : resolveInfos) {
+            try {
+                wallpaperInfos.add(factory.getLiveWallpaperInfo(
+                        new android.app.WallpaperInfo(context, resolveInfo)));
+            } catch (XmlPullParserException | IOException e) {
+                Log.w(TAG, "Skipping wallpaper " + resolveInfo.serviceInfo, e);
+            }
+        }
+        return wallpaperInfos;
+    }
+
     /**
      * Returns the live wallpapers having the given service names, found within the APK with the
      * given package name.
@@ -245,7 +287,7 @@ public class LiveWallpaperInfo extends WallpaperInfo {
         return wallpaperInfos;
     }
 
-    private static boolean isSystemApp(ApplicationInfo appInfo) {
+    static boolean isSystemApp(ApplicationInfo appInfo) {
         return (appInfo.flags & (ApplicationInfo.FLAG_SYSTEM
                 | ApplicationInfo.FLAG_UPDATED_SYSTEM_APP)) != 0;
     }
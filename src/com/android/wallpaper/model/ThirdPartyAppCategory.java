@@ -24,6 +24,8 @@ import android.content.pm.ResolveInfo;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import com.android.wallpaper.R;
 import com.android.wallpaper.asset.Asset;
 import com.android.wallpaper.util.ActivityUtils;
@@ -51,9 +53,20 @@ public class ThirdPartyAppCategory extends Category {
      */
     public static List<ThirdPartyAppCategory> getAll(Context context, int priority,
                                                      List<String> excludedPackageNames) {
+        return getAll(context, priority, excludedPackageNames, null /* packageName */);
+    }
+
+    /**
+     * Returns a list of the third-party wallpaper apps found in the given package, or on the whole
+     * device if the package name is null.
+     */
+    public static List<ThirdPartyAppCategory> getAll(Context context, int priority,
+                                                     List<String> excludedPackageNames,
+                                                     @Nullable String packageName) {
         final PackageManager pm = context.getPackageManager();
 
         final Intent pickWallpaperIntent = new Intent(Intent.ACTION_SET_WALLPAPER);
+        pickWallpaperIntent.setPackage(packageName);
         final List<ResolveInfo> apps = pm.queryIntentActivities(pickWallpaperIntent, 0);
 
         List<ThirdPartyAppCategory> thirdPartyApps = new ArrayList<ThirdPartyAppCategory>();
@@ -96,6 +109,13 @@ public class ThirdPartyAppCategory extends Category {
         return thirdPartyApps;
     }
 
+    /**
+     * Returns the activity which handles {@link Intent#ACTION_SET_WALLPAPER} for this app.
+     */
+    public ResolveInfo getResolveInfo() {
+        return mResolveInfo;
+    }
+
     @Override
     public void show(Activity srcActivity, PickerIntentFactory unused, int requestCode) {
         final ComponentName itemComponentName = new ComponentName(
@@ -132,4 +152,19 @@ public class ThirdPartyAppCategory extends Category {
     public boolean containsThirdParty(String packageName) {
         return mResolveInfo.activityInfo.packageName.equals(packageName);
     }
+
+    /**
+     * Categories of the same app share a collection ID, so they're told apart by their activity.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof ThirdPartyAppCategory)) return super.equals(obj);
+        return super.equals(obj) && mResolveInfo.activityInfo.name.equals(
+                ((ThirdPartyAppCategory) obj).mResolveInfo.activityInfo.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode();
+    }
 }
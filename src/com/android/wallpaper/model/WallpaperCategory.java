@@ -52,7 +52,11 @@ public class WallpaperCategory extends Category {
      */
     public void fetchWallpapers(Context unused, WallpaperReceiver receiver, boolean forceReload) {
         // Perform a shallow clone so as not to pass the reference to the list along to clients.
-        receiver.onWallpapersReceived(new ArrayList<>(mWallpapers));
+        List<WallpaperInfo> wallpapers;
+        synchronized (mWallpapersLock) {
+            wallpapers = new ArrayList<>(mWallpapers);
+        }
+        receiver.onWallpapersReceived(wallpapers);
     }
 
     @Override
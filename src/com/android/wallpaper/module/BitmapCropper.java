@@ -19,6 +19,10 @@ import android.graphics.Bitmap;
 import android.graphics.Rect;
 
 import com.android.wallpaper.asset.Asset;
+import com.android.wallpaper.asset.StreamableAsset;
+
+import java.io.File;
+import java.io.InputStream;
 
 import androidx.annotation.Nullable;
 
@@ -33,6 +37,14 @@ public interface BitmapCropper {
      */
     void cropAndScaleBitmap(Asset asset, float scale, Rect cropRect, Callback callback);
 
+    /**
+     * Crops and scales a streamable asset like {@link #cropAndScaleBitmap}, but encodes the output
+     * into a temporary file in the given directory instead of returning a bitmap, so that the
+     * whole output image doesn't need to be held in memory at once.
+     */
+    void cropAndScaleToStream(StreamableAsset asset, float scale, Rect cropRect, File tempDir,
+            StreamCallback callback);
+
     /**
      * Interface for receiving the output bitmap of crop operations.
      */
@@ -45,4 +57,20 @@ public interface BitmapCropper {
          */
         void onError(@Nullable Throwable e);
     }
+
+    /**
+     * Interface for receiving the encoded output of crop operations.
+     */
+    interface StreamCallback {
+        /**
+         * Called with a stream of the encoded output image, which the receiver must close.
+         */
+        void onStreamCropped(InputStream croppedStream);
+
+        /**
+         * Called on an error during the crop. If a Throwable was caught along the way, it is passed
+         * here.
+         */
+        void onError(@Nullable Throwable e);
+    }
 }
@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ChangedPackages;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.ResolveInfo;
+import android.os.Build;
+import android.os.Parcel;
+import android.provider.Settings;
+import android.service.wallpaper.WallpaperService;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.android.wallpaper.compat.PackageInfoCompat;
+import com.android.wallpaper.model.Category;
+import com.android.wallpaper.model.LiveWallpaperCategory;
+import com.android.wallpaper.model.ThirdPartyAppCategory;
+import com.android.wallpaper.model.WallpaperCategory;
+import com.android.wallpaper.model.WallpaperInfo;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-disk snapshot of the categories discovered by {@link DefaultCategoryProvider}, so that a cold
+ * start can show them without querying PackageManager, partner resources and every live
+ * wallpaper's metadata again.
+ * <p>
+ * Snapshots are parceled, so they're only valid for the app, OS build, locale and partner
+ * customization package versions which wrote them. Within those, a snapshot is only served while
+ * it can be shown to be current: package changes seen by {@link DefaultPackageStatusNotifier}
+ * discard it, and changes made while the app wasn't running are detected through
+ * {@link PackageManager#getChangedPackages(int)}. Since package change sequence numbers don't
+ * survive a reboot, the first fetch after one always rediscovers the categories.
+ */
+final class CategorySnapshot {
+    private static final String TAG = "CategorySnapshot";
+
+    private static final String SNAPSHOT_FILE_NAME = "category_snapshot";
+    private static final int FILE_FORMAT_VERSION = 1;
+
+    private static final int TYPE_WALLPAPER = 1;
+    private static final int TYPE_LIVE_WALLPAPER = 2;
+    private static final int TYPE_THIRD_PARTY_APP = 3;
+
+    private static CategorySnapshot sInstance;
+
+    private final Context mAppContext;
+    private final AtomicFile mFile;
+    private final ThreadPoolExecutor mWriteExecutor = new ThreadPoolExecutor(1, 1,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+
+    // Incremented whenever the snapshot is invalidated, so that discoveries started before the
+    // invalidation don't write their possibly stale results.
+    private int mGeneration;
+
+    private CategorySnapshot(Context appContext) {
+        mAppContext = appContext;
+        mFile = new AtomicFile(new File(appContext.getCacheDir(), SNAPSHOT_FILE_NAME));
+        mWriteExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    static synchronized CategorySnapshot getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CategorySnapshot(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the current generation of the snapshot, to be passed to {@link #save} along with
+     * the categories discovered from this point on.
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Discards the snapshot, e.g. because a package providing wallpapers has changed.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mWriteExecutor.execute(mFile::delete);
+    }
+
+    /**
+     * Writes the given categories in the background, unless the snapshot has been invalidated
+     * since the given generation. Categories must have been discovered by
+     * {@link DefaultCategoryProvider} itself; if any of them is of a type the snapshot doesn't
+     * know how to restore, nothing is written.
+     */
+    void save(List<Category> categories, int generation) {
+        mWriteExecutor.execute(() -> {
+            Parcel parcel = Parcel.obtain();
+            try {
+                if (!writeSnapshot(parcel, categories)) {
+                    mFile.delete();
+                    return;
+                }
+                writeFile(parcel.marshall(), generation);
+            } finally {
+                parcel.recycle();
+            }
+        });
+    }
+
+    /**
+     * Replaces the snapshot file with the given bytes, unless the snapshot has been invalidated
+     * since the given generation. Must be called on the write executor.
+     */
+    private synchronized void writeFile(byte[] bytes, int generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            out.write(bytes);
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write category snapshot", e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    /**
+     * Returns the categories in the snapshot, or null if there is no snapshot or it can't be shown
+     * to be current. Should be called off the main UI thread.
+     *
+     * @param excludedLiveWallpaperPackageNames Passed on to the restored live wallpaper category.
+     */
+    @Nullable
+    List<Category> load(List<String> excludedLiveWallpaperPackageNames) {
+        int generation = getGeneration();
+        byte[] bytes;
+        try {
+            bytes = mFile.readFully();
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read category snapshot", e);
+            return null;
+        }
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+
+            if (parcel.readInt() != FILE_FORMAT_VERSION
+                    || !getValidityKey().equals(parcel.readString())) {
+                return null;
+            }
+            int bootCount = parcel.readInt();
+            int sequenceNumberPosition = parcel.dataPosition();
+            int sequenceNumber = parcel.readInt();
+
+            Set<String> packageNames = new HashSet<>();
+            List<Category> categories = readCategories(parcel, excludedLiveWallpaperPackageNames,
+                    packageNames);
+            if (bootCount != getBootCount()) {
+                return null;
+            }
+            ChangedPackages changedPackages =
+                    mAppContext.getPackageManager().getChangedPackages(sequenceNumber);
+            if (!isCurrent(changedPackages, packageNames)) {
+                return null;
+            }
+
+            // Record that the snapshot is current as of now, so that the next validation doesn't
+            // go through the same package changes again.
+            if (changedPackages != null) {
+                parcel.setDataPosition(sequenceNumberPosition);
+                parcel.writeInt(changedPackages.getSequenceNumber());
+                byte[] updatedBytes = parcel.marshall();
+                mWriteExecutor.execute(() -> writeFile(updatedBytes, generation));
+            }
+            return categories;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Discarding unreadable category snapshot", e);
+            mWriteExecutor.execute(mFile::delete);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private boolean writeSnapshot(Parcel parcel, List<Category> categories) {
+        parcel.writeInt(FILE_FORMAT_VERSION);
+        parcel.writeString(getValidityKey());
+        parcel.writeInt(getBootCount());
+        ChangedPackages changedPackages =
+                mAppContext.getPackageManager().getChangedPackages(0 /* sequenceNumber */);
+        parcel.writeInt(changedPackages == null ? 0 : changedPackages.getSequenceNumber());
+
+        parcel.writeInt(categories.size());
+        for (Category category : categories) {
+            // Only the exact types created by DefaultCategoryProvider can be restored.
+            Class<?> type = category.getClass();
+            if (type == WallpaperCategory.class || type == LiveWallpaperCategory.class) {
+                parcel.writeInt(type == WallpaperCategory.class
+                        ? TYPE_WALLPAPER
+                        : TYPE_LIVE_WALLPAPER);
+                parcel.writeString(category.getTitle());
+                parcel.writeString(category.getCollectionId());
+                parcel.writeInt(category.getPriority());
+                List<WallpaperInfo> wallpapers = new ArrayList<>();
+                ((WallpaperCategory) category).fetchWallpapers(mAppContext, wallpapers::addAll,
+                        false /* forceReload */);
+                parcel.writeInt(wallpapers.size());
+                for (WallpaperInfo wallpaper : wallpapers) {
+                    parcel.writeParcelable(wallpaper, 0 /* flags */);
+                }
+            } else if (type == ThirdPartyAppCategory.class) {
+                parcel.writeInt(TYPE_THIRD_PARTY_APP);
+                parcel.writeString(category.getCollectionId());
+                parcel.writeInt(category.getPriority());
+                parcel.writeParcelable(((ThirdPartyAppCategory) category).getResolveInfo(),
+                        0 /* flags */);
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<Category> readCategories(Parcel parcel,
+            List<String> excludedLiveWallpaperPackageNames, Set<String> outPackageNames) {
+        ClassLoader classLoader = getClass().getClassLoader();
+        int count = parcel.readInt();
+        List<Category> categories = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int type = parcel.readInt();
+            if (type == TYPE_WALLPAPER || type == TYPE_LIVE_WALLPAPER) {
+                String title = parcel.readString();
+                String collectionId = parcel.readString();
+                int priority = parcel.readInt();
+                int wallpaperCount = parcel.readInt();
+                List<WallpaperInfo> wallpapers = new ArrayList<>(wallpaperCount);
+                for (int j = 0; j < wallpaperCount; j++) {
+                    WallpaperInfo wallpaper = parcel.readParcelable(classLoader);
+                    android.app.WallpaperInfo component = wallpaper.getWallpaperComponent();
+                    if (component != null) {
+                        outPackageNames.add(component.getPackageName());
+                    }
+                    wallpapers.add(wallpaper);
+                }
+                categories.add(type == TYPE_WALLPAPER
+                        ? new WallpaperCategory(title, collectionId, wallpapers, priority)
+                        : new LiveWallpaperCategory(title, collectionId, wallpapers, priority,
+                                excludedLiveWallpaperPackageNames));
+            } else if (type == TYPE_THIRD_PARTY_APP) {
+                String collectionId = parcel.readString();
+                int priority = parcel.readInt();
+                ResolveInfo resolveInfo = parcel.readParcelable(classLoader);
+                outPackageNames.add(resolveInfo.activityInfo.packageName);
+                categories.add(new ThirdPartyAppCategory(mAppContext, resolveInfo, collectionId,
+                        priority));
+            } else {
+                throw new IllegalStateException("Unknown category type " + type);
+            }
+        }
+        return categories;
+    }
+
+    /**
+     * Returns whether none of the given changed packages was, or may now be, providing wallpapers.
+     *
+     * @param changedPackages Packages changed since the snapshot was last validated, or null if
+     *                        there weren't any.
+     * @param packageNames    Packages providing the snapshot's wallpapers and categories.
+     */
+    private boolean isCurrent(@Nullable ChangedPackages changedPackages,
+            Set<String> packageNames) {
+        if (changedPackages == null) {
+            return true;
+        }
+
+        PackageManager pm = mAppContext.getPackageManager();
+        Intent liveWallpaperIntent = new Intent(WallpaperService.SERVICE_INTERFACE);
+        Intent thirdPartyAppIntent = new Intent(Intent.ACTION_SET_WALLPAPER);
+        for (String packageName : changedPackages.getPackageNames()) {
+            if (packageNames.contains(packageName)) {
+                return false;
+            }
+            liveWallpaperIntent.setPackage(packageName);
+            thirdPartyAppIntent.setPackage(packageName);
+            if (!pm.queryIntentServices(liveWallpaperIntent, 0).isEmpty()
+                    || !pm.queryIntentActivities(thirdPartyAppIntent, 0).isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a key identifying everything a parceled snapshot depends on: the app and OS builds,
+     * the locale the titles were loaded in and the partner customization package's version, whose
+     * resource IDs partner wallpapers refer to.
+     */
+    private String getValidityKey() {
+        StringBuilder key = new StringBuilder()
+                .append(getPackageVersion(mAppContext.getPackageName()))
+                .append('|').append(Build.FINGERPRINT)
+                .append('|').append(mAppContext.getResources().getConfiguration().getLocales()
+                        .toLanguageTags());
+
+        String partnerPackageName = InjectorProvider.getInjector()
+                .getPartnerProvider(mAppContext).getPackageName();
+        if (partnerPackageName != null) {
+            key.append('|').append(partnerPackageName)
+                    .append('@').append(getPackageVersion(partnerPackageName));
+        }
+        return key.toString();
+    }
+
+    private String getPackageVersion(String packageName) {
+        try {
+            PackageInfo info = mAppContext.getPackageManager().getPackageInfo(packageName, 0);
+            return PackageInfoCompat.getLongVersionCode(info) + "/" + info.lastUpdateTime;
+        } catch (NameNotFoundException e) {
+            return "";
+        }
+    }
+
+    private int getBootCount() {
+        return Settings.Global.getInt(mAppContext.getContentResolver(),
+                Settings.Global.BOOT_COUNT, -1);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Fixed-capacity ring buffer of daily rotation timestamps, memory-mapped from a small file in the
+ * app's no-backup directory. Appending a timestamp writes a single slot and the header in place,
+ * and reads scan the mapped slots directly, so neither rewrites the whole history the way a
+ * serialized preference value would. Once full, each new timestamp replaces the oldest one.
+ */
+final class DailyRotationHistory {
+    private static final String TAG = "DailyRotationHistory";
+
+    private static final String HISTORY_FILE_NAME = "daily_rotation_history";
+    private static final int FILE_FORMAT_VERSION = 1;
+
+    // Comfortably more than a week's worth of rotations, which is the longest range queried.
+    private static final int CAPACITY = 64;
+
+    // Header: format version, number of timestamps, index of the next slot to write.
+    private static final int VERSION_OFFSET = 0;
+    private static final int COUNT_OFFSET = 4;
+    private static final int NEXT_INDEX_OFFSET = 8;
+    private static final int HEADER_SIZE = 12;
+    private static final int FILE_SIZE = HEADER_SIZE + CAPACITY * Long.BYTES;
+
+    private static DailyRotationHistory sInstance;
+
+    private final ByteBuffer mBuffer;
+
+    private DailyRotationHistory(ByteBuffer buffer) {
+        mBuffer = buffer;
+        if (!hasValidHeader()) {
+            mBuffer.putInt(VERSION_OFFSET, FILE_FORMAT_VERSION);
+            clear();
+        }
+    }
+
+    static synchronized DailyRotationHistory getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DailyRotationHistory(
+                    map(new File(context.getNoBackupFilesDir(), HISTORY_FILE_NAME)));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Maps the history file, falling back to a buffer which only lives as long as the process if
+     * the file can't be mapped.
+     */
+    private static ByteBuffer map(File file) {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            // The mapping stays valid after the channel is closed.
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to map daily rotation history, it won't be persisted", e);
+            return ByteBuffer.allocate(FILE_SIZE);
+        }
+    }
+
+    /**
+     * Appends a timestamp, replacing the oldest one if the history is full.
+     */
+    synchronized void add(long timestamp) {
+        int nextIndex = mBuffer.getInt(NEXT_INDEX_OFFSET);
+        mBuffer.putLong(slotOffset(nextIndex), timestamp);
+        // Publish the slot before the header, so that a crash in between can't expose a slot
+        // which wasn't written.
+        mBuffer.putInt(COUNT_OFFSET, Math.min(size() + 1, CAPACITY));
+        mBuffer.putInt(NEXT_INDEX_OFFSET, (nextIndex + 1) % CAPACITY);
+    }
+
+    /**
+     * Returns the most recently added timestamp, or -1 if there is none.
+     */
+    synchronized long getLast() {
+        if (size() == 0) {
+            return -1;
+        }
+        return mBuffer.getLong(slotOffset(
+                (mBuffer.getInt(NEXT_INDEX_OFFSET) + CAPACITY - 1) % CAPACITY));
+    }
+
+    /**
+     * Returns whether no timestamp has been added since the history was last cleared.
+     */
+    synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Adds the timestamps in the range [start, end) to the given list, from least to most
+     * recently added.
+     */
+    synchronized void getRange(long start, long end, List<Long> outTimestamps) {
+        int size = size();
+        int oldestIndex = (mBuffer.getInt(NEXT_INDEX_OFFSET) + CAPACITY - size) % CAPACITY;
+        for (int i = 0; i < size; i++) {
+            long timestamp = mBuffer.getLong(slotOffset((oldestIndex + i) % CAPACITY));
+            if (timestamp >= start && timestamp < end) {
+                outTimestamps.add(timestamp);
+            }
+        }
+    }
+
+    /**
+     * Removes all timestamps.
+     */
+    synchronized void clear() {
+        mBuffer.putInt(COUNT_OFFSET, 0);
+        mBuffer.putInt(NEXT_INDEX_OFFSET, 0);
+    }
+
+    private int size() {
+        return mBuffer.getInt(COUNT_OFFSET);
+    }
+
+    /**
+     * Returns whether the header is of the current format and its count and next index are in
+     * range, so that the slots they point at lie within the file.
+     */
+    private boolean hasValidHeader() {
+        int size = mBuffer.getInt(COUNT_OFFSET);
+        int nextIndex = mBuffer.getInt(NEXT_INDEX_OFFSET);
+        return mBuffer.getInt(VERSION_OFFSET) == FILE_FORMAT_VERSION
+                && size >= 0 && size <= CAPACITY
+                && nextIndex >= 0 && nextIndex < CAPACITY;
+    }
+
+    private static int slotOffset(int index) {
+        return HEADER_SIZE + index * Long.BYTES;
+    }
+}
@@ -16,12 +16,32 @@
 package com.android.wallpaper.module;
 
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Point;
 import android.graphics.Rect;
 import android.os.AsyncTask;
 import android.util.Log;
 
 import com.android.wallpaper.asset.Asset;
 import com.android.wallpaper.asset.Asset.BitmapReceiver;
+import com.android.wallpaper.asset.BitmapReusePool;
+import com.android.wallpaper.asset.DecodeScheduler;
+import com.android.wallpaper.asset.StreamableAsset;
+import com.android.wallpaper.util.StreamingPngEncoder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Default implementation of BitmapCropper, which actually crops and scales bitmaps.
@@ -29,6 +49,16 @@ import com.android.wallpaper.asset.Asset.BitmapReceiver;
 public class DefaultBitmapCropper implements BitmapCropper {
     private static final String TAG = "DefaultBitmapCropper";
     private static final boolean FILTER_SCALED_BITMAP = true;
+    private static final String TEMP_FILE_PREFIX = "cropped_wallpaper";
+    private static final int ENCODE_BUFFER_SIZE_BYTES = 64 * 1024;
+
+    // Upper bound on the size of each band of output rows. Decoded source bands are less than about
+    // four times as large, since the region decoder subsamples by powers of 2 down to the target
+    // size.
+    private static final int BAND_SIZE_BYTES = 2 * 1024 * 1024;
+
+    // Temporary files being encoded into, which mustn't be cleaned up. Guarded by itself.
+    private static final Set<File> sActiveTempFiles = new HashSet<>();
 
     @Override
     public void cropAndScaleBitmap(Asset asset, float scale, final Rect cropRect,
@@ -50,6 +80,22 @@ public class DefaultBitmapCropper implements BitmapCropper {
                         ScaleBitmapTask task = new ScaleBitmapTask(bitmap, cropRect, callback);
                         task.execute();
                     }
+                }).setPriority(DecodeScheduler.PRIORITY_VISIBLE_PREVIEW);
+    }
+
+    @Override
+    public void cropAndScaleToStream(StreamableAsset asset, float scale, Rect cropRect,
+            File tempDir, StreamCallback callback) {
+        // Encoding takes a while, so run it on a decoding thread rather than holding up the
+        // serial AsyncTask executor, in the preview lane since the user is waiting for it.
+        CropToStreamJob job = new CropToStreamJob(asset, scale, cropRect, tempDir);
+        DecodeScheduler.getInstance().schedule(DecodeScheduler.PRIORITY_VISIBLE_PREVIEW, job,
+                croppedStream -> {
+                    if (croppedStream != null) {
+                        callback.onStreamCropped(croppedStream);
+                    } else {
+                        callback.onError(job.mThrowable);
+                    }
                 });
     }
 
@@ -80,12 +126,19 @@ public class DefaultBitmapCropper implements BitmapCropper {
 
             try {
                 // Fit bitmap to exact dimensions of crop rect.
+                Bitmap regionBitmap = mBitmap;
                 mBitmap = Bitmap.createScaledBitmap(
-                        mBitmap,
+                        regionBitmap,
                         mCropRect.width(),
                         mCropRect.height(),
                         FILTER_SCALED_BITMAP);
 
+                // The decoded region is only needed to produce the scaled bitmap, so let the next
+                // decode reuse its memory.
+                if (mBitmap != regionBitmap) {
+                    BitmapReusePool.release(regionBitmap);
+                }
+
                 return true;
             } catch (OutOfMemoryError e) {
                 Log.w(TAG, "Not enough memory to fit the final cropped and scaled bitmap to size", e);
@@ -103,4 +156,148 @@ public class DefaultBitmapCropper implements BitmapCropper {
             }
         }
     }
+
+    /**
+     * Job which crops and scales a streamable asset in horizontal bands of output rows, encoding
+     * each band as soon as it's drawn. Each band is decoded from only the matching source rows with
+     * a region decoder, so memory use is bounded by the band size rather than growing with the
+     * size of the source image.
+     */
+    private static class CropToStreamJob implements DecodeScheduler.DecodeJob<InputStream> {
+
+        private final StreamableAsset mAsset;
+        private final float mScale;
+        private final Rect mCropRect;
+        private final File mTempDir;
+        // Read on the main thread once the result is delivered.
+        Throwable mThrowable;
+
+        CropToStreamJob(StreamableAsset asset, float scale, Rect cropRect, File tempDir) {
+            mAsset = asset;
+            mScale = scale;
+            mCropRect = cropRect;
+            mTempDir = tempDir;
+        }
+
+        @Override
+        public InputStream decode() {
+            File file = null;
+            try {
+                synchronized (sActiveTempFiles) {
+                    deleteStaleTempFiles();
+                    file = File.createTempFile(TEMP_FILE_PREFIX, ".png", mTempDir);
+                    sActiveTempFiles.add(file);
+                }
+                try (OutputStream outputStream = new BufferedOutputStream(
+                        new FileOutputStream(file), ENCODE_BUFFER_SIZE_BYTES)) {
+                    if (!encodeBands(outputStream)) {
+                        return null;
+                    }
+                }
+                // The open stream keeps the encoded image readable after the file is deleted
+                // below, so the file can't be left behind in the temporary directory.
+                return new FileInputStream(file);
+            } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                Log.w(TAG, "Unable to crop and encode the wallpaper", e);
+                mThrowable = e;
+                return null;
+            } finally {
+                if (file != null) {
+                    synchronized (sActiveTempFiles) {
+                        sActiveTempFiles.remove(file);
+                    }
+                    file.delete();
+                }
+            }
+        }
+
+        /**
+         * Deletes the temporary files left behind by crops which didn't finish, e.g., because the
+         * process was killed while encoding. Must be called while holding sActiveTempFiles.
+         */
+        private void deleteStaleTempFiles() {
+            File[] files = mTempDir.listFiles(
+                    (dir, name) -> name.startsWith(TEMP_FILE_PREFIX));
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                if (!sActiveTempFiles.contains(file)) {
+                    file.delete();
+                }
+            }
+        }
+
+        /**
+         * Draws the crop band by band and writes the rows to the given stream as a PNG.
+         *
+         * @return Whether every band could be decoded.
+         */
+        private boolean encodeBands(OutputStream outputStream) throws IOException {
+            Point rawDimensions = mAsset.calculateRawDimensions();
+            if (rawDimensions == null) {
+                return false;
+            }
+
+            int width = mCropRect.width();
+            int height = mCropRect.height();
+            int bandHeight = Math.max(1, Math.min(height, BAND_SIZE_BYTES / (width * 4)));
+
+            // Source pixels within an output pixel of a band's edges are decoded along with it, so
+            // that filtering doesn't leave seams between bands.
+            int margin = (int) Math.ceil(1 / mScale);
+            float sourceLeft = mCropRect.left / mScale;
+            float sourceRight = mCropRect.right / mScale;
+
+            Bitmap band = BitmapReusePool.obtain(width, bandHeight, Config.ARGB_8888);
+            Canvas canvas = new Canvas(band);
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            Matrix matrix = new Matrix();
+            int[] row = new int[width];
+
+            try (StreamingPngEncoder encoder =
+                         new StreamingPngEncoder(outputStream, width, height)) {
+                for (int top = 0; top < height; top += bandHeight) {
+                    int rows = Math.min(bandHeight, height - top);
+                    float sourceTop = (mCropRect.top + top) / mScale;
+                    float sourceBottom = (mCropRect.top + top + rows) / mScale;
+                    Rect sourceRect = new Rect(
+                            Math.max(0, (int) Math.floor(sourceLeft) - margin),
+                            Math.max(0, (int) Math.floor(sourceTop) - margin),
+                            Math.min(rawDimensions.x, (int) Math.ceil(sourceRight) + margin),
+                            Math.min(rawDimensions.y, (int) Math.ceil(sourceBottom) + margin));
+                    if (sourceRect.isEmpty()) {
+                        return false;
+                    }
+
+                    Bitmap region = mAsset.decodeBitmapRegionBlocking(sourceRect,
+                            Math.max(1, Math.round(sourceRect.width() * mScale)),
+                            Math.max(1, Math.round(sourceRect.height() * mScale)));
+                    if (region == null) {
+                        return false;
+                    }
+
+                    // Map the decoded region, which is likely subsampled, onto the band's rows.
+                    matrix.setScale(
+                            mScale * sourceRect.width() / region.getWidth(),
+                            mScale * sourceRect.height() / region.getHeight());
+                    matrix.postTranslate((sourceRect.left - sourceLeft) * mScale,
+                            (sourceRect.top - sourceTop) * mScale);
+                    band.eraseColor(Color.BLACK);
+                    canvas.drawBitmap(region, matrix, paint);
+                    BitmapReusePool.release(region);
+
+                    for (int y = 0; y < rows; y++) {
+                        band.getPixels(row, 0 /* offset */, width, 0 /* x */, y, width,
+                                1 /* height */);
+                        encoder.writeRow(row);
+                    }
+                }
+                encoder.finish();
+            } finally {
+                BitmapReusePool.release(band);
+            }
+            return true;
+        }
+    }
 }
@@ -23,6 +23,7 @@ import com.android.wallpaper.R;
 import com.android.wallpaper.model.Category;
 import com.android.wallpaper.model.CategoryProvider;
 import com.android.wallpaper.model.CategoryReceiver;
+import com.android.wallpaper.model.CategoryUpdateReceiver;
 import com.android.wallpaper.model.DefaultWallpaperInfo;
 import com.android.wallpaper.model.DesktopCustomCategory;
 import com.android.wallpaper.model.ImageCategory;
@@ -34,10 +35,17 @@ import com.android.wallpaper.model.ThirdPartyAppCategory;
 import com.android.wallpaper.model.WallpaperCategory;
 import com.android.wallpaper.model.WallpaperInfo;
 import com.android.wallpaper.module.FormFactorChecker.FormFactor;
+import com.android.wallpaper.module.PackageStatusNotifier.PackageStatus;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Default implementation of CategoryProvider.
@@ -53,9 +61,31 @@ public class DefaultCategoryProvider implements CategoryProvider {
     private static final int PRIORITY_LIVE = 300;
     private static final int PRIORITY_THIRD_PARTY = 400;
 
+    // Number of category sources which may be discovered concurrently.
+    private static final int DISCOVERY_THREAD_COUNT = 2;
+    private static final long DISCOVERY_KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadPoolExecutor sDiscoveryExecutor = new ThreadPoolExecutor(
+            DISCOVERY_THREAD_COUNT, DISCOVERY_THREAD_COUNT,
+            DISCOVERY_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+
+    static {
+        sDiscoveryExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final List<String> EXCLUDED_THIRD_PARTY_PACKAGE_NAMES =
+            Collections.unmodifiableList(Arrays.asList(
+                    "com.android.launcher", // Legacy launcher
+                    "com.android.wallpaper.livepicker", // Live wallpaper picker
+                    "com.android.customization"));
+
     protected final Context mAppContext;
     protected ArrayList<Category> mCategories;
     protected boolean mFetchedCategories;
+    // Package updates received before the categories were fetched, replayed once they are.
+    private final List<Runnable> mPendingUpdates = new ArrayList<>();
+    // Task which discovered the categories, whose exclusions also apply to package updates.
+    private FetchCategoriesTask mFetchCategoriesTask;
 
     public DefaultCategoryProvider(Context context) {
         mAppContext = context.getApplicationContext();
@@ -115,10 +145,217 @@ public class DefaultCategoryProvider implements CategoryProvider {
             public void doneFetchingCategories() {
                 receiver.doneFetchingCategories();
                 mFetchedCategories = true;
+                replayPendingUpdates();
             }
         };
 
-        new FetchCategoriesTask(delegatingReceiver, mAppContext).execute();
+        mFetchCategoriesTask = createFetchCategoriesTask(delegatingReceiver);
+        mFetchCategoriesTask.execute();
+    }
+
+    /**
+     * Returns a new task for discovering the categories.
+     */
+    protected FetchCategoriesTask createFetchCategoriesTask(CategoryReceiver receiver) {
+        return new FetchCategoriesTask(receiver, mAppContext);
+    }
+
+    /**
+     * Returns the packages whose live wallpapers are left out of the live wallpapers category,
+     * as excluded by the {@link FetchCategoriesTask} which discovered the categories.
+     */
+    private List<String> getExcludedLiveWallpaperPackageNames() {
+        return getFetchCategoriesTask().getExcludedLiveWallpaperPackageNames();
+    }
+
+    /**
+     * Returns the packages which don't get a third party app category, as excluded by the
+     * {@link FetchCategoriesTask} which discovered the categories.
+     */
+    private List<String> getExcludedThirdPartyPackageNames() {
+        return getFetchCategoriesTask().getExcludedThirdPartyPackageNames();
+    }
+
+    /**
+     * Returns the task which last discovered the categories, or an unexecuted one if a subclass
+     * fetched them some other way.
+     */
+    private FetchCategoriesTask getFetchCategoriesTask() {
+        if (mFetchCategoriesTask == null) {
+            mFetchCategoriesTask = createFetchCategoriesTask(null /* receiver */);
+        }
+        return mFetchCategoriesTask;
+    }
+
+    @Override
+    public void updateLiveWallpaperCategory(String packageName, @PackageStatus int status,
+            CategoryUpdateReceiver receiver) {
+        // A fetch in flight may be showing categories restored from before the change.
+        if (!mFetchedCategories) {
+            mPendingUpdates.add(
+                    () -> updateLiveWallpaperCategory(packageName, status, receiver));
+            return;
+        }
+        new UpdateLiveWallpaperCategoryTask(packageName, status, receiver).execute();
+    }
+
+    @Override
+    public void updateThirdPartyCategories(String packageName, @PackageStatus int status,
+            CategoryUpdateReceiver receiver) {
+        if (!mFetchedCategories) {
+            mPendingUpdates.add(
+                    () -> updateThirdPartyCategories(packageName, status, receiver));
+            return;
+        }
+        new UpdateThirdPartyCategoriesTask(packageName, status, receiver).execute();
+    }
+
+    private void replayPendingUpdates() {
+        List<Runnable> updates = new ArrayList<>(mPendingUpdates);
+        mPendingUpdates.clear();
+        for (Runnable update : updates) {
+            update.run();
+        }
+    }
+
+    /**
+     * Inserts the given category after the categories with the same or a higher priority.
+     */
+    private void insertCategory(Category category) {
+        int index = 0;
+        while (index < mCategories.size()
+                && category.getPriority() >= mCategories.get(index).getPriority()) {
+            index++;
+        }
+        mCategories.add(index, category);
+    }
+
+    /**
+     * AsyncTask subclass which adds, replaces or removes the live wallpapers of a single package in
+     * the live wallpapers category.
+     */
+    private class UpdateLiveWallpaperCategoryTask extends AsyncTask<Void, Void, Boolean> {
+        private final String mPackageName;
+        @PackageStatus private final int mStatus;
+        private final CategoryUpdateReceiver mReceiver;
+        private final List<String> mExcludedPackageNames;
+        private final LiveWallpaperCategory mCategory;
+        private List<WallpaperInfo> mPackageWallpapers;
+
+        UpdateLiveWallpaperCategoryTask(String packageName, @PackageStatus int status,
+                CategoryUpdateReceiver receiver) {
+            mPackageName = packageName;
+            mStatus = status;
+            mReceiver = receiver;
+            mExcludedPackageNames = getExcludedLiveWallpaperPackageNames();
+            Category category = getCategory(
+                    mAppContext.getString(R.string.live_wallpaper_collection_id));
+            mCategory = category instanceof LiveWallpaperCategory
+                    ? (LiveWallpaperCategory) category
+                    : null;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... unused) {
+            if (!mAppContext.getPackageManager().hasSystemFeature(
+                    PackageManager.FEATURE_LIVE_WALLPAPER)) {
+                return false;
+            }
+
+            mPackageWallpapers = mStatus == PackageStatus.REMOVED
+                    ? new ArrayList<>()
+                    : LiveWallpaperInfo.getAllInPackage(mAppContext, mPackageName,
+                            mExcludedPackageNames);
+            if (mCategory != null) {
+                return mCategory.replacePackageWallpapers(mAppContext, mPackageName,
+                        mPackageWallpapers);
+            }
+            return !mPackageWallpapers.isEmpty();
+        }
+
+        @Override
+        protected void onPostExecute(Boolean changed) {
+            if (!changed) {
+                return;
+            }
+
+            if (mCategory == null) {
+                LiveWallpaperCategory category = new LiveWallpaperCategory(
+                        mAppContext.getString(R.string.live_wallpapers_category_title),
+                        mAppContext.getString(R.string.live_wallpaper_collection_id),
+                        mPackageWallpapers,
+                        PRIORITY_LIVE,
+                        mExcludedPackageNames);
+                insertCategory(category);
+                mReceiver.onCategoryAdded(category);
+            } else if (mCategory.isEmpty()) {
+                mCategories.remove(mCategory);
+                mReceiver.onCategoryRemoved(mCategory);
+            } else {
+                mReceiver.onCategoryUpdated(mCategory);
+            }
+        }
+    }
+
+    /**
+     * AsyncTask subclass which adds, replaces or removes the third party app category of a single
+     * package.
+     */
+    private class UpdateThirdPartyCategoriesTask
+            extends AsyncTask<Void, Void, List<ThirdPartyAppCategory>> {
+        private final String mPackageName;
+        @PackageStatus private final int mStatus;
+        private final CategoryUpdateReceiver mReceiver;
+        private final List<String> mExcludedPackageNames;
+
+        UpdateThirdPartyCategoriesTask(String packageName, @PackageStatus int status,
+                CategoryUpdateReceiver receiver) {
+            mPackageName = packageName;
+            mStatus = status;
+            mReceiver = receiver;
+            mExcludedPackageNames = getExcludedThirdPartyPackageNames();
+        }
+
+        @Override
+        protected List<ThirdPartyAppCategory> doInBackground(Void... unused) {
+            @FormFactor int formFactor = InjectorProvider.getInjector()
+                    .getFormFactorChecker(mAppContext).getFormFactor();
+            if (mStatus == PackageStatus.REMOVED
+                    || formFactor != FormFactorChecker.FORM_FACTOR_MOBILE) {
+                return new ArrayList<>();
+            }
+            return ThirdPartyAppCategory.getAll(mAppContext, PRIORITY_THIRD_PARTY,
+                    mExcludedPackageNames, mPackageName);
+        }
+
+        @Override
+        protected void onPostExecute(List<ThirdPartyAppCategory> categories) {
+            String collectionId = mAppContext.getString(
+                    R.string.third_party_app_wallpaper_collection_id) + "_" + mPackageName;
+            // The package may have several activities, each with its own category.
+            List<Category> oldCategories = new ArrayList<>();
+            for (Category category : mCategories) {
+                if (collectionId.equals(category.getCollectionId())) {
+                    oldCategories.add(category);
+                }
+            }
+
+            for (Category oldCategory : oldCategories) {
+                if (!categories.contains(oldCategory)) {
+                    mCategories.remove(oldCategory);
+                    mReceiver.onCategoryRemoved(oldCategory);
+                }
+            }
+            for (ThirdPartyAppCategory category : categories) {
+                if (oldCategories.contains(category)) {
+                    mCategories.set(mCategories.indexOf(category), category);
+                    mReceiver.onCategoryUpdated(category);
+                } else {
+                    insertCategory(category);
+                    mReceiver.onCategoryAdded(category);
+                }
+            }
+        }
     }
 
     /**
@@ -128,10 +365,17 @@ public class DefaultCategoryProvider implements CategoryProvider {
     protected static class FetchCategoriesTask extends AsyncTask<Void, Category, Void> {
         private CategoryReceiver mReceiver;
         protected final Context mAppContext;
+        private final CategorySnapshot mSnapshot;
+        private final int mSnapshotGeneration;
+        private final List<Category> mPublishedCategories = new ArrayList<>();
+        private Category mMyPhotosCategory;
+        private boolean mRestoredFromSnapshot;
 
         public FetchCategoriesTask(CategoryReceiver receiver, Context context) {
             mReceiver = receiver;
             mAppContext = context.getApplicationContext();
+            mSnapshot = CategorySnapshot.getInstance(mAppContext);
+            mSnapshotGeneration = mSnapshot.getGeneration();
         }
 
         @Override
@@ -140,17 +384,67 @@ public class DefaultCategoryProvider implements CategoryProvider {
                     InjectorProvider.getInjector().getFormFactorChecker(mAppContext);
             @FormFactor int formFactor = formFactorChecker.getFormFactor();
 
-            // "My photos" wallpapers
-            publishProgress(getMyPhotosCategory(formFactor));
+            mMyPhotosCategory = getMyPhotosCategory(formFactor);
+
+            // Show the categories discovered by a previous launch if nothing they depend on has
+            // changed since.
+            List<Category> snapshotCategories =
+                    mSnapshot.load(getExcludedLiveWallpaperPackageNames());
+            if (snapshotCategories != null) {
+                mRestoredFromSnapshot = true;
+                publishProgress(mMyPhotosCategory);
+                for (Category category : snapshotCategories) {
+                    publishProgress(category);
+                }
+                return null;
+            }
 
-            publishDeviceCategories(formFactor);
+            // Live and third party wallpapers are discovered through PackageManager queries, so
+            // start them right away and let them run while the device categories are gathered.
+            Future<List<Category>> liveCategories = sDiscoveryExecutor.submit(
+                    this::getLiveWallpaperCategories);
+            Future<List<Category>> thirdPartyCategories = sDiscoveryExecutor.submit(
+                    () -> getThirdPartyCategories(formFactor));
+
+            try {
+                // "My photos" wallpapers
+                publishProgress(mMyPhotosCategory);
+
+                publishDeviceCategories(formFactor);
+
+                // Publish in priority order, as soon as each source and the ones before it are done.
+                publishCategories(liveCategories);
+                publishCategories(thirdPartyCategories);
+            } finally {
+                liveCategories.cancel(true /* mayInterruptIfRunning */);
+                thirdPartyCategories.cancel(true /* mayInterruptIfRunning */);
+            }
+
+            return null;
+        }
+
+        private void publishCategories(Future<List<Category>> categories) {
+            try {
+                for (Category category : categories.get()) {
+                    publishProgress(category);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Unable to fetch categories", e.getCause());
+            }
+        }
 
-            // Live wallpapers -- if the device supports them.
+        /**
+         * Returns the live wallpapers category, if the device supports live wallpapers and has any.
+         */
+        private List<Category> getLiveWallpaperCategories() {
+            List<Category> categories = new ArrayList<>();
             if (mAppContext.getPackageManager().hasSystemFeature(PackageManager.FEATURE_LIVE_WALLPAPER)) {
                 List<WallpaperInfo> liveWallpapers = LiveWallpaperInfo.getAll(
                         mAppContext, getExcludedLiveWallpaperPackageNames());
                 if (liveWallpapers.size() > 0) {
-                    publishProgress(
+                    categories.add(
                             new LiveWallpaperCategory(
                                     mAppContext.getString(R.string.live_wallpapers_category_title),
                                     mAppContext.getString(R.string.live_wallpaper_collection_id),
@@ -159,17 +453,19 @@ public class DefaultCategoryProvider implements CategoryProvider {
                                     getExcludedLiveWallpaperPackageNames()));
                 }
             }
+            return categories;
+        }
 
-            // Third party apps -- only on mobile.
+        /**
+         * Returns the third party app categories -- only on mobile.
+         */
+        private List<Category> getThirdPartyCategories(@FormFactor int formFactor) {
+            List<Category> categories = new ArrayList<>();
             if (formFactor == FormFactorChecker.FORM_FACTOR_MOBILE) {
-                List<ThirdPartyAppCategory> thirdPartyApps = ThirdPartyAppCategory.getAll(
-                        mAppContext, PRIORITY_THIRD_PARTY, getExcludedThirdPartyPackageNames());
-                for (ThirdPartyAppCategory thirdPartyApp : thirdPartyApps) {
-                    publishProgress(thirdPartyApp);
-                }
+                categories.addAll(ThirdPartyAppCategory.getAll(
+                        mAppContext, PRIORITY_THIRD_PARTY, getExcludedThirdPartyPackageNames()));
             }
-
-            return null;
+            return categories;
         }
 
         /**
@@ -187,10 +483,7 @@ public class DefaultCategoryProvider implements CategoryProvider {
         }
 
         protected List<String> getExcludedThirdPartyPackageNames() {
-            return Arrays.asList(
-                    "com.android.launcher", // Legacy launcher
-                    "com.android.wallpaper.livepicker", // Live wallpaper picker
-                    "com.android.customization");
+            return EXCLUDED_THIRD_PARTY_PACKAGE_NAMES;
         }
 
         /**
@@ -266,12 +559,18 @@ public class DefaultCategoryProvider implements CategoryProvider {
 
             for (int i = 0; i < values.length; i++) {
                 Category category = values[i];
+                if (category != mMyPhotosCategory) {
+                    mPublishedCategories.add(category);
+                }
                 mReceiver.onCategoryReceived(category);
             }
         }
 
         @Override
         protected void onPostExecute(Void unused) {
+            if (!mRestoredFromSnapshot) {
+                mSnapshot.save(mPublishedCategories, mSnapshotGeneration);
+            }
             mReceiver.doneFetchingCategories();
         }
     }
@@ -16,6 +16,7 @@
 package com.android.wallpaper.module;
 
 import android.content.Context;
+import android.os.SystemClock;
 
 import androidx.annotation.Nullable;
 
@@ -24,11 +25,15 @@ import com.android.wallpaper.model.CurrentWallpaperInfoVN;
 import com.android.wallpaper.model.WallpaperInfo;
 import com.android.wallpaper.module.WallpaperPreferences.PresentationMode;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Default implementation of {@link CurrentWallpaperInfoFactory} which actually constructs
  * {@link WallpaperInfo} instances representing the wallpapers currently set to the device.
  */
 public class DefaultCurrentWallpaperInfoFactory implements CurrentWallpaperInfoFactory {
+    private static final long REFRESH_TIMEOUT_MILLIS = 30 * 1000;
 
     private final Context mAppContext;
     private final WallpaperRefresher mWallpaperRefresher;
@@ -41,6 +46,13 @@ public class DefaultCurrentWallpaperInfoFactory implements CurrentWallpaperInfoF
     @PresentationMode
     private int mPresentationMode;
 
+    // Callers waiting on the refresh in flight, callers waiting on a follow-up refresh to be started
+    // once it completes, and the generation and start time of the latest refresh started.
+    private final List<WallpaperInfoCallback> mPendingCallbacks = new ArrayList<>();
+    private final List<WallpaperInfoCallback> mFollowUpCallbacks = new ArrayList<>();
+    private int mRefreshGeneration;
+    private long mRefreshStartTime;
+
     public DefaultCurrentWallpaperInfoFactory(Context context) {
         mAppContext = context.getApplicationContext();
         Injector injector = InjectorProvider.getInjector();
@@ -64,6 +76,35 @@ public class DefaultCurrentWallpaperInfoFactory implements CurrentWallpaperInfoF
             mLockWallpaper = null;
         }
 
+        // Join the refresh in flight, if any, rather than decoding and hashing the current
+        // wallpapers again for each caller. A refresh that has been in flight for too long is
+        // assumed lost and superseded by a new one.
+        boolean isRefreshInFlight = !mPendingCallbacks.isEmpty();
+        if (isRefreshInFlight
+                && SystemClock.elapsedRealtime() - mRefreshStartTime < REFRESH_TIMEOUT_MILLIS) {
+            // The refresh in flight may have started before the wallpaper changed, so a forced
+            // refresh waits for a follow-up refresh instead, as does every caller after it.
+            if (forceRefresh || !mFollowUpCallbacks.isEmpty()) {
+                mFollowUpCallbacks.add(callback);
+            } else {
+                mPendingCallbacks.add(callback);
+            }
+            return;
+        }
+
+        mPendingCallbacks.addAll(mFollowUpCallbacks);
+        mFollowUpCallbacks.clear();
+        mPendingCallbacks.add(callback);
+        startRefresh();
+    }
+
+    /**
+     * Starts a new refresh generation on behalf of the pending callbacks. Must be called while
+     * holding the lock on this factory.
+     */
+    private void startRefresh() {
+        mRefreshStartTime = SystemClock.elapsedRealtime();
+        final int generation = ++mRefreshGeneration;
         mWallpaperRefresher.refresh(
                 (homeWallpaperMetadata, lockWallpaperMetadata, presentationMode) -> {
                     WallpaperInfo homeWallpaper;
@@ -92,11 +133,41 @@ public class DefaultCurrentWallpaperInfoFactory implements CurrentWallpaperInfoF
                                 WallpaperManagerCompat.FLAG_LOCK);
                     }
 
-                    mHomeWallpaper = homeWallpaper;
-                    mLockWallpaper = lockWallpaper;
-                    mPresentationMode = presentationMode;
-
-                    callback.onWallpaperInfoCreated(homeWallpaper, lockWallpaper, presentationMode);
+                    onRefreshed(generation, homeWallpaper, lockWallpaper, presentationMode);
                 });
     }
+
+    /**
+     * Caches the result of the refresh with the given generation and delivers it to every caller
+     * which joined that refresh, then starts the follow-up refresh if any caller is waiting on one.
+     * Results of any refresh other than the latest one started are dropped, so that they never
+     * overwrite newer ones.
+     */
+    private void onRefreshed(int generation, WallpaperInfo homeWallpaper,
+            @Nullable WallpaperInfo lockWallpaper, @PresentationMode int presentationMode) {
+        List<WallpaperInfoCallback> callbacks;
+        synchronized (this) {
+            if (generation != mRefreshGeneration || mPendingCallbacks.isEmpty()) {
+                return;
+            }
+
+            callbacks = new ArrayList<>(mPendingCallbacks);
+            mPendingCallbacks.clear();
+
+            if (mFollowUpCallbacks.isEmpty()) {
+                mHomeWallpaper = homeWallpaper;
+                mLockWallpaper = lockWallpaper;
+                mPresentationMode = presentationMode;
+            } else {
+                // Possibly stale, so don't cache it; the follow-up refresh's result is cached.
+                mPendingCallbacks.addAll(mFollowUpCallbacks);
+                mFollowUpCallbacks.clear();
+                startRefresh();
+            }
+        }
+
+        for (WallpaperInfoCallback callback : callbacks) {
+            callback.onWallpaperInfoCreated(homeWallpaper, lockWallpaper, presentationMode);
+        }
+    }
 }
@@ -71,6 +71,13 @@ public class DefaultPackageStatusNotifier implements PackageStatusNotifier {
             mListener = listener;
         }
 
+        private void notifyListener(String packageName, @PackageStatus int status) {
+            // Any change to a package providing wallpapers makes the snapshot of discovered
+            // categories out of date.
+            CategorySnapshot.getInstance(mAppContext).invalidate();
+            mListener.onPackageChanged(packageName, status);
+        }
+
         private boolean isValidPackage(String packageName) {
             mIntentFilter.setPackage(packageName);
             PackageManager pm = mAppContext.getPackageManager();
@@ -83,20 +90,20 @@ public class DefaultPackageStatusNotifier implements PackageStatusNotifier {
         public void onPackageRemoved(String packageName, UserHandle userHandle) {
             // We can't check if the removed package is "valid" for the given action, as it's not
             // there any more, so trigger REMOVED for all cases.
-            mListener.onPackageChanged(packageName, PackageStatus.REMOVED);
+            notifyListener(packageName, PackageStatus.REMOVED);
         }
 
         @Override
         public void onPackageAdded(String packageName, UserHandle userHandle) {
             if (isValidPackage(packageName)) {
-                mListener.onPackageChanged(packageName, PackageStatus.ADDED);
+                notifyListener(packageName, PackageStatus.ADDED);
             }
         }
 
         @Override
         public void onPackageChanged(String packageName, UserHandle userHandle) {
             if (isValidPackage(packageName)) {
-                mListener.onPackageChanged(packageName, PackageStatus.CHANGED);
+                notifyListener(packageName, PackageStatus.CHANGED);
             }
         }
 
@@ -105,7 +112,7 @@ public class DefaultPackageStatusNotifier implements PackageStatusNotifier {
                                         boolean replacing) {
             for (String packageName : packageNames) {
                 if (isValidPackage(packageName)) {
-                    mListener.onPackageChanged(packageName,
+                    notifyListener(packageName,
                             replacing ? PackageStatus.CHANGED : PackageStatus.ADDED);
                 }
             }
@@ -116,7 +123,7 @@ public class DefaultPackageStatusNotifier implements PackageStatusNotifier {
                                           boolean replacing) {
             for (String packageName : packageNames) {
                 if (!replacing && isValidPackage(packageName)) {
-                    mListener.onPackageChanged(packageName, PackageStatus.REMOVED);
+                    notifyListener(packageName, PackageStatus.REMOVED);
                 }
             }
         }
@@ -125,7 +132,7 @@ public class DefaultPackageStatusNotifier implements PackageStatusNotifier {
         public void onPackagesSuspended(String[] packageNames, UserHandle user) {
             for (String packageName : packageNames) {
                 if (isValidPackage(packageName)) {
-                    mListener.onPackageChanged(packageName, PackageStatus.REMOVED);
+                    notifyListener(packageName, PackageStatus.REMOVED);
                 }
             }
         }
@@ -134,7 +141,7 @@ public class DefaultPackageStatusNotifier implements PackageStatusNotifier {
         public void onPackagesUnsuspended(String[] packageNames, UserHandle user) {
             for (String packageName : packageNames) {
                 if (isValidPackage(packageName)) {
-                    mListener.onPackageChanged(packageName, PackageStatus.ADDED);
+                    notifyListener(packageName, PackageStatus.ADDED);
                 }
             }
         }
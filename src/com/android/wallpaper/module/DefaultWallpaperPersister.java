@@ -17,14 +17,13 @@ package com.android.wallpaper.module;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.WallpaperManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
-import android.graphics.BitmapFactory;
 import android.graphics.Point;
 import android.graphics.Rect;
-import android.graphics.drawable.BitmapDrawable;
 import android.os.AsyncTask;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
@@ -36,22 +35,28 @@ import androidx.annotation.Nullable;
 import com.android.wallpaper.asset.Asset;
 import com.android.wallpaper.asset.Asset.BitmapReceiver;
 import com.android.wallpaper.asset.Asset.DimensionsReceiver;
-import com.android.wallpaper.asset.BitmapUtils;
+import com.android.wallpaper.asset.DecodeScheduler;
 import com.android.wallpaper.asset.StreamableAsset;
 import com.android.wallpaper.asset.StreamableAsset.StreamReceiver;
 import com.android.wallpaper.compat.BuildCompat;
 import com.android.wallpaper.compat.WallpaperManagerCompat;
 import com.android.wallpaper.model.WallpaperInfo;
+import com.android.wallpaper.model.WallpaperMetadata;
 import com.android.wallpaper.module.BitmapCropper.Callback;
+import com.android.wallpaper.module.BitmapCropper.StreamCallback;
 import com.android.wallpaper.util.BitmapTransformer;
 import com.android.wallpaper.util.ScreenSizeCalculator;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Concrete implementation of WallpaperPersister which actually sets wallpapers to the system via
@@ -60,7 +65,20 @@ import java.util.List;
 public class DefaultWallpaperPersister implements WallpaperPersister {
 
     private static final int DEFAULT_COMPRESS_QUALITY = 100;
+    private static final int COMPRESS_BUFFER_SIZE_BYTES = 64 * 1024;
+    private static final String TEMP_WALLPAPER_FILE_PREFIX = "wallpaper";
+    private static final String TEMP_WALLPAPER_FILE_SUFFIX = ".jpg";
     private static final String TAG = "WallpaperPersister";
+    // Crops are only streamed once their bitmap would take more than this fraction of the app's
+    // memory class.
+    private static final int CROP_MEMORY_CLASS_DIVISOR = 4;
+    private static final int CROP_BYTES_PER_PIXEL = 4;
+    // Wallpapers are set when the user asks for it and waits for the result, so their decodes run
+    // ahead of thumbnail and prefetch decodes.
+    private static final int SET_DECODE_PRIORITY = DecodeScheduler.PRIORITY_VISIBLE_PREVIEW;
+
+    // Temporary files still being written or read, which mustn't be cleaned up. Guarded by itself.
+    private static final Set<File> sActiveTempFiles = new HashSet<>();
 
     private final Context mAppContext; // The application's context.
     // Context that accesses files in device protected storage
@@ -99,7 +117,7 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
                     }
                     setIndividualWallpaper(wallpaper, inputStream, destination, callback);
                 }
-            });
+            }).setPriority(SET_DECODE_PRIORITY);
             return;
         }
 
@@ -118,11 +136,31 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
                     }
                     setIndividualWallpaper(wallpaper, bitmap, destination, callback);
                 }
-            });
+            }).setPriority(SET_DECODE_PRIORITY);
             return;
         }
 
         BitmapCropper bitmapCropper = InjectorProvider.getInjector().getBitmapCropper();
+
+        // Streamable assets whose crop is too large to hold in memory are cropped and encoded in
+        // bands instead, at the cost of a larger losslessly encoded file.
+        if (asset instanceof StreamableAsset && exceedsCropMemoryBudget(cropRect)) {
+            bitmapCropper.cropAndScaleToStream((StreamableAsset) asset, scale, cropRect,
+                    mAppContext.getCacheDir(), new StreamCallback() {
+                        @Override
+                        public void onStreamCropped(InputStream croppedStream) {
+                            setIndividualWallpaper(wallpaper, croppedStream, destination,
+                                    callback);
+                        }
+
+                        @Override
+                        public void onError(@Nullable Throwable e) {
+                            callback.onError(e);
+                        }
+                    });
+            return;
+        }
+
         bitmapCropper.cropAndScaleBitmap(asset, scale, cropRect, new Callback() {
             @Override
             public void onBitmapCropped(Bitmap croppedBitmap) {
@@ -136,6 +174,18 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
         });
     }
 
+    /**
+     * Returns whether a cropped ARGB_8888 bitmap of the given crop rect's size would be too large
+     * to decode into memory in one piece.
+     */
+    private boolean exceedsCropMemoryBudget(Rect cropRect) {
+        ActivityManager activityManager =
+                (ActivityManager) mAppContext.getSystemService(Context.ACTIVITY_SERVICE);
+        long budgetBytes =
+                (long) activityManager.getMemoryClass() * 1024 * 1024 / CROP_MEMORY_CLASS_DIVISOR;
+        return (long) cropRect.width() * cropRect.height() * CROP_BYTES_PER_PIXEL > budgetBytes;
+    }
+
     @Override
     public void setIndividualWallpaperWithPosition(Activity activity, WallpaperInfo wallpaper,
             @WallpaperPosition int wallpaperPosition, SetWallpaperCallback callback) {
@@ -178,7 +228,7 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
                                         screenSize /* stretchSize */,
                                         WallpaperPersister.DEST_BOTH, callback);
                             }
-                        });
+                        }).setPriority(SET_DECODE_PRIORITY);
                         break;
 
                     default:
@@ -187,7 +237,7 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
                         callback.onError(null);
                 }
             }
-        });
+        }).setPriority(SET_DECODE_PRIORITY);
     }
 
     /**
@@ -214,7 +264,7 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
                     setIndividualWallpaper(wallpaper, bitmap, WallpaperPersister.DEST_BOTH,
                             callback);
                 }
-            });
+            }).setPriority(SET_DECODE_PRIORITY);
         } else {
             // Decode the full bitmap and pass with the screen size as a fill rect.
             asset.decodeBitmap(dimensions.x, dimensions.y, new BitmapReceiver() {
@@ -228,7 +278,7 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
                     setIndividualWallpaperFill(wallpaper, bitmap, screenSize /* fillSize */,
                             WallpaperPersister.DEST_BOTH, callback);
                 }
-            });
+            }).setPriority(SET_DECODE_PRIORITY);
         }
     }
 
@@ -382,38 +432,38 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
             int actionIconRes,
             String collectionId,
             int wallpaperId) {
-        mWallpaperPreferences.clearHomeWallpaperMetadata();
-
         boolean isLockWallpaperSet = isSeparateLockScreenWallpaperSet();
 
-        // Persist wallpaper IDs if the rotating wallpaper component
-        mWallpaperPreferences.setHomeWallpaperManagerId(wallpaperId);
+        WallpaperPreferences.MetadataEditor editor = mWallpaperPreferences.editMetadata()
+                .clearHomeWallpaperMetadata()
+                // Persist wallpaper IDs if the rotating wallpaper component
+                .setHomeWallpaperManagerId(wallpaperId);
 
         // Only copy over wallpaper ID to lock wallpaper if no explicit lock wallpaper is set
         // (so metadata isn't lost if a user explicitly sets a home-only wallpaper).
         if (!isLockWallpaperSet) {
-            mWallpaperPreferences.setLockWallpaperId(wallpaperId);
+            editor.setLockWallpaperId(wallpaperId);
         }
 
-
-        mWallpaperPreferences.setHomeWallpaperAttributions(attributions);
-        mWallpaperPreferences.setHomeWallpaperActionUrl(actionUrl);
-        mWallpaperPreferences.setHomeWallpaperActionLabelRes(actionLabelRes);
-        mWallpaperPreferences.setHomeWallpaperActionIconRes(actionIconRes);
-        // Only set base image URL for static Backdrop images, not for rotation.
-        mWallpaperPreferences.setHomeWallpaperBaseImageUrl(null);
-        mWallpaperPreferences.setHomeWallpaperCollectionId(collectionId);
+        editor.setHomeWallpaperAttributions(attributions)
+                .setHomeWallpaperActionUrl(actionUrl)
+                .setHomeWallpaperActionLabelRes(actionLabelRes)
+                .setHomeWallpaperActionIconRes(actionIconRes)
+                // Only set base image URL for static Backdrop images, not for rotation.
+                .setHomeWallpaperBaseImageUrl(null)
+                .setHomeWallpaperCollectionId(collectionId);
 
         // Set metadata to lock screen also when the rotating wallpaper so if user sets a home
         // screen-only wallpaper later, these attributions will still be available.
         if (!isLockWallpaperSet) {
-            mWallpaperPreferences.setLockWallpaperAttributions(attributions);
-            mWallpaperPreferences.setLockWallpaperActionUrl(actionUrl);
-            mWallpaperPreferences.setLockWallpaperActionLabelRes(actionLabelRes);
-            mWallpaperPreferences.setLockWallpaperActionIconRes(actionIconRes);
-            mWallpaperPreferences.setLockWallpaperCollectionId(collectionId);
+            editor.setLockWallpaperAttributions(attributions)
+                    .setLockWallpaperActionUrl(actionUrl)
+                    .setLockWallpaperActionLabelRes(actionLabelRes)
+                    .setLockWallpaperActionIconRes(actionIconRes)
+                    .setLockWallpaperCollectionId(collectionId);
         }
 
+        editor.apply();
         return true;
     }
 
@@ -445,18 +495,19 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
      */
     private int setBitmapToWallpaperManagerCompat(Bitmap wallpaperBitmap, boolean allowBackup,
             int whichWallpaper) {
-        ByteArrayOutputStream tmpOut = new ByteArrayOutputStream();
-        if (wallpaperBitmap.compress(CompressFormat.JPEG, DEFAULT_COMPRESS_QUALITY, tmpOut)) {
-            try {
-                byte[] outByteArray = tmpOut.toByteArray();
+        File encodedFile = compressToTempFile(wallpaperBitmap);
+        if (encodedFile != null) {
+            try (InputStream inputStream = new FileInputStream(encodedFile)) {
                 return mWallpaperManagerCompat.setStream(
-                        new ByteArrayInputStream(outByteArray),
+                        inputStream,
                         null /* visibleCropHint */,
                         allowBackup,
                         whichWallpaper);
             } catch (IOException e) {
                 Log.e(TAG, "unable to write stream to wallpaper manager");
                 return 0;
+            } finally {
+                releaseTempFile(encodedFile);
             }
         } else {
             Log.e(TAG, "unable to compress wallpaper");
@@ -473,6 +524,64 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
         }
     }
 
+    /**
+     * Compresses a wallpaper bitmap as a JPEG into a temporary file, streaming the encoder's output
+     * through a bounded buffer so that the encoded image is never held in memory as a whole.
+     *
+     * @return The file, which the caller must delete, or null if the bitmap couldn't be compressed.
+     */
+    @Nullable
+    private File compressToTempFile(Bitmap wallpaperBitmap) {
+        File file = null;
+        try {
+            synchronized (sActiveTempFiles) {
+                deleteStaleTempFiles();
+                file = File.createTempFile(TEMP_WALLPAPER_FILE_PREFIX, TEMP_WALLPAPER_FILE_SUFFIX,
+                        mAppContext.getCacheDir());
+                sActiveTempFiles.add(file);
+            }
+            try (OutputStream outputStream = new BufferedOutputStream(
+                    new FileOutputStream(file), COMPRESS_BUFFER_SIZE_BYTES)) {
+                if (wallpaperBitmap.compress(CompressFormat.JPEG, DEFAULT_COMPRESS_QUALITY,
+                        outputStream)) {
+                    return file;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "unable to write compressed wallpaper to a temporary file", e);
+        }
+
+        if (file != null) {
+            releaseTempFile(file);
+        }
+        return null;
+    }
+
+    /**
+     * Deletes the temporary files left behind by wallpapers which were being set when the process
+     * was killed. Must be called while holding sActiveTempFiles.
+     */
+    private void deleteStaleTempFiles() {
+        File[] files = mAppContext.getCacheDir().listFiles(
+                (dir, name) -> name.startsWith(TEMP_WALLPAPER_FILE_PREFIX)
+                        && name.endsWith(TEMP_WALLPAPER_FILE_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!sActiveTempFiles.contains(file)) {
+                file.delete();
+            }
+        }
+    }
+
+    private static void releaseTempFile(File file) {
+        synchronized (sActiveTempFiles) {
+            sActiveTempFiles.remove(file);
+        }
+        file.delete();
+    }
+
     private int setStreamToWallpaperManagerCompat(InputStream inputStream, boolean allowBackup,
             int whichWallpaper) {
         try {
@@ -536,19 +645,17 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
         android.app.WallpaperInfo previewedWallpaperComponent =
                 mWallpaperInfoInPreview.getWallpaperComponent();
 
-        mWallpaperPreferences.clearHomeWallpaperMetadata();
         // NOTE: We explicitly do not also clear the lock wallpaper metadata. Since the user may
         // have set the live wallpaper on the home screen only, we leave the lock wallpaper metadata
         // intact. If the user has set the live wallpaper for both home and lock screens, then the
         // WallpaperRefresher will pick up on that and update the preferences later.
-        mWallpaperPreferences
-                .setHomeWallpaperAttributions(mWallpaperInfoInPreview.getAttributions(mAppContext));
-        mWallpaperPreferences.setHomeWallpaperPackageName(
-                previewedWallpaperComponent.getPackageName());
-        mWallpaperPreferences.setHomeWallpaperCollectionId(
-                mWallpaperInfoInPreview.getCollectionId(mAppContext));
-        mWallpaperPreferences.setWallpaperPresentationMode(
-                WallpaperPreferences.PRESENTATION_MODE_STATIC);
+        mWallpaperPreferences.editMetadata()
+                .clearHomeWallpaperMetadata()
+                .setHomeWallpaperAttributions(mWallpaperInfoInPreview.getAttributions(mAppContext))
+                .setHomeWallpaperPackageName(previewedWallpaperComponent.getPackageName())
+                .setHomeWallpaperCollectionId(mWallpaperInfoInPreview.getCollectionId(mAppContext))
+                .setWallpaperPresentationMode(WallpaperPreferences.PRESENTATION_MODE_STATIC)
+                .apply();
         mWallpaperPreferences.clearDailyRotations();
     }
 
@@ -694,24 +801,21 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
          * rotating is now copied to the lock screen.
          */
         private void copyRotatingWallpaperToLock() {
-
-            mWallpaperPreferences.setLockWallpaperAttributions(
-                    mWallpaperPreferences.getHomeWallpaperAttributions());
-            mWallpaperPreferences.setLockWallpaperActionUrl(
-                    mWallpaperPreferences.getHomeWallpaperActionUrl());
-            mWallpaperPreferences.setLockWallpaperActionLabelRes(
-                    mWallpaperPreferences.getHomeWallpaperActionLabelRes());
-            mWallpaperPreferences.setLockWallpaperActionIconRes(
-                    mWallpaperPreferences.getHomeWallpaperActionIconRes());
-            mWallpaperPreferences.setLockWallpaperCollectionId(
-                    mWallpaperPreferences.getHomeWallpaperCollectionId());
-
-            // Set the lock wallpaper ID to what Android set it to, following its having
-            // copied the system wallpaper over to the lock screen when we changed from
-            // "both" to distinct system and lock screen wallpapers.
-            mWallpaperPreferences.setLockWallpaperId(
-                    mWallpaperManagerCompat.getWallpaperId(WallpaperManagerCompat.FLAG_LOCK));
-
+            WallpaperMetadata homeMetadata =
+                    mWallpaperPreferences.getHomeWallpaperMetadata(null /* wallpaperComponent */);
+
+            mWallpaperPreferences.editMetadata()
+                    .setLockWallpaperAttributions(homeMetadata.getAttributions())
+                    .setLockWallpaperActionUrl(homeMetadata.getActionUrl())
+                    .setLockWallpaperActionLabelRes(homeMetadata.getActionLabelRes())
+                    .setLockWallpaperActionIconRes(homeMetadata.getActionIconRes())
+                    .setLockWallpaperCollectionId(homeMetadata.getCollectionId())
+                    // Set the lock wallpaper ID to what Android set it to, following its having
+                    // copied the system wallpaper over to the lock screen when we changed from
+                    // "both" to distinct system and lock screen wallpapers.
+                    .setLockWallpaperId(mWallpaperManagerCompat.getWallpaperId(
+                            WallpaperManagerCompat.FLAG_LOCK))
+                    .apply();
         }
 
         /**
@@ -725,105 +829,78 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
          *                    image.
          */
         private void setImageWallpaperMetadata(@Destination int destination, int wallpaperId) {
+            // Collect the whole update so that it's written with a single write per preferences
+            // file, and readers never observe a mix of the old and new metadata.
+            WallpaperPreferences.MetadataEditor editor = mWallpaperPreferences.editMetadata();
+
             if (destination == DEST_HOME_SCREEN || destination == DEST_BOTH) {
-                mWallpaperPreferences.clearHomeWallpaperMetadata();
-                setImageWallpaperHomeMetadata(wallpaperId);
+                editor.clearHomeWallpaperMetadata();
+                setImageWallpaperHomeMetadata(editor, wallpaperId);
 
                 // Reset presentation mode to STATIC if an individual wallpaper is set to the
                 // home screen
                 // because rotation always affects at least the home screen.
-                mWallpaperPreferences.setWallpaperPresentationMode(
-                        WallpaperPreferences.PRESENTATION_MODE_STATIC);
+                editor.setWallpaperPresentationMode(WallpaperPreferences.PRESENTATION_MODE_STATIC);
             }
 
             if (destination == DEST_LOCK_SCREEN || destination == DEST_BOTH) {
-                mWallpaperPreferences.clearLockWallpaperMetadata();
-                setImageWallpaperLockMetadata(wallpaperId);
+                editor.clearLockWallpaperMetadata();
+                setImageWallpaperLockMetadata(editor, wallpaperId);
             }
 
+            editor.apply();
             mWallpaperPreferences.clearDailyRotations();
         }
 
-        private void setImageWallpaperHomeMetadata(int homeWallpaperId) {
+        private void setImageWallpaperHomeMetadata(WallpaperPreferences.MetadataEditor editor,
+                int homeWallpaperId) {
+            // Record the wallpaper's ID and file so that the wallpaper refresher doesn't need to
+            // hash it to recognize it.
             if (BuildCompat.isAtLeastN()) {
-                mWallpaperPreferences.setHomeWallpaperManagerId(homeWallpaperId);
+                editor.setHomeWallpaperManagerId(homeWallpaperId)
+                        .setHomeWallpaperFileFingerprint(
+                                WallpaperHasher.getWallpaperFileFingerprint(
+                                        mWallpaperManagerCompat,
+                                        WallpaperManagerCompat.FLAG_SYSTEM));
+            }
+
+            // Compute the hash code after setting the wallpaper because JPEG compression has
+            // likely changed many pixels' color values. Do this on N+ devices in addition to saving
+            // the wallpaper ID for the purpose of backup & restore.
+            long bitmapHash = WallpaperHasher.hashHomeWallpaper(mWallpaperManager,
+                    mWallpaperManagerCompat, false /* legacy */);
+            if (bitmapHash != 0) {
+                editor.setHomeWallpaperHashCode(bitmapHash);
             }
 
-            // Compute bitmap hash code after setting the wallpaper because JPEG compression has
-            // likely changed many pixels' color values. Forget the previously loaded wallpaper
-            // bitmap so that WallpaperManager doesn't return the old wallpaper drawable. Do this
-            // on N+ devices in addition to saving the wallpaper ID for the purpose of backup &
-            // restore.
-            mWallpaperManager.forgetLoadedWallpaper();
-            mBitmap = ((BitmapDrawable) mWallpaperManagerCompat.getDrawable()).getBitmap();
-            long bitmapHash = BitmapUtils.generateHashCode(mBitmap);
-
-            mWallpaperPreferences.setHomeWallpaperHashCode(bitmapHash);
-
-            mWallpaperPreferences.setHomeWallpaperAttributions(
-                    mWallpaper.getAttributions(mAppContext));
-            mWallpaperPreferences.setHomeWallpaperBaseImageUrl(mWallpaper.getBaseImageUrl());
-            mWallpaperPreferences.setHomeWallpaperActionUrl(mWallpaper.getActionUrl(mAppContext));
-            mWallpaperPreferences.setHomeWallpaperActionLabelRes(
-                    mWallpaper.getActionLabelRes(mAppContext));
-            mWallpaperPreferences.setHomeWallpaperActionIconRes(
-                    mWallpaper.getActionIconRes(mAppContext));
-            mWallpaperPreferences.setHomeWallpaperCollectionId(
-                    mWallpaper.getCollectionId(mAppContext));
-            mWallpaperPreferences.setHomeWallpaperRemoteId(mWallpaper.getWallpaperId());
+            editor.setHomeWallpaperAttributions(mWallpaper.getAttributions(mAppContext))
+                    .setHomeWallpaperBaseImageUrl(mWallpaper.getBaseImageUrl())
+                    .setHomeWallpaperActionUrl(mWallpaper.getActionUrl(mAppContext))
+                    .setHomeWallpaperActionLabelRes(mWallpaper.getActionLabelRes(mAppContext))
+                    .setHomeWallpaperActionIconRes(mWallpaper.getActionIconRes(mAppContext))
+                    .setHomeWallpaperCollectionId(mWallpaper.getCollectionId(mAppContext))
+                    .setHomeWallpaperRemoteId(mWallpaper.getWallpaperId());
         }
 
-        private void setImageWallpaperLockMetadata(int lockWallpaperId) {
-            mWallpaperPreferences.setLockWallpaperId(lockWallpaperId);
-            mWallpaperPreferences.setLockWallpaperAttributions(
-                    mWallpaper.getAttributions(mAppContext));
-            mWallpaperPreferences.setLockWallpaperActionUrl(mWallpaper.getActionUrl(mAppContext));
-            mWallpaperPreferences.setLockWallpaperActionLabelRes(
-                    mWallpaper.getActionLabelRes(mAppContext));
-            mWallpaperPreferences.setLockWallpaperActionIconRes(
-                    mWallpaper.getActionIconRes(mAppContext));
-            mWallpaperPreferences.setLockWallpaperCollectionId(
-                    mWallpaper.getCollectionId(mAppContext));
+        private void setImageWallpaperLockMetadata(WallpaperPreferences.MetadataEditor editor,
+                int lockWallpaperId) {
+            editor.setLockWallpaperId(lockWallpaperId)
+                    .setLockWallpaperFileFingerprint(WallpaperHasher.getWallpaperFileFingerprint(
+                            mWallpaperManagerCompat, WallpaperManagerCompat.FLAG_LOCK))
+                    .setLockWallpaperAttributions(mWallpaper.getAttributions(mAppContext))
+                    .setLockWallpaperActionUrl(mWallpaper.getActionUrl(mAppContext))
+                    .setLockWallpaperActionLabelRes(mWallpaper.getActionLabelRes(mAppContext))
+                    .setLockWallpaperActionIconRes(mWallpaper.getActionIconRes(mAppContext))
+                    .setLockWallpaperCollectionId(mWallpaper.getCollectionId(mAppContext));
 
             // Save the lock wallpaper image's hash code as well for the sake of backup & restore
             // because WallpaperManager-generated IDs are specific to a physical device and
             // cannot be  used to identify a wallpaper image on another device after restore is
-            // complete.
-            saveLockWallpaperHashCode();
-        }
-
-        private void saveLockWallpaperHashCode() {
-            Bitmap lockBitmap = null;
-
-            ParcelFileDescriptor parcelFd = mWallpaperManagerCompat.getWallpaperFile(
-                    WallpaperManagerCompat.FLAG_LOCK);
-
-            if (parcelFd == null) {
-                return;
-            }
-
-            InputStream fileStream = null;
-            try {
-                fileStream = new FileInputStream(parcelFd.getFileDescriptor());
-                lockBitmap = BitmapFactory.decodeStream(fileStream);
-                parcelFd.close();
-            } catch (IOException e) {
-                Log.e(TAG, "IO exception when closing the file descriptor.");
-            } finally {
-                if (fileStream != null) {
-                    try {
-                        fileStream.close();
-                    } catch (IOException e) {
-                        Log.e(TAG,
-                                "IO exception when closing the input stream for the lock screen "
-                                        + "WP.");
-                    }
-                }
-            }
-
-            if (lockBitmap != null) {
-                long bitmapHash = BitmapUtils.generateHashCode(lockBitmap);
-                mWallpaperPreferences.setLockWallpaperHashCode(bitmapHash);
+            // complete. There's none to save if the lock screen shows the home wallpaper.
+            long bitmapHash = WallpaperHasher.hashLockWallpaper(mWallpaperManagerCompat,
+                    false /* legacy */);
+            if (bitmapHash != 0) {
+                editor.setLockWallpaperHashCode(bitmapHash);
             }
         }
     }
@@ -19,11 +19,14 @@ import android.app.backup.BackupManager;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.content.res.Configuration;
+import android.content.res.Resources;
 import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
+import com.android.wallpaper.model.WallpaperMetadata;
 import com.android.wallpaper.module.WallpaperPreferenceKeys.NoBackupKeys;
 
 import org.json.JSONArray;
@@ -33,8 +36,11 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Default implementation that writes to and reads from SharedPreferences.
@@ -45,13 +51,34 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
 
     private static final String TAG = "DefaultWPPreferences";
 
+    // Versions of the algorithm wallpaper hash codes are generated with. Hash codes saved before
+    // versions were recorded have none, and were generated with the legacy algorithm.
+    private static final int HASH_CODE_VERSION_LEGACY = 0;
+    private static final int HASH_CODE_VERSION = 1;
+
     protected SharedPreferences mSharedPrefs;
     protected SharedPreferences mNoBackupPrefs;
     protected Context mContext;
 
+    // Held while metadata edits are committed to memory and while metadata snapshots are read, so
+    // that a snapshot never mixes values from before and after an edit which spans both stores.
+    private final Object mMetadataLock = new Object();
+
+    // Incremented whenever either prefs file changes; snapshots of an older version are stale.
+    // Guarded by mMetadataLock, as are the fields below.
+    private int mMetadataVersion;
+    private MetadataSnapshot mHomeMetadataSnapshot;
+    private MetadataSnapshot mLockMetadataSnapshot;
+    // Resource IDs resolved from persisted resource names, valid for mResIdConfiguration.
+    private final Map<String, Integer> mResIdsByName = new HashMap<>();
+    private Configuration mResIdConfiguration;
+
+    private DailyRotationHistory mDailyRotationHistory;
+
     // Keep a strong reference to this OnSharedPreferenceChangeListener to prevent the listener from
     // being garbage collected because SharedPreferences only holds a weak reference.
     private OnSharedPreferenceChangeListener mSharedPrefsChangedListener;
+    private OnSharedPreferenceChangeListener mNoBackupPrefsChangedListener;
 
     public DefaultWallpaperPreferences(Context context) {
         mSharedPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
@@ -63,8 +90,16 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
 
         // Register a prefs changed listener so that all prefs changes trigger a backup event.
         final BackupManager backupManager = new BackupManager(context);
-        mSharedPrefsChangedListener = (sharedPreferences, key) -> backupManager.dataChanged();
+        mSharedPrefsChangedListener = (sharedPreferences, key) -> {
+            backupManager.dataChanged();
+            invalidateMetadataSnapshots();
+        };
         mSharedPrefs.registerOnSharedPreferenceChangeListener(mSharedPrefsChangedListener);
+
+        // Changes which don't go through a MetadataEditor still need to invalidate the cached
+        // metadata snapshots.
+        mNoBackupPrefsChangedListener = (sharedPreferences, key) -> invalidateMetadataSnapshots();
+        mNoBackupPrefs.registerOnSharedPreferenceChangeListener(mNoBackupPrefsChangedListener);
     }
 
     /**
@@ -155,18 +190,108 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
         editor.apply();
     }
 
+    /**
+     * Resolves the ID of a resource whose name was persisted under the given key. Resolved IDs are
+     * cached until the configuration changes, since {@link Resources#getIdentifier} is slow. Must
+     * be called with mMetadataLock held.
+     */
     private int getResIdPersistedByName(String key, String type) {
         String resName = mSharedPrefs.getString(key, null);
         if (resName == null) {
             return 0;
         }
-        return mContext.getResources().getIdentifier(resName, type,
-                mContext.getPackageName());
+        Integer resId = mResIdsByName.get(resName);
+        if (resId == null) {
+            resId = mContext.getResources().getIdentifier(resName, type,
+                    mContext.getPackageName());
+            mResIdsByName.put(resName, resId);
+        }
+        return resId;
+    }
+
+    /**
+     * Drops resolved resource IDs, and the snapshots which contain them, if the configuration has
+     * changed since they were resolved. Must be called with mMetadataLock held.
+     */
+    private void checkResIdConfiguration() {
+        Configuration configuration = mContext.getResources().getConfiguration();
+        if (mResIdConfiguration == null || mResIdConfiguration.diff(configuration) != 0) {
+            mResIdConfiguration = new Configuration(configuration);
+            mResIdsByName.clear();
+            mHomeMetadataSnapshot = null;
+            mLockMetadataSnapshot = null;
+        }
+    }
+
+    private void invalidateMetadataSnapshots() {
+        synchronized (mMetadataLock) {
+            mMetadataVersion++;
+        }
+    }
+
+    private MetadataSnapshot getHomeMetadataSnapshot() {
+        synchronized (mMetadataLock) {
+            checkResIdConfiguration();
+            if (mHomeMetadataSnapshot == null
+                    || mHomeMetadataSnapshot.mVersion != mMetadataVersion) {
+                mHomeMetadataSnapshot = new MetadataSnapshot(
+                        mMetadataVersion,
+                        readAttributions(
+                                WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ATTRIB_1,
+                                WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ATTRIB_2,
+                                WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ATTRIB_3),
+                        mSharedPrefs.getString(
+                                WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ACTION_URL, null),
+                        // We need to store and read the resource names as their ids could change
+                        // from build to build and we might end up reading the wrong id
+                        getResIdPersistedByName(
+                                WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ACTION_LABEL_RES,
+                                "string"),
+                        getResIdPersistedByName(
+                                WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ACTION_ICON_RES,
+                                "drawable"),
+                        mSharedPrefs.getString(
+                                WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_COLLECTION_ID, null),
+                        mNoBackupPrefs.getString(
+                                NoBackupKeys.KEY_HOME_WALLPAPER_BACKING_FILE, null));
+            }
+            return mHomeMetadataSnapshot;
+        }
+    }
+
+    private MetadataSnapshot getLockMetadataSnapshot() {
+        synchronized (mMetadataLock) {
+            checkResIdConfiguration();
+            if (mLockMetadataSnapshot == null
+                    || mLockMetadataSnapshot.mVersion != mMetadataVersion) {
+                mLockMetadataSnapshot = new MetadataSnapshot(
+                        mMetadataVersion,
+                        readAttributions(
+                                WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ATTRIB_1,
+                                WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ATTRIB_2,
+                                WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ATTRIB_3),
+                        mSharedPrefs.getString(
+                                WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ACTION_URL, null),
+                        getResIdPersistedByName(
+                                WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ACTION_LABEL_RES,
+                                "string"),
+                        getResIdPersistedByName(
+                                WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ACTION_ICON_RES,
+                                "drawable"),
+                        mSharedPrefs.getString(
+                                WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_COLLECTION_ID, null),
+                        mNoBackupPrefs.getString(
+                                NoBackupKeys.KEY_LOCK_WALLPAPER_BACKING_FILE, null));
+            }
+            return mLockMetadataSnapshot;
+        }
     }
 
-    private void persistResIdByName(String key, int resId) {
-        String resName = mContext.getResources().getResourceName(resId);
-        mSharedPrefs.edit().putString(key, resName).apply();
+    private List<String> readAttributions(String key1, String key2, String key3) {
+        return Collections.unmodifiableList(Arrays.asList(
+                mSharedPrefs.getString(key1, null),
+                mSharedPrefs.getString(key2, null),
+                mSharedPrefs.getString(key3, null)));
     }
 
     @Override
@@ -180,71 +305,48 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
 
     @Override
     public void setWallpaperPresentationMode(@PresentationMode int presentationMode) {
-        mSharedPrefs.edit().putInt(
-                WallpaperPreferenceKeys.KEY_WALLPAPER_PRESENTATION_MODE, presentationMode).apply();
+        editMetadata().setWallpaperPresentationMode(presentationMode).apply();
     }
 
     @Override
     public List<String> getHomeWallpaperAttributions() {
-        return Arrays.asList(
-                mSharedPrefs.getString(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ATTRIB_1, null),
-                mSharedPrefs.getString(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ATTRIB_2, null),
-                mSharedPrefs.getString(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ATTRIB_3, null));
-
+        return getHomeMetadataSnapshot().mAttributions;
     }
 
     @Override
     public void setHomeWallpaperAttributions(List<String> attributions) {
-        SharedPreferences.Editor editor = mSharedPrefs.edit();
-        if (attributions.size() > 0) {
-            editor.putString(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ATTRIB_1,
-                    attributions.get(0));
-        }
-        if (attributions.size() > 1) {
-            editor.putString(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ATTRIB_2,
-                    attributions.get(1));
-        }
-        if (attributions.size() > 2) {
-            editor.putString(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ATTRIB_3,
-                    attributions.get(2));
-        }
-        editor.apply();
+        editMetadata().setHomeWallpaperAttributions(attributions).apply();
     }
 
     @Override
     @Nullable
     public String getHomeWallpaperActionUrl() {
-        return mSharedPrefs.getString(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ACTION_URL, null);
+        return getHomeMetadataSnapshot().mActionUrl;
     }
 
     @Override
     public void setHomeWallpaperActionUrl(String actionUrl) {
-        mSharedPrefs.edit().putString(
-                WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ACTION_URL, actionUrl).apply();
+        editMetadata().setHomeWallpaperActionUrl(actionUrl).apply();
     }
 
     @Override
     public int getHomeWallpaperActionLabelRes() {
-        // We need to store and read the resource names as their ids could change from build to
-        // build and we might end up reading the wrong id
-        return getResIdPersistedByName(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ACTION_LABEL_RES,
-                "string");
+        return getHomeMetadataSnapshot().mActionLabelRes;
     }
 
     @Override
     public void setHomeWallpaperActionLabelRes(int resId) {
-        persistResIdByName(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ACTION_LABEL_RES, resId);
+        editMetadata().setHomeWallpaperActionLabelRes(resId).apply();
     }
 
     @Override
     public int getHomeWallpaperActionIconRes() {
-        return getResIdPersistedByName(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ACTION_ICON_RES,
-                "drawable");
+        return getHomeMetadataSnapshot().mActionIconRes;
     }
 
     @Override
     public void setHomeWallpaperActionIconRes(int resId) {
-        persistResIdByName(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ACTION_ICON_RES, resId);
+        editMetadata().setHomeWallpaperActionIconRes(resId).apply();
     }
 
     @Override
@@ -255,35 +357,29 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
 
     @Override
     public void setHomeWallpaperBaseImageUrl(String baseImageUrl) {
-        mNoBackupPrefs.edit().putString(
-                NoBackupKeys.KEY_HOME_WALLPAPER_BASE_IMAGE_URL, baseImageUrl)
-                .apply();
+        editMetadata().setHomeWallpaperBaseImageUrl(baseImageUrl).apply();
     }
 
     @Override
     @Nullable
     public String getHomeWallpaperCollectionId() {
-        return mSharedPrefs.getString(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_COLLECTION_ID,
-                null);
+        return getHomeMetadataSnapshot().mCollectionId;
     }
 
     @Override
     public void setHomeWallpaperCollectionId(String collectionId) {
-        mSharedPrefs.edit().putString(
-                WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_COLLECTION_ID, collectionId).apply();
+        editMetadata().setHomeWallpaperCollectionId(collectionId).apply();
     }
 
     @Override
     @Nullable
     public String getHomeWallpaperBackingFileName() {
-        return mNoBackupPrefs.getString(
-                NoBackupKeys.KEY_HOME_WALLPAPER_BACKING_FILE, null);
+        return getHomeMetadataSnapshot().mBackingFileName;
     }
 
     @Override
     public void setHomeWallpaperBackingFileName(String fileName) {
-        mNoBackupPrefs.edit().putString(
-                NoBackupKeys.KEY_HOME_WALLPAPER_BACKING_FILE, fileName).apply();
+        editMetadata().setHomeWallpaperBackingFileName(fileName).apply();
     }
 
     @Override
@@ -293,33 +389,18 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
 
     @Override
     public void setHomeWallpaperHashCode(long hashCode) {
-        mSharedPrefs.edit().putLong(
-                WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_HASH_CODE, hashCode).apply();
+        editMetadata().setHomeWallpaperHashCode(hashCode).apply();
     }
 
     @Override
-    public void clearHomeWallpaperMetadata() {
-        String homeWallpaperBackingFileName = getHomeWallpaperBackingFileName();
-        if (!TextUtils.isEmpty(homeWallpaperBackingFileName)) {
-            new File(homeWallpaperBackingFileName).delete();
-        }
-        mSharedPrefs.edit()
-                .remove(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ATTRIB_1)
-                .remove(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ATTRIB_2)
-                .remove(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ATTRIB_3)
-                .remove(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ACTION_URL)
-                .remove(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ACTION_LABEL_RES)
-                .remove(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ACTION_ICON_RES)
-                .remove(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_HASH_CODE)
-                .apply();
+    public boolean isHomeWallpaperHashCodeLegacy() {
+        return mSharedPrefs.getInt(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_HASH_CODE_VERSION,
+                HASH_CODE_VERSION_LEGACY) < HASH_CODE_VERSION;
+    }
 
-        mNoBackupPrefs.edit()
-                .remove(NoBackupKeys.KEY_HOME_WALLPAPER_PACKAGE_NAME)
-                .remove(NoBackupKeys.KEY_HOME_WALLPAPER_MANAGER_ID)
-                .remove(NoBackupKeys.KEY_HOME_WALLPAPER_REMOTE_ID)
-                .remove(NoBackupKeys.KEY_HOME_WALLPAPER_BASE_IMAGE_URL)
-                .remove(NoBackupKeys.KEY_HOME_WALLPAPER_BACKING_FILE)
-                .apply();
+    @Override
+    public void clearHomeWallpaperMetadata() {
+        editMetadata().clearHomeWallpaperMetadata().apply();
     }
 
     @Override
@@ -330,9 +411,7 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
 
     @Override
     public void setHomeWallpaperPackageName(String packageName) {
-        mNoBackupPrefs.edit().putString(
-                NoBackupKeys.KEY_HOME_WALLPAPER_PACKAGE_NAME, packageName)
-                .apply();
+        editMetadata().setHomeWallpaperPackageName(packageName).apply();
     }
 
     @Override
@@ -343,9 +422,18 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
 
     @Override
     public void setHomeWallpaperManagerId(int homeWallpaperId) {
-        mNoBackupPrefs.edit().putInt(
-                NoBackupKeys.KEY_HOME_WALLPAPER_MANAGER_ID, homeWallpaperId)
-                .apply();
+        editMetadata().setHomeWallpaperManagerId(homeWallpaperId).apply();
+    }
+
+    @Override
+    public long getHomeWallpaperFileFingerprint() {
+        return mNoBackupPrefs.getLong(
+                NoBackupKeys.KEY_HOME_WALLPAPER_FILE_FINGERPRINT, 0);
+    }
+
+    @Override
+    public void setHomeWallpaperFileFingerprint(long fingerprint) {
+        editMetadata().setHomeWallpaperFileFingerprint(fingerprint).apply();
     }
 
     @Nullable
@@ -357,98 +445,70 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
 
     @Override
     public void setHomeWallpaperRemoteId(@Nullable String wallpaperRemoteId) {
-        mNoBackupPrefs.edit().putString(
-                NoBackupKeys.KEY_HOME_WALLPAPER_REMOTE_ID, wallpaperRemoteId)
-                .apply();
+        editMetadata().setHomeWallpaperRemoteId(wallpaperRemoteId).apply();
     }
 
     @Override
     public List<String> getLockWallpaperAttributions() {
-        return Arrays.asList(
-                mSharedPrefs.getString(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ATTRIB_1, null),
-                mSharedPrefs.getString(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ATTRIB_2, null),
-                mSharedPrefs.getString(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ATTRIB_3, null));
-
+        return getLockMetadataSnapshot().mAttributions;
     }
 
     @Override
     public void setLockWallpaperAttributions(List<String> attributions) {
-        SharedPreferences.Editor editor = mSharedPrefs.edit();
-        if (attributions.size() > 0) {
-            editor.putString(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ATTRIB_1,
-                    attributions.get(0));
-        }
-        if (attributions.size() > 1) {
-            editor.putString(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ATTRIB_2,
-                    attributions.get(1));
-        }
-        if (attributions.size() > 2) {
-            editor.putString(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ATTRIB_3,
-                    attributions.get(2));
-        }
-        editor.apply();
+        editMetadata().setLockWallpaperAttributions(attributions).apply();
     }
 
     @Override
     @Nullable
     public String getLockWallpaperActionUrl() {
-        return mSharedPrefs.getString(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ACTION_URL, null);
+        return getLockMetadataSnapshot().mActionUrl;
     }
 
     @Override
     public void setLockWallpaperActionUrl(String actionUrl) {
-        mSharedPrefs.edit().putString(
-                WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ACTION_URL, actionUrl).apply();
+        editMetadata().setLockWallpaperActionUrl(actionUrl).apply();
     }
 
     @Override
     public int getLockWallpaperActionLabelRes() {
-        // We need to store and read the resource names as their ids could change from build to
-        // build and we might end up reading the wrong id
-        return getResIdPersistedByName(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ACTION_LABEL_RES,
-                "string");
+        return getLockMetadataSnapshot().mActionLabelRes;
     }
 
     @Override
     public void setLockWallpaperActionLabelRes(int resId) {
-        persistResIdByName(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ACTION_LABEL_RES, resId);
+        editMetadata().setLockWallpaperActionLabelRes(resId).apply();
     }
 
     @Override
     public int getLockWallpaperActionIconRes() {
-        return getResIdPersistedByName(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ACTION_ICON_RES,
-                "drawable");
+        return getLockMetadataSnapshot().mActionIconRes;
     }
 
     @Override
     public void setLockWallpaperActionIconRes(int resId) {
-        persistResIdByName(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ACTION_ICON_RES, resId);
+        editMetadata().setLockWallpaperActionIconRes(resId).apply();
     }
 
     @Override
     @Nullable
     public String getLockWallpaperCollectionId() {
-        return mSharedPrefs.getString(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_COLLECTION_ID,
-                null);
+        return getLockMetadataSnapshot().mCollectionId;
     }
 
     @Override
     public void setLockWallpaperCollectionId(String collectionId) {
-        mSharedPrefs.edit().putString(
-                WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_COLLECTION_ID, collectionId).apply();
+        editMetadata().setLockWallpaperCollectionId(collectionId).apply();
     }
 
     @Override
     @Nullable
     public String getLockWallpaperBackingFileName() {
-        return mNoBackupPrefs.getString(
-                NoBackupKeys.KEY_LOCK_WALLPAPER_BACKING_FILE, null);
+        return getLockMetadataSnapshot().mBackingFileName;
     }
 
     @Override
     public void setLockWallpaperBackingFileName(String fileName) {
-        mNoBackupPrefs.edit().putString(
-                NoBackupKeys.KEY_LOCK_WALLPAPER_BACKING_FILE, fileName).apply();
+        editMetadata().setLockWallpaperBackingFileName(fileName).apply();
     }
 
     @Override
@@ -459,9 +519,18 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
 
     @Override
     public void setLockWallpaperId(int lockWallpaperId) {
-        mNoBackupPrefs.edit().putInt(
-                NoBackupKeys.KEY_LOCK_WALLPAPER_MANAGER_ID, lockWallpaperId)
-                .apply();
+        editMetadata().setLockWallpaperId(lockWallpaperId).apply();
+    }
+
+    @Override
+    public long getLockWallpaperFileFingerprint() {
+        return mNoBackupPrefs.getLong(
+                NoBackupKeys.KEY_LOCK_WALLPAPER_FILE_FINGERPRINT, 0);
+    }
+
+    @Override
+    public void setLockWallpaperFileFingerprint(long fingerprint) {
+        editMetadata().setLockWallpaperFileFingerprint(fingerprint).apply();
     }
 
     @Override
@@ -471,67 +540,44 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
 
     @Override
     public void setLockWallpaperHashCode(long hashCode) {
-        mSharedPrefs.edit()
-                .putLong(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_HASH_CODE, hashCode)
-                .apply();
+        editMetadata().setLockWallpaperHashCode(hashCode).apply();
     }
 
     @Override
-    public void clearLockWallpaperMetadata() {
-        String lockWallpaperBackingFileName = getLockWallpaperBackingFileName();
-        if (!TextUtils.isEmpty(lockWallpaperBackingFileName)) {
-            new File(lockWallpaperBackingFileName).delete();
-        }
-        mSharedPrefs.edit()
-                .remove(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ATTRIB_1)
-                .remove(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ATTRIB_2)
-                .remove(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ATTRIB_3)
-                .remove(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ACTION_URL)
-                .remove(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ACTION_LABEL_RES)
-                .remove(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ACTION_ICON_RES)
-                .remove(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_HASH_CODE)
-                .apply();
-
-        mNoBackupPrefs.edit()
-                .remove(NoBackupKeys.KEY_LOCK_WALLPAPER_MANAGER_ID)
-                .remove(NoBackupKeys.KEY_LOCK_WALLPAPER_BACKING_FILE)
-                .apply();
+    public boolean isLockWallpaperHashCodeLegacy() {
+        return mSharedPrefs.getInt(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_HASH_CODE_VERSION,
+                HASH_CODE_VERSION_LEGACY) < HASH_CODE_VERSION;
     }
 
     @Override
-    public void addDailyRotation(long timestamp) {
-        String jsonString = mNoBackupPrefs.getString(
-                NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS, "[]");
-        try {
-            JSONArray jsonArray = new JSONArray(jsonString);
-            jsonArray.put(timestamp);
+    public void clearLockWallpaperMetadata() {
+        editMetadata().clearLockWallpaperMetadata().apply();
+    }
 
-            mNoBackupPrefs.edit()
-                    .putString(NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS,
-                            jsonArray.toString())
-                    .apply();
-        } catch (JSONException e) {
-            Log.e(TAG, "Failed to add a daily rotation timestamp due to a JSON parse exception");
-        }
+    @Override
+    public MetadataEditor editMetadata() {
+        return new DefaultMetadataEditor();
     }
 
     @Override
-    public long getLastDailyRotationTimestamp() {
-        String jsonString = mNoBackupPrefs.getString(
-                NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS, "[]");
+    public WallpaperMetadata getHomeWallpaperMetadata(
+            @Nullable android.app.WallpaperInfo wallpaperComponent) {
+        return getHomeMetadataSnapshot().toWallpaperMetadata(wallpaperComponent);
+    }
 
-        try {
-            JSONArray jsonArray = new JSONArray(jsonString);
+    @Override
+    public WallpaperMetadata getLockWallpaperMetadata() {
+        return getLockMetadataSnapshot().toWallpaperMetadata(null /* wallpaperComponent */);
+    }
 
-            if (jsonArray.length() == 0) {
-                return -1;
-            }
+    @Override
+    public void addDailyRotation(long timestamp) {
+        getDailyRotationHistory().add(timestamp);
+    }
 
-            return jsonArray.getLong(jsonArray.length() - 1);
-        } catch (JSONException e) {
-            Log.e(TAG, "Failed to find a daily rotation timestamp due to a JSON parse exception");
-            return -1;
-        }
+    @Override
+    public long getLastDailyRotationTimestamp() {
+        return getDailyRotationHistory().getLast();
     }
 
     @Override
@@ -550,31 +596,10 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
             return null;
         }
 
+        // Timestamps older than one week are skipped here rather than pruned; the history only
+        // keeps a fixed number of the most recent ones anyway.
         List<Long> timestamps = new ArrayList<>();
-        String jsonString = mNoBackupPrefs.getString(
-                NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS, "[]");
-
-        try {
-            JSONArray jsonArray = new JSONArray(jsonString);
-
-            // Before recording the new daily rotation timestamp, filter out any that are older than
-            // 1 week old.
-            for (int i = 0; i < jsonArray.length(); i++) {
-                long existingTimestamp = jsonArray.getLong(i);
-                if (existingTimestamp >= oneWeekAgoTimestamp) {
-                    timestamps.add(existingTimestamp);
-                }
-            }
-
-            jsonArray = new JSONArray(timestamps);
-            mNoBackupPrefs.edit()
-                    .putString(NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS,
-                            jsonArray.toString())
-                    .apply();
-        } catch (JSONException e) {
-            Log.e(TAG, "Failed to get daily rotation timestamps due to a JSON parse exception");
-        }
-
+        getDailyRotationHistory().getRange(oneWeekAgoTimestamp, Long.MAX_VALUE, timestamps);
         return timestamps;
     }
 
@@ -603,26 +628,39 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
         }
 
         List<Long> timestamps = new ArrayList<>();
-        String jsonString = mNoBackupPrefs.getString(
-                NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS, "[]");
-
-        try {
-            JSONArray jsonArray = new JSONArray(jsonString);
-
-            // Filter the timestamps (which cover up to one week of data) to only include those
-            // between midnight yesterday and midnight today.
-            for (int i = 0; i < jsonArray.length(); i++) {
-                long timestamp = jsonArray.getLong(i);
-                if (timestamp >= midnightYesterdayTimestamp && timestamp < midnightTodayTimestamp) {
-                    timestamps.add(timestamp);
-                }
-            }
+        getDailyRotationHistory().getRange(
+                midnightYesterdayTimestamp, midnightTodayTimestamp, timestamps);
+        return timestamps;
+    }
 
-        } catch (JSONException e) {
-            Log.e(TAG, "Failed to get daily rotation timestamps due to a JSON parse exception");
+    /**
+     * Returns the daily rotation history, first moving over any timestamps which previous versions
+     * of the app stored as a JSON array in mNoBackupPrefs.
+     */
+    private synchronized DailyRotationHistory getDailyRotationHistory() {
+        if (mDailyRotationHistory != null) {
+            return mDailyRotationHistory;
         }
 
-        return timestamps;
+        mDailyRotationHistory = DailyRotationHistory.getInstance(mContext);
+        if (mNoBackupPrefs.contains(NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS)) {
+            if (mDailyRotationHistory.isEmpty()) {
+                try {
+                    JSONArray jsonArray = new JSONArray(mNoBackupPrefs.getString(
+                            NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS, "[]"));
+                    for (int i = 0; i < jsonArray.length(); i++) {
+                        mDailyRotationHistory.add(jsonArray.getLong(i));
+                    }
+                } catch (JSONException e) {
+                    Log.e(TAG, "Failed to migrate daily rotation timestamps due to a JSON parse "
+                            + "exception");
+                }
+            }
+            mNoBackupPrefs.edit()
+                    .remove(NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS)
+                    .apply();
+        }
+        return mDailyRotationHistory;
     }
 
     @Override
@@ -641,6 +679,7 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
 
     @Override
     public void clearDailyRotations() {
+        getDailyRotationHistory().clear();
         mNoBackupPrefs.edit()
                 .remove(NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS)
                 .remove(NoBackupKeys.KEY_DAILY_WALLPAPER_ENABLED_TIMESTAMP)
@@ -798,4 +837,305 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
                 .putInt(NoBackupKeys.KEY_NUM_DAYS_DAILY_ROTATION_NOT_ATTEMPTED, 0)
                 .apply();
     }
+
+    /**
+     * Immutable copy of the metadata persisted for one wallpaper destination, as of a given
+     * metadata version.
+     */
+    private static final class MetadataSnapshot {
+        final int mVersion;
+        final List<String> mAttributions;
+        final String mActionUrl;
+        final int mActionLabelRes;
+        final int mActionIconRes;
+        final String mCollectionId;
+        final String mBackingFileName;
+
+        MetadataSnapshot(int version, List<String> attributions, String actionUrl,
+                int actionLabelRes, int actionIconRes, String collectionId,
+                String backingFileName) {
+            mVersion = version;
+            mAttributions = attributions;
+            mActionUrl = actionUrl;
+            mActionLabelRes = actionLabelRes;
+            mActionIconRes = actionIconRes;
+            mCollectionId = collectionId;
+            mBackingFileName = backingFileName;
+        }
+
+        WallpaperMetadata toWallpaperMetadata(
+                @Nullable android.app.WallpaperInfo wallpaperComponent) {
+            return new WallpaperMetadata(mAttributions, mActionUrl, mActionLabelRes,
+                    mActionIconRes, mCollectionId, mBackingFileName, wallpaperComponent);
+        }
+    }
+
+    /**
+     * Collects metadata changes into at most one editor per SharedPreferences file, and deletes the
+     * backing files of cleared metadata once the changes have been applied.
+     */
+    private class DefaultMetadataEditor implements MetadataEditor {
+        private SharedPreferences.Editor mSharedEditor;
+        private SharedPreferences.Editor mNoBackupEditor;
+        private final List<String> mBackingFilesToDelete = new ArrayList<>();
+
+        private SharedPreferences.Editor sharedEditor() {
+            if (mSharedEditor == null) {
+                mSharedEditor = mSharedPrefs.edit();
+            }
+            return mSharedEditor;
+        }
+
+        private SharedPreferences.Editor noBackupEditor() {
+            if (mNoBackupEditor == null) {
+                mNoBackupEditor = mNoBackupPrefs.edit();
+            }
+            return mNoBackupEditor;
+        }
+
+        private void putResIdByName(String key, int resId) {
+            sharedEditor().putString(key, mContext.getResources().getResourceName(resId));
+        }
+
+        private void putAttributions(List<String> attributions, String key1, String key2,
+                String key3) {
+            SharedPreferences.Editor editor = sharedEditor();
+            if (attributions.size() > 0) {
+                editor.putString(key1, attributions.get(0));
+            }
+            if (attributions.size() > 1) {
+                editor.putString(key2, attributions.get(1));
+            }
+            if (attributions.size() > 2) {
+                editor.putString(key3, attributions.get(2));
+            }
+        }
+
+        @Override
+        public MetadataEditor setWallpaperPresentationMode(
+                @PresentationMode int presentationMode) {
+            sharedEditor().putInt(
+                    WallpaperPreferenceKeys.KEY_WALLPAPER_PRESENTATION_MODE, presentationMode);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor clearHomeWallpaperMetadata() {
+            String homeWallpaperBackingFileName = getHomeWallpaperBackingFileName();
+            if (!TextUtils.isEmpty(homeWallpaperBackingFileName)) {
+                mBackingFilesToDelete.add(homeWallpaperBackingFileName);
+            }
+            sharedEditor()
+                    .remove(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ATTRIB_1)
+                    .remove(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ATTRIB_2)
+                    .remove(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ATTRIB_3)
+                    .remove(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ACTION_URL)
+                    .remove(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ACTION_LABEL_RES)
+                    .remove(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ACTION_ICON_RES)
+                    .remove(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_HASH_CODE)
+                    .remove(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_HASH_CODE_VERSION);
+            noBackupEditor()
+                    .remove(NoBackupKeys.KEY_HOME_WALLPAPER_PACKAGE_NAME)
+                    .remove(NoBackupKeys.KEY_HOME_WALLPAPER_MANAGER_ID)
+                    .remove(NoBackupKeys.KEY_HOME_WALLPAPER_FILE_FINGERPRINT)
+                    .remove(NoBackupKeys.KEY_HOME_WALLPAPER_REMOTE_ID)
+                    .remove(NoBackupKeys.KEY_HOME_WALLPAPER_BASE_IMAGE_URL)
+                    .remove(NoBackupKeys.KEY_HOME_WALLPAPER_BACKING_FILE);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperAttributions(List<String> attributions) {
+            putAttributions(attributions,
+                    WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ATTRIB_1,
+                    WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ATTRIB_2,
+                    WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ATTRIB_3);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperActionUrl(String actionUrl) {
+            sharedEditor().putString(
+                    WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ACTION_URL, actionUrl);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperActionLabelRes(int resId) {
+            putResIdByName(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ACTION_LABEL_RES, resId);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperActionIconRes(int resId) {
+            putResIdByName(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_ACTION_ICON_RES, resId);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperBaseImageUrl(String baseImageUrl) {
+            noBackupEditor().putString(
+                    NoBackupKeys.KEY_HOME_WALLPAPER_BASE_IMAGE_URL, baseImageUrl);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperCollectionId(String collectionId) {
+            sharedEditor().putString(
+                    WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_COLLECTION_ID, collectionId);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperBackingFileName(String fileName) {
+            noBackupEditor().putString(NoBackupKeys.KEY_HOME_WALLPAPER_BACKING_FILE, fileName);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperHashCode(long hashCode) {
+            sharedEditor()
+                    .putLong(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_HASH_CODE, hashCode)
+                    .putInt(WallpaperPreferenceKeys.KEY_HOME_WALLPAPER_HASH_CODE_VERSION,
+                            HASH_CODE_VERSION);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperPackageName(String packageName) {
+            noBackupEditor().putString(NoBackupKeys.KEY_HOME_WALLPAPER_PACKAGE_NAME, packageName);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperManagerId(int homeWallpaperId) {
+            noBackupEditor().putInt(NoBackupKeys.KEY_HOME_WALLPAPER_MANAGER_ID, homeWallpaperId);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperFileFingerprint(long fingerprint) {
+            noBackupEditor().putLong(NoBackupKeys.KEY_HOME_WALLPAPER_FILE_FINGERPRINT, fingerprint);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperRemoteId(@Nullable String wallpaperRemoteId) {
+            noBackupEditor().putString(
+                    NoBackupKeys.KEY_HOME_WALLPAPER_REMOTE_ID, wallpaperRemoteId);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor clearLockWallpaperMetadata() {
+            String lockWallpaperBackingFileName = getLockWallpaperBackingFileName();
+            if (!TextUtils.isEmpty(lockWallpaperBackingFileName)) {
+                mBackingFilesToDelete.add(lockWallpaperBackingFileName);
+            }
+            sharedEditor()
+                    .remove(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ATTRIB_1)
+                    .remove(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ATTRIB_2)
+                    .remove(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ATTRIB_3)
+                    .remove(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ACTION_URL)
+                    .remove(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ACTION_LABEL_RES)
+                    .remove(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ACTION_ICON_RES)
+                    .remove(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_HASH_CODE)
+                    .remove(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_HASH_CODE_VERSION);
+            noBackupEditor()
+                    .remove(NoBackupKeys.KEY_LOCK_WALLPAPER_MANAGER_ID)
+                    .remove(NoBackupKeys.KEY_LOCK_WALLPAPER_FILE_FINGERPRINT)
+                    .remove(NoBackupKeys.KEY_LOCK_WALLPAPER_BACKING_FILE);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setLockWallpaperAttributions(List<String> attributions) {
+            putAttributions(attributions,
+                    WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ATTRIB_1,
+                    WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ATTRIB_2,
+                    WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ATTRIB_3);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setLockWallpaperActionUrl(String actionUrl) {
+            sharedEditor().putString(
+                    WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ACTION_URL, actionUrl);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setLockWallpaperActionLabelRes(int resId) {
+            putResIdByName(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ACTION_LABEL_RES, resId);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setLockWallpaperActionIconRes(int resId) {
+            putResIdByName(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_ACTION_ICON_RES, resId);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setLockWallpaperCollectionId(String collectionId) {
+            sharedEditor().putString(
+                    WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_COLLECTION_ID, collectionId);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setLockWallpaperBackingFileName(String fileName) {
+            noBackupEditor().putString(NoBackupKeys.KEY_LOCK_WALLPAPER_BACKING_FILE, fileName);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setLockWallpaperHashCode(long hashCode) {
+            sharedEditor()
+                    .putLong(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_HASH_CODE, hashCode)
+                    .putInt(WallpaperPreferenceKeys.KEY_LOCK_WALLPAPER_HASH_CODE_VERSION,
+                            HASH_CODE_VERSION);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setLockWallpaperId(int lockWallpaperId) {
+            noBackupEditor().putInt(NoBackupKeys.KEY_LOCK_WALLPAPER_MANAGER_ID, lockWallpaperId);
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setLockWallpaperFileFingerprint(long fingerprint) {
+            noBackupEditor().putLong(NoBackupKeys.KEY_LOCK_WALLPAPER_FILE_FINGERPRINT, fingerprint);
+            return this;
+        }
+
+        @Override
+        public void apply() {
+            synchronized (mMetadataLock) {
+                if (mSharedEditor != null) {
+                    mSharedEditor.apply();
+                }
+                if (mNoBackupEditor != null) {
+                    mNoBackupEditor.apply();
+                }
+                // Change listeners are only notified later on the main thread, so don't let
+                // readers pick up a snapshot from before this edit in the meantime.
+                mMetadataVersion++;
+            }
+            mSharedEditor = null;
+            mNoBackupEditor = null;
+
+            // Changes apply in order, so a file cleared and then set again in this edit is still
+            // in use.
+            String homeFileName = getHomeWallpaperBackingFileName();
+            String lockFileName = getLockWallpaperBackingFileName();
+            for (String fileName : mBackingFilesToDelete) {
+                if (!fileName.equals(homeFileName) && !fileName.equals(lockFileName)) {
+                    new File(fileName).delete();
+                }
+            }
+            mBackingFilesToDelete.clear();
+        }
+    }
 }
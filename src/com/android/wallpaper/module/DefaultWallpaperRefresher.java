@@ -18,22 +18,14 @@ package com.android.wallpaper.module;
 import android.annotation.SuppressLint;
 import android.app.WallpaperManager;
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
 import android.os.AsyncTask;
-import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import com.android.wallpaper.R;
-import com.android.wallpaper.asset.BitmapUtils;
 import com.android.wallpaper.compat.BuildCompat;
 import com.android.wallpaper.compat.WallpaperManagerCompat;
 import com.android.wallpaper.model.WallpaperMetadata;
 
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -94,8 +86,10 @@ public class DefaultWallpaperRefresher implements WallpaperRefresher {
             List<WallpaperMetadata> wallpaperMetadatas = new ArrayList<>();
 
             if (!isHomeScreenMetadataCurrent() || isHomeScreenAttributionsEmpty()) {
-                mWallpaperPreferences.clearHomeWallpaperMetadata();
-                setFallbackHomeScreenWallpaperMetadata();
+                WallpaperPreferences.MetadataEditor editor = mWallpaperPreferences.editMetadata()
+                        .clearHomeWallpaperMetadata();
+                setFallbackHomeScreenWallpaperMetadata(editor);
+                editor.apply();
             }
 
             boolean isLockScreenWallpaperCurrentlySet = LockWallpaperStatusChecker
@@ -103,39 +97,21 @@ public class DefaultWallpaperRefresher implements WallpaperRefresher {
 
             if (!BuildCompat.isAtLeastN() || !isLockScreenWallpaperCurrentlySet) {
                 // Return only home metadata if pre-N device or lock screen wallpaper is not explicitly set.
-                wallpaperMetadatas.add(new WallpaperMetadata(
-                        mWallpaperPreferences.getHomeWallpaperAttributions(),
-                        mWallpaperPreferences.getHomeWallpaperActionUrl(),
-                        mWallpaperPreferences.getHomeWallpaperActionLabelRes(),
-                        mWallpaperPreferences.getHomeWallpaperActionIconRes(),
-                        mWallpaperPreferences.getHomeWallpaperCollectionId(),
-                        mWallpaperPreferences.getHomeWallpaperBackingFileName(),
+                wallpaperMetadatas.add(mWallpaperPreferences.getHomeWallpaperMetadata(
                         mWallpaperManager.getWallpaperInfo()));
                 return wallpaperMetadatas;
             }
 
             if (!isLockScreenMetadataCurrent() || isLockScreenAttributionsEmpty()) {
-                mWallpaperPreferences.clearLockWallpaperMetadata();
-                setFallbackLockScreenWallpaperMetadata();
+                WallpaperPreferences.MetadataEditor editor = mWallpaperPreferences.editMetadata()
+                        .clearLockWallpaperMetadata();
+                setFallbackLockScreenWallpaperMetadata(editor);
+                editor.apply();
             }
 
-            wallpaperMetadatas.add(new WallpaperMetadata(
-                    mWallpaperPreferences.getHomeWallpaperAttributions(),
-                    mWallpaperPreferences.getHomeWallpaperActionUrl(),
-                    mWallpaperPreferences.getHomeWallpaperActionLabelRes(),
-                    mWallpaperPreferences.getHomeWallpaperActionIconRes(),
-                    mWallpaperPreferences.getHomeWallpaperCollectionId(),
-                    mWallpaperPreferences.getHomeWallpaperBackingFileName(),
+            wallpaperMetadatas.add(mWallpaperPreferences.getHomeWallpaperMetadata(
                     mWallpaperManager.getWallpaperInfo()));
-
-            wallpaperMetadatas.add(new WallpaperMetadata(
-                    mWallpaperPreferences.getLockWallpaperAttributions(),
-                    mWallpaperPreferences.getLockWallpaperActionUrl(),
-                    mWallpaperPreferences.getLockWallpaperActionLabelRes(),
-                    mWallpaperPreferences.getLockWallpaperActionIconRes(),
-                    mWallpaperPreferences.getLockWallpaperCollectionId(),
-                    mWallpaperPreferences.getLockWallpaperBackingFileName(),
-                    null /* wallpaperComponent */));
+            wallpaperMetadatas.add(mWallpaperPreferences.getLockWallpaperMetadata());
 
             return wallpaperMetadatas;
         }
@@ -153,41 +129,42 @@ public class DefaultWallpaperRefresher implements WallpaperRefresher {
         }
 
         /**
-         * Sets fallback wallpaper attributions to WallpaperPreferences when the saved metadata did not
+         * Sets fallback wallpaper attributions on the given editor when the saved metadata did not
          * match the system wallpaper. For live wallpapers, loads the label (title) but for image
          * wallpapers loads a generic title string.
          */
-        private void setFallbackHomeScreenWallpaperMetadata() {
+        private void setFallbackHomeScreenWallpaperMetadata(
+                WallpaperPreferences.MetadataEditor editor) {
             android.app.WallpaperInfo wallpaperComponent = mWallpaperManager.getWallpaperInfo();
             if (wallpaperComponent == null) { // Image wallpaper
-                mWallpaperPreferences.setHomeWallpaperAttributions(
+                editor.setHomeWallpaperAttributions(
                         Arrays.asList(mAppContext.getResources().getString(R.string.fallback_wallpaper_title)));
 
                 // Set wallpaper ID if at least N or set a hash code if an earlier version of Android.
                 if (BuildCompat.isAtLeastN()) {
-                    mWallpaperPreferences.setHomeWallpaperManagerId(mWallpaperManagerCompat.getWallpaperId(
+                    editor.setHomeWallpaperManagerId(mWallpaperManagerCompat.getWallpaperId(
                             WallpaperManagerCompat.FLAG_SYSTEM));
                 } else {
-                    mWallpaperPreferences.setHomeWallpaperHashCode(getCurrentHomeWallpaperHashCode());
+                    editor.setHomeWallpaperHashCode(getCurrentHomeWallpaperHashCode());
                 }
             } else { // Live wallpaper
-                mWallpaperPreferences.setHomeWallpaperAttributions(Arrays.asList(
+                editor.setHomeWallpaperAttributions(Arrays.asList(
                         wallpaperComponent.loadLabel(mAppContext.getPackageManager()).toString()));
-                mWallpaperPreferences.setHomeWallpaperPackageName(mSystemWallpaperPackageName);
+                editor.setHomeWallpaperPackageName(mSystemWallpaperPackageName);
             }
-            mWallpaperPreferences.setWallpaperPresentationMode(
-                    WallpaperPreferences.PRESENTATION_MODE_STATIC);
+            editor.setWallpaperPresentationMode(WallpaperPreferences.PRESENTATION_MODE_STATIC);
         }
 
         /**
-         * Sets fallback lock screen wallpaper attributions to WallpaperPreferences. This should be
+         * Sets fallback lock screen wallpaper attributions on the given editor. This should be
          * called when the saved lock screen wallpaper metadata does not match the currently set lock
          * screen wallpaper.
          */
-        private void setFallbackLockScreenWallpaperMetadata() {
-            mWallpaperPreferences.setLockWallpaperAttributions(
+        private void setFallbackLockScreenWallpaperMetadata(
+                WallpaperPreferences.MetadataEditor editor) {
+            editor.setLockWallpaperAttributions(
                     Arrays.asList(mAppContext.getResources().getString(R.string.fallback_wallpaper_title)));
-            mWallpaperPreferences.setLockWallpaperId(mWallpaperManagerCompat.getWallpaperId(
+            editor.setLockWallpaperId(mWallpaperManagerCompat.getWallpaperId(
                     WallpaperManagerCompat.FLAG_LOCK));
         }
 
@@ -213,58 +190,34 @@ public class DefaultWallpaperRefresher implements WallpaperRefresher {
 
         private long getCurrentHomeWallpaperHashCode() {
             if (mCurrentHomeWallpaperHashCode == 0) {
-                    BitmapDrawable wallpaperDrawable = (BitmapDrawable) mWallpaperManagerCompat.getDrawable();
-                    Bitmap wallpaperBitmap = wallpaperDrawable.getBitmap();
-                    mCurrentHomeWallpaperHashCode = BitmapUtils.generateHashCode(wallpaperBitmap);
-
-                    // Manually request that WallpaperManager loses its reference to the current wallpaper
-                    // bitmap, which can occupy a large memory allocation for the lifetime of the app.
-                    mWallpaperManager.forgetLoadedWallpaper();
+                mCurrentHomeWallpaperHashCode = WallpaperHasher.hashHomeWallpaper(
+                        mWallpaperManager, mWallpaperManagerCompat, false /* legacy */);
             }
             return mCurrentHomeWallpaperHashCode;
         }
 
         private long getCurrentLockWallpaperHashCode() {
-            if (mCurrentLockWallpaperHashCode == 0
-                    && LockWallpaperStatusChecker.isLockWallpaperSet(mAppContext)) {
-                Bitmap wallpaperBitmap = getLockWallpaperBitmap();
-                mCurrentLockWallpaperHashCode = BitmapUtils.generateHashCode(wallpaperBitmap);
+            if (mCurrentLockWallpaperHashCode == 0) {
+                mCurrentLockWallpaperHashCode = WallpaperHasher.hashLockWallpaper(
+                        mWallpaperManagerCompat, false /* legacy */);
             }
             return mCurrentLockWallpaperHashCode;
         }
 
         /**
-         * Returns the lock screen wallpaper currently set on the device as a Bitmap, or null if no
-         * lock screen wallpaper is set.
+         * Returns whether the given wallpaper still has the WallpaperManager ID and file
+         * fingerprint recorded the last time its metadata was verified, in which case it can't
+         * have changed and doesn't need to be hashed.
          */
-        private Bitmap getLockWallpaperBitmap() {
-            Bitmap lockBitmap = null;
-
-            ParcelFileDescriptor pfd = mWallpaperManagerCompat.getWallpaperFile(
-                    WallpaperManagerCompat.FLAG_LOCK);
-            // getWallpaperFile returns null if the lock screen isn't explicitly set, so need this
-            // check.
-            if (pfd != null) {
-                InputStream fileStream = null;
-                try {
-                    fileStream = new FileInputStream(pfd.getFileDescriptor());
-                    lockBitmap = BitmapFactory.decodeStream(fileStream);
-                    pfd.close();
-                    return lockBitmap;
-                } catch (IOException e) {
-                    Log.e(TAG, "IO exception when closing the file descriptor.");
-                } finally {
-                    if (fileStream != null) {
-                        try {
-                            fileStream.close();
-                        } catch (IOException e) {
-                            Log.e(TAG, "IO exception when closing input stream for lock screen WP.");
-                        }
-                    }
-                }
+        private boolean isWallpaperFileUnchanged(
+                @WallpaperManagerCompat.WallpaperLocation int which, int savedWallpaperId,
+                long savedFingerprint) {
+            if (!BuildCompat.isAtLeastN() || savedWallpaperId == 0 || savedFingerprint == 0) {
+                return false;
             }
-
-            return lockBitmap;
+            return savedWallpaperId == mWallpaperManagerCompat.getWallpaperId(which)
+                    && savedFingerprint == WallpaperHasher.getWallpaperFileFingerprint(
+                            mWallpaperManagerCompat, which);
         }
 
         /**
@@ -282,7 +235,37 @@ public class DefaultWallpaperRefresher implements WallpaperRefresher {
                         == mWallpaperManagerCompat.getWallpaperId(WallpaperManagerCompat.FLAG_SYSTEM);
             }
 
-            return savedBitmapHash == getCurrentHomeWallpaperHashCode();
+            if (isWallpaperFileUnchanged(WallpaperManagerCompat.FLAG_SYSTEM,
+                    mWallpaperPreferences.getHomeWallpaperManagerId(),
+                    mWallpaperPreferences.getHomeWallpaperFileFingerprint())) {
+                return true;
+            }
+
+            WallpaperPreferences.MetadataEditor editor = mWallpaperPreferences.editMetadata();
+            boolean isCurrent;
+            if (mWallpaperPreferences.isHomeWallpaperHashCodeLegacy()) {
+                // The saved hash code was generated by an earlier version of the app, so compare
+                // it with a legacy one, and replace it with the current one if they match so the
+                // legacy comparison isn't needed again.
+                isCurrent = savedBitmapHash == WallpaperHasher.hashHomeWallpaper(
+                        mWallpaperManager, mWallpaperManagerCompat, true /* legacy */);
+                if (isCurrent) {
+                    editor.setHomeWallpaperHashCode(getCurrentHomeWallpaperHashCode());
+                }
+            } else {
+                isCurrent = savedBitmapHash == getCurrentHomeWallpaperHashCode();
+            }
+
+            // Record the wallpaper's ID and file so the next refresh doesn't need to hash it.
+            if (isCurrent && BuildCompat.isAtLeastN()) {
+                editor.setHomeWallpaperManagerId(
+                        mWallpaperManagerCompat.getWallpaperId(WallpaperManagerCompat.FLAG_SYSTEM))
+                        .setHomeWallpaperFileFingerprint(
+                                WallpaperHasher.getWallpaperFileFingerprint(
+                                        mWallpaperManagerCompat, WallpaperManagerCompat.FLAG_SYSTEM));
+            }
+            editor.apply();
+            return isCurrent;
         }
 
         /**
@@ -305,10 +288,39 @@ public class DefaultWallpaperRefresher implements WallpaperRefresher {
             // {@link WallpaperPreferences}, then check hash codes.
             long savedLockWallpaperHash = mWallpaperPreferences.getLockWallpaperHashCode();
 
-            return (savedLockWallpaperHash == 0)
-                    ? mWallpaperPreferences.getLockWallpaperId()
-                    == mWallpaperManagerCompat.getWallpaperId(WallpaperManagerCompat.FLAG_LOCK)
-                    : savedLockWallpaperHash == getCurrentLockWallpaperHashCode();
+            if (savedLockWallpaperHash == 0) {
+                return mWallpaperPreferences.getLockWallpaperId()
+                        == mWallpaperManagerCompat.getWallpaperId(WallpaperManagerCompat.FLAG_LOCK);
+            }
+
+            if (isWallpaperFileUnchanged(WallpaperManagerCompat.FLAG_LOCK,
+                    mWallpaperPreferences.getLockWallpaperId(),
+                    mWallpaperPreferences.getLockWallpaperFileFingerprint())) {
+                return true;
+            }
+
+            WallpaperPreferences.MetadataEditor editor = mWallpaperPreferences.editMetadata();
+            boolean isCurrent;
+            if (mWallpaperPreferences.isLockWallpaperHashCodeLegacy()) {
+                // See isHomeScreenImageWallpaperCurrent for hash codes saved by earlier versions.
+                isCurrent = savedLockWallpaperHash == WallpaperHasher.hashLockWallpaper(
+                        mWallpaperManagerCompat, true /* legacy */);
+                if (isCurrent) {
+                    editor.setLockWallpaperHashCode(getCurrentLockWallpaperHashCode());
+                }
+            } else {
+                isCurrent = savedLockWallpaperHash == getCurrentLockWallpaperHashCode();
+            }
+
+            if (isCurrent) {
+                editor.setLockWallpaperId(
+                        mWallpaperManagerCompat.getWallpaperId(WallpaperManagerCompat.FLAG_LOCK))
+                        .setLockWallpaperFileFingerprint(
+                                WallpaperHasher.getWallpaperFileFingerprint(
+                                        mWallpaperManagerCompat, WallpaperManagerCompat.FLAG_LOCK));
+            }
+            editor.apply();
+            return isCurrent;
         }
 
         /**
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link UserEventLogger} which records events on the device, as fixed-size binary records in a
+ * memory-mapped ring file laid out as described in {@link UserEventLogFormat}. Logging an event
+ * writes a single record in place without allocating; collection IDs are interned into a table
+ * in the same file the first time they are seen. Pulled files can be summarized with the
+ * host-side UserEventLogAnalyzer in tools/.
+ */
+public class LocalUserEventLogger implements UserEventLogger {
+    private static final String TAG = "LocalUserEventLogger";
+
+    // Number of events kept in memory while the ring file is being opened.
+    private static final int MAX_PENDING_EVENTS = 64;
+
+    private final Context mAppContext;
+    private final Object mLock = new Object();
+    // Guarded by mLock, as are the fields below. Null until the ring file has been opened.
+    private ByteBuffer mBuffer;
+    private final Map<String, Integer> mStringIndices = new HashMap<>();
+    private final List<PendingEvent> mPendingEvents = new ArrayList<>();
+
+    public LocalUserEventLogger(Context context) {
+        mAppContext = context.getApplicationContext();
+        // Mapping the file goes to disk, so keep it off the thread which logs the first event.
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(this::openBuffer);
+    }
+
+    @Override
+    public void logResumed(boolean provisioned, boolean wallpaper) {
+        log(UserEventLogFormat.EVENT_RESUMED, null, toInt(provisioned), toInt(wallpaper), 0);
+    }
+
+    @Override
+    public void logStopped() {
+        log(UserEventLogFormat.EVENT_STOPPED);
+    }
+
+    @Override
+    public void logAppLaunched() {
+        log(UserEventLogFormat.EVENT_APP_LAUNCHED);
+    }
+
+    @Override
+    public void logDailyRefreshTurnedOn() {
+        log(UserEventLogFormat.EVENT_DAILY_REFRESH_TURNED_ON);
+    }
+
+    @Override
+    public void logCurrentWallpaperPreviewed() {
+        log(UserEventLogFormat.EVENT_CURRENT_WALLPAPER_PREVIEWED);
+    }
+
+    @Override
+    public void logActionClicked(String collectionId, int actionLabelResId) {
+        log(UserEventLogFormat.EVENT_ACTION_CLICKED, collectionId, actionLabelResId, 0, 0);
+    }
+
+    @Override
+    public void logIndividualWallpaperSelected(String collectionId) {
+        log(UserEventLogFormat.EVENT_INDIVIDUAL_WALLPAPER_SELECTED, collectionId, 0, 0, 0);
+    }
+
+    @Override
+    public void logCategorySelected(String collectionId) {
+        log(UserEventLogFormat.EVENT_CATEGORY_SELECTED, collectionId, 0, 0, 0);
+    }
+
+    @Override
+    public void logWallpaperSet(String collectionId, String wallpaperId) {
+        // Wallpaper IDs are too many to intern, so only record their hash code.
+        log(UserEventLogFormat.EVENT_WALLPAPER_SET, collectionId, 0, 0,
+                wallpaperId == null ? 0 : wallpaperId.hashCode());
+    }
+
+    @Override
+    public void logWallpaperSetResult(@WallpaperSetResult int result) {
+        log(UserEventLogFormat.EVENT_WALLPAPER_SET_RESULT, null, result, 0, 0);
+    }
+
+    @Override
+    public void logWallpaperSetFailureReason(@WallpaperSetFailureReason int reason) {
+        log(UserEventLogFormat.EVENT_WALLPAPER_SET_FAILURE_REASON, null, reason, 0, 0);
+    }
+
+    @Override
+    public void logNumDailyWallpaperRotationsInLastWeek() {
+        List<Long> rotations = getPreferences().getDailyRotationsInLastWeek();
+        if (rotations != null) {
+            log(UserEventLogFormat.EVENT_NUM_DAILY_ROTATIONS_IN_LAST_WEEK, null,
+                    rotations.size(), 0, 0);
+        }
+    }
+
+    @Override
+    public void logNumDailyWallpaperRotationsPreviousDay() {
+        List<Long> rotations = getPreferences().getDailyRotationsPreviousDay();
+        if (rotations != null) {
+            log(UserEventLogFormat.EVENT_NUM_DAILY_ROTATIONS_PREVIOUS_DAY, null,
+                    rotations.size(), 0, 0);
+        }
+    }
+
+    @Override
+    public void logDailyWallpaperRotationHour(int hour) {
+        log(UserEventLogFormat.EVENT_DAILY_WALLPAPER_ROTATION_HOUR, null, hour, 0, 0);
+    }
+
+    @Override
+    public void logDailyWallpaperDecodes(boolean decodes) {
+        log(UserEventLogFormat.EVENT_DAILY_WALLPAPER_DECODES, null, toInt(decodes), 0, 0);
+    }
+
+    @Override
+    public void logDailyWallpaperRotationStatus(int status) {
+        log(UserEventLogFormat.EVENT_DAILY_WALLPAPER_ROTATION_STATUS, null, status, 0, 0);
+    }
+
+    @Override
+    public void logDailyWallpaperSetNextWallpaperResult(@DailyWallpaperUpdateResult int result) {
+        log(UserEventLogFormat.EVENT_DAILY_WALLPAPER_SET_NEXT_WALLPAPER_RESULT, null, result, 0,
+                0);
+    }
+
+    @Override
+    public void logDailyWallpaperSetNextWallpaperCrash(@DailyWallpaperUpdateCrash int crash) {
+        log(UserEventLogFormat.EVENT_DAILY_WALLPAPER_SET_NEXT_WALLPAPER_CRASH, null, crash, 0, 0);
+    }
+
+    @Override
+    public void logDailyWallpaperMetadataRequestFailure(
+            @DailyWallpaperMetadataFailureReason int reason) {
+        log(UserEventLogFormat.EVENT_DAILY_WALLPAPER_METADATA_REQUEST_FAILURE, null, reason, 0,
+                0);
+    }
+
+    @Override
+    public void logRefreshDailyWallpaperButtonClicked() {
+        log(UserEventLogFormat.EVENT_REFRESH_DAILY_WALLPAPER_BUTTON_CLICKED);
+    }
+
+    @Override
+    public void logNumDaysDailyRotationFailed(int days) {
+        log(UserEventLogFormat.EVENT_NUM_DAYS_DAILY_ROTATION_FAILED, null, days, 0, 0);
+    }
+
+    @Override
+    public void logNumDaysDailyRotationNotAttempted(int days) {
+        log(UserEventLogFormat.EVENT_NUM_DAYS_DAILY_ROTATION_NOT_ATTEMPTED, null, days, 0, 0);
+    }
+
+    @Override
+    public void logStandalonePreviewLaunched() {
+        log(UserEventLogFormat.EVENT_STANDALONE_PREVIEW_LAUNCHED);
+    }
+
+    @Override
+    public void logStandalonePreviewImageUriHasReadPermission(boolean isReadPermissionGranted) {
+        log(UserEventLogFormat.EVENT_STANDALONE_PREVIEW_IMAGE_URI_HAS_READ_PERMISSION, null,
+                toInt(isReadPermissionGranted), 0, 0);
+    }
+
+    @Override
+    public void logStandalonePreviewStorageDialogApproved(boolean isApproved) {
+        log(UserEventLogFormat.EVENT_STANDALONE_PREVIEW_STORAGE_DIALOG_APPROVED, null,
+                toInt(isApproved), 0, 0);
+    }
+
+    @Override
+    public void logWallpaperPresentationMode() {
+        log(UserEventLogFormat.EVENT_WALLPAPER_PRESENTATION_MODE, null,
+                getPreferences().getWallpaperPresentationMode(), 0, 0);
+    }
+
+    @Override
+    public void logRestored() {
+        log(UserEventLogFormat.EVENT_RESTORED);
+    }
+
+    private WallpaperPreferences getPreferences() {
+        return InjectorProvider.getInjector().getPreferences(mAppContext);
+    }
+
+    private static int toInt(boolean value) {
+        return value ? 1 : 0;
+    }
+
+    private void log(int eventType) {
+        log(eventType, null, 0, 0, 0);
+    }
+
+    private void log(int eventType, @Nullable String collectionId, int intPayload1,
+            int intPayload2, long longPayload) {
+        long timestamp = System.currentTimeMillis();
+        synchronized (mLock) {
+            if (mBuffer == null) {
+                if (mPendingEvents.size() < MAX_PENDING_EVENTS) {
+                    mPendingEvents.add(new PendingEvent(timestamp, eventType, collectionId,
+                            intPayload1, intPayload2, longPayload));
+                }
+                return;
+            }
+            UserEventLogFormat.writeRecord(mBuffer, timestamp, eventType, intern(collectionId),
+                    intPayload1, intPayload2, longPayload);
+        }
+    }
+
+    /**
+     * Returns the index of the given string in the string table, adding it if it isn't there yet,
+     * or {@link UserEventLogFormat#NO_STRING} if it is null or the table is full. Strings too long
+     * for a slot are truncated, and share the index of other strings with the same prefix.
+     */
+    private int intern(@Nullable String value) {
+        if (value == null) {
+            return UserEventLogFormat.NO_STRING;
+        }
+        value = UserEventLogFormat.truncate(value);
+        Integer index = mStringIndices.get(value);
+        if (index != null) {
+            return index;
+        }
+
+        int count = UserEventLogFormat.getStringCount(mBuffer);
+        if (count >= UserEventLogFormat.STRING_TABLE_CAPACITY) {
+            return UserEventLogFormat.NO_STRING;
+        }
+        UserEventLogFormat.writeString(mBuffer, count, value);
+        mStringIndices.put(value, count);
+        return count;
+    }
+
+    /**
+     * Maps the ring file, resetting it if it was written with a different layout, and writes the
+     * events logged in the meantime. Falls back to a buffer which only lives as long as the process
+     * if the file can't be mapped.
+     */
+    private void openBuffer() {
+        // The log is specific to this device, so it's kept out of backups.
+        new File(mAppContext.getFilesDir(), UserEventLogFormat.FILE_NAME).delete();
+        File file = new File(mAppContext.getNoBackupFilesDir(), UserEventLogFormat.FILE_NAME);
+        ByteBuffer buffer;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            buffer = randomAccessFile.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, UserEventLogFormat.FILE_SIZE);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to map user event log, events won't be persisted", e);
+            buffer = ByteBuffer.allocate(UserEventLogFormat.FILE_SIZE);
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        synchronized (mLock) {
+            if (UserEventLogFormat.hasValidHeader(buffer)) {
+                int count = UserEventLogFormat.getStringCount(buffer);
+                for (int i = 0; i < count; i++) {
+                    mStringIndices.put(UserEventLogFormat.readString(buffer, i), i);
+                }
+            } else {
+                UserEventLogFormat.writeEmptyHeader(buffer);
+            }
+            mBuffer = buffer;
+
+            for (PendingEvent event : mPendingEvents) {
+                UserEventLogFormat.writeRecord(mBuffer, event.mTimestamp, event.mEventType,
+                        intern(event.mCollectionId), event.mIntPayload1, event.mIntPayload2,
+                        event.mLongPayload);
+            }
+            mPendingEvents.clear();
+        }
+    }
+
+    /**
+     * An event logged before the ring file was opened.
+     */
+    private static final class PendingEvent {
+        final long mTimestamp;
+        final int mEventType;
+        @Nullable final String mCollectionId;
+        final int mIntPayload1;
+        final int mIntPayload2;
+        final long mLongPayload;
+
+        PendingEvent(long timestamp, int eventType, @Nullable String collectionId,
+                int intPayload1, int intPayload2, long longPayload) {
+            mTimestamp = timestamp;
+            mEventType = eventType;
+            mCollectionId = collectionId;
+            mIntPayload1 = intPayload1;
+            mIntPayload2 = intPayload2;
+            mLongPayload = longPayload;
+        }
+    }
+}
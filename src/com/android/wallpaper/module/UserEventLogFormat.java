@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Layout of the ring file written by {@link LocalUserEventLogger} and read by the host-side
+ * UserEventLogAnalyzer in tools/. This class only depends on the JDK so that the analyzer can
+ * run on a pulled file outside of Android.
+ * <p>
+ * The file starts with a header, followed by a table of interned collection IDs and a ring of
+ * fixed-size records. All values are little-endian.
+ * <pre>
+ * Header (HEADER_SIZE bytes):
+ *   int  magic
+ *   int  version
+ *   int  record size
+ *   int  record capacity
+ *   int  string table capacity
+ *   int  number of interned strings
+ *   long number of records ever written; record n is in slot n % capacity
+ * String table (STRING_TABLE_CAPACITY * STRING_SLOT_SIZE bytes), each slot:
+ *   short length of the UTF-8 bytes, followed by the bytes
+ * Record (RECORD_SIZE bytes):
+ *   long timestamp in milliseconds since the Unix epoch
+ *   int  event type, one of the EVENT_* constants
+ *   int  index of the interned collection ID, or NO_STRING
+ *   int  first int payload
+ *   int  second int payload
+ *   long long payload
+ * </pre>
+ */
+final class UserEventLogFormat {
+
+    static final String FILE_NAME = "user_events.bin";
+
+    static final int MAGIC = 0x57504556; // "WPEV"
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 32;
+    static final int MAGIC_OFFSET = 0;
+    static final int VERSION_OFFSET = 4;
+    static final int RECORD_SIZE_OFFSET = 8;
+    static final int RECORD_CAPACITY_OFFSET = 12;
+    static final int STRING_TABLE_CAPACITY_OFFSET = 16;
+    static final int STRING_COUNT_OFFSET = 20;
+    static final int RECORD_COUNT_OFFSET = 24;
+
+    static final int STRING_TABLE_CAPACITY = 128;
+    static final int STRING_SLOT_SIZE = 64;
+    static final int MAX_STRING_BYTES = STRING_SLOT_SIZE - Short.BYTES;
+    static final int STRING_TABLE_OFFSET = HEADER_SIZE;
+    static final int NO_STRING = -1;
+
+    static final int RECORD_SIZE = 32;
+    static final int RECORD_CAPACITY = 4096;
+    static final int RECORDS_OFFSET =
+            STRING_TABLE_OFFSET + STRING_TABLE_CAPACITY * STRING_SLOT_SIZE;
+    static final int FILE_SIZE = RECORDS_OFFSET + RECORD_CAPACITY * RECORD_SIZE;
+
+    // Offsets of the record fields, relative to the start of the record.
+    static final int RECORD_TIMESTAMP_OFFSET = 0;
+    static final int RECORD_EVENT_TYPE_OFFSET = 8;
+    static final int RECORD_STRING_INDEX_OFFSET = 12;
+    static final int RECORD_INT_PAYLOAD_1_OFFSET = 16;
+    static final int RECORD_INT_PAYLOAD_2_OFFSET = 20;
+    static final int RECORD_LONG_PAYLOAD_OFFSET = 24;
+
+    // Event types. Values are persisted, so never reuse or renumber them.
+    static final int EVENT_RESUMED = 1;
+    static final int EVENT_STOPPED = 2;
+    static final int EVENT_APP_LAUNCHED = 3;
+    static final int EVENT_DAILY_REFRESH_TURNED_ON = 4;
+    static final int EVENT_CURRENT_WALLPAPER_PREVIEWED = 5;
+    static final int EVENT_ACTION_CLICKED = 6;
+    static final int EVENT_INDIVIDUAL_WALLPAPER_SELECTED = 7;
+    static final int EVENT_CATEGORY_SELECTED = 8;
+    static final int EVENT_WALLPAPER_SET = 9;
+    static final int EVENT_WALLPAPER_SET_RESULT = 10;
+    static final int EVENT_WALLPAPER_SET_FAILURE_REASON = 11;
+    static final int EVENT_NUM_DAILY_ROTATIONS_IN_LAST_WEEK = 12;
+    static final int EVENT_NUM_DAILY_ROTATIONS_PREVIOUS_DAY = 13;
+    static final int EVENT_DAILY_WALLPAPER_ROTATION_HOUR = 14;
+    static final int EVENT_DAILY_WALLPAPER_DECODES = 15;
+    static final int EVENT_DAILY_WALLPAPER_ROTATION_STATUS = 16;
+    static final int EVENT_DAILY_WALLPAPER_SET_NEXT_WALLPAPER_RESULT = 17;
+    static final int EVENT_DAILY_WALLPAPER_SET_NEXT_WALLPAPER_CRASH = 18;
+    static final int EVENT_DAILY_WALLPAPER_METADATA_REQUEST_FAILURE = 19;
+    static final int EVENT_REFRESH_DAILY_WALLPAPER_BUTTON_CLICKED = 20;
+    static final int EVENT_NUM_DAYS_DAILY_ROTATION_FAILED = 21;
+    static final int EVENT_NUM_DAYS_DAILY_ROTATION_NOT_ATTEMPTED = 22;
+    static final int EVENT_STANDALONE_PREVIEW_LAUNCHED = 23;
+    static final int EVENT_STANDALONE_PREVIEW_IMAGE_URI_HAS_READ_PERMISSION = 24;
+    static final int EVENT_STANDALONE_PREVIEW_STORAGE_DIALOG_APPROVED = 25;
+    static final int EVENT_WALLPAPER_PRESENTATION_MODE = 26;
+    static final int EVENT_RESTORED = 27;
+
+    private UserEventLogFormat() {
+    }
+
+    /**
+     * Returns a short name for the given event type, for reports.
+     */
+    static String getEventName(int eventType) {
+        switch (eventType) {
+            case EVENT_RESUMED:
+                return "resumed";
+            case EVENT_STOPPED:
+                return "stopped";
+            case EVENT_APP_LAUNCHED:
+                return "app_launched";
+            case EVENT_DAILY_REFRESH_TURNED_ON:
+                return "daily_refresh_turned_on";
+            case EVENT_CURRENT_WALLPAPER_PREVIEWED:
+                return "current_wallpaper_previewed";
+            case EVENT_ACTION_CLICKED:
+                return "action_clicked";
+            case EVENT_INDIVIDUAL_WALLPAPER_SELECTED:
+                return "individual_wallpaper_selected";
+            case EVENT_CATEGORY_SELECTED:
+                return "category_selected";
+            case EVENT_WALLPAPER_SET:
+                return "wallpaper_set";
+            case EVENT_WALLPAPER_SET_RESULT:
+                return "wallpaper_set_result";
+            case EVENT_WALLPAPER_SET_FAILURE_REASON:
+                return "wallpaper_set_failure_reason";
+            case EVENT_NUM_DAILY_ROTATIONS_IN_LAST_WEEK:
+                return "num_daily_rotations_in_last_week";
+            case EVENT_NUM_DAILY_ROTATIONS_PREVIOUS_DAY:
+                return "num_daily_rotations_previous_day";
+            case EVENT_DAILY_WALLPAPER_ROTATION_HOUR:
+                return "daily_wallpaper_rotation_hour";
+            case EVENT_DAILY_WALLPAPER_DECODES:
+                return "daily_wallpaper_decodes";
+            case EVENT_DAILY_WALLPAPER_ROTATION_STATUS:
+                return "daily_wallpaper_rotation_status";
+            case EVENT_DAILY_WALLPAPER_SET_NEXT_WALLPAPER_RESULT:
+                return "daily_wallpaper_set_next_wallpaper_result";
+            case EVENT_DAILY_WALLPAPER_SET_NEXT_WALLPAPER_CRASH:
+                return "daily_wallpaper_set_next_wallpaper_crash";
+            case EVENT_DAILY_WALLPAPER_METADATA_REQUEST_FAILURE:
+                return "daily_wallpaper_metadata_request_failure";
+            case EVENT_REFRESH_DAILY_WALLPAPER_BUTTON_CLICKED:
+                return "refresh_daily_wallpaper_button_clicked";
+            case EVENT_NUM_DAYS_DAILY_ROTATION_FAILED:
+                return "num_days_daily_rotation_failed";
+            case EVENT_NUM_DAYS_DAILY_ROTATION_NOT_ATTEMPTED:
+                return "num_days_daily_rotation_not_attempted";
+            case EVENT_STANDALONE_PREVIEW_LAUNCHED:
+                return "standalone_preview_launched";
+            case EVENT_STANDALONE_PREVIEW_IMAGE_URI_HAS_READ_PERMISSION:
+                return "standalone_preview_image_uri_has_read_permission";
+            case EVENT_STANDALONE_PREVIEW_STORAGE_DIALOG_APPROVED:
+                return "standalone_preview_storage_dialog_approved";
+            case EVENT_WALLPAPER_PRESENTATION_MODE:
+                return "wallpaper_presentation_mode";
+            case EVENT_RESTORED:
+                return "restored";
+            default:
+                return "unknown_" + eventType;
+        }
+    }
+
+    /**
+     * Returns whether the buffer holds a header compatible with this version of the layout, with a
+     * record count that isn't corrupt.
+     */
+    static boolean hasValidHeader(ByteBuffer buffer) {
+        return buffer.capacity() >= FILE_SIZE
+                && buffer.getInt(MAGIC_OFFSET) == MAGIC
+                && buffer.getInt(VERSION_OFFSET) == VERSION
+                && buffer.getInt(RECORD_SIZE_OFFSET) == RECORD_SIZE
+                && buffer.getInt(RECORD_CAPACITY_OFFSET) == RECORD_CAPACITY
+                && buffer.getInt(STRING_TABLE_CAPACITY_OFFSET) == STRING_TABLE_CAPACITY
+                && buffer.getLong(RECORD_COUNT_OFFSET) >= 0;
+    }
+
+    /**
+     * Writes an empty header, discarding all records and interned strings.
+     */
+    static void writeEmptyHeader(ByteBuffer buffer) {
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(RECORD_SIZE_OFFSET, RECORD_SIZE);
+        buffer.putInt(RECORD_CAPACITY_OFFSET, RECORD_CAPACITY);
+        buffer.putInt(STRING_TABLE_CAPACITY_OFFSET, STRING_TABLE_CAPACITY);
+        buffer.putInt(STRING_COUNT_OFFSET, 0);
+        buffer.putLong(RECORD_COUNT_OFFSET, 0);
+    }
+
+    static int getStringCount(ByteBuffer buffer) {
+        return Math.max(0, Math.min(STRING_TABLE_CAPACITY, buffer.getInt(STRING_COUNT_OFFSET)));
+    }
+
+    /**
+     * Returns the longest prefix of the string whose UTF-8 encoding fits in a string table slot.
+     * Strings are only cut between code points, so the prefix reads back unchanged.
+     */
+    static String truncate(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); ) {
+            int codePoint = value.codePointAt(i);
+            length += codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+            if (length > MAX_STRING_BYTES) {
+                return value.substring(0, i);
+            }
+            i += Character.charCount(codePoint);
+        }
+        return value;
+    }
+
+    /**
+     * Writes the string into the given slot of the string table and counts it as interned. The
+     * string must already be {@link #truncate truncated}.
+     */
+    static void writeString(ByteBuffer buffer, int index, String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        int length = Math.min(bytes.length, MAX_STRING_BYTES);
+        int slotOffset = STRING_TABLE_OFFSET + index * STRING_SLOT_SIZE;
+        buffer.putShort(slotOffset, (short) length);
+        for (int i = 0; i < length; i++) {
+            buffer.put(slotOffset + Short.BYTES + i, bytes[i]);
+        }
+        buffer.putInt(STRING_COUNT_OFFSET, index + 1);
+    }
+
+    static String readString(ByteBuffer buffer, int index) {
+        int slotOffset = STRING_TABLE_OFFSET + index * STRING_SLOT_SIZE;
+        int length = Math.max(0, Math.min(MAX_STRING_BYTES, buffer.getShort(slotOffset)));
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(slotOffset + Short.BYTES + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Returns the offset of the record with the given sequence number.
+     */
+    static int getRecordOffset(long sequence) {
+        return RECORDS_OFFSET + (int) Math.floorMod(sequence, (long) RECORD_CAPACITY) * RECORD_SIZE;
+    }
+
+    /**
+     * Appends a record to the ring, overwriting the oldest one once the ring is full. A corrupt
+     * record count restarts the ring from its first slot.
+     */
+    static void writeRecord(ByteBuffer buffer, long timestamp, int eventType, int stringIndex,
+            int intPayload1, int intPayload2, long longPayload) {
+        long sequence = Math.max(0, buffer.getLong(RECORD_COUNT_OFFSET));
+        int offset = getRecordOffset(sequence);
+        buffer.putLong(offset + RECORD_TIMESTAMP_OFFSET, timestamp);
+        buffer.putInt(offset + RECORD_EVENT_TYPE_OFFSET, eventType);
+        buffer.putInt(offset + RECORD_STRING_INDEX_OFFSET, stringIndex);
+        buffer.putInt(offset + RECORD_INT_PAYLOAD_1_OFFSET, intPayload1);
+        buffer.putInt(offset + RECORD_INT_PAYLOAD_2_OFFSET, intPayload2);
+        buffer.putLong(offset + RECORD_LONG_PAYLOAD_OFFSET, longPayload);
+        // Publish the record only once it's complete.
+        buffer.putLong(RECORD_COUNT_OFFSET, sequence + 1);
+    }
+
+    /**
+     * Reads all records still in the ring, from oldest to newest. Returns an empty list if the
+     * buffer doesn't hold a compatible ring file.
+     */
+    static List<Record> readRecords(ByteBuffer buffer) {
+        buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        List<Record> records = new ArrayList<>();
+        if (!hasValidHeader(buffer)) {
+            return records;
+        }
+
+        int stringCount = getStringCount(buffer);
+        String[] strings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            strings[i] = readString(buffer, i);
+        }
+
+        long recordCount = buffer.getLong(RECORD_COUNT_OFFSET);
+        for (long sequence = Math.max(0, recordCount - RECORD_CAPACITY); sequence < recordCount;
+                sequence++) {
+            int offset = getRecordOffset(sequence);
+            int stringIndex = buffer.getInt(offset + RECORD_STRING_INDEX_OFFSET);
+            records.add(new Record(
+                    buffer.getLong(offset + RECORD_TIMESTAMP_OFFSET),
+                    buffer.getInt(offset + RECORD_EVENT_TYPE_OFFSET),
+                    stringIndex >= 0 && stringIndex < stringCount ? strings[stringIndex] : null,
+                    buffer.getInt(offset + RECORD_INT_PAYLOAD_1_OFFSET),
+                    buffer.getInt(offset + RECORD_INT_PAYLOAD_2_OFFSET),
+                    buffer.getLong(offset + RECORD_LONG_PAYLOAD_OFFSET)));
+        }
+        return records;
+    }
+
+    /**
+     * A decoded event record.
+     */
+    static final class Record {
+        final long mTimestamp;
+        final int mEventType;
+        final String mCollectionId;
+        final int mIntPayload1;
+        final int mIntPayload2;
+        final long mLongPayload;
+
+        Record(long timestamp, int eventType, String collectionId, int intPayload1,
+                int intPayload2, long longPayload) {
+            mTimestamp = timestamp;
+            mEventType = eventType;
+            mCollectionId = collectionId;
+            mIntPayload1 = intPayload1;
+            mIntPayload2 = intPayload2;
+            mLongPayload = longPayload;
+        }
+    }
+}
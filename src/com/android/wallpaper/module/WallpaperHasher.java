@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module;
+
+import android.app.WallpaperManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.Log;
+
+import com.android.wallpaper.asset.BitmapUtils;
+import com.android.wallpaper.compat.WallpaperManagerCompat;
+
+import java.io.IOException;
+
+/**
+ * Generates the hash codes saved in {@link WallpaperPreferences} for the wallpapers currently set
+ * to the device. Wallpapers are hashed from their files where there are any, and otherwise from the
+ * bitmap loaded by WallpaperManager, so every hash code of a given wallpaper must be generated
+ * here for them to be comparable.
+ * <p>
+ * These methods do disk I/O and decode images, so they should be called off the UI thread.
+ */
+public class WallpaperHasher {
+
+    private static final String TAG = "WallpaperHasher";
+
+    // Suppress default constructor for noninstantiability.
+    private WallpaperHasher() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Hashes the home screen wallpaper, or returns 0 if it can't be loaded.
+     *
+     * @param legacy Whether to use the algorithm of earlier versions of the app, only for
+     *               comparing with hash codes they saved, see
+     *               {@link WallpaperPreferences#isHomeWallpaperHashCodeLegacy()}.
+     */
+    public static long hashHomeWallpaper(WallpaperManager wallpaperManager,
+            WallpaperManagerCompat wallpaperManagerCompat, boolean legacy) {
+        long hashCode = hashWallpaperFile(wallpaperManagerCompat,
+                WallpaperManagerCompat.FLAG_SYSTEM, legacy);
+        if (hashCode != 0) {
+            return hashCode;
+        }
+
+        // There's no file to hash before N, so hash the bitmap of the wallpaper instead. Forget
+        // the previously loaded wallpaper so that WallpaperManager doesn't return an old one.
+        wallpaperManager.forgetLoadedWallpaper();
+        Drawable wallpaperDrawable = wallpaperManagerCompat.getDrawable();
+        if (!(wallpaperDrawable instanceof BitmapDrawable)) {
+            return 0;
+        }
+        Bitmap wallpaperBitmap = ((BitmapDrawable) wallpaperDrawable).getBitmap();
+        hashCode = legacy
+                ? BitmapUtils.generateLegacyHashCode(wallpaperBitmap)
+                : BitmapUtils.generateHashCode(wallpaperBitmap);
+
+        // Manually request that WallpaperManager loses its reference to the current wallpaper
+        // bitmap, which can occupy a large memory allocation for the lifetime of the app.
+        wallpaperManager.forgetLoadedWallpaper();
+        return hashCode;
+    }
+
+    /**
+     * Hashes the lock screen wallpaper, or returns 0 if no lock screen wallpaper is set.
+     *
+     * @param legacy Whether to use the algorithm of earlier versions of the app, only for
+     *               comparing with hash codes they saved, see
+     *               {@link WallpaperPreferences#isLockWallpaperHashCodeLegacy()}.
+     */
+    public static long hashLockWallpaper(WallpaperManagerCompat wallpaperManagerCompat,
+            boolean legacy) {
+        long hashCode = hashWallpaperFile(wallpaperManagerCompat, WallpaperManagerCompat.FLAG_LOCK,
+                legacy);
+        // The region decoder used for legacy hash codes may not support the file's format, in
+        // which case decode it in full instead.
+        if (hashCode != 0 || !legacy) {
+            return hashCode;
+        }
+
+        ParcelFileDescriptor pfd = wallpaperManagerCompat.getWallpaperFile(
+                WallpaperManagerCompat.FLAG_LOCK);
+        if (pfd == null) {
+            return 0;
+        }
+        try {
+            Bitmap wallpaperBitmap = BitmapFactory.decodeFileDescriptor(pfd.getFileDescriptor());
+            return wallpaperBitmap == null
+                    ? 0
+                    : BitmapUtils.generateLegacyHashCode(wallpaperBitmap);
+        } finally {
+            closeQuietly(pfd);
+        }
+    }
+
+    /**
+     * Returns a fingerprint of the size and modification time of the given wallpaper's file, or
+     * 0 if the file is unavailable.
+     */
+    public static long getWallpaperFileFingerprint(WallpaperManagerCompat wallpaperManagerCompat,
+            @WallpaperManagerCompat.WallpaperLocation int which) {
+        ParcelFileDescriptor pfd = wallpaperManagerCompat.getWallpaperFile(which);
+        if (pfd == null) {
+            return 0;
+        }
+
+        try {
+            StructStat stat = Os.fstat(pfd.getFileDescriptor());
+            long fingerprint = 31 * stat.st_size + stat.st_mtime;
+            return fingerprint == 0 ? 1 : fingerprint;
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Unable to stat wallpaper file", e);
+            return 0;
+        } finally {
+            closeQuietly(pfd);
+        }
+    }
+
+    /**
+     * Hashes the given wallpaper's file from a single decode subsampled to the hash grid, see
+     * {@link BitmapUtils#generateHashCode(java.io.FileDescriptor)}. Legacy hash codes were
+     * generated from full resolution pixels, so those are computed through a region decoder
+     * instead, decoding only a band of rows at a time. Returns 0 if the file is unavailable or
+     * can't be decoded.
+     */
+    private static long hashWallpaperFile(WallpaperManagerCompat wallpaperManagerCompat,
+            @WallpaperManagerCompat.WallpaperLocation int which, boolean legacy) {
+        ParcelFileDescriptor pfd = wallpaperManagerCompat.getWallpaperFile(which);
+        if (pfd == null) {
+            return 0;
+        }
+
+        try {
+            if (!legacy) {
+                return BitmapUtils.generateHashCode(pfd.getFileDescriptor());
+            }
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(
+                    pfd.getFileDescriptor(), false /* isShareable */);
+            try {
+                return BitmapUtils.generateLegacyHashCode(decoder);
+            } finally {
+                decoder.recycle();
+            }
+        } catch (IOException | IllegalStateException e) {
+            Log.w(TAG, "Unable to region decode wallpaper file", e);
+            return 0;
+        } finally {
+            closeQuietly(pfd);
+        }
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor pfd) {
+        try {
+            pfd.close();
+        } catch (IOException e) {
+            Log.e(TAG, "IO exception when closing the file descriptor.");
+        }
+    }
+}
@@ -29,6 +29,8 @@ public class WallpaperPreferenceKeys {
     public static final String KEY_HOME_WALLPAPER_ACTION_ICON_RES = "home_wallpaper_action_icon";
     public static final String KEY_HOME_WALLPAPER_COLLECTION_ID = "home_wallpaper_collection_id";
     public static final String KEY_HOME_WALLPAPER_HASH_CODE = "home_wallpaper_hash_code";
+    public static final String KEY_HOME_WALLPAPER_HASH_CODE_VERSION =
+            "home_wallpaper_hash_code_version";
 
     public static final String KEY_LOCK_WALLPAPER_ATTRIB_1 = "lock_wallpaper_attribution_line_1";
     public static final String KEY_LOCK_WALLPAPER_ATTRIB_2 = "lock_wallpaper_attribution_line_2";
@@ -37,6 +39,8 @@ public class WallpaperPreferenceKeys {
     public static final String KEY_LOCK_WALLPAPER_ACTION_LABEL_RES = "lock_wallpaper_action_label";
     public static final String KEY_LOCK_WALLPAPER_ACTION_ICON_RES = "lock_wallpaper_action_icon";
     public static final String KEY_LOCK_WALLPAPER_HASH_CODE = "lock_wallpaper_hash_code";
+    public static final String KEY_LOCK_WALLPAPER_HASH_CODE_VERSION =
+            "lock_wallpaper_hash_code_version";
     public static final String KEY_LOCK_WALLPAPER_COLLECTION_ID = "lock_wallpaper_collection_id";
 
     /**
@@ -48,7 +52,11 @@ public class WallpaperPreferenceKeys {
         public static final String KEY_HOME_WALLPAPER_MANAGER_ID = "home_wallpaper_id";
         public static final String KEY_HOME_WALLPAPER_REMOTE_ID = "home_wallpaper_remote_id";
         public static final String KEY_HOME_WALLPAPER_BACKING_FILE = "home_wallpaper_backing_file";
+        public static final String KEY_HOME_WALLPAPER_FILE_FINGERPRINT =
+                "home_wallpaper_file_fingerprint";
         public static final String KEY_LOCK_WALLPAPER_MANAGER_ID = "lock_wallpaper_id";
+        public static final String KEY_LOCK_WALLPAPER_FILE_FINGERPRINT =
+                "lock_wallpaper_file_fingerprint";
         public static final String KEY_LOCK_WALLPAPER_BACKING_FILE = "lock_wallpaper_backing_file";
         public static final String KEY_DAILY_ROTATION_TIMESTAMPS = "daily_rotation_timestamps";
         public static final String KEY_DAILY_WALLPAPER_ENABLED_TIMESTAMP =
@@ -21,6 +21,8 @@ import android.os.Build;
 import androidx.annotation.IntDef;
 import androidx.annotation.Nullable;
 
+import com.android.wallpaper.model.WallpaperMetadata;
+
 import java.util.List;
 
 /**
@@ -128,10 +130,17 @@ public interface WallpaperPreferences {
     long getHomeWallpaperHashCode();
 
     /**
-     * Sets the home wallpaper's bitmap hash code if it is an individual image.
+     * Sets the home wallpaper's bitmap hash code if it is an individual image. The hash code must
+     * have been generated with the current algorithm, see {@link WallpaperHasher}.
      */
     void setHomeWallpaperHashCode(long hashCode);
 
+    /**
+     * Returns whether the home wallpaper's bitmap hash code was saved by an earlier version of the
+     * app, which used a different algorithm.
+     */
+    boolean isHomeWallpaperHashCodeLegacy();
+
     /**
      * Gets the home wallpaper's package name, which is present for live wallpapers.
      */
@@ -154,6 +163,19 @@ public interface WallpaperPreferences {
     @TargetApi(Build.VERSION_CODES.N)
     void setHomeWallpaperManagerId(int homeWallpaperId);
 
+    /**
+     * Gets the fingerprint of the size and modification time of the home wallpaper's file at the
+     * time its metadata was last verified, or 0 if there is none.
+     */
+    @TargetApi(Build.VERSION_CODES.N)
+    long getHomeWallpaperFileFingerprint();
+
+    /**
+     * Sets the fingerprint of the size and modification time of the home wallpaper's file.
+     */
+    @TargetApi(Build.VERSION_CODES.N)
+    void setHomeWallpaperFileFingerprint(long fingerprint);
+
     /**
      * Gets the home wallpaper's remote identifier.
      */
@@ -240,10 +262,17 @@ public interface WallpaperPreferences {
     long getLockWallpaperHashCode();
 
     /**
-     * Sets the lock screen wallpaper's bitmap hash code if it is an individual image.
+     * Sets the lock screen wallpaper's bitmap hash code if it is an individual image. The hash
+     * code must have been generated with the current algorithm, see {@link WallpaperHasher}.
      */
     void setLockWallpaperHashCode(long hashCode);
 
+    /**
+     * Returns whether the lock screen wallpaper's bitmap hash code was saved by an earlier version
+     * of the app, which used a different algorithm.
+     */
+    boolean isLockWallpaperHashCodeLegacy();
+
     /**
      * Gets the lock wallpaper's ID, which is provided by WallpaperManager for static wallpapers.
      */
@@ -256,6 +285,41 @@ public interface WallpaperPreferences {
     @TargetApi(Build.VERSION_CODES.N)
     void setLockWallpaperId(int lockWallpaperId);
 
+    /**
+     * Gets the fingerprint of the size and modification time of the lock wallpaper's file at the
+     * time its metadata was last verified, or 0 if there is none.
+     */
+    @TargetApi(Build.VERSION_CODES.N)
+    long getLockWallpaperFileFingerprint();
+
+    /**
+     * Sets the fingerprint of the size and modification time of the lock wallpaper's file.
+     */
+    @TargetApi(Build.VERSION_CODES.N)
+    void setLockWallpaperFileFingerprint(long fingerprint);
+
+    /**
+     * Returns an editor which collects changes to home and lock screen wallpaper metadata and
+     * writes them all at once, with a single write per underlying store, when
+     * {@link MetadataEditor#apply()} is called.
+     */
+    MetadataEditor editMetadata();
+
+    /**
+     * Returns the home wallpaper's user-facing metadata, read atomically with respect to
+     * {@link MetadataEditor#apply()}.
+     *
+     * @param wallpaperComponent The current home live wallpaper, or null for an image wallpaper.
+     */
+    WallpaperMetadata getHomeWallpaperMetadata(
+            @Nullable android.app.WallpaperInfo wallpaperComponent);
+
+    /**
+     * Returns the lock screen wallpaper's user-facing metadata, read atomically with respect to
+     * {@link MetadataEditor#apply()}.
+     */
+    WallpaperMetadata getLockWallpaperMetadata();
+
     /**
      * Persists the timestamp of a daily wallpaper rotation that just occurred.
      */
@@ -432,6 +496,71 @@ public interface WallpaperPreferences {
      */
     void resetNumDaysDailyRotationNotAttempted();
 
+    /**
+     * Batch of changes to wallpaper metadata. Setters have the same semantics as the corresponding
+     * {@link WallpaperPreferences} methods, and changes are applied in the order they were made.
+     * Nothing is written until {@link #apply()} is called.
+     */
+    interface MetadataEditor {
+        MetadataEditor setWallpaperPresentationMode(@PresentationMode int presentationMode);
+
+        MetadataEditor clearHomeWallpaperMetadata();
+
+        MetadataEditor setHomeWallpaperAttributions(List<String> attributions);
+
+        MetadataEditor setHomeWallpaperActionUrl(String actionUrl);
+
+        MetadataEditor setHomeWallpaperActionLabelRes(int resId);
+
+        MetadataEditor setHomeWallpaperActionIconRes(int resId);
+
+        MetadataEditor setHomeWallpaperBaseImageUrl(String baseImageUrl);
+
+        MetadataEditor setHomeWallpaperCollectionId(String collectionId);
+
+        MetadataEditor setHomeWallpaperBackingFileName(String fileName);
+
+        MetadataEditor setHomeWallpaperHashCode(long hashCode);
+
+        MetadataEditor setHomeWallpaperPackageName(String packageName);
+
+        @TargetApi(Build.VERSION_CODES.N)
+        MetadataEditor setHomeWallpaperManagerId(int homeWallpaperId);
+
+        @TargetApi(Build.VERSION_CODES.N)
+        MetadataEditor setHomeWallpaperFileFingerprint(long fingerprint);
+
+        MetadataEditor setHomeWallpaperRemoteId(String wallpaperRemoteId);
+
+        MetadataEditor clearLockWallpaperMetadata();
+
+        MetadataEditor setLockWallpaperAttributions(List<String> attributions);
+
+        MetadataEditor setLockWallpaperActionUrl(String actionUrl);
+
+        MetadataEditor setLockWallpaperActionLabelRes(int resId);
+
+        MetadataEditor setLockWallpaperActionIconRes(int resId);
+
+        MetadataEditor setLockWallpaperCollectionId(String collectionId);
+
+        MetadataEditor setLockWallpaperBackingFileName(String fileName);
+
+        MetadataEditor setLockWallpaperHashCode(long hashCode);
+
+        @TargetApi(Build.VERSION_CODES.N)
+        MetadataEditor setLockWallpaperId(int lockWallpaperId);
+
+        @TargetApi(Build.VERSION_CODES.N)
+        MetadataEditor setLockWallpaperFileFingerprint(long fingerprint);
+
+        /**
+         * Commits the changes to memory, where readers see them all at once, and schedules them
+         * to be written to disk without blocking the calling thread.
+         */
+        void apply();
+    }
+
     /**
      * The possible wallpaper presentation modes, i.e., either "static" or "rotating".
      */
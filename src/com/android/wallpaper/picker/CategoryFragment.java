@@ -126,6 +126,7 @@ public class CategoryFragment extends ToolbarFragment {
     private CategoryAdapter mAdapter;
     private ArrayList<Category> mCategories = new ArrayList<>();
     private Point mTileSizePx;
+    private ThumbnailPrefetcher mThumbnailPrefetcher;
     private boolean mAwaitingCategories;
     private ProgressDialog mRefreshWallpaperProgressDialog;
     private boolean mTestingMode;
@@ -160,10 +161,34 @@ public class CategoryFragment extends ToolbarFragment {
         GridLayoutManager gridLayoutManager = new GridLayoutManager(getActivity(), getNumColumns());
         gridLayoutManager.setSpanSizeLookup(new CategorySpanSizeLookup(mAdapter));
         mImageGrid.setLayoutManager(gridLayoutManager);
+
+        mThumbnailPrefetcher = new ThumbnailPrefetcher(getActivity(), mTileSizePx,
+                this::getCategoryThumbnail);
+        mThumbnailPrefetcher.attachTo(mImageGrid);
+
         setUpToolbar(view);
         return view;
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        mThumbnailPrefetcher.detachFrom(mImageGrid);
+    }
+
+    /**
+     * Returns the thumbnail of the category tile at the given adapter position, or null if the
+     * position isn't that of a category tile.
+     */
+    @Nullable
+    private Asset getCategoryThumbnail(int adapterPosition) {
+        int index = adapterPosition - NUM_NON_CATEGORY_VIEW_HOLDERS;
+        if (index < 0 || index >= mCategories.size()) {
+            return null;
+        }
+        return mCategories.get(index).getThumbnail(getActivity().getApplicationContext());
+    }
+
     @Override
     public CharSequence getDefaultTitle() {
         return getContext().getString(R.string.app_name);
@@ -882,6 +907,8 @@ public class CategoryFragment extends ToolbarFragment {
             mTitleView = itemView.findViewById(R.id.category_title);
 
             mTileLayout.getLayoutParams().height = mTileSizePx.y;
+            // The image is inset from the tile by its card and title, so prefetch at its own size.
+            mThumbnailPrefetcher.trackThumbnailSize(mImageView);
         }
 
         @Override
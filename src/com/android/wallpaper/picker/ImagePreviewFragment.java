@@ -25,6 +25,7 @@ import android.graphics.Color;
 import android.graphics.Point;
 import android.graphics.PointF;
 import android.graphics.Rect;
+import android.net.Uri;
 import android.os.Bundle;
 import android.view.Display;
 import android.view.LayoutInflater;
@@ -37,6 +38,9 @@ import androidx.fragment.app.FragmentActivity;
 
 import com.android.wallpaper.R;
 import com.android.wallpaper.asset.Asset;
+import com.android.wallpaper.asset.DecodeRequest;
+import com.android.wallpaper.asset.DecodeScheduler;
+import com.android.wallpaper.asset.StreamableAsset;
 import com.android.wallpaper.module.WallpaperPersister.Destination;
 import com.android.wallpaper.module.WallpaperPersister.SetWallpaperCallback;
 import com.android.wallpaper.util.ScreenSizeCalculator;
@@ -62,6 +66,8 @@ public class ImagePreviewFragment extends PreviewFragment {
     private Point mScreenSize;
     private Point mRawWallpaperSize; // Native size of wallpaper image.
     private ImageView mLowResImageView;
+    @Nullable
+    private DecodeRequest mPageBitmapRequest;
 
     private InfoPageController mInfoPageController;
 
@@ -114,6 +120,12 @@ public class ImagePreviewFragment extends PreviewFragment {
             mWallpaperAsset.loadLowResDrawable(activity, mLowResImageView, Color.BLACK,
                     new WallpaperPreviewBitmapTransformation(activity.getApplicationContext(),
                             isRtl()));
+        } else {
+            // Otherwise show the thumbnail from the picker grid, which is likely to be cached.
+            Asset thumbAsset = mWallpaper.getThumbAsset(activity.getApplicationContext());
+            if (thumbAsset != null && !thumbAsset.equals(mWallpaperAsset)) {
+                thumbAsset.loadDrawable(activity, mLowResImageView, Color.BLACK);
+            }
         }
 
         mWallpaperAsset.decodeRawDimensions(getActivity(), dimensions -> {
@@ -161,6 +173,9 @@ public class ImagePreviewFragment extends PreviewFragment {
         if (mLoadingProgressBar != null) {
             mLoadingProgressBar.hide();
         }
+        if (mPageBitmapRequest != null) {
+            mPageBitmapRequest.cancel();
+        }
         mFullResImageView.recycle();
     }
 
@@ -185,6 +200,11 @@ public class ImagePreviewFragment extends PreviewFragment {
     /**
      * Initializes MosaicView by initializing tiling, setting a fallback page bitmap, and
      * initializing a zoom-scroll observer and click listener.
+     * <p>
+     * Assets which can be decoded region by region are previewed progressively: a screen-sized
+     * page bitmap is shown first as the base layer, and MosaicView then loads tiles on demand
+     * through a {@link StreamableAssetRegionDecoder} as the user zooms in, so the image is never
+     * held in memory at full resolution. Other assets are decoded at full resolution at once.
      */
     private void initFullResView() {
         mFullResImageView.setMinimumScaleType(SubsamplingScaleImageView.SCALE_TYPE_CENTER_CROP);
@@ -198,8 +218,22 @@ public class ImagePreviewFragment extends PreviewFragment {
 
         // Then set a fallback "page bitmap" to cover the whole MosaicView, which is an actual
         // (lower res) version of the image to be displayed.
-        Point targetPageBitmapSize = new Point(mRawWallpaperSize);
-        mWallpaperAsset.decodeBitmap(targetPageBitmapSize.x, targetPageBitmapSize.y,
+        final boolean isTiled = mWallpaperAsset instanceof StreamableAsset;
+        Point targetPageBitmapSize;
+        if (isTiled) {
+            final StreamableAsset streamableAsset = (StreamableAsset) mWallpaperAsset;
+            final Point rawWallpaperSize = mRawWallpaperSize;
+            mFullResImageView.setRegionDecoderFactory(
+                    () -> new StreamableAssetRegionDecoder(streamableAsset, rawWallpaperSize));
+            // Images which fit in a single tile are decoded whole instead.
+            mFullResImageView.setBitmapDecoderFactory(
+                    () -> new StreamableAssetBitmapDecoder(streamableAsset, rawWallpaperSize));
+            targetPageBitmapSize = new Point(mScreenSize);
+        } else {
+            targetPageBitmapSize = new Point(mRawWallpaperSize);
+        }
+        mPageBitmapRequest = mWallpaperAsset.decodeBitmap(
+                targetPageBitmapSize.x, targetPageBitmapSize.y,
                 pageBitmap -> {
                     // Check that the activity is still around since the decoding task started.
                     if (getActivity() == null) {
@@ -218,8 +252,17 @@ public class ImagePreviewFragment extends PreviewFragment {
                         return;
                     }
                     if (mFullResImageView != null) {
-                        // Set page bitmap.
-                        mFullResImageView.setImage(ImageSource.bitmap(pageBitmap));
+                        if (isTiled) {
+                            // Set page bitmap as the preview of the tiled image. It may be shared
+                            // with a cache, so MosaicView must not recycle it.
+                            mFullResImageView.setImage(
+                                    ImageSource.uri(Uri.EMPTY)
+                                            .dimensions(mRawWallpaperSize.x, mRawWallpaperSize.y),
+                                    ImageSource.cachedBitmap(pageBitmap));
+                        } else {
+                            // Set page bitmap.
+                            mFullResImageView.setImage(ImageSource.bitmap(pageBitmap));
+                        }
 
                         setDefaultWallpaperZoomAndScroll();
                         crossFadeInMosaicView();
@@ -228,6 +271,8 @@ public class ImagePreviewFragment extends PreviewFragment {
 
                     populateInfoPage(mInfoPageController);
                 });
+        // The page bitmap is what the user is waiting on, so decode it ahead of any thumbnails.
+        mPageBitmapRequest.setPriority(DecodeScheduler.PRIORITY_VISIBLE_PREVIEW);
     }
 
     /**
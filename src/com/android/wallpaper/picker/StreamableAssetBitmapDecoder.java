@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.picker;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.net.Uri;
+
+import com.android.wallpaper.asset.StreamableAsset;
+
+import com.davemorrissey.labs.subscaleview.ImageDecoder;
+
+import java.io.IOException;
+
+/**
+ * {@link ImageDecoder} which decodes a whole {@link StreamableAsset} at full size. A
+ * {@link com.davemorrissey.labs.subscaleview.SubsamplingScaleImageView} uses it instead of a
+ * {@link StreamableAssetRegionDecoder} when the image is small enough to be shown as a single
+ * tile. The URI of the image source is ignored.
+ */
+class StreamableAssetBitmapDecoder implements ImageDecoder {
+
+    private final StreamableAsset mAsset;
+    private final Point mDimensions;
+
+    /**
+     * @param dimensions Raw dimensions of the asset.
+     */
+    StreamableAssetBitmapDecoder(StreamableAsset asset, Point dimensions) {
+        mAsset = asset;
+        mDimensions = new Point(dimensions);
+    }
+
+    @Override
+    public Bitmap decode(Context context, Uri unused) throws IOException {
+        Bitmap bitmap = mAsset.decodeBitmapRegionBlocking(
+                new Rect(0, 0, mDimensions.x, mDimensions.y), mDimensions.x, mDimensions.y);
+        if (bitmap == null) {
+            throw new IOException("Unable to decode wallpaper");
+        }
+        return bitmap;
+    }
+}
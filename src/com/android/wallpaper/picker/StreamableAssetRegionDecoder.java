@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.picker;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.net.Uri;
+
+import com.android.wallpaper.asset.StreamableAsset;
+
+import com.davemorrissey.labs.subscaleview.ImageRegionDecoder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * {@link ImageRegionDecoder} which lets a
+ * {@link com.davemorrissey.labs.subscaleview.SubsamplingScaleImageView} load the tiles of a
+ * {@link StreamableAsset} on demand, so that only the visible part of the image is ever decoded at
+ * the current zoom level. The URI of the image source is ignored.
+ * <p>
+ * The view calls {@link #decodeRegion} from its own background threads while holding a lock that
+ * its main thread may wait on, so tiles are decoded on the calling thread rather than through the
+ * {@link com.android.wallpaper.asset.DecodeScheduler}, whose results are delivered on the main
+ * thread.
+ * <p>
+ * Tiles which can't be decoded are reported through the exception the view catches from
+ * {@link #decodeRegion}, which it passes on to its
+ * {@link com.davemorrissey.labs.subscaleview.SubsamplingScaleImageView.OnImageEventListener}.
+ */
+class StreamableAssetRegionDecoder implements ImageRegionDecoder {
+
+    private final StreamableAsset mAsset;
+    private final Point mDimensions;
+    private volatile boolean mIsRecycled;
+
+    /**
+     * @param dimensions Raw dimensions of the asset, which tiles are requested in terms of.
+     */
+    StreamableAssetRegionDecoder(StreamableAsset asset, Point dimensions) {
+        mAsset = asset;
+        mDimensions = new Point(dimensions);
+    }
+
+    @Override
+    public Point init(Context context, Uri unused) {
+        return new Point(mDimensions);
+    }
+
+    @Override
+    public Bitmap decodeRegion(Rect sRect, int sampleSize) {
+        Bitmap bitmap = mAsset.decodeBitmapRegionBlocking(new Rect(sRect),
+                sRect.width() / sampleSize, sRect.height() / sampleSize);
+        if (bitmap == null) {
+            // The interface doesn't allow checked exceptions here.
+            throw new UncheckedIOException(
+                    new IOException("Unable to decode wallpaper tile " + sRect));
+        }
+        return bitmap;
+    }
+
+    @Override
+    public boolean isReady() {
+        return !mIsRecycled;
+    }
+
+    @Override
+    public void recycle() {
+        // Decoders are owned by the shared RegionDecoderPool, so there's nothing to release here.
+        mIsRecycled = true;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.picker;
+
+import android.app.Activity;
+import android.graphics.Point;
+import android.util.SparseArray;
+import android.view.View;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.android.wallpaper.asset.Asset;
+import com.android.wallpaper.asset.DecodeRequest;
+
+/**
+ * Scroll listener for a grid of thumbnail tiles which prefetches the thumbnails of the rows about
+ * to scroll into view into the cache {@link Asset#loadDrawable} reads from. Thumbnails are
+ * prefetched at the tile size, or at the laid-out size of the thumbnail views if they're
+ * {@link #trackThumbnailSize tracked}, since cache entries are only reused at the size they were
+ * decoded at.
+ * <p>
+ * The number of rows looked ahead grows with the scroll speed. While a fling moves faster than
+ * prefetched thumbnails could be decoded in time, no new prefetches are started, since the rows
+ * they'd be for would be gone before they were done. Prefetches for rows which are no longer
+ * ahead of the visible ones are cancelled.
+ */
+public class ThumbnailPrefetcher extends RecyclerView.OnScrollListener {
+
+    private static final int MIN_LOOKAHEAD_ROWS = 2;
+    private static final int MAX_LOOKAHEAD_ROWS = 6;
+
+    /**
+     * Number of frames of scrolling at the current speed that are prefetched ahead.
+     */
+    private static final int LOOKAHEAD_FRAMES = 30;
+
+    /**
+     * Fraction of a tile's height scrolled per frame above which a fling is considered too fast to
+     * prefetch for.
+     */
+    private static final float MAX_PREFETCH_TILES_PER_FRAME = 0.5f;
+
+    /**
+     * Provides the thumbnail displayed at an adapter position.
+     */
+    public interface ThumbnailProvider {
+        /**
+         * Returns the asset displayed as the thumbnail of the item at the given adapter position,
+         * or null if the item doesn't display one.
+         */
+        @Nullable
+        Asset getThumbnail(int adapterPosition);
+    }
+
+    private final Activity mActivity;
+    private final Point mTileSizePx;
+    private final ThumbnailProvider mThumbnailProvider;
+    private final Point mThumbnailSizePx;
+
+    // Prefetches in flight or done, by adapter position.
+    private final SparseArray<DecodeRequest> mPrefetches = new SparseArray<>();
+    private boolean mScrollingUp;
+
+    @Nullable
+    private RecyclerView.Adapter<?> mAdapter;
+    // Any change to the adapter's items may shift their positions, so start over.
+    private final RecyclerView.AdapterDataObserver mAdapterDataObserver =
+            new RecyclerView.AdapterDataObserver() {
+                @Override
+                public void onChanged() {
+                    cancelAll();
+                }
+
+                @Override
+                public void onItemRangeChanged(int positionStart, int itemCount) {
+                    cancelAll();
+                }
+
+                @Override
+                public void onItemRangeInserted(int positionStart, int itemCount) {
+                    cancelAll();
+                }
+
+                @Override
+                public void onItemRangeRemoved(int positionStart, int itemCount) {
+                    cancelAll();
+                }
+
+                @Override
+                public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+                    cancelAll();
+                }
+            };
+
+    public ThumbnailPrefetcher(Activity activity, Point tileSizePx,
+            ThumbnailProvider thumbnailProvider) {
+        mActivity = activity;
+        mTileSizePx = tileSizePx;
+        mThumbnailProvider = thumbnailProvider;
+        mThumbnailSizePx = new Point(tileSizePx);
+    }
+
+    /**
+     * Prefetches thumbnails at the size the given view is laid out at, for tiles whose thumbnail
+     * view is smaller than the tile itself. All thumbnail views are expected to have the same
+     * size, so tracking any one of them is enough.
+     */
+    public void trackThumbnailSize(View thumbnailView) {
+        thumbnailView.addOnLayoutChangeListener(
+                (view, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) ->
+                        setThumbnailSize(right - left, bottom - top));
+    }
+
+    private void setThumbnailSize(int width, int height) {
+        if (width <= 0 || height <= 0
+                || (width == mThumbnailSizePx.x && height == mThumbnailSizePx.y)) {
+            return;
+        }
+        mThumbnailSizePx.set(width, height);
+        // Prefetches at the previous size would never be read.
+        cancelAll();
+    }
+
+    /**
+     * Starts prefetching for the given grid, which must already have its adapter set.
+     */
+    public void attachTo(RecyclerView recyclerView) {
+        recyclerView.addOnScrollListener(this);
+        mAdapter = recyclerView.getAdapter();
+        if (mAdapter != null) {
+            mAdapter.registerAdapterDataObserver(mAdapterDataObserver);
+        }
+    }
+
+    /**
+     * Stops prefetching for the given grid and cancels all prefetches.
+     */
+    public void detachFrom(RecyclerView recyclerView) {
+        recyclerView.removeOnScrollListener(this);
+        if (mAdapter != null) {
+            mAdapter.unregisterAdapterDataObserver(mAdapterDataObserver);
+            mAdapter = null;
+        }
+        cancelAll();
+    }
+
+    @Override
+    public void onScrollStateChanged(@NonNull RecyclerView recyclerView, int newState) {
+        if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+            update(recyclerView, 0 /* dy */);
+        }
+    }
+
+    @Override
+    public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+        if (dy != 0) {
+            mScrollingUp = dy < 0;
+        }
+        update(recyclerView, Math.abs(dy));
+    }
+
+    /**
+     * Cancels all prefetches.
+     */
+    public void cancelAll() {
+        for (int i = 0; i < mPrefetches.size(); i++) {
+            mPrefetches.valueAt(i).cancel();
+        }
+        mPrefetches.clear();
+    }
+
+    private void update(RecyclerView recyclerView, int scrolledPx) {
+        if (!(recyclerView.getLayoutManager() instanceof GridLayoutManager)
+                || mTileSizePx.y <= 0) {
+            return;
+        }
+        GridLayoutManager layoutManager = (GridLayoutManager) recyclerView.getLayoutManager();
+        int firstVisible = layoutManager.findFirstVisibleItemPosition();
+        int lastVisible = layoutManager.findLastVisibleItemPosition();
+        if (firstVisible == RecyclerView.NO_POSITION || lastVisible == RecyclerView.NO_POSITION) {
+            return;
+        }
+
+        float tilesPerFrame = (float) scrolledPx / mTileSizePx.y;
+        int lookaheadRows = Math.max(MIN_LOOKAHEAD_ROWS, Math.min(MAX_LOOKAHEAD_ROWS,
+                (int) Math.ceil(tilesPerFrame * LOOKAHEAD_FRAMES)));
+        int lookaheadItems = lookaheadRows * layoutManager.getSpanCount();
+        int itemCount = layoutManager.getItemCount();
+
+        // Only the rows ahead of the visible ones are prefetched; visible items load themselves.
+        int windowStart;
+        int windowEnd;
+        if (mScrollingUp) {
+            windowStart = Math.max(0, firstVisible - lookaheadItems);
+            windowEnd = firstVisible - 1;
+        } else {
+            windowStart = lastVisible + 1;
+            windowEnd = Math.min(itemCount - 1, lastVisible + lookaheadItems);
+        }
+
+        for (int i = mPrefetches.size() - 1; i >= 0; i--) {
+            int position = mPrefetches.keyAt(i);
+            if (position < windowStart || position > windowEnd) {
+                mPrefetches.valueAt(i).cancel();
+                mPrefetches.removeAt(i);
+            }
+        }
+
+        boolean isFlinging = recyclerView.getScrollState() == RecyclerView.SCROLL_STATE_SETTLING;
+        if (isFlinging && tilesPerFrame > MAX_PREFETCH_TILES_PER_FRAME) {
+            return;
+        }
+
+        // Start with the nearest rows, which will be needed first.
+        for (int i = 0; i <= windowEnd - windowStart; i++) {
+            int position = mScrollingUp ? windowEnd - i : windowStart + i;
+            if (mPrefetches.get(position) != null) {
+                continue;
+            }
+            Asset thumbnail = mThumbnailProvider.getThumbnail(position);
+            if (thumbnail != null) {
+                mPrefetches.put(position, prefetch(thumbnail));
+            }
+        }
+    }
+
+    @VisibleForTesting
+    DecodeRequest prefetch(Asset thumbnail) {
+        return thumbnail.prefetchDrawable(mActivity, mThumbnailSizePx.x, mThumbnailSizePx.y);
+    }
+}
@@ -29,11 +29,11 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.FragmentActivity;
 
-import com.android.wallpaper.R;
 import com.android.wallpaper.compat.WallpaperManagerCompat;
 import com.android.wallpaper.model.Category;
 import com.android.wallpaper.model.CategoryProvider;
 import com.android.wallpaper.model.CategoryReceiver;
+import com.android.wallpaper.model.CategoryUpdateReceiver;
 import com.android.wallpaper.model.ImageWallpaperInfo;
 import com.android.wallpaper.model.InlinePreviewIntentFactory;
 import com.android.wallpaper.model.WallpaperInfo;
@@ -78,6 +78,22 @@ public class WallpaperPickerDelegate implements MyPhotosStarter {
     private PackageStatusNotifier.Listener mLiveWallpaperStatusListener;
     private PackageStatusNotifier.Listener mThirdPartyStatusListener;
     private CategoryProvider mCategoryProvider;
+    private final CategoryUpdateReceiver mCategoryUpdateReceiver = new CategoryUpdateReceiver() {
+        @Override
+        public void onCategoryAdded(Category category) {
+            addCategory(category, false);
+        }
+
+        @Override
+        public void onCategoryUpdated(Category category) {
+            updateCategory(category);
+        }
+
+        @Override
+        public void onCategoryRemoved(Category category) {
+            removeCategory(category);
+        }
+    };
     private static final String READ_PERMISSION = permission.READ_EXTERNAL_STORAGE;
 
     public WallpaperPickerDelegate(WallpapersUiContainer container, FragmentActivity activity,
@@ -159,87 +175,13 @@ public class WallpaperPickerDelegate implements MyPhotosStarter {
     }
 
     private void updateThirdPartyCategories(String packageName, @PackageStatus int status) {
-        if (status == PackageStatus.ADDED) {
-            mCategoryProvider.fetchCategories(new CategoryReceiver() {
-                @Override
-                public void onCategoryReceived(Category category) {
-                    if (category.supportsThirdParty() && category.containsThirdParty(packageName)) {
-                        addCategory(category, false);
-                    }
-                }
-
-                @Override
-                public void doneFetchingCategories() {
-                    // Do nothing here.
-                }
-            }, true);
-        } else if (status == PackageStatus.REMOVED) {
-            Category oldCategory = findThirdPartyCategory(packageName);
-            if (oldCategory != null) {
-                mCategoryProvider.fetchCategories(new CategoryReceiver() {
-                    @Override
-                    public void onCategoryReceived(Category category) {
-                        // Do nothing here
-                    }
-
-                    @Override
-                    public void doneFetchingCategories() {
-                        removeCategory(oldCategory);
-                    }
-                }, true);
-            }
-        } else {
-            // CHANGED package, let's reload all categories as we could have more or fewer now
-            populateCategories(true);
-        }
-    }
-
-    private Category findThirdPartyCategory(String packageName) {
-        int size = mCategoryProvider.getSize();
-        for (int i = 0; i < size; i++) {
-            Category category = mCategoryProvider.getCategory(i);
-            if (category.supportsThirdParty() && category.containsThirdParty(packageName)) {
-                return category;
-            }
-        }
-        return null;
+        mCategoryProvider.updateThirdPartyCategories(packageName, status, mCategoryUpdateReceiver);
     }
 
     private void updateLiveWallpapersCategories(String packageName,
             @PackageStatus int status) {
-        String liveWallpaperCollectionId = mActivity.getString(
-                R.string.live_wallpaper_collection_id);
-        Category oldLiveWallpapersCategory = mCategoryProvider.getCategory(
-                liveWallpaperCollectionId);
-        if (status == PackageStatus.REMOVED
-                && (oldLiveWallpapersCategory == null
-                || !oldLiveWallpapersCategory.containsThirdParty(packageName))) {
-            // If we're removing a wallpaper and the live category didn't contain it already,
-            // there's nothing to do.
-            return;
-        }
-        mCategoryProvider.fetchCategories(new CategoryReceiver() {
-            @Override
-            public void onCategoryReceived(Category category) {
-                // Do nothing here
-            }
-
-            @Override
-            public void doneFetchingCategories() {
-                Category liveWallpapersCategory =
-                        mCategoryProvider.getCategory(liveWallpaperCollectionId);
-                if (liveWallpapersCategory == null) {
-                    // There are no more 3rd party live wallpapers, so the Category is gone.
-                    removeCategory(oldLiveWallpapersCategory);
-                } else {
-                    if (oldLiveWallpapersCategory != null) {
-                        updateCategory(liveWallpapersCategory);
-                    } else {
-                        addCategory(liveWallpapersCategory, false);
-                    }
-                }
-            }
-        }, true);
+        mCategoryProvider.updateLiveWallpaperCategory(packageName, status,
+                mCategoryUpdateReceiver);
     }
 
     /**
@@ -17,6 +17,9 @@ package com.android.wallpaper.picker;
 
 import android.app.Application;
 
+import com.android.wallpaper.asset.BitmapCache;
+import com.android.wallpaper.asset.ImageMetadataIndex;
+import com.android.wallpaper.asset.RegionDecoderPool;
 import com.android.wallpaper.module.InjectorProvider;
 import com.android.wallpaper.module.WallpapersInjector;
 
@@ -31,5 +34,17 @@ public class WallpapersApplication extends Application {
 
         // Initialize the injector.
         InjectorProvider.setInjector(new WallpapersInjector());
+
+        // Start warming up the index of already probed image dimensions for the first preview.
+        ImageMetadataIndex.initialize(this);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        // Release idle bitmap region decoders, which each hold a copy of an encoded image.
+        RegionDecoderPool.getInstance().trimMemory(level);
+        BitmapCache.getInstance(this).trimMemory(level);
     }
 }
@@ -37,6 +37,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.fragment.app.DialogFragment;
 import androidx.fragment.app.Fragment;
 import androidx.recyclerview.widget.GridLayoutManager;
@@ -74,6 +75,7 @@ import com.android.wallpaper.picker.RotationStarter;
 import com.android.wallpaper.picker.SetWallpaperErrorDialogFragment;
 import com.android.wallpaper.picker.StartRotationDialogFragment;
 import com.android.wallpaper.picker.StartRotationErrorDialogFragment;
+import com.android.wallpaper.picker.ThumbnailPrefetcher;
 import com.android.wallpaper.picker.WallpapersUiContainer;
 import com.android.wallpaper.picker.individual.SetIndividualHolder.OnSetListener;
 import com.android.wallpaper.util.DiskBasedLogger;
@@ -120,6 +122,7 @@ public class IndividualPickerFragment extends Fragment
     WallpaperRotationInitializer mWallpaperRotationInitializer;
     List<WallpaperInfo> mWallpapers;
     Point mTileSizePx;
+    ThumbnailPrefetcher mThumbnailPrefetcher;
     WallpapersUiContainer mWallpapersUiContainer;
     @FormFactor
     int mFormFactor;
@@ -405,6 +408,28 @@ public class IndividualPickerFragment extends Fragment
         mAdapter = new IndividualAdapter(mWallpapers);
         mImageGrid.setAdapter(mAdapter);
         mImageGrid.setLayoutManager(new GridLayoutManager(getActivity(), getNumColumns()));
+
+        mThumbnailPrefetcher = new ThumbnailPrefetcher(getActivity(), mTileSizePx,
+                this::getWallpaperThumbnail);
+        mThumbnailPrefetcher.attachTo(mImageGrid);
+    }
+
+    /**
+     * Returns the thumbnail displayed by the wallpaper tile at the given adapter position, or null
+     * if the position isn't that of a wallpaper tile or the tile shows an overlay icon instead.
+     */
+    @Nullable
+    private Asset getWallpaperThumbnail(int adapterPosition) {
+        int wallpaperIndex = (isRotationEnabled() || mCategory.supportsCustomPhotos())
+                ? adapterPosition - 1 : adapterPosition;
+        if (wallpaperIndex < 0 || wallpaperIndex >= mWallpapers.size()) {
+            return null;
+        }
+        WallpaperInfo wallpaper = mWallpapers.get(wallpaperIndex);
+        if (wallpaper.getOverlayIcon(getActivity()) != null) {
+            return null;
+        }
+        return wallpaper.getThumbAsset(getActivity().getApplicationContext());
     }
 
     /**
@@ -495,6 +520,15 @@ public class IndividualPickerFragment extends Fragment
         mHandler.removeCallbacks(mUpdateDailyWallpaperThumbRunnable);
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        if (mThumbnailPrefetcher != null) {
+            mThumbnailPrefetcher.detachFrom(mImageGrid);
+            mThumbnailPrefetcher = null;
+        }
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
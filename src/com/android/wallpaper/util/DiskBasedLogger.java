@@ -26,18 +26,19 @@ import android.util.Log;
 
 import com.android.wallpaper.compat.BuildCompat;
 
-import java.io.BufferedReader;
-import java.io.Closeable;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
 
@@ -47,16 +48,31 @@ import androidx.annotation.VisibleForTesting;
 /**
  * Logs messages to logcat and for debuggable build types ("eng" or "userdebug") also mirrors logs
  * to a disk-based log buffer.
+ * <p>
+ * The disk-based log buffer is a directory of segment files, each named after the time it was
+ * started. Lines are appended through a buffered writer which stays open on the logger thread and
+ * is flushed shortly after a burst of messages, and segments are rolled over by size and by age so
+ * that old logs can be dropped by deleting whole segments.
  */
 public class DiskBasedLogger {
 
-    static final String LOGS_FILE_PATH = "logs.txt";
-    static final SimpleDateFormat DATE_FORMAT =
-            new SimpleDateFormat("EEE MMM dd HH:mm:ss.SSS z yyyy", Locale.US);
+    static final String LOGS_DIR_PATH = "logs";
 
-    private static final String TEMP_LOGS_FILE_PATH = "temp_logs.txt";
+    private static final String LEGACY_LOGS_FILE_PATH = "logs.txt";
+    private static final String LEGACY_TEMP_LOGS_FILE_PATH = "temp_logs.txt";
+    private static final String SEGMENT_PREFIX = "log-";
+    private static final String SEGMENT_SUFFIX = ".txt";
     private static final String TAG = "DiskBasedLogger";
 
+    private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+    private static final long SEGMENT_MAX_BYTES = 64 * 1024;
+    private static final long SEGMENT_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long LOGS_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(7);
+    // Caps the size of the log buffer at about SEGMENT_MAX_BYTES * MAX_SEGMENTS even if segments
+    // roll over by size faster than they age out.
+    private static final int MAX_SEGMENTS = 8;
+    private static final long FLUSH_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
     /**
      * POJO used to lock thread creation and file read/write operations.
      */
@@ -70,6 +86,8 @@ public class DiskBasedLogger {
         @Override
         public void run() {
             if (sLoggerThread != null && sLoggerThread.isAlive()) {
+                // This runs on the logger thread, so the segment can be closed before it quits.
+                closeSegment();
 
                 // HandlerThread#quitSafely was added in JB-MR2, so prefer to use that instead of #quit.
                 boolean isQuitSuccessful = BuildCompat.isAtLeastJBMR2()
@@ -85,6 +103,21 @@ public class DiskBasedLogger {
             }
         }
     };
+    private static final Runnable FLUSH_RUNNABLE = new Runnable() {
+        @Override
+        public void run() {
+            sIsFlushPending = false;
+            flushSegment();
+        }
+    };
+
+    // The state below is only accessed on the logger thread.
+    private static Writer sSegmentWriter;
+    private static long sSegmentStartMillis;
+    private static long sSegmentBytes;
+    private static boolean sIsFlushPending;
+    private static final StringBuilder sLineBuilder = new StringBuilder();
+    private static char[] sLineChars = new char[256];
 
     /**
      * Initializes and returns a new dedicated HandlerThread for reading and writing to the disk-based
@@ -140,23 +173,20 @@ public class DiskBasedLogger {
             return;
         }
 
+        // Capture the time of the call rather than the time the message gets written.
+        long timestamp = System.currentTimeMillis();
+        Context appContext = context.getApplicationContext();
         handler.post(() -> {
-            File logs = new File(context.getFilesDir(), LOGS_FILE_PATH);
-
-            // Construct a log message that we can parse later in order to clean up old logs.
-            String datetime = DATE_FORMAT.format(Calendar.getInstance().getTime());
-            String log = datetime + "/E " + tag + ": " + msg + "\n";
-
-            synchronized (S_LOCK) {
-                FileOutputStream outputStream;
-
-                try {
-                    outputStream = context.openFileOutput(logs.getName(), Context.MODE_APPEND);
-                    outputStream.write(log.getBytes(UTF_8));
-                    outputStream.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "Unable to close output stream for disk-based log buffer", e);
-                }
+            StringBuilder line = sLineBuilder;
+            line.setLength(0);
+            TimestampFormatter.format(timestamp, line);
+            line.append("/E ").append(tag).append(": ").append(msg).append('\n');
+            writeLine(appContext, timestamp, line);
+
+            // Flush once per burst of messages rather than once per message.
+            if (!sIsFlushPending) {
+                sIsFlushPending = true;
+                handler.postDelayed(FLUSH_RUNNABLE, FLUSH_DELAY_MILLIS);
             }
         });
     }
@@ -176,112 +206,271 @@ public class DiskBasedLogger {
             return;
         }
 
+        Context appContext = context.getApplicationContext();
         handler.post(() -> {
-            // Check if the logs file exists first before trying to read from it.
-            File logsFile = new File(context.getFilesDir(), LOGS_FILE_PATH);
-            if (!logsFile.exists()) {
-                Log.w(TAG, "Disk-based log buffer doesn't exist, so there's nothing to clean up.");
-                return;
-            }
+            flushSegment();
+            deleteOldSegments(getLogsDir(appContext), System.currentTimeMillis());
+        });
+    }
 
-            synchronized (S_LOCK) {
-                FileInputStream inputStream;
-                BufferedReader bufferedReader;
+    @Nullable
+    @VisibleForTesting
+  /* package */ static Handler getHandler() {
+        return sHandler;
+    }
 
-                try {
-                    inputStream = context.openFileInput(LOGS_FILE_PATH);
-                    bufferedReader = new BufferedReader(new InputStreamReader(inputStream, UTF_8));
-                } catch (IOException e) {
-                    Log.e(TAG, "IO exception opening a buffered reader for the existing logs file", e);
-                    return;
+    /**
+     * Appends the line to the current segment, rolling over to a new segment first if the current
+     * one is too large or too old. Must be called on the logger thread.
+     */
+    private static void writeLine(Context context, long timestamp, StringBuilder line) {
+        synchronized (S_LOCK) {
+            try {
+                if (sSegmentWriter != null && (sSegmentBytes >= SEGMENT_MAX_BYTES
+                        || timestamp - sSegmentStartMillis >= SEGMENT_MAX_AGE_MILLIS
+                        || timestamp < sSegmentStartMillis)) {
+                    closeSegment();
                 }
-
-                Date sevenDaysAgo = getSevenDaysAgo();
-
-                File tempLogsFile = new File(context.getFilesDir(), TEMP_LOGS_FILE_PATH);
-                FileOutputStream outputStream;
-
-                try {
-                    outputStream = context.openFileOutput(TEMP_LOGS_FILE_PATH, Context.MODE_APPEND);
-                } catch (IOException e) {
-                    Log.e(TAG, "Unable to close output stream for disk-based log buffer", e);
-                    return;
+                if (sSegmentWriter == null) {
+                    openSegment(context, timestamp);
                 }
+                int length = line.length();
+                if (sLineChars.length < length) {
+                    sLineChars = new char[Math.max(length, sLineChars.length * 2)];
+                }
+                line.getChars(0, length, sLineChars, 0);
+                sSegmentWriter.write(sLineChars, 0, length);
+                // Close enough for rolling over; most log lines are ASCII.
+                sSegmentBytes += length;
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write to disk-based log buffer", e);
+                closeSegment();
+            }
+        }
+    }
 
-                copyLogsNewerThanDate(bufferedReader, outputStream, sevenDaysAgo);
+    /**
+     * Opens the most recent segment for appending if it can still take more logs, or starts a new
+     * one otherwise.
+     */
+    private static void openSegment(Context context, long timestamp) throws IOException {
+        File logsDir = getLogsDir(context);
+        if (!logsDir.exists() && !logsDir.mkdirs()) {
+            throw new IOException("Unable to create " + logsDir);
+        }
+        migrateLegacyLogs(context, logsDir);
+        TimestampFormatter.refreshTimeZone();
+
+        File[] segments = listSegmentsOldestFirst(logsDir);
+        File segment = null;
+        if (segments.length > 0) {
+            File latest = segments[segments.length - 1];
+            long latestStartMillis = getSegmentStartMillis(latest);
+            if (latest.length() < SEGMENT_MAX_BYTES
+                    && timestamp - latestStartMillis < SEGMENT_MAX_AGE_MILLIS
+                    && timestamp >= latestStartMillis) {
+                segment = latest;
+                sSegmentStartMillis = latestStartMillis;
+            }
+        }
+        if (segment == null) {
+            segment = new File(logsDir, SEGMENT_PREFIX + timestamp + SEGMENT_SUFFIX);
+            sSegmentStartMillis = timestamp;
+            deleteExcessSegments(segments, MAX_SEGMENTS - 1);
+        }
 
-                // Close streams to prevent resource leaks.
-                closeStream(inputStream, "couldn't close input stream for log file");
-                closeStream(outputStream, "couldn't close output stream for temp log file");
+        sSegmentBytes = segment.length();
+        sSegmentWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(segment, true /* append */), UTF_8), WRITE_BUFFER_SIZE);
+    }
 
-                // Rename temp log file (if it exists--which is only when the logs file has logs newer than
-                // 7 days to begin with) to the final logs file.
-                if (tempLogsFile.exists() && !tempLogsFile.renameTo(logsFile)) {
-                    Log.e(TAG, "couldn't rename temp logs file to final logs file");
-                }
+    private static void flushSegment() {
+        synchronized (S_LOCK) {
+            if (sSegmentWriter == null) {
+                return;
             }
-        });
+            try {
+                sSegmentWriter.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to flush disk-based log buffer", e);
+            }
+        }
     }
 
-    @Nullable
-    @VisibleForTesting
-  /* package */ static Handler getHandler() {
-        return sHandler;
+    private static void closeSegment() {
+        synchronized (S_LOCK) {
+            if (sSegmentWriter == null) {
+                return;
+            }
+            try {
+                sSegmentWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close disk-based log buffer", e);
+            }
+            sSegmentWriter = null;
+            // Closing flushed everything, and a flush posted to a thread which has since quit
+            // would never run.
+            sIsFlushPending = false;
+        }
     }
 
     /**
-     * Constructs and returns a {@link Date} object representing the time 7 days ago.
+     * Deletes segments whose last log is older than 7 days, as well as the oldest segments in
+     * excess of {@link #MAX_SEGMENTS}.
      */
-    private static Date getSevenDaysAgo() {
-        Calendar sevenDaysAgoCalendar = Calendar.getInstance();
-        sevenDaysAgoCalendar.add(Calendar.DAY_OF_MONTH, -7);
-        return sevenDaysAgoCalendar.getTime();
+    private static void deleteOldSegments(File logsDir, long now) {
+        synchronized (S_LOCK) {
+            File[] segments = listSegmentsOldestFirst(logsDir);
+            for (File segment : segments) {
+                if (now - segment.lastModified() > LOGS_MAX_AGE_MILLIS && !segment.delete()) {
+                    Log.e(TAG, "Unable to delete old log segment " + segment.getName());
+                }
+            }
+            deleteExcessSegments(listSegmentsOldestFirst(logsDir), MAX_SEGMENTS);
+        }
+    }
+
+    private static void deleteExcessSegments(File[] segmentsOldestFirst, int maxSegments) {
+        for (int i = 0; i < segmentsOldestFirst.length - maxSegments; i++) {
+            if (!segmentsOldestFirst[i].delete()) {
+                Log.e(TAG, "Unable to delete log segment " + segmentsOldestFirst[i].getName());
+            }
+        }
+    }
+
+    private static File getLogsDir(Context context) {
+        return new File(context.getFilesDir(), LOGS_DIR_PATH);
+    }
+
+    private static File[] listSegmentsOldestFirst(File logsDir) {
+        File[] segments = logsDir.listFiles((dir, name) ->
+                name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments, (a, b) ->
+                Long.compare(getSegmentStartMillis(a), getSegmentStartMillis(b)));
+        return segments;
+    }
+
+    private static long getSegmentStartMillis(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(
+                    SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
     /**
-     * Tries to close the provided Closeable stream and logs the error message if the stream couldn't
-     * be closed.
+     * Moves the single log file written by earlier versions of the app into a segment, so that it
+     * ages out like any other segment.
      */
-    private static void closeStream(Closeable stream, String errorMessage) {
-        try {
-            stream.close();
-        } catch (IOException e) {
-            Log.e(TAG, errorMessage);
+    private static void migrateLegacyLogs(Context context, File logsDir) {
+        File legacyLogs = new File(context.getFilesDir(), LEGACY_LOGS_FILE_PATH);
+        if (legacyLogs.exists()) {
+            File segment = new File(logsDir,
+                    SEGMENT_PREFIX + legacyLogs.lastModified() + SEGMENT_SUFFIX);
+            if (!legacyLogs.renameTo(segment)) {
+                legacyLogs.delete();
+            }
         }
+        new File(context.getFilesDir(), LEGACY_TEMP_LOGS_FILE_PATH).delete();
     }
 
     /**
-     * Copies all log lines newer than the supplied date from the provided {@link BufferedReader} to
-     * the provided {@OutputStream}.
-     * <p>
-     * The caller of this method is responsible for closing the output stream and input stream
-     * underlying the BufferedReader when all operations have finished.
+     * Formats timestamps as "yyyy-MM-dd HH:mm:ss.SSS+hhmm" in the default time zone. The date and
+     * UTC offset are only formatted when a timestamp falls outside of the day and offset of the
+     * previous one, and the time of day is written digit by digit, so that formatting a line
+     * doesn't allocate. Must only be used on the logger thread.
      */
-    private static void copyLogsNewerThanDate(BufferedReader reader, OutputStream outputStream,
-                                              Date date) {
-        try {
-            String line = reader.readLine();
-            while (line != null) {
-                // Get the date from the line string.
-                String datetime = line.split("/")[0];
-                Date logDate;
-                try {
-                    logDate = DATE_FORMAT.parse(datetime);
-                } catch (ParseException e) {
-                    Log.e(TAG, "Error parsing date from previous logs", e);
-                    return;
-                }
+    private static final class TimestampFormatter {
+        private static final DateTimeFormatter DATE_FORMAT =
+                DateTimeFormatter.ofPattern("yyyy-MM-dd ", Locale.US);
+        private static final long MILLIS_PER_DAY = TimeUnit.DAYS.toMillis(1);
+
+        // Looking up the default time zone copies it, so only refresh it occasionally.
+        private static ZoneId sZone = ZoneId.systemDefault();
+
+        // The formatted date and offset, which apply to timestamps in [sValidFromMillis,
+        // sValidUntilMillis).
+        private static String sDate;
+        private static String sOffset;
+        private static long sDayStartMillis;
+        private static long sValidFromMillis;
+        private static long sValidUntilMillis = Long.MIN_VALUE;
+
+        private TimestampFormatter() {
+        }
 
-                // Copy logs newer than the provided date into a temp log file.
-                if (logDate.after(date)) {
-                    outputStream.write(line.getBytes(UTF_8));
-                    outputStream.write("\n".getBytes(UTF_8));
-                }
+        static void refreshTimeZone() {
+            ZoneId zone = ZoneId.systemDefault();
+            if (!zone.equals(sZone)) {
+                sZone = zone;
+                sValidUntilMillis = Long.MIN_VALUE;
+            }
+        }
+
+        static void format(long timestamp, StringBuilder out) {
+            if (timestamp < sValidFromMillis || timestamp >= sValidUntilMillis) {
+                updateDay(timestamp);
+            }
+            int millisOfDay = (int) (timestamp - sDayStartMillis);
+            out.append(sDate);
+            appendDigits(out, millisOfDay / 3_600_000, 2);
+            out.append(':');
+            appendDigits(out, millisOfDay / 60_000 % 60, 2);
+            out.append(':');
+            appendDigits(out, millisOfDay / 1000 % 60, 2);
+            out.append('.');
+            appendDigits(out, millisOfDay % 1000, 3);
+            out.append(sOffset);
+        }
+
+        /**
+         * Formats the date and offset of the given timestamp, and works out the range of
+         * timestamps which share them: the rest of the local day, up to the next offset change.
+         */
+        private static void updateDay(long timestamp) {
+            Instant instant = Instant.ofEpochMilli(timestamp);
+            ZoneRules rules = sZone.getRules();
+            ZoneOffset offset = rules.getOffset(instant);
+            long offsetMillis = TimeUnit.SECONDS.toMillis(offset.getTotalSeconds());
+
+            sDayStartMillis = Math.floorDiv(timestamp + offsetMillis, MILLIS_PER_DAY)
+                    * MILLIS_PER_DAY - offsetMillis;
+            sValidFromMillis = sDayStartMillis;
+            sValidUntilMillis = sDayStartMillis + MILLIS_PER_DAY;
+            ZoneOffsetTransition previous = rules.previousTransition(instant);
+            if (previous != null) {
+                sValidFromMillis = Math.max(sValidFromMillis, previous.getInstant().toEpochMilli());
+            }
+            ZoneOffsetTransition next = rules.nextTransition(instant);
+            if (next != null) {
+                sValidUntilMillis = Math.min(sValidUntilMillis, next.getInstant().toEpochMilli());
+            }
 
-                line = reader.readLine();
+            sDate = DATE_FORMAT.format(instant.atOffset(offset));
+            int offsetMinutes = Math.abs(offset.getTotalSeconds()) / 60;
+            StringBuilder formattedOffset = new StringBuilder(5)
+                    .append(offset.getTotalSeconds() < 0 ? '-' : '+');
+            appendDigits(formattedOffset, offsetMinutes / 60, 2);
+            appendDigits(formattedOffset, offsetMinutes % 60, 2);
+            sOffset = formattedOffset.toString();
+        }
+
+        /**
+         * Appends a non-negative value, zero-padded to the given number of digits.
+         */
+        private static void appendDigits(StringBuilder out, int value, int digits) {
+            int divisor = 1;
+            for (int i = 1; i < digits; i++) {
+                divisor *= 10;
+            }
+            for (; divisor > 0; divisor /= 10) {
+                out.append((char) ('0' + value / divisor % 10));
             }
-        } catch (IOException e) {
-            Log.e(TAG, "IO exception while reading line from buffered reader", e);
         }
     }
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes an opaque image as a PNG one row of pixels at a time, unlike
+ * {@link android.graphics.Bitmap#compress}, which needs the whole image in memory. Only a single
+ * row and a fixed-size chunk of compressed output are buffered, so rows can be produced in bands
+ * and discarded as soon as they're written.
+ * <p>
+ * Rows are written as 8-bit RGB with the "sub" filter; the alpha channel is dropped.
+ */
+public final class StreamingPngEncoder implements AutoCloseable {
+    private static final byte[] SIGNATURE = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final byte[] TYPE_IHDR = "IHDR".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TYPE_IDAT = "IDAT".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TYPE_IEND = "IEND".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int BIT_DEPTH = 8;
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int FILTER_TYPE_SUB = 1;
+    private static final int BYTES_PER_PIXEL = 3;
+    private static final int IDAT_CHUNK_SIZE_BYTES = 64 * 1024;
+
+    private final OutputStream mOutputStream;
+    private final int mWidth;
+    private final int mHeight;
+    // Favor speed, since the wallpaper is set while the user waits.
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mRow;
+    private final byte[] mChunk = new byte[IDAT_CHUNK_SIZE_BYTES];
+    private int mChunkLength;
+    private int mRowsWritten;
+
+    /**
+     * Writes the PNG header for an image of the given size to the output stream, which is left
+     * open for the caller to close once {@link #finish()} has been called.
+     */
+    public StreamingPngEncoder(OutputStream outputStream, int width, int height)
+            throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid image size " + width + "x" + height);
+        }
+        mOutputStream = outputStream;
+        mWidth = width;
+        mHeight = height;
+        mRow = new byte[1 + width * BYTES_PER_PIXEL];
+        mRow[0] = FILTER_TYPE_SUB;
+
+        mOutputStream.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = BIT_DEPTH;
+        header[9] = COLOR_TYPE_RGB;
+        // Compression, filter and interlace methods are all 0.
+        writeChunk(TYPE_IHDR, header, header.length);
+    }
+
+    /**
+     * Encodes the next row of the image, from the first {@code width} ARGB pixels of the array.
+     */
+    public void writeRow(int[] pixels) throws IOException {
+        if (mRowsWritten == mHeight) {
+            throw new IllegalStateException("All " + mHeight + " rows were already written");
+        }
+
+        int previousPixel = 0;
+        for (int x = 0, i = 1; x < mWidth; x++, i += BYTES_PER_PIXEL) {
+            int pixel = pixels[x];
+            mRow[i] = (byte) ((pixel >> 16) - (previousPixel >> 16));
+            mRow[i + 1] = (byte) ((pixel >> 8) - (previousPixel >> 8));
+            mRow[i + 2] = (byte) (pixel - previousPixel);
+            previousPixel = pixel;
+        }
+
+        mDeflater.setInput(mRow);
+        while (!mDeflater.needsInput()) {
+            deflate();
+        }
+        mRowsWritten++;
+    }
+
+    /**
+     * Flushes the remaining compressed data and writes the PNG trailer. Must be called once all
+     * rows were written.
+     */
+    public void finish() throws IOException {
+        if (mRowsWritten != mHeight) {
+            throw new IllegalStateException(
+                    "Only " + mRowsWritten + " of " + mHeight + " rows were written");
+        }
+
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            deflate();
+        }
+        if (mChunkLength > 0) {
+            writeChunk(TYPE_IDAT, mChunk, mChunkLength);
+            mChunkLength = 0;
+        }
+        writeChunk(TYPE_IEND, mChunk, 0);
+        mOutputStream.flush();
+    }
+
+    /**
+     * Releases the native memory of the compressor. Doesn't close the output stream.
+     */
+    @Override
+    public void close() {
+        mDeflater.end();
+    }
+
+    private void deflate() throws IOException {
+        mChunkLength += mDeflater.deflate(mChunk, mChunkLength, mChunk.length - mChunkLength);
+        if (mChunkLength == mChunk.length) {
+            writeChunk(TYPE_IDAT, mChunk, mChunkLength);
+            mChunkLength = 0;
+        }
+    }
+
+    private void writeChunk(byte[] type, byte[] data, int length) throws IOException {
+        byte[] buffer = new byte[4];
+        putInt(buffer, 0, length);
+        mOutputStream.write(buffer);
+
+        mCrc.reset();
+        mCrc.update(type);
+        mCrc.update(data, 0, length);
+        mOutputStream.write(type);
+        mOutputStream.write(data, 0, length);
+
+        putInt(buffer, 0, (int) mCrc.getValue());
+        mOutputStream.write(buffer);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
@@ -44,7 +44,7 @@ public class WallpapersInjector extends BaseWallpaperInjector {
     @Override
     public synchronized UserEventLogger getUserEventLogger(Context context) {
         if (mUserEventLogger == null) {
-            mUserEventLogger = new NoOpUserEventLogger();
+            mUserEventLogger = new LocalUserEventLogger(context.getApplicationContext());
         }
         return mUserEventLogger;
     }
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link PixelHasher}, which check that hashing reads a bounded number of rows however
+ * large the image is, and that the legacy hash matches the per-pixel algorithm it replaced.
+ */
+public class PixelHasherTest {
+
+    @Test
+    public void hash_largeImage_readsOnlyGridRows() {
+        GeneratedImage image = new GeneratedImage(12000, 9000, 0);
+
+        PixelHasher.hash(image);
+
+        assertEquals(PixelHasher.HASH_GRID_SIZE, image.mReadRows.size());
+        assertArrayEquals(PixelHasher.getSampledRows(9000), toArray(image.mReadRows));
+    }
+
+    @Test
+    public void hash_smallImage_readsEveryRow() {
+        GeneratedImage image = new GeneratedImage(100, 20, 0);
+
+        PixelHasher.hash(image);
+
+        assertEquals(20, image.mReadRows.size());
+    }
+
+    @Test
+    public void hash_sameImage_returnsSameHash() {
+        assertEquals(PixelHasher.hash(new GeneratedImage(1440, 2960, 7)),
+                PixelHasher.hash(new GeneratedImage(1440, 2960, 7)));
+    }
+
+    @Test
+    public void hash_differentPixels_returnsDifferentHash() {
+        assertNotEquals(PixelHasher.hash(new GeneratedImage(1440, 2960, 7)),
+                PixelHasher.hash(new GeneratedImage(1440, 2960, 8)));
+    }
+
+    @Test
+    public void hash_differentDimensions_returnsDifferentHash() {
+        assertNotEquals(PixelHasher.hash(new GeneratedImage(1080, 1920, 7)),
+                PixelHasher.hash(new GeneratedImage(1920, 1080, 7)));
+    }
+
+    @Test
+    public void legacyHash_matchesPerPixelAlgorithm() {
+        for (int[] size : new int[][] {{1, 1}, {37, 5}, {1080, 1920}, {4000, 3000}}) {
+            GeneratedImage image = new GeneratedImage(size[0], size[1], 3);
+
+            assertEquals(size[0] + "x" + size[1], hashPerPixel(image),
+                    PixelHasher.legacyHash(image));
+        }
+    }
+
+    @Test
+    public void legacyHash_readsOnlyLegacyRows() {
+        GeneratedImage image = new GeneratedImage(4000, 3000, 0);
+
+        PixelHasher.legacyHash(image);
+
+        assertArrayEquals(PixelHasher.getLegacySampledRows(3000), toArray(image.mReadRows));
+    }
+
+    /**
+     * The hash code generation which {@link PixelHasher#legacyHash} reproduces, reading one pixel
+     * per call like {@code Bitmap#getPixel}.
+     */
+    private static long hashPerPixel(GeneratedImage image) {
+        long result = 17;
+        result = 31 * result + image.getWidth();
+        result = 31 * result + image.getHeight();
+        for (int x = 0; x < image.getWidth(); x = x * 2 + 1) {
+            for (int y = 0; y < image.getHeight(); y = y * 2 + 1) {
+                result = 31 * result + image.getPixel(x, y);
+            }
+        }
+        return result;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Image whose pixels are computed from their coordinates and a seed rather than stored, which
+     * records the rows read from it.
+     */
+    private static final class GeneratedImage implements PixelHasher.RowReader {
+        private final int mWidth;
+        private final int mHeight;
+        private final int mSeed;
+        final List<Integer> mReadRows = new ArrayList<>();
+
+        GeneratedImage(int width, int height, int seed) {
+            mWidth = width;
+            mHeight = height;
+            mSeed = seed;
+        }
+
+        @Override
+        public int getWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public void readRow(int y, int[] pixels) {
+            mReadRows.add(y);
+            for (int x = 0; x < mWidth; x++) {
+                pixels[x] = getPixel(x, y);
+            }
+        }
+
+        int getPixel(int x, int y) {
+            int value = (x * 0x9e3779b1) ^ (y * 0x85ebca6b) ^ (mSeed * 0xc2b2ae35);
+            return value ^ (value >>> 15);
+        }
+    }
+}
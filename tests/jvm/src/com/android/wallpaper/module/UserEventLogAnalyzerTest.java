@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.wallpaper.module.UserEventLogAnalyzer.DayStats;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.SortedMap;
+
+/**
+ * Tests for {@link UserEventLogAnalyzer}.
+ */
+public class UserEventLogAnalyzerTest {
+
+    private static final LocalDate DAY = LocalDate.of(2019, 1, 1);
+    private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+
+    private ByteBuffer mBuffer;
+
+    @Before
+    public void setUp() {
+        mBuffer = ByteBuffer.allocate(UserEventLogFormat.FILE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        UserEventLogFormat.writeEmptyHeader(mBuffer);
+    }
+
+    @Test
+    public void aggregate_emptyLog_returnsNoDays() {
+        assertTrue(aggregate(ZoneOffset.UTC).isEmpty());
+    }
+
+    @Test
+    public void aggregate_groupsRecordsByDay() {
+        long dayStart = toMillis(DAY, ZoneOffset.UTC);
+        writeRecord(dayStart + HOUR_MILLIS, UserEventLogFormat.EVENT_RESUMED, 0);
+        writeRecord(dayStart + 2 * HOUR_MILLIS, UserEventLogFormat.EVENT_RESUMED, 0);
+        writeRecord(dayStart + 25 * HOUR_MILLIS, UserEventLogFormat.EVENT_STOPPED, 0);
+
+        SortedMap<LocalDate, DayStats> statsByDay = aggregate(ZoneOffset.UTC);
+
+        assertEquals(2, statsByDay.size());
+        DayStats first = statsByDay.get(DAY);
+        assertEquals(1, first.mEventCounts.size());
+        assertEquals(2, (int) first.mEventCounts.get(UserEventLogFormat.EVENT_RESUMED));
+        DayStats second = statsByDay.get(DAY.plusDays(1));
+        assertEquals(1, second.mEventCounts.size());
+        assertEquals(1, (int) second.mEventCounts.get(UserEventLogFormat.EVENT_STOPPED));
+    }
+
+    @Test
+    public void aggregate_usesGivenTimeZone() {
+        // Late in the evening in UTC, which is already the next day an hour further east.
+        long timestamp = toMillis(DAY, ZoneOffset.UTC) + 23 * HOUR_MILLIS + HOUR_MILLIS / 2;
+        writeRecord(timestamp, UserEventLogFormat.EVENT_RESUMED, 0);
+
+        assertEquals(DAY, aggregate(ZoneOffset.UTC).firstKey());
+        assertEquals(DAY.plusDays(1), aggregate(ZoneOffset.ofHours(1)).firstKey());
+    }
+
+    @Test
+    public void aggregate_countsPayloads() {
+        long dayStart = toMillis(DAY, ZoneOffset.UTC);
+        writeRecord(dayStart, UserEventLogFormat.EVENT_WALLPAPER_SET_RESULT, 0);
+        writeRecord(dayStart, UserEventLogFormat.EVENT_WALLPAPER_SET_RESULT, 0);
+        writeRecord(dayStart, UserEventLogFormat.EVENT_WALLPAPER_SET_RESULT, 1);
+        writeRecord(dayStart, UserEventLogFormat.EVENT_WALLPAPER_SET_FAILURE_REASON, 2);
+        writeRecord(dayStart, UserEventLogFormat.EVENT_DAILY_WALLPAPER_DECODES, 1);
+        writeRecord(dayStart, UserEventLogFormat.EVENT_DAILY_WALLPAPER_DECODES, 1);
+        writeRecord(dayStart, UserEventLogFormat.EVENT_DAILY_WALLPAPER_DECODES, 0);
+
+        DayStats stats = aggregate(ZoneOffset.UTC).get(DAY);
+
+        assertEquals(2, (int) stats.mSetResults.get(0));
+        assertEquals(1, (int) stats.mSetResults.get(1));
+        assertEquals(1, (int) stats.mSetFailureReasons.get(2));
+        assertEquals(2, stats.mRotationDecodes);
+        assertEquals(1, stats.mRotationDecodeFailures);
+        assertEquals(3,
+                (int) stats.mEventCounts.get(UserEventLogFormat.EVENT_WALLPAPER_SET_RESULT));
+    }
+
+    @Test
+    public void aggregate_countsCollections() {
+        long dayStart = toMillis(DAY, ZoneOffset.UTC);
+        UserEventLogFormat.writeString(mBuffer, 0, "landscapes");
+        UserEventLogFormat.writeString(mBuffer, 1, "cities");
+        UserEventLogFormat.writeRecord(mBuffer, dayStart, UserEventLogFormat.EVENT_WALLPAPER_SET,
+                0 /* stringIndex */, 0, 0, 0L);
+        UserEventLogFormat.writeRecord(mBuffer, dayStart, UserEventLogFormat.EVENT_WALLPAPER_SET,
+                0 /* stringIndex */, 0, 0, 0L);
+        UserEventLogFormat.writeRecord(mBuffer, dayStart,
+                UserEventLogFormat.EVENT_CATEGORY_SELECTED, 1 /* stringIndex */, 0, 0, 0L);
+
+        DayStats stats = aggregate(ZoneOffset.UTC).get(DAY);
+
+        assertEquals(1, stats.mWallpaperSets.size());
+        assertEquals(2, (int) stats.mWallpaperSets.get("landscapes"));
+        assertEquals(1, stats.mCategorySelections.size());
+        assertEquals(1, (int) stats.mCategorySelections.get("cities"));
+    }
+
+    private void writeRecord(long timestamp, int eventType, int intPayload1) {
+        UserEventLogFormat.writeRecord(mBuffer, timestamp, eventType, UserEventLogFormat.NO_STRING,
+                intPayload1, 0, 0L);
+    }
+
+    private SortedMap<LocalDate, DayStats> aggregate(ZoneId zone) {
+        return UserEventLogAnalyzer.aggregate(UserEventLogFormat.readRecords(mBuffer), zone);
+    }
+
+    private static long toMillis(LocalDate day, ZoneId zone) {
+        return day.atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.wallpaper.module.UserEventLogFormat.Record;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * Tests for {@link UserEventLogFormat}.
+ */
+public class UserEventLogFormatTest {
+
+    private ByteBuffer mBuffer;
+
+    @Before
+    public void setUp() {
+        mBuffer = ByteBuffer.allocate(UserEventLogFormat.FILE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        UserEventLogFormat.writeEmptyHeader(mBuffer);
+    }
+
+    @Test
+    public void readRecords_invalidHeader_returnsNoRecords() {
+        ByteBuffer buffer = ByteBuffer.allocate(UserEventLogFormat.FILE_SIZE);
+
+        assertFalse(UserEventLogFormat.hasValidHeader(buffer));
+        assertTrue(UserEventLogFormat.readRecords(buffer).isEmpty());
+    }
+
+    @Test
+    public void readRecords_returnsWrittenRecords() {
+        UserEventLogFormat.writeString(mBuffer, 0, "collection");
+        UserEventLogFormat.writeRecord(mBuffer, 1000L, UserEventLogFormat.EVENT_WALLPAPER_SET,
+                0 /* stringIndex */, 1, -2, Long.MAX_VALUE);
+        UserEventLogFormat.writeRecord(mBuffer, 2000L, UserEventLogFormat.EVENT_STOPPED,
+                UserEventLogFormat.NO_STRING, 0, 0, 0L);
+
+        assertTrue(UserEventLogFormat.hasValidHeader(mBuffer));
+        List<Record> records = UserEventLogFormat.readRecords(mBuffer);
+        assertEquals(2, records.size());
+
+        Record first = records.get(0);
+        assertEquals(1000L, first.mTimestamp);
+        assertEquals(UserEventLogFormat.EVENT_WALLPAPER_SET, first.mEventType);
+        assertEquals("collection", first.mCollectionId);
+        assertEquals(1, first.mIntPayload1);
+        assertEquals(-2, first.mIntPayload2);
+        assertEquals(Long.MAX_VALUE, first.mLongPayload);
+
+        Record second = records.get(1);
+        assertEquals(2000L, second.mTimestamp);
+        assertEquals(UserEventLogFormat.EVENT_STOPPED, second.mEventType);
+        assertNull(second.mCollectionId);
+    }
+
+    @Test
+    public void readRecords_fullRing_returnsNewestRecordsOldestFirst() {
+        int extraRecords = 10;
+        for (int i = 0; i < UserEventLogFormat.RECORD_CAPACITY + extraRecords; i++) {
+            UserEventLogFormat.writeRecord(mBuffer, i, UserEventLogFormat.EVENT_RESUMED,
+                    UserEventLogFormat.NO_STRING, 0, 0, 0L);
+        }
+
+        List<Record> records = UserEventLogFormat.readRecords(mBuffer);
+        assertEquals(UserEventLogFormat.RECORD_CAPACITY, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(extraRecords + i, records.get(i).mTimestamp);
+        }
+    }
+
+    @Test
+    public void readRecords_negativeRecordCount_returnsNoRecords() {
+        mBuffer.putLong(UserEventLogFormat.RECORD_COUNT_OFFSET, -5);
+
+        assertFalse(UserEventLogFormat.hasValidHeader(mBuffer));
+        assertTrue(UserEventLogFormat.readRecords(mBuffer).isEmpty());
+    }
+
+    @Test
+    public void writeRecord_negativeRecordCount_restartsRing() {
+        mBuffer.putLong(UserEventLogFormat.RECORD_COUNT_OFFSET, Long.MIN_VALUE);
+
+        UserEventLogFormat.writeRecord(mBuffer, 1000L, UserEventLogFormat.EVENT_RESUMED,
+                UserEventLogFormat.NO_STRING, 0, 0, 0L);
+
+        List<Record> records = UserEventLogFormat.readRecords(mBuffer);
+        assertEquals(1, records.size());
+        assertEquals(1000L, records.get(0).mTimestamp);
+    }
+
+    @Test
+    public void truncate_shortString_returnsSameString() {
+        String value = "short_collection_id";
+
+        assertEquals(value, UserEventLogFormat.truncate(value));
+    }
+
+    @Test
+    public void truncate_multiByteCharacters_cutsBetweenCodePoints() {
+        // 3 bytes per character in UTF-8, so a slot fits 20 of them with 2 bytes to spare.
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < UserEventLogFormat.MAX_STRING_BYTES; i++) {
+            value.append('\u20ac');
+        }
+
+        String truncated = UserEventLogFormat.truncate(value.toString());
+
+        assertEquals(UserEventLogFormat.MAX_STRING_BYTES / 3, truncated.length());
+        UserEventLogFormat.writeString(mBuffer, 0, truncated);
+        assertEquals(truncated, UserEventLogFormat.readString(mBuffer, 0));
+    }
+
+    @Test
+    public void truncate_surrogatePair_isNotSplit() {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < UserEventLogFormat.MAX_STRING_BYTES - 2; i++) {
+            value.append('a');
+        }
+        // A 4 byte character straddling the end of the slot.
+        value.appendCodePoint(0x1f600);
+
+        String truncated = UserEventLogFormat.truncate(value.toString());
+
+        assertEquals(UserEventLogFormat.MAX_STRING_BYTES - 2, truncated.length());
+        assertTrue(truncated.getBytes(UTF_8).length <= UserEventLogFormat.MAX_STRING_BYTES);
+    }
+
+    @Test
+    public void writeString_countsInternedStrings() {
+        UserEventLogFormat.writeString(mBuffer, 0, "first");
+        UserEventLogFormat.writeString(mBuffer, 1, "second");
+
+        assertEquals(2, UserEventLogFormat.getStringCount(mBuffer));
+        assertEquals("first", UserEventLogFormat.readString(mBuffer, 0));
+        assertEquals("second", UserEventLogFormat.readString(mBuffer, 1));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Tests for {@link StreamingPngEncoder}, which check its output by decoding it with
+ * {@link ImageIO}.
+ */
+public class StreamingPngEncoderTest {
+
+    @Test
+    public void encode_randomPixels_decodesToSameRgb() throws IOException {
+        // Wide enough that the compressed rows span several IDAT chunks.
+        int width = 1021;
+        int height = 357;
+        Random random = new Random(0);
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+
+        BufferedImage image = decode(encode(pixels, width, height), width, height);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals("Pixel (" + x + ", " + y + ")",
+                        pixels[y * width + x] & 0xffffff, image.getRGB(x, y) & 0xffffff);
+            }
+        }
+    }
+
+    @Test
+    public void encode_singlePixel_decodesToSameRgb() throws IOException {
+        int[] pixels = {0x80123456};
+
+        BufferedImage image = decode(encode(pixels, 1, 1), 1, 1);
+
+        assertEquals(0x123456, image.getRGB(0, 0) & 0xffffff);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void finish_missingRows_throws() throws IOException {
+        try (StreamingPngEncoder encoder =
+                     new StreamingPngEncoder(new ByteArrayOutputStream(), 2, 2)) {
+            encoder.writeRow(new int[2]);
+            encoder.finish();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void writeRow_extraRow_throws() throws IOException {
+        try (StreamingPngEncoder encoder =
+                     new StreamingPngEncoder(new ByteArrayOutputStream(), 2, 1)) {
+            encoder.writeRow(new int[2]);
+            encoder.writeRow(new int[2]);
+        }
+    }
+
+    private static byte[] encode(int[] pixels, int width, int height) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        int[] row = new int[width];
+        try (StreamingPngEncoder encoder = new StreamingPngEncoder(outputStream, width, height)) {
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(pixels, y * width, row, 0, width);
+                encoder.writeRow(row);
+            }
+            encoder.finish();
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static BufferedImage decode(byte[] png, int width, int height) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertNotNull(image);
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        return image;
+    }
+}
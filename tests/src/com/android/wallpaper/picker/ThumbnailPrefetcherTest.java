@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.picker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.Color;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.view.ContextThemeWrapper;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.View.MeasureSpec;
+import android.widget.FrameLayout;
+import android.widget.ImageView;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.internal.runner.junit4.AndroidJUnit4ClassRunner;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.wallpaper.R;
+import com.android.wallpaper.asset.Asset;
+import com.android.wallpaper.asset.DecodeRequest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link ThumbnailPrefetcher}.
+ */
+@RunWith(AndroidJUnit4ClassRunner.class)
+@MediumTest
+public class ThumbnailPrefetcherTest {
+
+    private static final Point TILE_SIZE_PX = new Point(400, 500);
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = new ContextThemeWrapper(
+                InstrumentationRegistry.getInstrumentation().getTargetContext(),
+                R.style.WallpaperTheme);
+    }
+
+    @Test
+    public void prefetch_categoryTile_decodesAtSizeTileBindsAt() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            ThumbnailPrefetcher prefetcher = new ThumbnailPrefetcher(null /* activity */,
+                    TILE_SIZE_PX, position -> null);
+            ImageView imageView = layOutCategoryTile(prefetcher);
+            SizeRecordingAsset asset = new SizeRecordingAsset();
+
+            prefetcher.prefetch(asset);
+            asset.loadDrawable(mContext, imageView, Color.BLACK);
+
+            assertNotNull(asset.mPrefetchSize);
+            assertNotNull(asset.mDecodeSize);
+            // The image is inset from the tile, which is why the tile size can't be used.
+            assertNotEquals(TILE_SIZE_PX, asset.mDecodeSize);
+            assertEquals(asset.mDecodeSize, asset.mPrefetchSize);
+        });
+    }
+
+    @Test
+    public void prefetch_untrackedTile_decodesAtTileSize() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            ThumbnailPrefetcher prefetcher = new ThumbnailPrefetcher(null /* activity */,
+                    TILE_SIZE_PX, position -> null);
+            SizeRecordingAsset asset = new SizeRecordingAsset();
+
+            prefetcher.prefetch(asset);
+
+            assertEquals(TILE_SIZE_PX, asset.mPrefetchSize);
+        });
+    }
+
+    /**
+     * Inflates and lays out a category tile the way {@link CategoryFragment} does, with its image
+     * size tracked by the given prefetcher, and returns the tile's image view.
+     */
+    private ImageView layOutCategoryTile(ThumbnailPrefetcher prefetcher) {
+        FrameLayout parent = new FrameLayout(mContext);
+        View tile = LayoutInflater.from(mContext).inflate(R.layout.grid_item_category, parent,
+                false /* attachToRoot */);
+        tile.getLayoutParams().height = TILE_SIZE_PX.y;
+        parent.addView(tile);
+        ImageView imageView = tile.findViewById(R.id.image);
+        prefetcher.trackThumbnailSize(imageView);
+
+        parent.measure(
+                MeasureSpec.makeMeasureSpec(TILE_SIZE_PX.x, MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED));
+        parent.layout(0, 0, parent.getMeasuredWidth(), parent.getMeasuredHeight());
+        return imageView;
+    }
+
+    /**
+     * Asset which records the sizes it's prefetched and decoded at, without decoding anything.
+     */
+    private static class SizeRecordingAsset extends Asset {
+        Point mPrefetchSize;
+        Point mDecodeSize;
+
+        @Override
+        public DecodeRequest prefetchDrawable(Context context, int width, int height) {
+            mPrefetchSize = new Point(width, height);
+            return DecodeRequest.completed();
+        }
+
+        @Override
+        public DecodeRequest decodeBitmap(int targetWidth, int targetHeight,
+                BitmapReceiver receiver) {
+            mDecodeSize = new Point(targetWidth, targetHeight);
+            return DecodeRequest.completed();
+        }
+
+        @Override
+        public DecodeRequest decodeBitmapRegion(Rect rect, int targetWidth, int targetHeight,
+                BitmapReceiver receiver) {
+            return DecodeRequest.completed();
+        }
+
+        @Override
+        public DecodeRequest decodeRawDimensions(Activity activity, DimensionsReceiver receiver) {
+            receiver.onDimensionsDecoded(null);
+            return DecodeRequest.completed();
+        }
+
+        @Override
+        public boolean supportsTiling() {
+            return false;
+        }
+    }
+}
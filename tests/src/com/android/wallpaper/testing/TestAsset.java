@@ -26,6 +26,7 @@ import android.widget.ImageView;
 import androidx.annotation.Nullable;
 
 import com.android.wallpaper.asset.Asset;
+import com.android.wallpaper.asset.DecodeRequest;
 
 
 /**
@@ -56,19 +57,23 @@ public final class TestAsset extends Asset {
     }
 
     @Override
-    public void decodeBitmap(int targetWidth, int targetHeight, BitmapReceiver receiver) {
+    public DecodeRequest decodeBitmap(int targetWidth, int targetHeight,
+            BitmapReceiver receiver) {
         receiver.onBitmapDecoded(mBitmap);
+        return DecodeRequest.completed();
     }
 
     @Override
-    public void decodeBitmapRegion(Rect unused, int targetWidth, int targetHeight,
+    public DecodeRequest decodeBitmapRegion(Rect unused, int targetWidth, int targetHeight,
             BitmapReceiver receiver) {
         receiver.onBitmapDecoded(mBitmap);
+        return DecodeRequest.completed();
     }
 
     @Override
-    public void decodeRawDimensions(Activity unused, DimensionsReceiver receiver) {
+    public DecodeRequest decodeRawDimensions(Activity unused, DimensionsReceiver receiver) {
         receiver.onDimensionsDecoded(mIsCorrupt ? null : new Point(1, 1));
+        return DecodeRequest.completed();
     }
 
     @Override
@@ -16,12 +16,18 @@
 package com.android.wallpaper.testing;
 
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Rect;
 
 import com.android.wallpaper.asset.Asset;
 import com.android.wallpaper.asset.Asset.BitmapReceiver;
+import com.android.wallpaper.asset.StreamableAsset;
 import com.android.wallpaper.module.BitmapCropper;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
 /**
  * Test double for BitmapCropper.
  */
@@ -55,4 +61,22 @@ public class TestBitmapCropper implements BitmapCropper {
                     }
                 });
     }
+
+    @Override
+    public void cropAndScaleToStream(StreamableAsset asset, float scale, Rect cropRect,
+            File tempDir, StreamCallback callback) {
+        cropAndScaleBitmap(asset, scale, cropRect, new Callback() {
+            @Override
+            public void onBitmapCropped(Bitmap croppedBitmap) {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                croppedBitmap.compress(CompressFormat.PNG, 100 /* quality */, outputStream);
+                callback.onStreamCropped(new ByteArrayInputStream(outputStream.toByteArray()));
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                callback.onError(e);
+            }
+        });
+    }
 }
@@ -20,8 +20,10 @@ import android.os.Handler;
 import com.android.wallpaper.model.Category;
 import com.android.wallpaper.model.CategoryProvider;
 import com.android.wallpaper.model.CategoryReceiver;
+import com.android.wallpaper.model.CategoryUpdateReceiver;
 import com.android.wallpaper.model.ImageCategory;
 import com.android.wallpaper.model.WallpaperInfo;
+import com.android.wallpaper.module.PackageStatusNotifier.PackageStatus;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -65,6 +67,18 @@ public class TestCategoryProvider implements CategoryProvider {
         });
     }
 
+    @Override
+    public void updateLiveWallpaperCategory(String packageName, @PackageStatus int status,
+            CategoryUpdateReceiver receiver) {
+        // Test categories don't depend on installed packages.
+    }
+
+    @Override
+    public void updateThirdPartyCategories(String packageName, @PackageStatus int status,
+            CategoryUpdateReceiver receiver) {
+        // Test categories don't depend on installed packages.
+    }
+
     @Override
     public int getSize() {
         return mCategories == null ? 0 : mCategories.size();
@@ -17,6 +17,7 @@ package com.android.wallpaper.testing;
 
 import androidx.annotation.Nullable;
 
+import com.android.wallpaper.model.WallpaperMetadata;
 import com.android.wallpaper.module.WallpaperPreferences;
 
 import java.util.ArrayList;
@@ -34,6 +35,7 @@ public class TestWallpaperPreferences implements WallpaperPreferences {
     private List<String> mHomeScreenAttributions;
     private long mHomeScreenBitmapHashCode;
     private int mHomeWallpaperManagerId;
+    private long mHomeWallpaperFileFingerprint;
     private String mHomeScreenPackageName;
     private String mHomeActionUrl;
     private String mHomeBaseImageUrl;
@@ -43,6 +45,7 @@ public class TestWallpaperPreferences implements WallpaperPreferences {
     private List<String> mLockScreenAttributions;
     private long mLockScreenBitmapHashCode;
     private int mLockWallpaperManagerId;
+    private long mLockWallpaperFileFingerprint;
     private String mLockActionUrl;
     private String mLockCollectionId;
 
@@ -170,6 +173,7 @@ public class TestWallpaperPreferences implements WallpaperPreferences {
         mHomeScreenBitmapHashCode = 0;
         mHomeScreenPackageName = null;
         mHomeWallpaperManagerId = 0;
+        mHomeWallpaperFileFingerprint = 0;
     }
 
     @Override
@@ -182,6 +186,12 @@ public class TestWallpaperPreferences implements WallpaperPreferences {
         mHomeScreenBitmapHashCode = hashCode;
     }
 
+    @Override
+    public boolean isHomeWallpaperHashCodeLegacy() {
+        // Hash codes are only ever set by the current version of the app.
+        return false;
+    }
+
     @Override
     public String getHomeWallpaperPackageName() {
         return mHomeScreenPackageName;
@@ -202,6 +212,16 @@ public class TestWallpaperPreferences implements WallpaperPreferences {
         mHomeWallpaperManagerId = homeWallpaperId;
     }
 
+    @Override
+    public long getHomeWallpaperFileFingerprint() {
+        return mHomeWallpaperFileFingerprint;
+    }
+
+    @Override
+    public void setHomeWallpaperFileFingerprint(long fingerprint) {
+        mHomeWallpaperFileFingerprint = fingerprint;
+    }
+
     @Override
     public String getHomeWallpaperRemoteId() {
         return mHomeWallpaperRemoteId;
@@ -277,6 +297,7 @@ public class TestWallpaperPreferences implements WallpaperPreferences {
         mLockScreenAttributions = null;
         mLockScreenBitmapHashCode = 0;
         mLockWallpaperManagerId = 0;
+        mLockWallpaperFileFingerprint = 0;
     }
 
     @Override
@@ -289,6 +310,12 @@ public class TestWallpaperPreferences implements WallpaperPreferences {
         mLockScreenBitmapHashCode = hashCode;
     }
 
+    @Override
+    public boolean isLockWallpaperHashCodeLegacy() {
+        // Hash codes are only ever set by the current version of the app.
+        return false;
+    }
+
     @Override
     public int getLockWallpaperId() {
         return mLockWallpaperManagerId;
@@ -299,6 +326,38 @@ public class TestWallpaperPreferences implements WallpaperPreferences {
         mLockWallpaperManagerId = lockWallpaperId;
     }
 
+    @Override
+    public long getLockWallpaperFileFingerprint() {
+        return mLockWallpaperFileFingerprint;
+    }
+
+    @Override
+    public void setLockWallpaperFileFingerprint(long fingerprint) {
+        mLockWallpaperFileFingerprint = fingerprint;
+    }
+
+    @Override
+    public MetadataEditor editMetadata() {
+        return new TestMetadataEditor();
+    }
+
+    @Override
+    public WallpaperMetadata getHomeWallpaperMetadata(
+            @Nullable android.app.WallpaperInfo wallpaperComponent) {
+        return new WallpaperMetadata(getHomeWallpaperAttributions(), getHomeWallpaperActionUrl(),
+                getHomeWallpaperActionLabelRes(), getHomeWallpaperActionIconRes(),
+                getHomeWallpaperCollectionId(), getHomeWallpaperBackingFileName(),
+                wallpaperComponent);
+    }
+
+    @Override
+    public WallpaperMetadata getLockWallpaperMetadata() {
+        return new WallpaperMetadata(getLockWallpaperAttributions(), getLockWallpaperActionUrl(),
+                getLockWallpaperActionLabelRes(), getLockWallpaperActionIconRes(),
+                getLockWallpaperCollectionId(), getLockWallpaperBackingFileName(),
+                null /* wallpaperComponent */);
+    }
+
     @Override
     public void addDailyRotation(long timestamp) {
         mDailyRotations.add(timestamp);
@@ -454,4 +513,176 @@ public class TestWallpaperPreferences implements WallpaperPreferences {
     public void resetNumDaysDailyRotationNotAttempted() {
         mNumDaysDailyRotationNotAttempted = 0;
     }
+
+    /**
+     * Queues edits and runs them against the in-memory prefs when applied.
+     */
+    private class TestMetadataEditor implements MetadataEditor {
+        private final List<Runnable> mEdits = new ArrayList<>();
+
+        @Override
+        public MetadataEditor setWallpaperPresentationMode(@PresentationMode int presentationMode) {
+            mEdits.add(() ->
+                    TestWallpaperPreferences.this.setWallpaperPresentationMode(presentationMode));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor clearHomeWallpaperMetadata() {
+            mEdits.add(() -> TestWallpaperPreferences.this.clearHomeWallpaperMetadata());
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperAttributions(List<String> attributions) {
+            mEdits.add(() ->
+                    TestWallpaperPreferences.this.setHomeWallpaperAttributions(attributions));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperActionUrl(String actionUrl) {
+            mEdits.add(() -> TestWallpaperPreferences.this.setHomeWallpaperActionUrl(actionUrl));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperActionLabelRes(int resId) {
+            mEdits.add(() -> TestWallpaperPreferences.this.setHomeWallpaperActionLabelRes(resId));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperActionIconRes(int resId) {
+            mEdits.add(() -> TestWallpaperPreferences.this.setHomeWallpaperActionIconRes(resId));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperBaseImageUrl(String baseImageUrl) {
+            mEdits.add(() ->
+                    TestWallpaperPreferences.this.setHomeWallpaperBaseImageUrl(baseImageUrl));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperCollectionId(String collectionId) {
+            mEdits.add(() ->
+                    TestWallpaperPreferences.this.setHomeWallpaperCollectionId(collectionId));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperBackingFileName(String fileName) {
+            mEdits.add(() ->
+                    TestWallpaperPreferences.this.setHomeWallpaperBackingFileName(fileName));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperHashCode(long hashCode) {
+            mEdits.add(() -> TestWallpaperPreferences.this.setHomeWallpaperHashCode(hashCode));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperPackageName(String packageName) {
+            mEdits.add(() ->
+                    TestWallpaperPreferences.this.setHomeWallpaperPackageName(packageName));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperManagerId(int homeWallpaperId) {
+            mEdits.add(() ->
+                    TestWallpaperPreferences.this.setHomeWallpaperManagerId(homeWallpaperId));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperFileFingerprint(long fingerprint) {
+            mEdits.add(() ->
+                    TestWallpaperPreferences.this.setHomeWallpaperFileFingerprint(fingerprint));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setHomeWallpaperRemoteId(String wallpaperRemoteId) {
+            mEdits.add(() ->
+                    TestWallpaperPreferences.this.setHomeWallpaperRemoteId(wallpaperRemoteId));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor clearLockWallpaperMetadata() {
+            mEdits.add(() -> TestWallpaperPreferences.this.clearLockWallpaperMetadata());
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setLockWallpaperAttributions(List<String> attributions) {
+            mEdits.add(() ->
+                    TestWallpaperPreferences.this.setLockWallpaperAttributions(attributions));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setLockWallpaperActionUrl(String actionUrl) {
+            mEdits.add(() -> TestWallpaperPreferences.this.setLockWallpaperActionUrl(actionUrl));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setLockWallpaperActionLabelRes(int resId) {
+            mEdits.add(() -> TestWallpaperPreferences.this.setLockWallpaperActionLabelRes(resId));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setLockWallpaperActionIconRes(int resId) {
+            mEdits.add(() -> TestWallpaperPreferences.this.setLockWallpaperActionIconRes(resId));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setLockWallpaperCollectionId(String collectionId) {
+            mEdits.add(() ->
+                    TestWallpaperPreferences.this.setLockWallpaperCollectionId(collectionId));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setLockWallpaperBackingFileName(String fileName) {
+            mEdits.add(() ->
+                    TestWallpaperPreferences.this.setLockWallpaperBackingFileName(fileName));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setLockWallpaperHashCode(long hashCode) {
+            mEdits.add(() -> TestWallpaperPreferences.this.setLockWallpaperHashCode(hashCode));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setLockWallpaperId(int lockWallpaperId) {
+            mEdits.add(() -> TestWallpaperPreferences.this.setLockWallpaperId(lockWallpaperId));
+            return this;
+        }
+
+        @Override
+        public MetadataEditor setLockWallpaperFileFingerprint(long fingerprint) {
+            mEdits.add(() ->
+                    TestWallpaperPreferences.this.setLockWallpaperFileFingerprint(fingerprint));
+            return this;
+        }
+
+        @Override
+        public void apply() {
+            for (Runnable edit : mEdits) {
+                edit.run();
+            }
+            mEdits.clear();
+        }
+    }
 }
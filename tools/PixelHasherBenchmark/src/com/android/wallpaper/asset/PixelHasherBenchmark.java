@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import java.util.Random;
+
+/**
+ * Compares the cost of {@link PixelHasher#hash} against the hash code generation it replaced,
+ * which called {@code Bitmap#getPixel} once per sample, on images held in memory. This is a
+ * host-side tool which isn't part of the app or its unit tests; it only depends on the JDK, e.g.:
+ * <pre>
+ * ./gradlew runPixelHasherBenchmark
+ * </pre>
+ * or without gradle:
+ * <pre>
+ * javac -d out src/com/android/wallpaper/asset/PixelHasher.java \
+ *         tools/PixelHasherBenchmark/src/com/android/wallpaper/asset/PixelHasherBenchmark.java
+ * java -cp out com.android.wallpaper.asset.PixelHasherBenchmark
+ * </pre>
+ * Pixels are read from arrays here, so the per-call JNI overhead of {@code getPixel} on a device
+ * is not included; the figures compare the amount of work done by each algorithm.
+ */
+public final class PixelHasherBenchmark {
+    private static final int[][] SIZES = {{1080, 1920}, {1440, 2960}, {4000, 3000}, {12000, 9000}};
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int MEASURED_ITERATIONS = 500;
+
+    private PixelHasherBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        Random random = new Random(0);
+        for (int[] size : SIZES) {
+            int[] pixels = new int[size[0] * size[1]];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = random.nextInt();
+            }
+            ArrayImage image = new ArrayImage(pixels, size[0], size[1]);
+
+            long sink = 0;
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                sink += PixelHasher.hash(image) + hashPerPixel(image);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                sink += hashPerPixel(image);
+            }
+            long perPixelNanos = (System.nanoTime() - start) / MEASURED_ITERATIONS;
+
+            start = System.nanoTime();
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                sink += PixelHasher.hash(image);
+            }
+            long gridNanos = (System.nanoTime() - start) / MEASURED_ITERATIONS;
+
+            System.out.printf("%dx%d: per-pixel %d samples %.1f us, grid %d samples %.1f us (%d)%n",
+                    size[0], size[1], countPerPixelSamples(image), perPixelNanos / 1000f,
+                    Math.min(PixelHasher.HASH_GRID_SIZE, size[0])
+                            * Math.min(PixelHasher.HASH_GRID_SIZE, size[1]),
+                    gridNanos / 1000f, sink & 1);
+        }
+    }
+
+    /**
+     * The hash code generation which {@link PixelHasher#hash} replaced, reading one pixel per call.
+     */
+    private static long hashPerPixel(ArrayImage image) {
+        long result = 17;
+        result = 31 * result + image.getWidth();
+        result = 31 * result + image.getHeight();
+        for (int x = 0; x < image.getWidth(); x = x * 2 + 1) {
+            for (int y = 0; y < image.getHeight(); y = y * 2 + 1) {
+                result = 31 * result + image.getPixel(x, y);
+            }
+        }
+        return result;
+    }
+
+    private static int countPerPixelSamples(ArrayImage image) {
+        int columns = 0;
+        for (int x = 0; x < image.getWidth(); x = x * 2 + 1) {
+            columns++;
+        }
+        int rows = 0;
+        for (int y = 0; y < image.getHeight(); y = y * 2 + 1) {
+            rows++;
+        }
+        return columns * rows;
+    }
+
+    /**
+     * Image backed by an array, read by rows like a bitmap's {@code getPixels}, or by pixel like
+     * its {@code getPixel}.
+     */
+    private static final class ArrayImage implements PixelHasher.RowReader {
+        private final int[] mPixels;
+        private final int mWidth;
+        private final int mHeight;
+
+        ArrayImage(int[] pixels, int width, int height) {
+            mPixels = pixels;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public int getWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public void readRow(int y, int[] pixels) {
+            System.arraycopy(mPixels, y * mWidth, pixels, 0, mWidth);
+        }
+
+        int getPixel(int x, int y) {
+            return mPixels[y * mWidth + x];
+        }
+    }
+}
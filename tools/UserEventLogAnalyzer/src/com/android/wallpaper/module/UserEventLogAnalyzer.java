@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module;
+
+import com.android.wallpaper.module.UserEventLogFormat.Record;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Summarizes a ring file written by LocalUserEventLogger into per-day statistics. This is a
+ * host-side tool which isn't part of the app; it only depends on the JDK, so it can be run on a
+ * file pulled from a device, e.g.:
+ * <pre>
+ * adb pull /data/data/&lt;package&gt;/no_backup/user_events.bin
+ * ./gradlew runUserEventLogAnalyzer -PuserEventLog=user_events.bin
+ * </pre>
+ * or without gradle:
+ * <pre>
+ * javac -d out src/com/android/wallpaper/module/UserEventLogFormat.java \
+ *         tools/UserEventLogAnalyzer/src/com/android/wallpaper/module/UserEventLogAnalyzer.java
+ * java -cp out com.android.wallpaper.module.UserEventLogAnalyzer user_events.bin
+ * </pre>
+ * Days are in the time zone of the machine running the analyzer.
+ */
+public final class UserEventLogAnalyzer {
+
+    private UserEventLogAnalyzer() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: UserEventLogAnalyzer <user_events.bin>");
+            System.exit(1);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(args[0])));
+        List<Record> records = UserEventLogFormat.readRecords(buffer);
+        if (records.isEmpty()) {
+            System.err.println("No events found; is this a user event log?");
+            return;
+        }
+        print(aggregate(records, ZoneId.systemDefault()), System.out);
+    }
+
+    /**
+     * Groups the records by the day they were logged on in the given time zone.
+     */
+    static SortedMap<LocalDate, DayStats> aggregate(List<Record> records, ZoneId zone) {
+        SortedMap<LocalDate, DayStats> statsByDay = new TreeMap<>();
+        for (Record record : records) {
+            LocalDate day = Instant.ofEpochMilli(record.mTimestamp).atZone(zone).toLocalDate();
+            DayStats stats = statsByDay.get(day);
+            if (stats == null) {
+                stats = new DayStats();
+                statsByDay.put(day, stats);
+            }
+            stats.add(record);
+        }
+        return statsByDay;
+    }
+
+    static void print(SortedMap<LocalDate, DayStats> statsByDay, PrintStream out) {
+        for (Map.Entry<LocalDate, DayStats> entry : statsByDay.entrySet()) {
+            DayStats stats = entry.getValue();
+            out.println(entry.getKey());
+            printHistogram(out, "events", stats.mEventCounts, true /* isEventType */);
+            printHistogram(out, "wallpaper set results", stats.mSetResults, false);
+            printHistogram(out, "wallpaper set failure reasons", stats.mSetFailureReasons, false);
+            printHistogram(out, "daily wallpaper update results", stats.mDailyUpdateResults,
+                    false);
+            printHistogram(out, "daily wallpaper update crashes", stats.mDailyUpdateCrashes,
+                    false);
+            printHistogram(out, "daily wallpaper metadata failures", stats.mMetadataFailures,
+                    false);
+            if (stats.mRotationDecodes + stats.mRotationDecodeFailures > 0) {
+                out.println("  daily wallpaper decodes: " + stats.mRotationDecodes
+                        + " succeeded, " + stats.mRotationDecodeFailures + " failed");
+            }
+            printHistogram(out, "categories selected", stats.mCategorySelections);
+            printHistogram(out, "wallpapers set by collection", stats.mWallpaperSets);
+            out.println();
+        }
+    }
+
+    private static void printHistogram(PrintStream out, String title,
+            SortedMap<Integer, Integer> histogram, boolean isEventType) {
+        if (histogram.isEmpty()) {
+            return;
+        }
+        out.println("  " + title + ":");
+        for (Map.Entry<Integer, Integer> entry : histogram.entrySet()) {
+            String key = isEventType
+                    ? UserEventLogFormat.getEventName(entry.getKey())
+                    : String.valueOf(entry.getKey());
+            out.println("    " + key + ": " + entry.getValue());
+        }
+    }
+
+    private static void printHistogram(PrintStream out, String title,
+            Map<String, Integer> histogram) {
+        if (histogram.isEmpty()) {
+            return;
+        }
+        out.println("  " + title + ":");
+        for (Map.Entry<String, Integer> entry : histogram.entrySet()) {
+            out.println("    " + entry.getKey() + ": " + entry.getValue());
+        }
+    }
+
+    /**
+     * Statistics for the events logged on a single day.
+     */
+    static final class DayStats {
+        final SortedMap<Integer, Integer> mEventCounts = new TreeMap<>();
+        final SortedMap<Integer, Integer> mSetResults = new TreeMap<>();
+        final SortedMap<Integer, Integer> mSetFailureReasons = new TreeMap<>();
+        final SortedMap<Integer, Integer> mDailyUpdateResults = new TreeMap<>();
+        final SortedMap<Integer, Integer> mDailyUpdateCrashes = new TreeMap<>();
+        final SortedMap<Integer, Integer> mMetadataFailures = new TreeMap<>();
+        final SortedMap<String, Integer> mCategorySelections = new TreeMap<>();
+        final SortedMap<String, Integer> mWallpaperSets = new TreeMap<>();
+        int mRotationDecodes;
+        int mRotationDecodeFailures;
+
+        void add(Record record) {
+            increment(mEventCounts, record.mEventType);
+            switch (record.mEventType) {
+                case UserEventLogFormat.EVENT_WALLPAPER_SET_RESULT:
+                    increment(mSetResults, record.mIntPayload1);
+                    break;
+                case UserEventLogFormat.EVENT_WALLPAPER_SET_FAILURE_REASON:
+                    increment(mSetFailureReasons, record.mIntPayload1);
+                    break;
+                case UserEventLogFormat.EVENT_DAILY_WALLPAPER_SET_NEXT_WALLPAPER_RESULT:
+                    increment(mDailyUpdateResults, record.mIntPayload1);
+                    break;
+                case UserEventLogFormat.EVENT_DAILY_WALLPAPER_SET_NEXT_WALLPAPER_CRASH:
+                    increment(mDailyUpdateCrashes, record.mIntPayload1);
+                    break;
+                case UserEventLogFormat.EVENT_DAILY_WALLPAPER_METADATA_REQUEST_FAILURE:
+                    increment(mMetadataFailures, record.mIntPayload1);
+                    break;
+                case UserEventLogFormat.EVENT_DAILY_WALLPAPER_DECODES:
+                    if (record.mIntPayload1 != 0) {
+                        mRotationDecodes++;
+                    } else {
+                        mRotationDecodeFailures++;
+                    }
+                    break;
+                case UserEventLogFormat.EVENT_CATEGORY_SELECTED:
+                    increment(mCategorySelections, String.valueOf(record.mCollectionId));
+                    break;
+                case UserEventLogFormat.EVENT_WALLPAPER_SET:
+                    increment(mWallpaperSets, String.valueOf(record.mCollectionId));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private static <K> void increment(Map<K, Integer> histogram, K key) {
+            Integer count = histogram.get(key);
+            histogram.put(key, count == null ? 1 : count + 1);
+        }
+    }
+}